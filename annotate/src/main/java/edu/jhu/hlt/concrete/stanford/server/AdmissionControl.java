@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.server;
+
+/**
+ * Bounds the amount of text the server holds at once, queued or being
+ * annotated, so a burst of requests is turned away quickly instead of
+ * exhausting the heap.
+ * <br>
+ * <br>
+ * Each request costs the number of characters it asks to annotate. A
+ * request is admitted if it fits within the budget alongside those already
+ * admitted; a single request larger than the whole budget is admitted when
+ * nothing else is in flight, so it can still be served. A refused client is
+ * told how long to wait, estimated from the rate at which recent requests
+ * were annotated.
+ */
+public class AdmissionControl {
+
+  private static final double ALPHA = 0.2;
+  private static final long DEFAULT_RETRY_MILLIS = 1000;
+  private static final long MIN_RETRY_MILLIS = 100;
+  private static final long MAX_RETRY_MILLIS = 60 * 1000;
+
+  private final long budget;
+  private final int workers;
+  private long inFlight = 0;
+  // moving average of one worker's annotation rate
+  private double charsPerMilli = 0.0;
+
+  /**
+   * @param budget the most characters in flight at once; must be positive
+   * @param workers the number of requests annotated at once
+   */
+  public AdmissionControl(long budget, int workers) {
+    if (budget <= 0)
+      throw new IllegalArgumentException("budget must be positive: " + budget);
+    if (workers < 1)
+      throw new IllegalArgumentException("need at least one worker");
+    this.budget = budget;
+    this.workers = workers;
+  }
+
+  /**
+   * @param cost the request's size in characters
+   * @return true if the request was admitted; it must then be passed to
+   * {@link #complete(long, long)} or {@link #release(long)} once done
+   */
+  public synchronized boolean tryAcquire(long cost) {
+    if (this.inFlight > 0 && this.inFlight + cost > this.budget)
+      return false;
+    this.inFlight += cost;
+    return true;
+  }
+
+  /**
+   * Release an admitted request that was annotated, and learn from how long
+   * it took.
+   */
+  public synchronized void complete(long cost, long elapsedNanos) {
+    this.release(cost);
+    final double millis = elapsedNanos / 1e6;
+    if (cost <= 0 || millis <= 0)
+      return;
+    final double rate = cost / millis;
+    this.charsPerMilli = this.charsPerMilli == 0.0 ? rate : ALPHA * rate + (1 - ALPHA) * this.charsPerMilli;
+  }
+
+  /**
+   * Release an admitted request without learning from it, e.g. because it failed.
+   */
+  public synchronized void release(long cost) {
+    this.inFlight = Math.max(0, this.inFlight - cost);
+  }
+
+  /**
+   * @param cost the size of a refused request
+   * @return roughly how long until a request of that size would be admitted
+   */
+  public synchronized long retryAfterMillis(long cost) {
+    if (this.charsPerMilli == 0.0)
+      return DEFAULT_RETRY_MILLIS;
+    final double excess = Math.max(0, this.inFlight + Math.min(cost, this.budget) - this.budget);
+    final long millis = (long) Math.ceil(excess / (this.charsPerMilli * this.workers));
+    return Math.max(MIN_RETRY_MILLIS, Math.min(MAX_RETRY_MILLIS, millis));
+  }
+
+  /**
+   * @return the characters currently admitted and not yet released
+   */
+  public synchronized long getInFlight() {
+    return this.inFlight;
+  }
+
+  public long getBudget() {
+    return this.budget;
+  }
+}
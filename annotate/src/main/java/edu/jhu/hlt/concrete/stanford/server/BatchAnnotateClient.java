@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TType;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.services.ConcreteThriftException;
+
+/**
+ * Calls the batch annotate method served by {@link BatchAnnotateProcessor}.
+ * Not thread safe; use one client per connection.
+ */
+public class BatchAnnotateClient {
+
+  private final TProtocol prot;
+  private int seqid = 0;
+
+  /**
+   * @param prot a protocol over an open transport to the server
+   */
+  public BatchAnnotateClient(TProtocol prot) {
+    this.prot = prot;
+  }
+
+  /**
+   * @param originals the Communications to annotate
+   * @return one item per Communication, in the same order
+   * @throws ConcreteThriftException if the server refused the whole batch
+   */
+  public List<BatchItem> annotateBatch(List<Communication> originals) throws ConcreteThriftException, TException {
+    final int id = ++this.seqid;
+    this.prot.writeMessageBegin(new TMessage(BatchAnnotateProcessor.METHOD, TMessageType.CALL, id));
+    this.prot.writeStructBegin(BatchAnnotateProcessor.ARGS);
+    this.prot.writeFieldBegin(BatchAnnotateProcessor.ORIGINALS);
+    this.prot.writeListBegin(new TList(TType.STRUCT, originals.size()));
+    for (Communication c : originals)
+      c.write(this.prot);
+    this.prot.writeListEnd();
+    this.prot.writeFieldEnd();
+    this.prot.writeFieldStop();
+    this.prot.writeStructEnd();
+    this.prot.writeMessageEnd();
+    this.prot.getTransport().flush();
+
+    TMessage msg = this.prot.readMessageBegin();
+    if (msg.type == TMessageType.EXCEPTION) {
+      TApplicationException x = new TApplicationException();
+      x.read(this.prot);
+      this.prot.readMessageEnd();
+      throw x;
+    }
+    if (msg.seqid != id)
+      throw new TApplicationException(TApplicationException.BAD_SEQUENCE_ID, BatchAnnotateProcessor.METHOD + " failed: out of sequence response");
+
+    List<BatchItem> items = null;
+    ConcreteThriftException ex = null;
+    this.prot.readStructBegin();
+    while (true) {
+      TField f = this.prot.readFieldBegin();
+      if (f.type == TType.STOP)
+        break;
+      if (f.id == BatchAnnotateProcessor.SUCCESS.id && f.type == TType.LIST) {
+        TList l = this.prot.readListBegin();
+        items = new ArrayList<>(l.size);
+        for (int i = 0; i < l.size; i++)
+          items.add(BatchItem.read(this.prot));
+        this.prot.readListEnd();
+      } else if (f.id == BatchAnnotateProcessor.EX.id && f.type == TType.STRUCT) {
+        ex = new ConcreteThriftException();
+        ex.read(this.prot);
+      } else {
+        TProtocolUtil.skip(this.prot, f.type);
+      }
+      this.prot.readFieldEnd();
+    }
+    this.prot.readStructEnd();
+    this.prot.readMessageEnd();
+
+    if (ex != null)
+      throw ex;
+    if (items == null)
+      throw new TApplicationException(TApplicationException.MISSING_RESULT, BatchAnnotateProcessor.METHOD + " failed: unknown result");
+    return items;
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolDecorator;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.annotate.AnnotateCommunicationService;
+import edu.jhu.hlt.concrete.services.ConcreteThriftException;
+
+/**
+ * Serves a batch annotate method next to {@link AnnotateCommunicationService}
+ * on the same port. Calls to any other method go to the usual processor, so
+ * existing clients are unaffected.
+ * <br>
+ * <br>
+ * The batch method is, in Thrift IDL:
+ * <pre>
+ * list&lt;BatchItem&gt; annotateBatch(1: list&lt;communication.Communication&gt; originals)
+ *     throws (1: services.ConcreteThriftException ex)
+ * </pre>
+ * Results are in the order of <code>originals</code>. A Communication that
+ * fails gets a {@link BatchItem} with an error; the exception is only thrown
+ * when the batch as a whole is refused. Any other failure is answered with
+ * an internal error {@link TApplicationException}. {@link BatchAnnotateClient} calls it
+ * from Java.
+ */
+public class BatchAnnotateProcessor implements TProcessor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BatchAnnotateProcessor.class);
+
+  public static final String METHOD = "annotateBatch";
+
+  static final TStruct ARGS = new TStruct(METHOD + "_args");
+  static final TField ORIGINALS = new TField("originals", TType.LIST, (short) 1);
+  static final TStruct RESULT = new TStruct(METHOD + "_result");
+  static final TField SUCCESS = new TField("success", TType.LIST, (short) 0);
+  static final TField EX = new TField("ex", TType.STRUCT, (short) 1);
+
+  private final ConcreteStanfordThriftServer server;
+  private final TProcessor delegate;
+
+  /**
+   * Hands the delegate a message that has already been read.
+   */
+  private static class StoredMessageProtocol extends TProtocolDecorator {
+    private final TMessage message;
+
+    StoredMessageProtocol(TProtocol protocol, TMessage message) {
+      super(protocol);
+      this.message = message;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.thrift.protocol.TProtocolDecorator#readMessageBegin()
+     */
+    @Override
+    public TMessage readMessageBegin() throws TException {
+      return this.message;
+    }
+  }
+
+  public BatchAnnotateProcessor(ConcreteStanfordThriftServer server) {
+    this.server = server;
+    this.delegate = new AnnotateCommunicationService.Processor<>(server);
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see org.apache.thrift.TProcessor#process(org.apache.thrift.protocol.TProtocol, org.apache.thrift.protocol.TProtocol)
+   */
+  @Override
+  public boolean process(TProtocol in, TProtocol out) throws TException {
+    final TMessage msg = in.readMessageBegin();
+    if (!msg.name.equals(METHOD))
+      return this.delegate.process(new StoredMessageProtocol(in, msg), out);
+
+    final List<Communication> originals;
+    try {
+      originals = readArgs(in);
+    } catch (TProtocolException e) {
+      in.readMessageEnd();
+      writeException(out, msg, new TApplicationException(TApplicationException.PROTOCOL_ERROR, e.getMessage()));
+      return true;
+    }
+    in.readMessageEnd();
+
+    List<BatchItem> items = null;
+    ConcreteThriftException refused = null;
+    try {
+      items = this.server.annotateBatch(originals);
+    } catch (ConcreteThriftException e) {
+      refused = e;
+    } catch (TException | RuntimeException e) {
+      // as generated processors do, so the client is not left waiting
+      LOGGER.error("Internal error processing {}", METHOD, e);
+      writeException(out, msg, new TApplicationException(TApplicationException.INTERNAL_ERROR,
+          "Internal error processing " + METHOD));
+      return true;
+    }
+
+    out.writeMessageBegin(new TMessage(METHOD, TMessageType.REPLY, msg.seqid));
+    out.writeStructBegin(RESULT);
+    if (items != null) {
+      out.writeFieldBegin(SUCCESS);
+      out.writeListBegin(new TList(TType.STRUCT, items.size()));
+      for (BatchItem i : items)
+        i.write(out);
+      out.writeListEnd();
+      out.writeFieldEnd();
+    } else {
+      out.writeFieldBegin(EX);
+      refused.write(out);
+      out.writeFieldEnd();
+    }
+    out.writeFieldStop();
+    out.writeStructEnd();
+    out.writeMessageEnd();
+    out.getTransport().flush();
+    return true;
+  }
+
+  private static void writeException(TProtocol out, TMessage msg, TApplicationException x) throws TException {
+    out.writeMessageBegin(new TMessage(METHOD, TMessageType.EXCEPTION, msg.seqid));
+    x.write(out);
+    out.writeMessageEnd();
+    out.getTransport().flush();
+  }
+
+  private static List<Communication> readArgs(TProtocol in) throws TException {
+    List<Communication> originals = new ArrayList<>();
+    in.readStructBegin();
+    while (true) {
+      TField f = in.readFieldBegin();
+      if (f.type == TType.STOP)
+        break;
+      if (f.id == ORIGINALS.id && f.type == TType.LIST) {
+        TList l = in.readListBegin();
+        for (int i = 0; i < l.size; i++) {
+          Communication c = new Communication();
+          c.read(in);
+          originals.add(c);
+        }
+        in.readListEnd();
+      } else {
+        TProtocolUtil.skip(in, f.type);
+      }
+      in.readFieldEnd();
+    }
+    in.readStructEnd();
+    return originals;
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.server;
+
+import java.util.Optional;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+
+import edu.jhu.hlt.concrete.Communication;
+
+/**
+ * The outcome of annotating one Communication of a batch: either the
+ * annotated Communication or the reason it failed.
+ * <br>
+ * <br>
+ * On the wire this is the Thrift struct
+ * <pre>
+ * struct BatchItem {
+ *   1: optional communication.Communication communication
+ *   2: optional string error
+ * }
+ * </pre>
+ */
+public class BatchItem {
+
+  private static final TStruct STRUCT = new TStruct("BatchItem");
+  private static final TField COMMUNICATION = new TField("communication", TType.STRUCT, (short) 1);
+  private static final TField ERROR = new TField("error", TType.STRING, (short) 2);
+
+  private final Communication communication;
+  private final String error;
+
+  private BatchItem(Communication communication, String error) {
+    this.communication = communication;
+    this.error = error;
+  }
+
+  public static BatchItem of(Communication annotated) {
+    return new BatchItem(annotated, null);
+  }
+
+  public static BatchItem error(String error) {
+    return new BatchItem(null, error);
+  }
+
+  public boolean isOk() {
+    return this.communication != null;
+  }
+
+  /**
+   * @return the annotated Communication, unless annotation failed
+   */
+  public Optional<Communication> getCommunication() {
+    return Optional.ofNullable(this.communication);
+  }
+
+  /**
+   * @return why annotation failed, if it did
+   */
+  public Optional<String> getError() {
+    return Optional.ofNullable(this.error);
+  }
+
+  void write(TProtocol out) throws TException {
+    out.writeStructBegin(STRUCT);
+    if (this.communication != null) {
+      out.writeFieldBegin(COMMUNICATION);
+      this.communication.write(out);
+      out.writeFieldEnd();
+    }
+    if (this.error != null) {
+      out.writeFieldBegin(ERROR);
+      out.writeString(this.error);
+      out.writeFieldEnd();
+    }
+    out.writeFieldStop();
+    out.writeStructEnd();
+  }
+
+  static BatchItem read(TProtocol in) throws TException {
+    Communication c = null;
+    String error = null;
+    in.readStructBegin();
+    while (true) {
+      TField f = in.readFieldBegin();
+      if (f.type == TType.STOP)
+        break;
+      if (f.id == COMMUNICATION.id && f.type == TType.STRUCT) {
+        c = new Communication();
+        c.read(in);
+      } else if (f.id == ERROR.id && f.type == TType.STRING) {
+        error = in.readString();
+      } else {
+        TProtocolUtil.skip(in, f.type);
+      }
+      in.readFieldEnd();
+    }
+    in.readStructEnd();
+    return new BatchItem(c, error);
+  }
+}
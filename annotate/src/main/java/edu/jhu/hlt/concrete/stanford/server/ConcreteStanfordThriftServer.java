@@ -4,13 +4,27 @@
  */
 package edu.jhu.hlt.concrete.stanford.server;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.thrift.TException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import edu.jhu.hlt.concrete.AnnotationMetadata;
 import edu.jhu.hlt.concrete.Communication;
@@ -20,31 +34,218 @@ import edu.jhu.hlt.concrete.annotate.AnnotateCommunicationService;
 import edu.jhu.hlt.concrete.metadata.AnnotationMetadataFactory;
 import edu.jhu.hlt.concrete.miscommunication.WrappedCommunication;
 import edu.jhu.hlt.concrete.services.ConcreteThriftException;
+import edu.jhu.hlt.concrete.stanford.runners.AnalyticChain;
+import edu.jhu.hlt.concrete.stanford.runners.DocumentCost;
 
 /**
  * Implementation of concrete-stanford as a service.
+ * <br>
+ * <br>
+ * Requests are handed to a fixed pool of workers, each of which owns one
+ * analytic chain, so concurrent requests never share a chain. Requests that
+ * arrive while every worker is busy wait in a bounded queue; once the queue
+ * is full, further requests are refused with a {@link ConcreteThriftException}
+ * rather than piling up. An optional {@link AdmissionControl} also bounds
+ * the characters of text held at once, refusing requests that would exceed
+ * it with a hint of when to retry.
+ * <br>
+ * <br>
+ * {@link #annotateBatch(List)} annotates many small Communications in one
+ * call; it is served over Thrift by {@link BatchAnnotateProcessor}.
  */
-public class ConcreteStanfordThriftServer implements AnnotateCommunicationService.Iface {
+public class ConcreteStanfordThriftServer implements AnnotateCommunicationService.Iface, AutoCloseable {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ConcreteStanfordThriftServer.class);
 
-  private final List<Analytic<? extends WrappedCommunication>> analytics;
-  private final Analytic<? extends WrappedCommunication> first;
-  private final List<Analytic<? extends WrappedCommunication>> rest;
+  private final BlockingQueue<AnalyticChain> chains;
+  private final ThreadPoolExecutor workers;
+  private final int queueSize;
+  private AdmissionControl admission;
+  private final ServerMetrics metrics = new ServerMetrics();
+  private volatile Readiness readiness = Readiness.STARTING;
 
   /**
    * package ctor is guaranteed to get >0 analytics
    */
   ConcreteStanfordThriftServer(List<Analytic<? extends WrappedCommunication>> analytics) {
-    this.analytics = analytics;
-    final int aSize = this.analytics.size();
-    if (aSize == 0)
-      throw new IllegalArgumentException("need >0 analytics");
-    this.first = analytics.get(0);
-    if (aSize > 1)
-      this.rest = this.analytics.subList(1, aSize);
+    this(ImmutableList.of(new AnalyticChain(analytics)), 0);
+  }
+
+  /**
+   * @param chains one chain per worker; they may share read-only models,
+   * but no chain is used by two requests at once
+   * @param queueSize the number of requests that may wait for a worker
+   */
+  public ConcreteStanfordThriftServer(List<AnalyticChain> chains, int queueSize) {
+    if (chains.isEmpty())
+      throw new IllegalArgumentException("need >0 analytic chains");
+    if (queueSize < 0)
+      throw new IllegalArgumentException("queue size must be at least 0");
+    this.chains = new LinkedBlockingQueue<>(chains);
+    this.queueSize = queueSize;
+    final int n = chains.size();
+    this.workers = new ThreadPoolExecutor(n, n, 0L, TimeUnit.MILLISECONDS,
+        queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("stanford-server-worker-%d").setDaemon(true).build());
+  }
+
+  /**
+   * @param admission bounds the characters in flight; null, the default,
+   * for no bound beyond the queue size
+   */
+  public ConcreteStanfordThriftServer setAdmissionControl(AdmissionControl admission) {
+    this.admission = admission;
+    return this;
+  }
+
+  /**
+   * @return the number of workers, each with its own chain
+   */
+  public int getWorkers() {
+    return this.workers.getMaximumPoolSize();
+  }
+
+  /**
+   * @return the number of requests waiting for a worker
+   */
+  public int getQueueDepth() {
+    return this.workers.getQueue().size();
+  }
+
+  /**
+   * @return the characters admitted and not yet finished, or 0 without
+   * admission control
+   */
+  public long getInFlightChars() {
+    final AdmissionControl ac = this.admission;
+    return ac == null ? 0 : ac.getInFlight();
+  }
+
+  public ServerMetrics getMetrics() {
+    return this.metrics;
+  }
+
+  public Readiness getReadiness() {
+    return this.readiness;
+  }
+
+  /**
+   * @param readiness whether the server is ready for clients, as reported
+   * to orchestrators by {@link MetricsHttpServer}
+   * @return this object
+   */
+  public ConcreteStanfordThriftServer setReadiness(Readiness readiness) {
+    LOGGER.info("Server is {}.", readiness);
+    this.readiness = readiness;
+    return this;
+  }
+
+  private Communication run(Communication original) throws AnalyticException, InterruptedException {
+    AnalyticChain chain = this.chains.take();
+    this.metrics.startDocument();
+    final long start = System.nanoTime();
+    Communication annotated = null;
+    try {
+      annotated = chain.annotate(original).getRoot();
+      return annotated;
+    } finally {
+      this.metrics.endDocument(annotated, System.nanoTime() - start);
+      this.chains.add(chain);
+    }
+  }
+
+  private static ConcreteThriftException busy() {
+    return new ConcreteThriftException("Server busy: all workers busy and the request queue is full.");
+  }
+
+  /**
+   * Admit a request costing <code>cost</code> characters, or refuse it.
+   *
+   * @return the characters held for the request, to be given back through
+   * {@link #settle(AtomicLong, long, long)} and {@link #release(AtomicLong)}
+   */
+  private AtomicLong admit(long cost, String what) throws ConcreteThriftException {
+    final AdmissionControl ac = this.admission;
+    if (ac == null)
+      return new AtomicLong(0);
+    if (!ac.tryAcquire(cost)) {
+      this.metrics.recordRefusal(ServerMetrics.OVERLOADED);
+      final long retry = ac.retryAfterMillis(cost);
+      LOGGER.warn("Refusing {} ({} characters): {} of {} characters in flight.", what, cost,
+          ac.getInFlight(), ac.getBudget());
+      throw new ConcreteThriftException("Server overloaded, retry after " + retry + " ms: "
+          + ac.getInFlight() + " of " + ac.getBudget() + " characters in flight.");
+    }
+    return new AtomicLong(cost);
+  }
+
+  private static long cost(Communication c) {
+    return (long) DocumentCost.fromText(c);
+  }
+
+  /**
+   * Give back the characters of one finished document, unless the request
+   * already gave them back.
+   *
+   * @param elapsedNanos how long the document took, or -1 if it failed
+   */
+  private void settle(AtomicLong held, long cost, long elapsedNanos) {
+    final AdmissionControl ac = this.admission;
+    if (ac == null)
+      return;
+    long h;
+    do {
+      h = held.get();
+      if (h < cost)
+        return;
+    } while (!held.compareAndSet(h, h - cost));
+    if (elapsedNanos >= 0)
+      ac.complete(cost, elapsedNanos);
     else
-      this.rest = ImmutableList.of();
+      ac.release(cost);
+  }
+
+  /**
+   * Give back whatever a request still holds, e.g. for documents that never ran.
+   */
+  private void release(AtomicLong held) {
+    final long rest = held.getAndSet(0);
+    if (rest > 0 && this.admission != null)
+      this.admission.release(rest);
+  }
+
+  private Communication runAdmitted(Communication original, AtomicLong held, long cost) throws AnalyticException, InterruptedException {
+    final long start = System.nanoTime();
+    boolean ok = false;
+    try {
+      Communication annotated = this.run(original);
+      ok = true;
+      return annotated;
+    } finally {
+      this.settle(held, cost, ok ? System.nanoTime() - start : -1);
+    }
+  }
+
+  /**
+   * Wait for a worker's result, translating its failure for the client.
+   */
+  private static <T> T await(Future<T> f, String what) throws ConcreteThriftException, TException {
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      f.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new ConcreteThriftException("Interrupted while annotating: " + what);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof AnalyticException)
+        throw new ConcreteThriftException(cause.getMessage());
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new TException(cause);
+    }
   }
 
   /* (non-Javadoc)
@@ -53,14 +254,94 @@ public class ConcreteStanfordThriftServer implements AnnotateCommunicationServic
   @Override
   public Communication annotate(Communication original) throws ConcreteThriftException, TException {
     LOGGER.info("Received annotation request. Annotating: {} [UUID: {}]", original.getId(), original.getUuid().getUuidString());
+    this.metrics.recordRequest(ServerMetrics.ANNOTATE);
+    final long cost = cost(original);
+    final AtomicLong held = this.admit(cost, original.getId());
+    try {
+      final Future<Communication> f;
+      try {
+        f = this.workers.submit(() -> this.runAdmitted(original, held, cost));
+      } catch (RejectedExecutionException e) {
+        LOGGER.warn("Refusing {}: all {} workers busy and {} requests queued.", original.getId(),
+            this.getWorkers(), this.queueSize);
+        this.metrics.recordRefusal(ServerMetrics.BUSY);
+        throw busy();
+      }
+      return await(f, original.getId());
+    } finally {
+      this.release(held);
+    }
+  }
+
+  /**
+   * Annotate a batch of Communications, spread over the workers.
+   * <br>
+   * <br>
+   * The batch takes up to one worker or queue slot per worker, each of which
+   * annotates the next unclaimed Communication until none are left, so a
+   * large batch does not crowd out other requests. The batch is admitted or
+   * refused as a whole, and gives back each document's characters as it
+   * finishes.
+   *
+   * @param originals the Communications to annotate
+   * @return one item per Communication, in the same order; a Communication
+   * that fails has an item with the error
+   * @throws ConcreteThriftException if no worker or queue slot was free, or
+   * the batch would exceed the admission budget
+   */
+  public List<BatchItem> annotateBatch(List<Communication> originals) throws ConcreteThriftException, TException {
+    LOGGER.info("Received batch annotation request for {} communications.", originals.size());
+    this.metrics.recordRequest(ServerMetrics.BATCH);
+    final long[] costs = new long[originals.size()];
+    long total = 0;
+    for (int i = 0; i < costs.length; i++) {
+      costs[i] = cost(originals.get(i));
+      total += costs[i];
+    }
+    final AtomicLong held = this.admit(total, "batch of " + originals.size());
     try {
-      WrappedCommunication intermed = this.first.annotate(original);
-      for (Analytic<? extends WrappedCommunication> a : this.rest) {
-        intermed = a.annotate(intermed.getRoot());
+      return this.annotateAdmitted(originals, costs, held);
+    } finally {
+      this.release(held);
+    }
+  }
+
+  private List<BatchItem> annotateAdmitted(List<Communication> originals, long[] costs, AtomicLong held)
+      throws ConcreteThriftException, TException {
+    final BatchItem[] items = new BatchItem[originals.size()];
+    final AtomicInteger next = new AtomicInteger(0);
+    final int slots = Math.min(this.getWorkers(), originals.size());
+    List<Future<Void>> drains = new ArrayList<>(slots);
+    for (int i = 0; i < slots; i++) {
+      try {
+        drains.add(this.workers.submit(() -> {
+          int j;
+          while ((j = next.getAndIncrement()) < items.length)
+            items[j] = this.annotateItem(originals.get(j), held, costs[j]);
+          return null;
+        }));
+      } catch (RejectedExecutionException e) {
+        break;
       }
-      return intermed.getRoot();
-    } catch (AnalyticException e) {
-      throw new ConcreteThriftException(e.getMessage());
+    }
+    if (drains.isEmpty() && !originals.isEmpty()) {
+      LOGGER.warn("Refusing batch of {}: all {} workers busy and {} requests queued.", originals.size(),
+          this.getWorkers(), this.queueSize);
+      this.metrics.recordRefusal(ServerMetrics.BUSY);
+      throw busy();
+    }
+
+    for (Future<Void> f : drains)
+      await(f, "batch of " + originals.size());
+    return Arrays.asList(items);
+  }
+
+  private BatchItem annotateItem(Communication original, AtomicLong held, long cost) throws InterruptedException {
+    try {
+      return BatchItem.of(this.runAdmitted(original, held, cost));
+    } catch (AnalyticException | RuntimeException e) {
+      LOGGER.warn("Failed to annotate batch item: {}", original.getId(), e);
+      return BatchItem.error(e.getMessage() != null ? e.getMessage() : e.getClass().getName());
     }
   }
 
@@ -87,4 +368,13 @@ public class ConcreteStanfordThriftServer implements AnnotateCommunicationServic
   public void shutdown() throws TException {
     LOGGER.info("Shutdown request received");
   }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() {
+    this.workers.shutdownNow();
+  }
 }
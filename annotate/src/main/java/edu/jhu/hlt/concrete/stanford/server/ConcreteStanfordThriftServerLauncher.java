@@ -7,9 +7,13 @@ package edu.jhu.hlt.concrete.stanford.server;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.transport.TTransportException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,11 +21,10 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParametersDelegate;
 
-import edu.jhu.hlt.concrete.analytics.base.Analytic;
-import edu.jhu.hlt.concrete.miscommunication.WrappedCommunication;
-import edu.jhu.hlt.concrete.server.ConcreteServer;
-import edu.jhu.hlt.concrete.server.ServerException;
+import edu.jhu.hlt.concrete.analytics.base.AnalyticException;
 import edu.jhu.hlt.concrete.stanford.languages.PipelineLanguage;
+import edu.jhu.hlt.concrete.stanford.metrics.AnnotatorTimings;
+import edu.jhu.hlt.concrete.stanford.runners.AnalyticChain;
 import edu.jhu.hlt.concrete.stanford.runners.LanguageConverter;
 import edu.jhu.hlt.concrete.stanford.runners.StanfordParameterDelegate;
 import edu.jhu.hlt.utilt.ex.LoggedUncaughtExceptionHandler;
@@ -50,6 +53,54 @@ public class ConcreteStanfordThriftServerLauncher {
       description = "The port on which to listen for clients.")
   private int port = 33221;
 
+  @Parameter(names = "--workers",
+      description = "The number of requests annotated at once. Each worker has its own analytic chain; "
+          + "the models are loaded once and shared.")
+  private int workers = 1;
+
+  @Parameter(names = "--queue-size",
+      description = "The number of requests that may wait for a free worker. Further requests are refused.")
+  private int queueSize = 16;
+
+  @Parameter(names = "--max-inflight-chars",
+      description = "The most characters of text queued or being annotated at once. Requests that would exceed it "
+          + "are refused with a hint of when to retry; a single larger request is served when the server is idle. "
+          + "0 for no limit. Size this to the heap left over after the models load.")
+  private long maxInflightChars = 0;
+
+  @Parameter(names = "--metrics-port",
+      description = "If set, serve Prometheus metrics over HTTP on this port at /metrics: requests, queue depth, "
+          + "in-flight documents, per-annotator latency, tokens, errors, and JVM heap and GC. /ready answers 200 "
+          + "once warm-up is done and 503 before. 0 to disable.")
+  private int metricsPort = 0;
+
+  @Parameter(names = "--warmup-rounds",
+      description = "The number of times every analytic chain annotates the warm-up documents before the port opens, "
+          + "so that the first clients do not pay for model loading and JIT compilation. 0 to skip warm-up.")
+  private int warmupRounds = 2;
+
+  @Parameter(names = "--warmup-path",
+      description = "A .comm, .concrete, .tar, or .tar.gz file of Communications to warm up with, in the form "
+          + "clients send them. By default, a few short built-in documents in the server's language are used.")
+  private String warmupPath = null;
+
+  @Parameter(names = "--server-type", converter = ThriftServerFactory.TypeConverter.class,
+      description = "The Thrift server: thread-pool, hsha (non-blocking I/O with a pool of handler threads), "
+          + "or nonblocking (one request at a time).")
+  private ThriftServerFactory.Type serverType = ThriftServerFactory.Type.HSHA;
+
+  @Parameter(names = "--transport", converter = ThriftServerFactory.TransportConverter.class,
+      description = "The Thrift transport: framed or buffered. Only the thread-pool server supports buffered.")
+  private ThriftServerFactory.Transport transport = ThriftServerFactory.Transport.FRAMED;
+
+  @Parameter(names = "--protocol", converter = ThriftServerFactory.ProtocolConverter.class,
+      description = "The Thrift protocol: compact or binary.")
+  private ThriftServerFactory.Protocol protocol = ThriftServerFactory.Protocol.COMPACT;
+
+  @Parameter(names = "--max-frame-bytes",
+      description = "The largest framed request accepted, in bytes. A client that sends a larger frame is disconnected.")
+  private int maxFrameBytes = ThriftServerFactory.DEFAULT_MAX_FRAME_BYTES;
+
   @ParametersDelegate
   private StanfordParameterDelegate stanfordParams = new StanfordParameterDelegate();
 
@@ -74,20 +125,70 @@ public class ConcreteStanfordThriftServerLauncher {
       return;
     }
 
+    MetricsHttpServer metrics = null;
     try {
       // annoying Stanford junk
       SystemErrDisabler dis = new SystemErrDisabler();
       dis.disable();
       PipelineLanguage lang = rl.language;
-      List<Analytic<? extends WrappedCommunication>> analytics =
-          rl.stanfordParams.getAnalytics(lang);
-
-      ConcreteStanfordThriftServer srv = new ConcreteStanfordThriftServer(analytics);
-      ConcreteServer.createServer(srv, rl.port);
-    } catch (ServerException | UnsupportedEncodingException e) {
+      if (rl.workers < 1)
+        throw new IOException("--workers must be at least 1");
+      if (rl.serverType == ThriftServerFactory.Type.NONBLOCKING && rl.workers > 1)
+        logger.warn("The nonblocking server handles one request at a time; use hsha or thread-pool with --workers.");
+      if (rl.maxInflightChars < 0)
+        throw new IOException("--max-inflight-chars must be at least 0");
+      if (rl.warmupRounds < 0)
+        throw new IOException("--warmup-rounds must be at least 0");
+      if (rl.maxFrameBytes < 1)
+        throw new IOException("--max-frame-bytes must be at least 1");
+      rl.stanfordParams.setWorkers(rl.workers);
+      final AnnotatorTimings timings = new AnnotatorTimings();
+      if (rl.metricsPort > 0) {
+        rl.stanfordParams.setAnnotatorTimings(timings);
+        // up before the models load, so that /ready answers 503 meanwhile
+        metrics = new MetricsHttpServer(new InetSocketAddress(rl.metricsPort), timings).start();
+      }
+      List<AnalyticChain> chains = new ArrayList<>(rl.workers);
+      for (int i = 0; i < rl.workers; i++)
+        chains.add(new AnalyticChain(rl.stanfordParams.getAnalytics(lang)));
+
+      ConcreteStanfordThriftServer srv = new ConcreteStanfordThriftServer(chains, rl.queueSize);
+      if (rl.maxInflightChars > 0)
+        srv.setAdmissionControl(new AdmissionControl(rl.maxInflightChars, rl.workers));
+      if (metrics != null)
+        metrics.setServer(srv);
+
+      if (rl.warmupRounds > 0) {
+        srv.setReadiness(Readiness.WARMING_UP);
+        WarmUp warmUp = rl.warmupPath != null ? WarmUp.fromPath(Paths.get(rl.warmupPath))
+            : WarmUp.builtIn(lang, rl.stanfordParams.expectsTokenizedInput());
+        warmUp.setRounds(rl.warmupRounds).run(chains);
+        // keep cold-start latencies out of the metrics
+        timings.clear();
+      }
+
+      // enough Thrift threads to fill the queue, so that it, not Thrift, turns requests away
+      ThriftServerFactory factory = new ThriftServerFactory()
+          .setType(rl.serverType)
+          .setTransport(rl.transport)
+          .setProtocol(rl.protocol)
+          .setMaxFrameBytes(rl.maxFrameBytes)
+          .setThreads(rl.workers + rl.queueSize + 1);
+      TServer server = factory.build(new BatchAnnotateProcessor(srv), rl.port);
+      logger.info("Serving on port {} ({}) with {} workers.", rl.port, factory, rl.workers);
+      srv.setReadiness(Readiness.READY);
+      server.serve();
+    } catch (TTransportException | UnsupportedEncodingException e) {
       logger.error("Caught exception while running the server.", e);
     } catch (IOException e) {
       logger.error("Error setting up analytics", e);
+    } catch (AnalyticException e) {
+      logger.error("Warm-up failed; not serving.", e);
+    } catch (InterruptedException e) {
+      logger.error("Interrupted while warming up; not serving.", e);
+    } finally {
+      if (metrics != null)
+        metrics.close();
     }
   }
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.jhu.hlt.concrete.stanford.metrics.AnnotatorTimings;
+import edu.jhu.hlt.concrete.stanford.metrics.PrometheusText;
+
+/**
+ * Serves the Thrift server's metrics over HTTP at <code>/metrics</code>, in
+ * the Prometheus text format, using the JDK's built-in HTTP server.
+ * <br>
+ * <br>
+ * Exposes the server's {@link ServerMetrics}, its queue depth and in-flight
+ * characters, how long each annotator takes per document, and the JVM's heap,
+ * garbage collection, and thread counts.
+ * <br>
+ * <br>
+ * <code>/ready</code> answers 200 once the server is {@link Readiness#READY},
+ * and 503 before then, for orchestrators' readiness probes. This server may
+ * be started before the Thrift server exists, while the models load; until
+ * {@link #setServer(ConcreteStanfordThriftServer)} is called it reports
+ * {@link Readiness#STARTING} and only the annotator and JVM metrics.
+ */
+public class MetricsHttpServer implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MetricsHttpServer.class);
+
+  public static final String PATH = "/metrics";
+  public static final String READY_PATH = "/ready";
+
+  private final AnnotatorTimings timings;
+  private final HttpServer http;
+  private volatile ConcreteStanfordThriftServer server;
+
+  /**
+   * @param address where to listen
+   * @param timings the annotator timings recorded by the server's analytics
+   * @throws IOException if the address cannot be bound
+   */
+  public MetricsHttpServer(InetSocketAddress address, AnnotatorTimings timings) throws IOException {
+    this.timings = timings;
+    this.http = HttpServer.create(address, 0);
+    this.http.createContext(PATH, this::handle);
+    this.http.createContext(READY_PATH, this::handleReady);
+  }
+
+  /**
+   * @param address where to listen
+   * @param server the server whose metrics to expose
+   * @param timings the annotator timings recorded by the server's analytics
+   * @throws IOException if the address cannot be bound
+   */
+  public MetricsHttpServer(InetSocketAddress address, ConcreteStanfordThriftServer server, AnnotatorTimings timings)
+      throws IOException {
+    this(address, timings);
+    this.server = server;
+  }
+
+  /**
+   * @param server the server whose metrics and readiness to expose, once it
+   * has been built
+   * @return this object
+   */
+  public MetricsHttpServer setServer(ConcreteStanfordThriftServer server) {
+    this.server = server;
+    return this;
+  }
+
+  /**
+   * Start listening, on a background thread.
+   *
+   * @return this object
+   */
+  public MetricsHttpServer start() {
+    this.http.start();
+    LOGGER.info("Serving metrics at http://{}{}", this.http.getAddress(), PATH);
+    return this;
+  }
+
+  public int getPort() {
+    return this.http.getAddress().getPort();
+  }
+
+  /**
+   * @return the current metrics, in the Prometheus text format
+   */
+  public String scrape() {
+    final ConcreteStanfordThriftServer srv = this.server;
+    PrometheusText out = new PrometheusText()
+        .gauge("concrete_stanford_ready", "1 if the server is ready for clients, else 0.",
+            this.getReadiness() == Readiness.READY ? 1 : 0);
+    if (srv != null) {
+      out.gauge("concrete_stanford_workers", "Workers, each annotating one document at a time.", srv.getWorkers())
+          .gauge("concrete_stanford_queue_depth", "Requests waiting for a worker.", srv.getQueueDepth())
+          .gauge("concrete_stanford_inflight_chars", "Characters admitted and not yet finished.", srv.getInFlightChars());
+      srv.getMetrics().writeTo(out);
+    }
+    out.histograms("concrete_stanford_annotator_latency_seconds", "Time each annotator takes on a document.",
+        "annotator", this.timings.getLatencies());
+    return out.jvm().toString();
+  }
+
+  /**
+   * @return the server's readiness, or {@link Readiness#STARTING} if it has
+   * not been built yet
+   */
+  public Readiness getReadiness() {
+    final ConcreteStanfordThriftServer srv = this.server;
+    return srv == null ? Readiness.STARTING : srv.getReadiness();
+  }
+
+  private void handle(HttpExchange ex) throws IOException {
+    respond(ex, 200, PrometheusText.CONTENT_TYPE, this.scrape());
+  }
+
+  private void handleReady(HttpExchange ex) throws IOException {
+    final Readiness r = this.getReadiness();
+    respond(ex, r == Readiness.READY ? 200 : 503, "text/plain; charset=utf-8", r + "\n");
+  }
+
+  private static void respond(HttpExchange ex, int status, String contentType, String body) throws IOException {
+    try {
+      if (!"GET".equals(ex.getRequestMethod()) && !"HEAD".equals(ex.getRequestMethod())) {
+        ex.getResponseHeaders().set("Allow", "GET, HEAD");
+        ex.sendResponseHeaders(405, -1);
+        return;
+      }
+      final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      ex.getResponseHeaders().set("Content-Type", contentType);
+      if ("HEAD".equals(ex.getRequestMethod())) {
+        ex.sendResponseHeaders(status, -1);
+        return;
+      }
+      ex.sendResponseHeaders(status, bytes.length);
+      try (OutputStream os = ex.getResponseBody()) {
+        os.write(bytes);
+      }
+    } finally {
+      ex.close();
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() {
+    this.http.stop(0);
+  }
+}
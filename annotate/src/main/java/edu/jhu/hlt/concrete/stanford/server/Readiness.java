@@ -0,0 +1,23 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.server;
+
+/**
+ * Whether the server is ready for clients.
+ */
+public enum Readiness {
+  /**
+   * Loading models and building analytic chains.
+   */
+  STARTING,
+  /**
+   * Running warm-up documents through the chains; see {@link WarmUp}.
+   */
+  WARMING_UP,
+  /**
+   * Accepting clients.
+   */
+  READY
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Section;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.Tokenization;
+import edu.jhu.hlt.concrete.stanford.metrics.LatencyHistogram;
+import edu.jhu.hlt.concrete.stanford.metrics.PrometheusText;
+
+/**
+ * Counts what the server does: requests received and refused, documents
+ * annotated or failed, tokens produced, and how long documents take. All
+ * methods are thread-safe.
+ */
+public class ServerMetrics {
+
+  static final String ANNOTATE = "annotate";
+  static final String BATCH = "annotateBatch";
+  static final String BUSY = "busy";
+  static final String OVERLOADED = "overloaded";
+
+  private final LongAdder annotateRequests = new LongAdder();
+  private final LongAdder batchRequests = new LongAdder();
+  private final LongAdder refusedBusy = new LongAdder();
+  private final LongAdder refusedOverloaded = new LongAdder();
+  private final LongAdder documents = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder tokens = new LongAdder();
+  private final AtomicInteger inFlight = new AtomicInteger(0);
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  void recordRequest(String method) {
+    (BATCH.equals(method) ? this.batchRequests : this.annotateRequests).increment();
+  }
+
+  void recordRefusal(String reason) {
+    (OVERLOADED.equals(reason) ? this.refusedOverloaded : this.refusedBusy).increment();
+  }
+
+  /**
+   * Note that a document has started; it must be ended with
+   * {@link #endDocument(Communication, long)}.
+   */
+  void startDocument() {
+    this.inFlight.incrementAndGet();
+  }
+
+  /**
+   * @param annotated the annotated document, or null if it failed
+   * @param nanos how long the document took
+   */
+  void endDocument(Communication annotated, long nanos) {
+    this.inFlight.decrementAndGet();
+    if (annotated == null) {
+      this.errors.increment();
+      return;
+    }
+    this.documents.increment();
+    this.tokens.add(countTokens(annotated));
+    this.latency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+  }
+
+  static long countTokens(Communication c) {
+    long n = 0;
+    if (c.isSetSectionList())
+      for (Section s : c.getSectionList())
+        if (s.isSetSentenceList())
+          for (Sentence st : s.getSentenceList()) {
+            Tokenization t = st.getTokenization();
+            if (t != null && t.isSetTokenList())
+              n += t.getTokenList().getTokenListSize();
+          }
+    return n;
+  }
+
+  /**
+   * @return the documents being annotated right now
+   */
+  public int getInFlight() {
+    return this.inFlight.get();
+  }
+
+  public long getDocuments() {
+    return this.documents.sum();
+  }
+
+  public long getErrors() {
+    return this.errors.sum();
+  }
+
+  public long getTokens() {
+    return this.tokens.sum();
+  }
+
+  public LatencyHistogram getLatency() {
+    return this.latency;
+  }
+
+  /**
+   * Add these metrics, named <code>concrete_stanford_*</code>.
+   *
+   * @return <code>out</code>
+   */
+  public PrometheusText writeTo(PrometheusText out) {
+    Map<String, Long> requests = new TreeMap<>();
+    requests.put(ANNOTATE, this.annotateRequests.sum());
+    requests.put(BATCH, this.batchRequests.sum());
+    Map<String, Long> refused = new TreeMap<>();
+    refused.put(BUSY, this.refusedBusy.sum());
+    refused.put(OVERLOADED, this.refusedOverloaded.sum());
+    return out
+        .counters("concrete_stanford_requests_total", "Requests received, by method.", "method", requests)
+        .counters("concrete_stanford_refused_total", "Requests refused, by reason.", "reason", refused)
+        .counter("concrete_stanford_documents_total", "Documents annotated.", this.getDocuments())
+        .counter("concrete_stanford_document_errors_total", "Documents that failed to annotate.", this.getErrors())
+        .counter("concrete_stanford_tokens_total", "Tokens in annotated documents; rate() gives tokens per second.",
+            this.getTokens())
+        .gauge("concrete_stanford_inflight_documents", "Documents being annotated.", this.getInFlight())
+        .histogram("concrete_stanford_document_latency_seconds", "Time to annotate a document.", this.latency);
+  }
+}
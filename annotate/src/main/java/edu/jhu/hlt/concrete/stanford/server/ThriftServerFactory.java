@@ -0,0 +1,243 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.server;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.server.THsHaServer;
+import org.apache.thrift.server.TNonblockingServer;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.TTransportFactory;
+
+import com.beust.jcommander.IStringConverter;
+import com.beust.jcommander.ParameterException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Builds the Thrift server that listens for clients.
+ * <br>
+ * <br>
+ * The non-blocking server types always use framed transport, which is what
+ * Concrete clients use by default. With {@link Type#NONBLOCKING}, requests
+ * are handled one at a time on the selector thread, whatever the number of
+ * workers behind it.
+ * <br>
+ * <br>
+ * Every server type refuses frames larger than {@link #setMaxFrameBytes(int)},
+ * so that a client cannot make the server allocate an arbitrarily large
+ * buffer with a single length prefix.
+ */
+public class ThriftServerFactory {
+
+  public enum Type {
+    THREAD_POOL ("thread-pool"),
+    HSHA ("hsha"),
+    NONBLOCKING ("nonblocking"),
+    ;
+
+    private final String v;
+    private Type(String v) {
+      this.v = v;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Enum#toString()
+     */
+    @Override
+    public String toString() {
+      return this.v;
+    }
+  }
+
+  public enum Transport {
+    FRAMED,
+    BUFFERED,
+    ;
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Enum#toString()
+     */
+    @Override
+    public String toString() {
+      return this.name().toLowerCase(Locale.ENGLISH);
+    }
+  }
+
+  public enum Protocol {
+    COMPACT {
+      @Override
+      TProtocolFactory factory() {
+        return new TCompactProtocol.Factory();
+      }
+    },
+    BINARY {
+      @Override
+      TProtocolFactory factory() {
+        return new TBinaryProtocol.Factory();
+      }
+    },
+    ;
+
+    abstract TProtocolFactory factory();
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Enum#toString()
+     */
+    @Override
+    public String toString() {
+      return this.name().toLowerCase(Locale.ENGLISH);
+    }
+  }
+
+  private static <E extends Enum<E>> E parse(Class<E> c, String value) {
+    for (E e : c.getEnumConstants())
+      if (e.toString().equalsIgnoreCase(value))
+        return e;
+    throw new ParameterException("Invalid " + c.getSimpleName().toLowerCase(Locale.ENGLISH) + ": " + value);
+  }
+
+  public static class TypeConverter implements IStringConverter<Type> {
+    @Override
+    public Type convert(String value) {
+      return parse(Type.class, value);
+    }
+  }
+
+  public static class TransportConverter implements IStringConverter<Transport> {
+    @Override
+    public Transport convert(String value) {
+      return parse(Transport.class, value);
+    }
+  }
+
+  public static class ProtocolConverter implements IStringConverter<Protocol> {
+    @Override
+    public Protocol convert(String value) {
+      return parse(Protocol.class, value);
+    }
+  }
+
+  private Type type = Type.HSHA;
+  private Transport transport = Transport.FRAMED;
+  private Protocol protocol = Protocol.COMPACT;
+  private int threads = 1;
+  private int maxFrameBytes = DEFAULT_MAX_FRAME_BYTES;
+
+  /**
+   * Room for a batch of large annotated Communications.
+   */
+  public static final int DEFAULT_MAX_FRAME_BYTES = 256 * 1024 * 1024;
+
+  public ThriftServerFactory setType(Type type) {
+    this.type = type;
+    return this;
+  }
+
+  public ThriftServerFactory setTransport(Transport transport) {
+    this.transport = transport;
+    return this;
+  }
+
+  public ThriftServerFactory setProtocol(Protocol protocol) {
+    this.protocol = protocol;
+    return this;
+  }
+
+  /**
+   * @param threads the number of Thrift threads that may wait on a request
+   * at once; ignored by {@link Type#NONBLOCKING}
+   * @return this object
+   */
+  public ThriftServerFactory setThreads(int threads) {
+    if (threads < 1)
+      throw new IllegalArgumentException("need at least one thread");
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * @param maxFrameBytes the largest request frame accepted; larger frames
+   * close the connection
+   * @return this object
+   */
+  public ThriftServerFactory setMaxFrameBytes(int maxFrameBytes) {
+    if (maxFrameBytes < 1)
+      throw new IllegalArgumentException("max frame size must be positive");
+    this.maxFrameBytes = maxFrameBytes;
+    return this;
+  }
+
+  private ExecutorService newInvokerPool() {
+    return Executors.newFixedThreadPool(this.threads,
+        new ThreadFactoryBuilder().setNameFormat("thrift-invoker-%d").setDaemon(true).build());
+  }
+
+  /**
+   * @param processor handles each request
+   * @param port the port to listen on
+   * @return the server, not yet serving
+   * @throws TTransportException if the port cannot be opened
+   * @throws IllegalArgumentException if a non-blocking server is asked for with buffered transport
+   */
+  public TServer build(TProcessor processor, int port) throws TTransportException {
+    final TProtocolFactory pf = this.protocol.factory();
+    switch (this.type) {
+    case THREAD_POOL:
+      TThreadPoolServer.Args tpArgs = new TThreadPoolServer.Args(new TServerSocket(port))
+          .minWorkerThreads(this.threads)
+          .maxWorkerThreads(this.threads);
+      tpArgs.processor(processor)
+          .protocolFactory(pf)
+          .transportFactory(this.transport == Transport.FRAMED
+              ? new TFramedTransport.Factory(this.maxFrameBytes) : new TTransportFactory());
+      return new TThreadPoolServer(tpArgs);
+    case HSHA:
+      this.checkFramed();
+      THsHaServer.Args hsArgs = new THsHaServer.Args(new TNonblockingServerSocket(port))
+          .executorService(this.newInvokerPool());
+      hsArgs.processor(processor)
+          .protocolFactory(pf);
+      hsArgs.maxReadBufferBytes = this.maxFrameBytes;
+      return new THsHaServer(hsArgs);
+    case NONBLOCKING:
+      this.checkFramed();
+      TNonblockingServer.Args nbArgs = new TNonblockingServer.Args(new TNonblockingServerSocket(port));
+      nbArgs.processor(processor)
+          .protocolFactory(pf);
+      nbArgs.maxReadBufferBytes = this.maxFrameBytes;
+      return new TNonblockingServer(nbArgs);
+    default:
+      throw new IllegalArgumentException("Unsupported server type: " + this.type);
+    }
+  }
+
+  private void checkFramed() {
+    if (this.transport != Transport.FRAMED)
+      throw new IllegalArgumentException("The " + this.type + " server requires framed transport.");
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return this.type + "/" + this.transport + "/" + this.protocol;
+  }
+}
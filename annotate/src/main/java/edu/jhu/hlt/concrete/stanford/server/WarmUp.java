@@ -0,0 +1,224 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.server;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import edu.jhu.hlt.acute.iterators.tar.TarArchiveEntryByteIterator;
+import edu.jhu.hlt.acute.iterators.tar.TarGzArchiveEntryByteIterator;
+import edu.jhu.hlt.concrete.AnnotationMetadata;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Section;
+import edu.jhu.hlt.concrete.TextSpan;
+import edu.jhu.hlt.concrete.analytics.base.AnalyticException;
+import edu.jhu.hlt.concrete.serialization.CommunicationSerializer;
+import edu.jhu.hlt.concrete.serialization.CompactCommunicationSerializer;
+import edu.jhu.hlt.concrete.stanford.languages.PipelineLanguage;
+import edu.jhu.hlt.concrete.stanford.runners.AnalyticChain;
+import edu.jhu.hlt.concrete.util.ConcreteException;
+import edu.jhu.hlt.concrete.uuid.AnalyticUUIDGeneratorFactory;
+import edu.jhu.hlt.concrete.uuid.AnalyticUUIDGeneratorFactory.AnalyticUUIDGenerator;
+import edu.jhu.hlt.utilt.AutoCloseableIterator;
+
+/**
+ * Runs a few documents through every analytic chain before the server
+ * accepts clients, so that lazily loaded models, class loading, and JIT
+ * compilation are paid for at startup rather than by the first requests.
+ * <br>
+ * <br>
+ * The documents are either a small built-in set for the language, or read
+ * from a file. The chains are warmed up at the same time, one thread each,
+ * so that every per-worker annotator instance is built.
+ */
+public class WarmUp {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WarmUp.class);
+
+  private static final ImmutableList<String> ENGLISH = ImmutableList.of(
+      "John Smith visited Baltimore on Tuesday, March 3, 2015. He met with 12 researchers at Johns Hopkins University.",
+      "The company said its revenue rose 4.5 percent to $1.2 billion last year. "
+          + "Analysts in New York had expected a smaller increase, but the chief executive, Mary Jones, "
+          + "told reporters that she was not surprised. \"We planned for this,\" she said. "
+          + "The shares, which had fallen sharply in January, closed higher on Friday.");
+
+  private static final ImmutableList<String> SPANISH = ImmutableList.of(
+      "Juan Pérez visitó Madrid el martes 3 de marzo de 2015. Se reunió con 12 investigadores de la universidad.",
+      "La empresa dijo que sus ingresos subieron un 4,5 por ciento el año pasado. "
+          + "Los analistas de Barcelona esperaban un aumento menor, pero la directora, María López, "
+          + "dijo que no estaba sorprendida. Las acciones, que habían caído en enero, cerraron al alza el viernes.");
+
+  private static final ImmutableList<String> CHINESE = ImmutableList.of(
+      "张伟于2015年3月3日星期二访问了北京。他在北京大学会见了12位研究人员。",
+      "该公司表示，去年收入增长了百分之四点五，达到十二亿美元。"
+          + "上海的分析师原本预计增幅较小，但首席执行官李娜告诉记者，她并不感到意外。"
+          + "该公司股价一月份曾大幅下跌，周五收盘上涨。");
+
+  private final ImmutableList<Communication> communications;
+  private int rounds = 2;
+
+  /**
+   * @param communications the documents to warm up with, in the form clients
+   * send them
+   */
+  public WarmUp(List<Communication> communications) {
+    if (communications.isEmpty())
+      throw new IllegalArgumentException("need at least one warm-up document");
+    this.communications = ImmutableList.copyOf(communications);
+  }
+
+  /**
+   * @param lang the server's language
+   * @param tokenized true if clients send tokenized documents
+   * @return a warm-up over a few short built-in documents
+   * @throws AnalyticException if the built-in documents could not be tokenized
+   */
+  public static WarmUp builtIn(PipelineLanguage lang, boolean tokenized) throws AnalyticException {
+    final List<String> texts;
+    switch (lang) {
+    case SPANISH:
+      texts = SPANISH;
+      break;
+    case CHINESE:
+      texts = CHINESE;
+      break;
+    default:
+      texts = ENGLISH;
+    }
+
+    AnalyticUUIDGenerator g = new AnalyticUUIDGeneratorFactory().create();
+    List<Communication> comms = new ArrayList<>(texts.size());
+    for (int i = 0; i < texts.size(); i++) {
+      final String text = texts.get(i);
+      Communication c = new Communication()
+          .setId("warm-up-" + lang + "-" + i)
+          .setUuid(g.next())
+          .setType("warm-up")
+          .setText(text)
+          .setMetadata(new AnnotationMetadata().setTool("concrete-stanford warm-up")
+              .setTimestamp(System.currentTimeMillis() / 1000));
+      c.addToSectionList(new Section()
+          .setUuid(g.next())
+          .setTextSpan(new TextSpan(0, text.length()))
+          .setKind("Passage"));
+      comms.add(tokenized ? lang.getSentenceTokenizationAnalytic().annotate(c).getRoot() : c);
+    }
+    return new WarmUp(comms);
+  }
+
+  /**
+   * @param p a <code>.comm</code>, <code>.concrete</code>, <code>.tar</code>,
+   * or <code>.tar.gz</code> file of Communications
+   * @return a warm-up over the file's documents
+   * @throws IOException if the file could not be read
+   */
+  public static WarmUp fromPath(Path p) throws IOException {
+    final String name = p.getFileName().toString().toLowerCase(Locale.ROOT);
+    final CommunicationSerializer ser = new CompactCommunicationSerializer();
+    List<Communication> comms = new ArrayList<>();
+    try (InputStream is = Files.newInputStream(p);
+        BufferedInputStream bis = new BufferedInputStream(is, 1024 * 8 * 24);) {
+      if (name.endsWith(".comm") || name.endsWith(".concrete")) {
+        comms.add(ser.fromBytes(IOUtils.toByteArray(bis)));
+      } else if (name.endsWith(".tar") || name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+        AutoCloseableIterator<byte[]> iter = name.endsWith(".tar") ? new TarArchiveEntryByteIterator(bis)
+            : new TarGzArchiveEntryByteIterator(bis);
+        try {
+          while (iter.hasNext())
+            comms.add(ser.fromBytes(iter.next()));
+        } finally {
+          try {
+            iter.close();
+          } catch (Exception e) {
+            LOGGER.warn("Failed to close archive: {}", p, e);
+          }
+        }
+      } else {
+        throw new IOException("Warm-up file extension was not '.concrete', '.comm', '.tar', or '.tar.gz': " + p);
+      }
+    } catch (ConcreteException e) {
+      throw new IOException("Unable to read warm-up Communications from: " + p, e);
+    }
+    if (comms.isEmpty())
+      throw new IOException("No warm-up Communications in: " + p);
+    return new WarmUp(comms);
+  }
+
+  /**
+   * @param rounds the number of times each chain annotates every document
+   * @return this object
+   */
+  public WarmUp setRounds(int rounds) {
+    if (rounds < 1)
+      throw new IllegalArgumentException("need at least one round");
+    this.rounds = rounds;
+    return this;
+  }
+
+  public List<Communication> getCommunications() {
+    return this.communications;
+  }
+
+  /**
+   * Annotate every document with every chain, the chains at the same time.
+   *
+   * @throws AnalyticException if a chain could not annotate a document
+   * @throws InterruptedException if interrupted while waiting for the chains
+   */
+  public void run(List<AnalyticChain> chains) throws AnalyticException, InterruptedException {
+    LOGGER.info("Warming up {} chains with {} documents, {} rounds.", chains.size(), this.communications.size(), this.rounds);
+    final long start = System.nanoTime();
+    ExecutorService ex = Executors.newFixedThreadPool(chains.size(),
+        new ThreadFactoryBuilder().setNameFormat("stanford-warm-up-%d").setDaemon(true).build());
+    try {
+      List<Future<Void>> fs = new ArrayList<>(chains.size());
+      for (AnalyticChain chain : chains)
+        fs.add(ex.submit(() -> {
+          for (int r = 1; r <= this.rounds; r++) {
+            final long t = System.nanoTime();
+            // copies, as a chain may annotate its input in place
+            for (Communication c : this.communications)
+              chain.annotate(new Communication(c));
+            LOGGER.debug("Warm-up round {} took {} ms.", r, (System.nanoTime() - t) / 1000000);
+          }
+          return null;
+        }));
+      for (Future<Void> f : fs) {
+        try {
+          f.get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof AnalyticException)
+            throw (AnalyticException) cause;
+          if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+          if (cause instanceof Error)
+            throw (Error) cause;
+          throw new IllegalStateException(cause);
+        }
+      }
+    } finally {
+      ex.shutdownNow();
+    }
+    LOGGER.info("Warm-up finished in {} ms.", (System.nanoTime() - start) / 1000000);
+  }
+}
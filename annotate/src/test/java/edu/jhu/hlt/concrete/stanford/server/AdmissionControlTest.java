@@ -0,0 +1,80 @@
+package edu.jhu.hlt.concrete.stanford.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AdmissionControlTest {
+
+  @Test
+  public void admitsWithinBudget() {
+    AdmissionControl ac = new AdmissionControl(100, 1);
+    assertTrue(ac.tryAcquire(60));
+    assertTrue(ac.tryAcquire(40));
+    assertFalse(ac.tryAcquire(1));
+    assertEquals(100, ac.getInFlight());
+    ac.release(40);
+    assertTrue(ac.tryAcquire(30));
+    assertEquals(90, ac.getInFlight());
+  }
+
+  @Test
+  public void oversizedRequestAdmittedOnlyWhenIdle() {
+    AdmissionControl ac = new AdmissionControl(100, 1);
+    assertTrue(ac.tryAcquire(500));
+    assertEquals(500, ac.getInFlight());
+    assertFalse(ac.tryAcquire(1));
+    ac.release(500);
+
+    assertTrue(ac.tryAcquire(1));
+    assertFalse(ac.tryAcquire(500));
+    ac.release(1);
+    assertEquals(0, ac.getInFlight());
+  }
+
+  @Test
+  public void completeReleases() {
+    AdmissionControl ac = new AdmissionControl(100, 1);
+    assertTrue(ac.tryAcquire(50));
+    ac.complete(50, TimeUnit.MILLISECONDS.toNanos(10));
+    assertEquals(0, ac.getInFlight());
+  }
+
+  @Test
+  public void retryAfterIsBounded() {
+    AdmissionControl ac = new AdmissionControl(1000, 2);
+    // no rate learned yet
+    assertEquals(1000, ac.retryAfterMillis(10));
+
+    // 1 character per ms
+    assertTrue(ac.tryAcquire(1000));
+    ac.complete(1000, TimeUnit.MILLISECONDS.toNanos(1000));
+    assertTrue(ac.tryAcquire(1000));
+    // 500 characters over budget, drained by two workers at 1 per ms each
+    assertEquals(250, ac.retryAfterMillis(500));
+    // a request larger than the budget only waits for the server to drain
+    assertEquals(500, ac.retryAfterMillis(1000 * 1000));
+    ac.release(1000);
+
+    // never sooner than the floor
+    assertTrue(ac.tryAcquire(999));
+    assertEquals(100, ac.retryAfterMillis(2));
+    ac.release(999);
+
+    // never later than the ceiling
+    AdmissionControl slow = new AdmissionControl(1000 * 1000, 1);
+    assertTrue(slow.tryAcquire(1000));
+    slow.complete(1000, TimeUnit.SECONDS.toNanos(1000));
+    assertTrue(slow.tryAcquire(1000 * 1000));
+    assertEquals(60 * 1000, slow.retryAfterMillis(1000 * 1000));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void budgetMustBePositive() {
+    new AdmissionControl(0, 1);
+  }
+}
@@ -0,0 +1,124 @@
+package edu.jhu.hlt.concrete.stanford.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.analytics.base.Analytic;
+import edu.jhu.hlt.concrete.annotate.AnnotateCommunicationService;
+import edu.jhu.hlt.concrete.metadata.AnnotationMetadataFactory;
+import edu.jhu.hlt.concrete.miscommunication.WrappedCommunication;
+import edu.jhu.hlt.concrete.section.SingleSectionSegmenter;
+import edu.jhu.hlt.concrete.stanford.languages.PipelineLanguage;
+import edu.jhu.hlt.concrete.stanford.runners.AnalyticChain;
+import edu.jhu.hlt.concrete.uuid.AnalyticUUIDGeneratorFactory;
+
+public class BatchAnnotateProcessorTest {
+
+  private TServer server;
+  private TTransport transport;
+
+  static Communication communication(String id, String text) throws Exception {
+    Communication c = new Communication();
+    c.setId(id);
+    c.setUuid(new AnalyticUUIDGeneratorFactory().create().next());
+    c.setType("doc");
+    c.setText(text);
+    c.setMetadata(AnnotationMetadataFactory.fromCurrentLocalTime().setTool("test"));
+    c.addToSectionList(SingleSectionSegmenter.createSingleSection(c, "passage"));
+    return c;
+  }
+
+  static List<AnalyticChain> chains(int n) {
+    List<AnalyticChain> chains = new ArrayList<>();
+    for (int i = 0; i < n; i++)
+      chains.add(new AnalyticChain(ImmutableList.<Analytic<? extends WrappedCommunication>>of(
+          PipelineLanguage.ENGLISH.getSentenceTokenizationAnalytic())));
+    return chains;
+  }
+
+  private TProtocol connect(ConcreteStanfordThriftServer srv) throws Exception {
+    final int port = ThriftServerFactoryTest.freePort();
+    this.server = new ThriftServerFactory().setThreads(4).build(new BatchAnnotateProcessor(srv), port);
+    ThriftServerFactoryTest.serve(this.server);
+    this.transport = new TFramedTransport(new TSocket("localhost", port));
+    this.transport.open();
+    return new TCompactProtocol(this.transport);
+  }
+
+  @After
+  public void tearDown() {
+    if (this.transport != null)
+      this.transport.close();
+    if (this.server != null)
+      this.server.stop();
+  }
+
+  private static int tokens(Communication c) {
+    return c.getSectionList().get(0).getSentenceList().get(0).getTokenization().getTokenList().getTokenListSize();
+  }
+
+  @Test
+  public void batchAndSingleRoundTrip() throws Exception {
+    try (ConcreteStanfordThriftServer srv = new ConcreteStanfordThriftServer(chains(2), 4)) {
+      TProtocol prot = this.connect(srv);
+      List<Communication> batch = new ArrayList<>();
+      for (int i = 0; i < 5; i++)
+        batch.add(communication("doc-" + i, "This is document number " + i + " ."));
+
+      List<BatchItem> items = new BatchAnnotateClient(prot).annotateBatch(batch);
+      assertEquals(5, items.size());
+      for (int i = 0; i < items.size(); i++) {
+        assertTrue(items.get(i).isOk());
+        Communication c = items.get(i).getCommunication().get();
+        assertEquals("doc-" + i, c.getId());
+        assertTrue(tokens(c) > 0);
+      }
+
+      // other methods still go to the usual processor, on the same connection
+      Communication one = new AnnotateCommunicationService.Client(prot)
+          .annotate(communication("single", "A single document ."));
+      assertEquals("single", one.getId());
+      assertTrue(tokens(one) > 0);
+    }
+  }
+
+  @Test
+  public void unexpectedFailureGetsAReply() throws Exception {
+    ConcreteStanfordThriftServer failing = new ConcreteStanfordThriftServer(chains(1), 0) {
+      @Override
+      public List<BatchItem> annotateBatch(List<Communication> originals) throws TException {
+        throw new IllegalStateException("broken");
+      }
+    };
+    try (ConcreteStanfordThriftServer srv = failing) {
+      TProtocol prot = this.connect(srv);
+      try {
+        new BatchAnnotateClient(prot).annotateBatch(ImmutableList.of(communication("a", "Some text .")));
+        fail("expected an internal error");
+      } catch (TApplicationException e) {
+        assertEquals(TApplicationException.INTERNAL_ERROR, e.getType());
+      }
+      // the connection is still usable
+      assertEquals("b", new AnnotateCommunicationService.Client(prot)
+          .annotate(communication("b", "More text .")).getId());
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package edu.jhu.hlt.concrete.stanford.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.analytics.base.Analytic;
+import edu.jhu.hlt.concrete.analytics.base.AnalyticException;
+import edu.jhu.hlt.concrete.miscommunication.WrappedCommunication;
+import edu.jhu.hlt.concrete.miscommunication.tokenized.TokenizedCommunication;
+import edu.jhu.hlt.concrete.services.ConcreteThriftException;
+import edu.jhu.hlt.concrete.stanford.ConcreteStanfordTokensSentenceAnalytic;
+import edu.jhu.hlt.concrete.stanford.languages.PipelineLanguage;
+import edu.jhu.hlt.concrete.stanford.runners.AnalyticChain;
+
+public class ConcreteStanfordThriftServerTest {
+
+  /**
+   * Counts every character acquired and released, which a double release
+   * would unbalance even though the in-flight count cannot go below zero.
+   */
+  private static class CountingAdmissionControl extends AdmissionControl {
+    long acquired = 0;
+    long released = 0;
+
+    CountingAdmissionControl(long budget, int workers) {
+      super(budget, workers);
+    }
+
+    @Override
+    public synchronized boolean tryAcquire(long cost) {
+      final boolean ok = super.tryAcquire(cost);
+      if (ok)
+        this.acquired += cost;
+      return ok;
+    }
+
+    @Override
+    public synchronized void release(long cost) {
+      this.released += cost;
+      super.release(cost);
+    }
+  }
+
+  /**
+   * Tokenizes, failing on IDs starting with "bad" and waiting for the latch
+   * on IDs starting with "wait".
+   */
+  private static class GatedAnalytic implements Analytic<TokenizedCommunication> {
+    private final ConcreteStanfordTokensSentenceAnalytic tokenizer = PipelineLanguage.ENGLISH.getSentenceTokenizationAnalytic();
+    private final CountDownLatch latch;
+
+    GatedAnalytic(CountDownLatch latch) {
+      this.latch = latch;
+    }
+
+    @Override
+    public long getTimestamp() {
+      return this.tokenizer.getTimestamp();
+    }
+
+    @Override
+    public String getToolName() {
+      return this.tokenizer.getToolName();
+    }
+
+    @Override
+    public String getToolVersion() {
+      return this.tokenizer.getToolVersion();
+    }
+
+    @Override
+    public List<String> getToolNotes() {
+      return this.tokenizer.getToolNotes();
+    }
+
+    @Override
+    public TokenizedCommunication annotate(Communication c) throws AnalyticException {
+      if (c.getId().startsWith("bad"))
+        throw new AnalyticException("bad document: " + c.getId());
+      try {
+        if (c.getId().startsWith("wait"))
+          this.latch.await();
+      } catch (InterruptedException e) {
+        throw new AnalyticException(e);
+      }
+      return this.tokenizer.annotate(c);
+    }
+  }
+
+  private static List<AnalyticChain> chains(int n, CountDownLatch latch) {
+    List<AnalyticChain> chains = new ArrayList<>();
+    for (int i = 0; i < n; i++)
+      chains.add(new AnalyticChain(ImmutableList.<Analytic<? extends WrappedCommunication>>of(new GatedAnalytic(latch))));
+    return chains;
+  }
+
+  @Test
+  public void everyAdmittedCharacterIsReleasedOnce() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    CountingAdmissionControl ac = new CountingAdmissionControl(1000 * 1000, 2);
+    ExecutorService clients = Executors.newCachedThreadPool();
+    try (ConcreteStanfordThriftServer srv = new ConcreteStanfordThriftServer(chains(2, latch), 0)) {
+      srv.setAdmissionControl(ac);
+      assertEquals("ok", srv.annotate(BatchAnnotateProcessorTest.communication("ok", "Some text .")).getId());
+      try {
+        srv.annotate(BatchAnnotateProcessorTest.communication("bad", "Some text ."));
+        fail("expected the analytic's failure");
+      } catch (ConcreteThriftException e) {
+        // expected
+      }
+      List<BatchItem> items = srv.annotateBatch(ImmutableList.of(
+          BatchAnnotateProcessorTest.communication("a", "Some text ."),
+          BatchAnnotateProcessorTest.communication("bad-b", "More text here ."),
+          BatchAnnotateProcessorTest.communication("c", "Yet more text .")));
+      assertTrue(items.get(0).isOk());
+      assertFalse(items.get(1).isOk());
+      assertTrue(items.get(2).isOk());
+      assertEquals(0, srv.getInFlightChars());
+      assertEquals(ac.acquired, ac.released);
+
+      // hold both workers, so the next request is refused as busy after it was admitted
+      Communication w1 = BatchAnnotateProcessorTest.communication("wait-1", "Some text .");
+      Communication w2 = BatchAnnotateProcessorTest.communication("wait-2", "Other text .");
+      Future<Communication> f1 = clients.submit(() -> srv.annotate(w1));
+      Future<Communication> f2 = clients.submit(() -> srv.annotate(w2));
+      final long held = (long) (w1.getText().length() + w2.getText().length());
+      for (int i = 0; i < 500 && srv.getMetrics().getInFlight() < 2; i++)
+        Thread.sleep(10);
+      assertEquals(held, srv.getInFlightChars());
+      try {
+        srv.annotate(BatchAnnotateProcessorTest.communication("busy", "Refused text ."));
+        fail("expected the server to be busy");
+      } catch (ConcreteThriftException e) {
+        // expected
+      }
+      // the refused request gave back only its own characters
+      assertEquals(held, srv.getInFlightChars());
+
+      latch.countDown();
+      f1.get(10, TimeUnit.SECONDS);
+      f2.get(10, TimeUnit.SECONDS);
+      assertEquals(0, srv.getInFlightChars());
+      assertEquals(ac.acquired, ac.released);
+    } finally {
+      latch.countDown();
+      clients.shutdownNow();
+    }
+  }
+}
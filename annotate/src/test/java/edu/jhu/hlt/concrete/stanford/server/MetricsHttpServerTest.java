@@ -0,0 +1,65 @@
+package edu.jhu.hlt.concrete.stanford.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.Test;
+
+import edu.jhu.hlt.concrete.stanford.metrics.AnnotatorTimings;
+
+public class MetricsHttpServerTest {
+
+  private static int status(MetricsHttpServer m, String path) throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + m.getPort() + path).openConnection();
+    try {
+      return conn.getResponseCode();
+    } finally {
+      conn.disconnect();
+    }
+  }
+
+  private static String get(MetricsHttpServer m, String path) throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + m.getPort() + path).openConnection();
+    try (InputStream is = conn.getInputStream()) {
+      return new String(IOUtils.toByteArray(is), StandardCharsets.UTF_8);
+    } finally {
+      conn.disconnect();
+    }
+  }
+
+  @Test
+  public void readyOnlyOnceServerIsReady() throws Exception {
+    try (MetricsHttpServer m = new MetricsHttpServer(new InetSocketAddress("localhost", 0), new AnnotatorTimings()).start()) {
+      // the models are still loading
+      assertEquals(503, status(m, MetricsHttpServer.READY_PATH));
+      String scrape = get(m, MetricsHttpServer.PATH);
+      assertTrue(scrape.contains("concrete_stanford_ready 0"));
+      assertFalse(scrape.contains("concrete_stanford_workers"));
+
+      try (ConcreteStanfordThriftServer srv = new ConcreteStanfordThriftServer(BatchAnnotateProcessorTest.chains(1), 0)) {
+        m.setServer(srv);
+        assertEquals(Readiness.STARTING, m.getReadiness());
+        assertEquals(503, status(m, MetricsHttpServer.READY_PATH));
+
+        srv.setReadiness(Readiness.WARMING_UP);
+        assertEquals(503, status(m, MetricsHttpServer.READY_PATH));
+
+        srv.setReadiness(Readiness.READY);
+        assertEquals(200, status(m, MetricsHttpServer.READY_PATH));
+        assertEquals("READY\n", get(m, MetricsHttpServer.READY_PATH));
+        scrape = get(m, MetricsHttpServer.PATH);
+        assertTrue(scrape.contains("concrete_stanford_ready 1"));
+        assertTrue(scrape.contains("concrete_stanford_workers 1"));
+      }
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package edu.jhu.hlt.concrete.stanford.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.server.TServer;
+import org.junit.Test;
+
+public class ThriftServerFactoryTest {
+
+  static int freePort() throws IOException {
+    try (ServerSocket s = new ServerSocket(0)) {
+      return s.getLocalPort();
+    }
+  }
+
+  static Thread serve(TServer server) throws InterruptedException {
+    Thread t = new Thread(server::serve, "test-server");
+    t.setDaemon(true);
+    t.start();
+    for (int i = 0; i < 500 && !server.isServing(); i++)
+      Thread.sleep(10);
+    assertTrue(server.isServing());
+    return t;
+  }
+
+  /**
+   * @return true if the server closed the connection after the frame
+   */
+  private static boolean sendFrame(int port, int length, int sent) throws IOException {
+    try (Socket s = new Socket("localhost", port)) {
+      s.setSoTimeout(5000);
+      DataOutputStream out = new DataOutputStream(s.getOutputStream());
+      out.writeInt(length);
+      out.write(new byte[sent]);
+      out.flush();
+      InputStream in = s.getInputStream();
+      try {
+        return in.read() == -1;
+      } catch (SocketException e) {
+        // reset by the server
+        return true;
+      }
+    }
+  }
+
+  @Test
+  public void oversizedFramesAreRefused() throws Exception {
+    for (ThriftServerFactory.Type type : ThriftServerFactory.Type.values()) {
+      final CountDownLatch processed = new CountDownLatch(1);
+      final int port = freePort();
+      TServer server = new ThriftServerFactory().setType(type).setMaxFrameBytes(1024)
+          .build((in, out) -> {
+            // the thread-pool server reads the frame on first use
+            in.getTransport().readAll(new byte[1], 0, 1);
+            processed.countDown();
+            return false;
+          }, port);
+      serve(server);
+      try {
+        assertTrue(type.toString(), sendFrame(port, 1024 * 1024, 16));
+        assertEquals(type.toString(), 1, processed.getCount());
+        // a frame within the limit reaches the processor
+        sendFrame(port, 16, 16);
+        assertTrue(type.toString(), processed.await(5, TimeUnit.SECONDS));
+      } finally {
+        server.stop();
+      }
+    }
+  }
+}
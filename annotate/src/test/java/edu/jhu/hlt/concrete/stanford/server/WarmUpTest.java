@@ -0,0 +1,166 @@
+package edu.jhu.hlt.concrete.stanford.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableList;
+
+import edu.jhu.hlt.acute.archivers.tar.TarArchiver;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.analytics.base.Analytic;
+import edu.jhu.hlt.concrete.analytics.base.AnalyticException;
+import edu.jhu.hlt.concrete.communications.WritableCommunication;
+import edu.jhu.hlt.concrete.miscommunication.WrappedCommunication;
+import edu.jhu.hlt.concrete.miscommunication.tokenized.TokenizedCommunication;
+import edu.jhu.hlt.concrete.serialization.archiver.ArchivableCommunication;
+import edu.jhu.hlt.concrete.stanford.ConcreteStanfordTokensSentenceAnalytic;
+import edu.jhu.hlt.concrete.stanford.languages.PipelineLanguage;
+import edu.jhu.hlt.concrete.stanford.runners.AnalyticChain;
+
+public class WarmUpTest {
+
+  @Rule
+  public TemporaryFolder tf = new TemporaryFolder();
+
+  /**
+   * Tokenizes and counts the documents it sees, failing on IDs starting with "bad".
+   */
+  private static class CountingAnalytic implements Analytic<TokenizedCommunication> {
+    private final ConcreteStanfordTokensSentenceAnalytic tokenizer = PipelineLanguage.ENGLISH.getSentenceTokenizationAnalytic();
+    private final AtomicInteger seen = new AtomicInteger();
+
+    @Override
+    public long getTimestamp() {
+      return this.tokenizer.getTimestamp();
+    }
+
+    @Override
+    public String getToolName() {
+      return this.tokenizer.getToolName();
+    }
+
+    @Override
+    public String getToolVersion() {
+      return this.tokenizer.getToolVersion();
+    }
+
+    @Override
+    public List<String> getToolNotes() {
+      return this.tokenizer.getToolNotes();
+    }
+
+    @Override
+    public TokenizedCommunication annotate(Communication c) throws AnalyticException {
+      this.seen.incrementAndGet();
+      if (c.getId().startsWith("bad"))
+        throw new AnalyticException("bad document: " + c.getId());
+      return this.tokenizer.annotate(c);
+    }
+  }
+
+  private static List<AnalyticChain> chains(List<CountingAnalytic> analytics) {
+    List<AnalyticChain> chains = new ArrayList<>();
+    for (CountingAnalytic a : analytics)
+      chains.add(new AnalyticChain(ImmutableList.<Analytic<? extends WrappedCommunication>>of(a)));
+    return chains;
+  }
+
+  private static void writeArchive(Path p, boolean gz, int n) throws Exception {
+    try (OutputStream os = Files.newOutputStream(p);
+        BufferedOutputStream bos = new BufferedOutputStream(os);
+        TarArchiver arch = gz ? new TarArchiver(new GzipCompressorOutputStream(bos)) : new TarArchiver(bos);) {
+      for (int i = 0; i < n; i++)
+        arch.addEntry(new ArchivableCommunication(BatchAnnotateProcessorTest.communication("doc-" + i, "Some text here .")));
+    }
+  }
+
+  private static List<String> ids(WarmUp w) {
+    List<String> ids = new ArrayList<>();
+    for (Communication c : w.getCommunications())
+      ids.add(c.getId());
+    return ids;
+  }
+
+  @Test
+  public void fromPathReadsEveryFormat() throws Exception {
+    Path comm = this.tf.getRoot().toPath().resolve("one.comm");
+    new WritableCommunication(BatchAnnotateProcessorTest.communication("one", "Some text here .")).writeToFile(comm, true);
+    assertEquals(ImmutableList.of("one"), ids(WarmUp.fromPath(comm)));
+
+    Path tar = this.tf.getRoot().toPath().resolve("docs.tar");
+    writeArchive(tar, false, 3);
+    assertEquals(ImmutableList.of("doc-0", "doc-1", "doc-2"), ids(WarmUp.fromPath(tar)));
+
+    Path tgz = this.tf.getRoot().toPath().resolve("docs.tar.gz");
+    writeArchive(tgz, true, 2);
+    assertEquals(ImmutableList.of("doc-0", "doc-1"), ids(WarmUp.fromPath(tgz)));
+  }
+
+  @Test
+  public void fromPathRejectsUnknownAndEmptyFiles() throws Exception {
+    Path txt = this.tf.newFile("docs.txt").toPath();
+    try {
+      WarmUp.fromPath(txt);
+      fail("expected an unknown extension to be refused");
+    } catch (IOException e) {
+      // expected
+    }
+
+    Path empty = this.tf.getRoot().toPath().resolve("empty.tar");
+    writeArchive(empty, false, 0);
+    try {
+      WarmUp.fromPath(empty);
+      fail("expected an empty archive to be refused");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void runAnnotatesEveryDocumentWithEveryChain() throws Exception {
+    List<CountingAnalytic> analytics = ImmutableList.of(new CountingAnalytic(), new CountingAnalytic());
+    WarmUp w = new WarmUp(ImmutableList.of(
+        BatchAnnotateProcessorTest.communication("a", "Some text here ."),
+        BatchAnnotateProcessorTest.communication("b", "Other text there .")));
+    w.setRounds(3).run(chains(analytics));
+    for (CountingAnalytic a : analytics)
+      assertEquals(6, a.seen.get());
+    // the chains annotated copies
+    for (Communication c : w.getCommunications())
+      assertFalse(c.getSectionList().get(0).isSetSentenceList());
+  }
+
+  @Test
+  public void runPassesOnFailures() throws Exception {
+    WarmUp w = new WarmUp(ImmutableList.of(BatchAnnotateProcessorTest.communication("bad", "Some text here .")));
+    try {
+      w.run(chains(ImmutableList.of(new CountingAnalytic())));
+      fail("expected the analytic's failure");
+    } catch (AnalyticException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void builtInDocumentsWarmUp() throws Exception {
+    CountingAnalytic a = new CountingAnalytic();
+    WarmUp w = WarmUp.builtIn(PipelineLanguage.ENGLISH, false).setRounds(1);
+    w.run(chains(ImmutableList.of(a)));
+    assertEquals(w.getCommunications().size(), a.seen.get());
+  }
+}
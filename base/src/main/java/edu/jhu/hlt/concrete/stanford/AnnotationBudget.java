@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford;
+
+import java.util.Properties;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Wall-clock limits on how long the Stanford annotators may spend on one
+ * document and on one sentence.
+ * <br>
+ * <br>
+ * The sentence limit is enforced by CoreNLP itself: each sentence-level
+ * annotator that runs past it gives up on that sentence and produces its
+ * fallback output (for the parser, a flat tree). The document limit is
+ * enforced by {@link ConcreteStanfordPreCorefAnalytic}, which interrupts the
+ * running annotator when it is reached. A value of 0 means no limit.
+ */
+public class AnnotationBudget {
+
+  /**
+   * Sentence-level annotators that honor <code>&lt;annotator&gt;.maxtime</code>.
+   */
+  private static final ImmutableSet<String> SENTENCE_ANNOTATORS =
+      ImmutableSet.of("pos", "ner", "parse", "depparse");
+
+  private long sentenceMillis = 0;
+  private long documentMillis = 0;
+  private int parseMaxLength = 0;
+
+  /**
+   * @return a budget with no limits
+   */
+  public static AnnotationBudget none() {
+    return new AnnotationBudget();
+  }
+
+  public long getSentenceMillis() {
+    return this.sentenceMillis;
+  }
+
+  public AnnotationBudget setSentenceMillis(long sentenceMillis) {
+    this.sentenceMillis = sentenceMillis;
+    return this;
+  }
+
+  public long getDocumentMillis() {
+    return this.documentMillis;
+  }
+
+  public AnnotationBudget setDocumentMillis(long documentMillis) {
+    this.documentMillis = documentMillis;
+    return this;
+  }
+
+  public int getParseMaxLength() {
+    return this.parseMaxLength;
+  }
+
+  /**
+   * @param parseMaxLength sentences with more tokens than this are not
+   * parsed; they get a flat tree instead
+   */
+  public AnnotationBudget setParseMaxLength(int parseMaxLength) {
+    this.parseMaxLength = parseMaxLength;
+    return this;
+  }
+
+  /**
+   * @return true if there is a per-document limit
+   */
+  public boolean hasDocumentLimit() {
+    return this.documentMillis > 0;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return "sentence=" + this.sentenceMillis + "ms,document=" + this.documentMillis + "ms,parseMaxLength=" + this.parseMaxLength;
+  }
+
+  /**
+   * Set the CoreNLP properties that enforce the per-sentence limits.
+   *
+   * @param props the pipeline properties to add to
+   * @return the same properties
+   */
+  public Properties apply(Properties props) {
+    if (this.sentenceMillis > 0)
+      for (String a : SENTENCE_ANNOTATORS)
+        props.setProperty(a + ".maxtime", Long.toString(this.sentenceMillis));
+    if (this.parseMaxLength > 0)
+      props.setProperty("parse.maxlen", Integer.toString(this.parseMaxLength));
+    return props;
+  }
+}
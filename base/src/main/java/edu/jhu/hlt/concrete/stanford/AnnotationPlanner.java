@@ -0,0 +1,274 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.DependencyParse;
+import edu.jhu.hlt.concrete.EntityMentionSet;
+import edu.jhu.hlt.concrete.Parse;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.TaggedToken;
+import edu.jhu.hlt.concrete.TokenTagging;
+import edu.jhu.hlt.concrete.Tokenization;
+import edu.jhu.hlt.concrete.analytics.base.AnalyticException;
+import edu.stanford.nlp.international.Language;
+import edu.stanford.nlp.ling.CoreAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.LemmaAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.NamedEntityTagAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.PartOfSpeechAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations.BasicDependenciesAnnotation;
+import edu.stanford.nlp.util.CoreMap;
+
+/**
+ * Decides which Stanford annotators need to run on a Communication, given
+ * the annotations it already carries.
+ * <br>
+ * <br>
+ * An annotator is skipped when Stanford output for it is already present
+ * on every tokenization (POS, lemma, and NER taggings, constituency and
+ * dependency parses) or on the document (a Stanford entity mention set for
+ * coref), and nothing it depends on is being re-run. The existing
+ * annotations are copied back onto the CoreNLP sentences, so later
+ * annotators see them as if they had just run, and
+ * {@link Plan#dropReusedOutput(Tokenization, Snapshot)} removes the
+ * duplicates that conversion back to Concrete would otherwise add.
+ */
+public class AnnotationPlanner {
+
+  private static final ImmutableMap<String, String> TAGGING_TYPES = ImmutableMap.of(
+      "pos", "POS", "lemma", "LEMMA", "ner", "NER");
+
+  private static final ImmutableMap<String, Class<? extends CoreAnnotation<String>>> TAGGING_KEYS = ImmutableMap.of(
+      "pos", PartOfSpeechAnnotation.class,
+      "lemma", LemmaAnnotation.class,
+      "ner", NamedEntityTagAnnotation.class);
+
+  /**
+   * What each annotator reads from earlier annotators: the sentence-level
+   * annotators as scheduled by {@link AnnotatorSchedule}, and coref.
+   */
+  private static final ImmutableMap<String, ImmutableSet<String>> REQUIRES = ImmutableMap.<String, ImmutableSet<String>>builder()
+      .putAll(AnnotatorSchedule.DEPENDS)
+      .put("dcoref", ImmutableSet.of("pos", "lemma", "ner", "parse"))
+      .build();
+
+  private AnnotationPlanner() {
+  }
+
+  /**
+   * The annotators to run on one Communication, and those whose existing
+   * output is reused.
+   */
+  public static class Plan {
+    private final ImmutableList<String> toRun;
+    private final ImmutableSet<String> reused;
+
+    Plan(ImmutableList<String> toRun, ImmutableSet<String> reused) {
+      this.toRun = toRun;
+      this.reused = reused;
+    }
+
+    public ImmutableList<String> getAnnotatorsToRun() {
+      return this.toRun;
+    }
+
+    public boolean isReused(String annotator) {
+      return this.reused.contains(annotator);
+    }
+
+    public boolean runs(String annotator) {
+      return this.toRun.contains(annotator);
+    }
+
+    /**
+     * Copy reused annotations onto the CoreNLP sentences: taggings onto
+     * their tokens, and parses as trees and dependency graphs.
+     *
+     * @param coreMaps the sentences, in the same order as <code>sentences</code>
+     * @param sentences the Concrete sentences the CoreMaps were built from
+     * @param relations the language of the reused dependency relations
+     * @throws AnalyticException if a reused parse does not match its tokens
+     */
+    public void restore(List<CoreMap> coreMaps, List<Sentence> sentences, Language relations)
+        throws AnalyticException {
+      for (Map.Entry<String, Class<? extends CoreAnnotation<String>>> e : TAGGING_KEYS.entrySet()) {
+        if (!this.isReused(e.getKey()))
+          continue;
+        for (int i = 0; i < coreMaps.size(); i++) {
+          List<CoreLabel> tokens = coreMaps.get(i).get(TokensAnnotation.class);
+          Optional<TokenTagging> tt = stanfordTagging(sentences.get(i).getTokenization(), TAGGING_TYPES.get(e.getKey()));
+          if (tt.isPresent())
+            for (TaggedToken tok : tt.get().getTaggedTokenList())
+              tokens.get(tok.getTokenIndex()).set(e.getValue(), tok.getTag());
+        }
+      }
+
+      for (int i = 0; i < coreMaps.size(); i++) {
+        CoreMap cm = coreMaps.get(i);
+        Tokenization tkz = sentences.get(i).getTokenization();
+        if (this.isReused("parse")) {
+          ConcreteToStanfordMapper.addParses(cm, tkz, relations);
+        } else if (this.isReused("depparse")) {
+          for (DependencyParse dp : tkz.getDependencyParseList())
+            if (ConcreteToStanfordMapper.isBasicDependencies(dp))
+              cm.set(BasicDependenciesAnnotation.class,
+                  ConcreteToStanfordMapper.concreteDependencyParseToSemanticGraph(dp, cm.get(TokensAnnotation.class), relations));
+        }
+      }
+    }
+
+    /**
+     * Remove the annotations that converting a reused annotator's output
+     * back to Concrete added a second time.
+     *
+     * @param tkz a tokenization after conversion
+     * @param before its annotations before conversion
+     */
+    public void dropReusedOutput(Tokenization tkz, Snapshot before) {
+      if (tkz.isSetTokenTaggingList())
+        tkz.getTokenTaggingList().removeIf(tt -> !before.contains(tt)
+            && TAGGING_TYPES.entrySet().stream().anyMatch(e -> this.isReused(e.getKey())
+                && e.getValue().equalsIgnoreCase(tt.getTaggingType())));
+      if (this.isReused("parse") && tkz.isSetParseList())
+        tkz.getParseList().removeIf(p -> !before.contains(p));
+      // dependencies come from the parser or from depparse
+      if ((this.isReused("parse") || this.isReused("depparse"))
+          && !this.runs("parse") && !this.runs("depparse") && tkz.isSetDependencyParseList())
+        tkz.getDependencyParseList().removeIf(p -> !before.contains(p));
+    }
+  }
+
+  /**
+   * The annotation objects a tokenization held at some point, compared by
+   * identity.
+   */
+  public static class Snapshot {
+    private final Set<Object> held = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public Snapshot(Tokenization tkz) {
+      if (tkz == null)
+        return;
+      if (tkz.isSetTokenTaggingList())
+        this.held.addAll(tkz.getTokenTaggingList());
+      if (tkz.isSetParseList())
+        this.held.addAll(tkz.getParseList());
+      if (tkz.isSetDependencyParseList())
+        this.held.addAll(tkz.getDependencyParseList());
+    }
+
+    boolean contains(Object o) {
+      return this.held.contains(o);
+    }
+  }
+
+  private static boolean isStanford(String tool) {
+    return tool != null && tool.contains("Stanford");
+  }
+
+  static Optional<TokenTagging> stanfordTagging(Tokenization tkz, String type) {
+    if (tkz == null || !tkz.isSetTokenTaggingList())
+      return Optional.empty();
+    return tkz.getTokenTaggingList().stream()
+        .filter(tt -> type.equalsIgnoreCase(tt.getTaggingType()))
+        .filter(tt -> tt.isSetMetadata() && isStanford(tt.getMetadata().getTool()))
+        .findFirst();
+  }
+
+  /**
+   * @return true if every tokenization has a Stanford tagging of the type
+   * that tags every token
+   */
+  private static boolean hasTagging(List<Sentence> sentences, String type) {
+    if (sentences.isEmpty())
+      return false;
+    for (Sentence st : sentences) {
+      Tokenization tkz = st.getTokenization();
+      Optional<TokenTagging> tt = stanfordTagging(tkz, type);
+      if (!tt.isPresent() || tt.get().getTaggedTokenListSize() != tkz.getTokenList().getTokenListSize())
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the tokenization has a Stanford parse covering all of its tokens
+   */
+  private static boolean hasParse(Tokenization tkz) {
+    if (tkz == null)
+      return false;
+    Optional<Parse> p = ConcreteToStanfordMapper.stanfordParse(tkz);
+    return p.isPresent() && p.get().getConstituentList().get(0).getStart() == 0
+        && p.get().getConstituentList().get(0).getEnding() == tkz.getTokenList().getTokenListSize();
+  }
+
+  /**
+   * @return true if the output of <code>annotator</code> is already present
+   */
+  static boolean isPresent(String annotator, Communication c, List<Sentence> sentences) {
+    if (TAGGING_TYPES.containsKey(annotator))
+      return hasTagging(sentences, TAGGING_TYPES.get(annotator));
+    if ("parse".equals(annotator))
+      return !sentences.isEmpty() && sentences.stream().allMatch(st -> hasParse(st.getTokenization()));
+    if ("depparse".equals(annotator))
+      return !sentences.isEmpty() && sentences.stream()
+          .allMatch(st -> ConcreteToStanfordMapper.hasBasicDependencies(st.getTokenization()));
+    if ("dcoref".equals(annotator)) {
+      if (!c.isSetEntityMentionSetList())
+        return false;
+      for (EntityMentionSet ems : c.getEntityMentionSetList())
+        if (ems.isSetMetadata() && isStanford(ems.getMetadata().getTool()))
+          return true;
+    }
+    return false;
+  }
+
+  /**
+   * Plan the annotators to run on <code>c</code>.
+   *
+   * @param c the input Communication
+   * @param sentences its sentences, each with a tokenization
+   * @param annotators the annotators that would run without planning, in order
+   * @return the plan
+   */
+  public static Plan plan(Communication c, List<Sentence> sentences, List<String> annotators) {
+    ImmutableList.Builder<String> toRun = ImmutableList.builder();
+    ImmutableSet.Builder<String> reused = ImmutableSet.builder();
+    Set<String> running = new HashSet<>();
+    for (String a : annotators) {
+      boolean dependsOnRerun = false;
+      for (String req : REQUIRES.getOrDefault(a, ImmutableSet.of()))
+        if (running.contains(req))
+          dependsOnRerun = true;
+      if (!dependsOnRerun && isPresent(a, c, sentences)) {
+        reused.add(a);
+      } else {
+        toRun.add(a);
+        running.add(a);
+      }
+    }
+    return new Plan(toRun.build(), reused.build());
+  }
+
+  /**
+   * @return a plan that runs every annotator
+   */
+  public static Plan all(List<String> annotators) {
+    return new Plan(ImmutableList.copyOf(annotators), ImmutableSet.of());
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.Annotator;
+import edu.stanford.nlp.pipeline.AnnotatorImplementations;
+import edu.stanford.nlp.util.RuntimeInterruptedException;
+
+/**
+ * The Stanford annotators run after tokenization, built once from a set of
+ * properties and shared by every thread that annotates with them.
+ * <br>
+ * <br>
+ * Annotators that are safe to call from several threads at once (the
+ * tagger, lemmatizer, NER, and the parsers) have a single shared instance.
+ * The others (coref) have up to one instance per worker: a thread borrows an
+ * instance for one call, waiting if every instance is in use. The first
+ * instance of each annotator is built up front, so that a missing model is
+ * reported when the pool is built; further instances are built on demand.
+ */
+public class AnnotatorPool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AnnotatorPool.class);
+
+  /**
+   * Annotators that may be called from several threads at once.
+   */
+  public static final ImmutableSet<String> THREAD_SAFE = ImmutableSet.of("pos", "lemma", "ner", "parse", "depparse");
+
+  private final Properties props;
+  private final ImmutableList<String> annotators;
+  private final int workers;
+  private final AnnotatorImplementations impls = new AnnotatorImplementations();
+  private final Map<String, Annotator> shared = new HashMap<>();
+  private final Map<String, Instances> perWorker = new HashMap<>();
+
+  /**
+   * Instances of one annotator that is not thread safe.
+   */
+  private class Instances {
+    private final String name;
+    private final BlockingQueue<Annotator> idle = new LinkedBlockingQueue<>();
+    private int built = 0;
+
+    Instances(String name) {
+      this.name = name;
+      this.idle.add(this.build());
+    }
+
+    private Annotator build() {
+      this.built++;
+      return AnnotatorPool.this.build(this.name);
+    }
+
+    Annotator borrow() throws InterruptedException {
+      Annotator a = this.idle.poll();
+      if (a != null)
+        return a;
+      synchronized (this) {
+        if (this.built < AnnotatorPool.this.workers) {
+          LOGGER.debug("Building instance {} of annotator: {}", this.built + 1, this.name);
+          return this.build();
+        }
+      }
+      return this.idle.take();
+    }
+
+    void giveBack(Annotator a) {
+      this.idle.add(a);
+    }
+  }
+
+  /**
+   * @param props the pipeline properties, including any per-annotator settings
+   * @param annotators the annotators to build, in the order they run
+   * @param workers the number of threads that will annotate at once; bounds
+   * the number of instances of each annotator that is not thread safe
+   */
+  public AnnotatorPool(Properties props, List<String> annotators, int workers) {
+    if (workers < 1)
+      throw new IllegalArgumentException("need at least one worker");
+    this.props = props;
+    this.annotators = ImmutableList.copyOf(annotators);
+    this.workers = workers;
+    for (String a : this.annotators) {
+      LOGGER.info("Loading annotator: {}", a);
+      if (THREAD_SAFE.contains(a))
+        this.shared.put(a, this.build(a));
+      else
+        this.perWorker.put(a, new Instances(a));
+    }
+  }
+
+  private Annotator build(String name) {
+    try {
+      switch (name) {
+      case "pos":
+        return this.impls.posTagger(this.props);
+      case "lemma":
+        return this.impls.morpha(this.props, false);
+      case "ner":
+        return this.impls.ner(this.props);
+      case "parse":
+        return this.impls.parse(this.props);
+      case "depparse":
+        return this.impls.dependencies(this.props);
+      case "dcoref":
+        return this.impls.dcoref(this.props);
+      default:
+        throw new IllegalArgumentException("Unsupported annotator: " + name);
+      }
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException("Unable to load annotator: " + name, e);
+    }
+  }
+
+  /**
+   * @return the annotators, in the order they run
+   */
+  public ImmutableList<String> getAnnotators() {
+    return this.annotators;
+  }
+
+  /**
+   * @return the properties the annotators were built from
+   */
+  public Properties getProperties() {
+    return this.props;
+  }
+
+  public int getWorkers() {
+    return this.workers;
+  }
+
+  /**
+   * Run one annotator. Safe to call from several threads at once.
+   *
+   * @param annotator the annotator's name; must be one of {@link #getAnnotators()}
+   * @param anno the annotation to add to
+   * @throws RuntimeInterruptedException if interrupted while waiting for an instance
+   */
+  public void annotate(String annotator, Annotation anno) {
+    Annotator a = this.shared.get(annotator);
+    if (a != null) {
+      a.annotate(anno);
+      return;
+    }
+
+    Instances is = this.perWorker.get(annotator);
+    if (is == null)
+      throw new IllegalArgumentException("Annotator not in this pool: " + annotator);
+    try {
+      a = is.borrow();
+    } catch (InterruptedException e) {
+      throw new RuntimeInterruptedException(e);
+    }
+    try {
+      a.annotate(anno);
+    } finally {
+      is.giveBack(a);
+    }
+  }
+}
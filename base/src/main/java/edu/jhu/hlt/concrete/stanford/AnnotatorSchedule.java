@@ -0,0 +1,154 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Orders a list of Stanford annotators into steps whose annotators may run
+ * at the same time.
+ * <br>
+ * <br>
+ * The steps run one after another. Each step is made of one or more
+ * branches; the annotators of a branch run in order, and different branches
+ * of a step do not depend on each other's output and can run concurrently.
+ * For example, the English pipeline <code>pos, lemma, parse, ner, dcoref</code>
+ * becomes <code>[pos]</code>, then <code>[lemma, ner]</code> alongside
+ * <code>[parse]</code>, then <code>[dcoref]</code>.
+ * <br>
+ * <br>
+ * An annotator that is not known here, including any document-level
+ * annotator such as coref, runs on its own: it is taken to depend on every
+ * annotator before it, and every annotator after it on it.
+ */
+public class AnnotatorSchedule {
+
+  /**
+   * The annotators each sentence-level annotator reads the output of, where
+   * they run before it.
+   */
+  static final ImmutableMap<String, ImmutableSet<String>> DEPENDS = ImmutableMap.<String, ImmutableSet<String>>builder()
+      .put("pos", ImmutableSet.of())
+      .put("lemma", ImmutableSet.of("pos"))
+      .put("ner", ImmutableSet.of("pos", "lemma"))
+      .put("parse", ImmutableSet.of("pos"))
+      .put("depparse", ImmutableSet.of("pos"))
+      .build();
+
+  private final ImmutableList<ImmutableList<ImmutableList<String>>> steps;
+
+  private AnnotatorSchedule(ImmutableList<ImmutableList<ImmutableList<String>>> steps) {
+    this.steps = steps;
+  }
+
+  /**
+   * @param annotators the annotators, in the order they would run one at a time
+   * @return the schedule for them
+   */
+  public static AnnotatorSchedule of(List<String> annotators) {
+    ImmutableList.Builder<ImmutableList<ImmutableList<String>>> steps = ImmutableList.builder();
+    Set<String> done = new HashSet<>();
+    int next = 0;
+    while (next < annotators.size()) {
+      // the longest run of annotators that splits into independent branches
+      ImmutableList<ImmutableList<String>> step = null;
+      for (int end = annotators.size(); end > next + 1 && step == null; end--) {
+        List<ImmutableList<String>> branches = branches(annotators, next, end, done);
+        if (branches != null && branches.size() > 1)
+          step = ImmutableList.copyOf(branches);
+      }
+      if (step == null)
+        step = ImmutableList.of(ImmutableList.of(annotators.get(next)));
+
+      steps.add(step);
+      for (List<String> b : step) {
+        done.addAll(b);
+        next += b.size();
+      }
+    }
+
+    return new AnnotatorSchedule(steps.build());
+  }
+
+  /**
+   * @return the branches of <code>annotators[start, end)</code>, or null if
+   * one of them depends on an annotator that has not run by then
+   */
+  private static List<ImmutableList<String>> branches(List<String> annotators, int start, int end, Set<String> done) {
+    // the branch each annotator joins, keyed by its first annotator
+    Map<String, List<String>> branchOf = new LinkedHashMap<>();
+    Map<String, String> headOf = new LinkedHashMap<>();
+    for (int i = start; i < end; i++) {
+      final String a = annotators.get(i);
+      Set<String> needs = new HashSet<>();
+      if (DEPENDS.containsKey(a))
+        needs.addAll(DEPENDS.get(a));
+      else
+        needs.addAll(annotators.subList(0, i));
+      for (String before : annotators.subList(0, i))
+        if (!DEPENDS.containsKey(before))
+          needs.add(before);
+      needs.retainAll(annotators.subList(0, i));
+      needs.removeAll(done);
+
+      // every annotator this one needs must be in the run, and all in one branch
+      Set<String> heads = new HashSet<>();
+      for (String n : needs) {
+        if (!headOf.containsKey(n))
+          return null;
+        heads.add(headOf.get(n));
+      }
+      if (heads.size() > 1) {
+        final String head = branchOf.keySet().stream().filter(heads::contains).findFirst().get();
+        for (String h : heads)
+          if (!h.equals(head)) {
+            List<String> moved = branchOf.remove(h);
+            moved.forEach(m -> headOf.put(m, head));
+            branchOf.get(head).addAll(moved);
+          }
+        heads = ImmutableSet.of(head);
+      }
+
+      final String head = heads.isEmpty() ? a : heads.iterator().next();
+      branchOf.computeIfAbsent(head, k -> new ArrayList<>()).add(a);
+      headOf.put(a, head);
+    }
+
+    // keep the original order within each branch
+    List<ImmutableList<String>> out = new ArrayList<>();
+    for (List<String> b : branchOf.values()) {
+      List<String> ordered = new ArrayList<>(annotators.subList(start, end));
+      ordered.retainAll(b);
+      out.add(ImmutableList.copyOf(ordered));
+    }
+    return out;
+  }
+
+  /**
+   * @return the steps, in order; each is a list of branches, and each branch
+   * a list of annotators to run in order
+   */
+  public ImmutableList<ImmutableList<ImmutableList<String>>> getSteps() {
+    return this.steps;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return this.steps.toString();
+  }
+}
@@ -5,35 +5,57 @@
 package edu.jhu.hlt.concrete.stanford;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import edu.jhu.hlt.concrete.Communication;
 import edu.jhu.hlt.concrete.Section;
 import edu.jhu.hlt.concrete.Sentence;
 import edu.jhu.hlt.concrete.TextSpan;
+import edu.jhu.hlt.concrete.Tokenization;
 import edu.jhu.hlt.concrete.analytics.base.AnalyticException;
 import edu.jhu.hlt.concrete.analytics.base.TokenizationedCommunicationAnalytic;
 import edu.jhu.hlt.concrete.miscommunication.MiscommunicationException;
 import edu.jhu.hlt.concrete.miscommunication.tokenized.CachedTokenizationCommunication;
 import edu.jhu.hlt.concrete.miscommunication.tokenized.TokenizedCommunication;
+import edu.jhu.hlt.concrete.stanford.cache.SentenceMemo;
+import edu.jhu.hlt.concrete.stanford.metrics.AnnotatorTimings;
 import edu.jhu.hlt.concrete.util.ProjectConstants;
 import edu.jhu.hlt.concrete.util.Timing;
 import edu.jhu.hlt.concrete.uuid.AnalyticUUIDGeneratorFactory;
 import edu.jhu.hlt.concrete.uuid.AnalyticUUIDGeneratorFactory.AnalyticUUIDGenerator;
+import edu.stanford.nlp.international.Language;
 import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.TextAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.IndexedWord;
 import edu.stanford.nlp.pipeline.Annotation;
 import edu.stanford.nlp.pipeline.ParserAnnotatorUtils;
-import edu.stanford.nlp.pipeline.StanfordCoreNLP;
 import edu.stanford.nlp.semgraph.SemanticGraph;
 import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations.CollapsedDependenciesAnnotation;
 import edu.stanford.nlp.trees.GrammaticalStructure;
@@ -41,10 +63,44 @@ import edu.stanford.nlp.trees.GrammaticalStructureFactory;
 import edu.stanford.nlp.trees.HeadFinder;
 import edu.stanford.nlp.trees.Tree;
 import edu.stanford.nlp.trees.TreeCoreAnnotations.TreeAnnotation;
+import edu.stanford.nlp.util.ArrayCoreMap;
 import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.util.RuntimeInterruptedException;
 
 /**
- *
+ * Runs the post-tokenization Stanford annotators over a tokenized
+ * Communication.
+ * <br>
+ * <br>
+ * If an {@link AnnotationBudget} with a document limit is given, a watchdog
+ * interrupts the running annotator once the limit is reached. The expensive
+ * annotators that have not yet run (parse, depparse, coref) are then skipped,
+ * while the cheap taggers still run, and the document is emitted with the
+ * annotations that were finished. The timeout is recorded in the
+ * Communication's key-value map under {@value #TIMEOUT_KEY}.
+ * <br>
+ * <br>
+ * In incremental mode, annotators whose Stanford output the input already
+ * carries are not run again; see {@link AnnotationPlanner}.
+ * <br>
+ * <br>
+ * The annotators come from an {@link AnnotatorPool}, and an analytic may be
+ * used by several threads at once.
+ * <br>
+ * <br>
+ * With a sentence pool, the sentence-local annotators (see
+ * {@link SentenceMemo#isSentenceLocal(String)}) and the filling in of
+ * dependency graphs from trees run on each sentence separately, spread over
+ * the pool's threads, so one long document uses every core. Each annotator
+ * still finishes on every sentence before the next one starts, and
+ * document-level annotators such as coref run on the calling thread.
+ * <br>
+ * <br>
+ * With an annotator executor, annotators that do not depend on each other
+ * run at the same time (see {@link AnnotatorSchedule}), each on its own copy
+ * of the sentences and tokens, whose new annotations are then copied back.
+ * Coref likewise runs on a copy while the other annotations are converted to
+ * Concrete. This is not done for documents with a time limit.
  */
 public class ConcreteStanfordPreCorefAnalytic implements TokenizationedCommunicationAnalytic<TokenizedCommunication> {
 
@@ -52,8 +108,64 @@ public class ConcreteStanfordPreCorefAnalytic implements TokenizationedCommunica
 
   private final HeadFinder hf;
   private final Optional<GrammaticalStructureFactory> gramFactory;
+  private final AnnotatorPool annotators;
   private final ImmutableList<String> postTokenAnnotators;
   private final boolean isCorefEnabled;
+  private final AnnotationBudget budget;
+  private SentenceMemo memo = null;
+  private boolean incremental = false;
+  private boolean inPlace = false;
+  private ForkJoinPool sentencePool = null;
+  private ExecutorService annotatorExecutor = null;
+  private AnnotatorTimings timings = null;
+  private Language relations = Language.UniversalEnglish;
+
+  /**
+   * Key in {@link Communication#getKeyValueMap()} noting that the document
+   * ran out of time and which annotators were cut short or skipped.
+   */
+  public static final String TIMEOUT_KEY = "stanford.timeout";
+
+  /**
+   * Annotators that are cheap enough to still run after the document limit
+   * has been reached.
+   */
+  private static final ImmutableSet<String> CHEAP_ANNOTATORS = ImmutableSet.of("pos", "lemma", "ner");
+
+  private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("stanford-watchdog").setDaemon(true).build());
+
+  /**
+   * Interrupts the annotating thread once, unless annotation finished first.
+   */
+  private static class Deadline {
+    private final Thread thread;
+    private boolean finished = false;
+    private boolean expired = false;
+
+    Deadline(Thread thread) {
+      this.thread = thread;
+    }
+
+    synchronized void expire() {
+      if (!this.finished) {
+        this.expired = true;
+        this.thread.interrupt();
+      }
+    }
+
+    synchronized boolean isExpired() {
+      return this.expired;
+    }
+
+    /**
+     * @return true if the deadline expired before annotation finished
+     */
+    synchronized boolean finish() {
+      this.finished = true;
+      return this.expired;
+    }
+  }
 
   /**
    *
@@ -61,14 +173,112 @@ public class ConcreteStanfordPreCorefAnalytic implements TokenizationedCommunica
   public ConcreteStanfordPreCorefAnalytic(Properties props, HeadFinder hf,
       Optional<GrammaticalStructureFactory> gramFactory,
       ImmutableList<String> postTokenAnnotators, boolean isCorefEnabled) {
+    this(props, hf, gramFactory, postTokenAnnotators, isCorefEnabled, AnnotationBudget.none());
+  }
+
+  /**
+   * @param budget the time limits; its per-sentence limits must already be
+   * applied to <code>props</code>
+   */
+  public ConcreteStanfordPreCorefAnalytic(Properties props, HeadFinder hf,
+      Optional<GrammaticalStructureFactory> gramFactory,
+      ImmutableList<String> postTokenAnnotators, boolean isCorefEnabled,
+      AnnotationBudget budget) {
+    this(new AnnotatorPool(props, postTokenAnnotators, 1), hf, gramFactory, isCorefEnabled, budget);
+  }
+
+  /**
+   * @param annotators the annotators to run, which may be shared with other
+   * analytics; the budget's per-sentence limits must already be applied to
+   * their properties
+   */
+  public ConcreteStanfordPreCorefAnalytic(AnnotatorPool annotators, HeadFinder hf,
+      Optional<GrammaticalStructureFactory> gramFactory, boolean isCorefEnabled,
+      AnnotationBudget budget) {
+    this.budget = budget;
     this.hf = hf;
     this.gramFactory = gramFactory;
-    this.postTokenAnnotators = postTokenAnnotators;
-    // needed to avoid NPE when using existingAnnotator.
-    new StanfordCoreNLP(props);
+    this.annotators = annotators;
+    this.postTokenAnnotators = annotators.getAnnotators();
     this.isCorefEnabled = isCorefEnabled;
   }
 
+  /**
+   * Reuse sentence-level annotations for sentences seen before. The memo
+   * may be shared with other analytics for the same language.
+   *
+   * @param memo the memo to consult and fill
+   * @return this object
+   */
+  public ConcreteStanfordPreCorefAnalytic setSentenceMemo(SentenceMemo memo) {
+    this.memo = memo;
+    return this;
+  }
+
+  /**
+   * @param incremental if true, only run the annotators whose output is
+   * missing from each input
+   * @return this object
+   */
+  public ConcreteStanfordPreCorefAnalytic setIncremental(boolean incremental) {
+    this.incremental = incremental;
+    return this;
+  }
+
+  /**
+   * @param inPlace if true, annotate the input Communication itself rather
+   * than a copy of it. The caller hands the Communication over and must not
+   * use it afterwards, except through the returned object.
+   * @return this object
+   */
+  public ConcreteStanfordPreCorefAnalytic setInPlace(boolean inPlace) {
+    this.inPlace = inPlace;
+    return this;
+  }
+
+  /**
+   * @param sentencePool the threads to annotate a document's sentences on,
+   * which may be shared with other analytics; null to annotate them one after
+   * another on the calling thread
+   * @return this object
+   */
+  public ConcreteStanfordPreCorefAnalytic setSentencePool(ForkJoinPool sentencePool) {
+    this.sentencePool = sentencePool;
+    return this;
+  }
+
+  /**
+   * @param annotatorExecutor the threads to run independent annotators and
+   * coref on, which may be shared with other analytics; null to run every
+   * annotator in turn on the calling thread
+   * @return this object
+   */
+  public ConcreteStanfordPreCorefAnalytic setAnnotatorExecutor(ExecutorService annotatorExecutor) {
+    this.annotatorExecutor = annotatorExecutor;
+    return this;
+  }
+
+  /**
+   * @param timings where to record how long each annotator takes per
+   * document, which may be shared with other analytics; null to not record
+   * @return this object
+   */
+  public ConcreteStanfordPreCorefAnalytic setAnnotatorTimings(AnnotatorTimings timings) {
+    this.timings = timings;
+    return this;
+  }
+
+  /**
+   * @param relations the language of the relations in the dependency graphs
+   * the annotators build, used to rebuild reused parses in incremental mode;
+   * see {@link edu.jhu.hlt.concrete.stanford.languages.PipelineLanguage#getRelationLanguage(AnnotatorPool)}
+   * @return this object
+   */
+  public ConcreteStanfordPreCorefAnalytic setRelationLanguage(Language relations) {
+    this.relations = relations;
+    return this;
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -133,21 +343,58 @@ public class ConcreteStanfordPreCorefAnalytic implements TokenizationedCommunica
    */
   @Override
   public TokenizedCommunication annotate(TokenizedCommunication arg0) throws AnalyticException {
-    final Communication root = new Communication(arg0.getRoot());
+    final Communication root = this.inPlace ? arg0.getRoot() : new Communication(arg0.getRoot());
     if (!root.isSetText())
       throw new AnalyticException("communication.text must be set to run this analytic.");
     AnalyticUUIDGeneratorFactory f = new AnalyticUUIDGeneratorFactory(root);
     AnalyticUUIDGenerator g = f.create();
     final List<Section> sectList = root.getSectionList();
     final String commText = root.getText();
+    final List<Sentence> origSentences = arg0.getSentences();
+    final AnnotationPlanner.Plan plan = this.plan(root, origSentences);
+    if (plan.getAnnotatorsToRun().isEmpty()) {
+      LOGGER.debug("Communication {} already has every annotation; not annotating.", root.getId());
+      try {
+        return new CachedTokenizationCommunication(root);
+      } catch (MiscommunicationException e) {
+        throw new AnalyticException(e);
+      }
+    }
 
     List<CoreMap> allCoreMaps = new ArrayList<>();
-    // String noMarkup = MarkupRewriter.removeMarkup(commText);
-    String noMarkup = commText;
     sectList.forEach(sect -> {
       List<CoreMap> cmList = ConcreteToStanfordMapper.concreteSectionToCoreMapList(sect, commText);
       allCoreMaps.addAll(cmList);
     });
+    return this.annotate(root, allCoreMaps, origSentences, plan, g);
+  }
+
+  AnnotationPlanner.Plan plan(Communication root, List<Sentence> sentences) {
+    return this.incremental
+        ? AnnotationPlanner.plan(root, sentences, this.postTokenAnnotators)
+        : AnnotationPlanner.all(this.postTokenAnnotators);
+  }
+
+  /**
+   * Run the annotators over a document's sentences and add their output to
+   * the document.
+   *
+   * @param root the Communication to add annotations to; modified in place
+   * @param allCoreMaps the document's sentences, with tokens only
+   * @param origSentences the Concrete sentences of <code>root</code>, in the same order
+   * @param plan the annotators to run
+   * @param g generates the UUIDs of new annotations
+   * @return the annotated Communication
+   */
+  TokenizedCommunication annotate(final Communication root, final List<CoreMap> allCoreMaps,
+      final List<Sentence> origSentences, final AnnotationPlanner.Plan plan, final AnalyticUUIDGenerator g)
+      throws AnalyticException {
+    final List<Section> sectList = root.getSectionList();
+    // String noMarkup = MarkupRewriter.removeMarkup(commText);
+    String noMarkup = root.getText();
+    plan.restore(allCoreMaps, origSentences, this.relations);
+    List<AnnotationPlanner.Snapshot> before = new ArrayList<>();
+    origSentences.forEach(st -> before.add(new AnnotationPlanner.Snapshot(st.getTokenization())));
 
     allCoreMaps.forEach(cm -> LOGGER.trace("Got CoreMap pre-coref: {}", cm.toShorterString(new String[0])));
     Annotation anno = new Annotation(allCoreMaps);
@@ -155,27 +402,69 @@ public class ConcreteStanfordPreCorefAnalytic implements TokenizationedCommunica
 
 
 
+    // sentences found in the memo skip the sentence-level annotators
+    final String memoAnnotators = plan.getAnnotatorsToRun().toString();
+    List<CoreMap> toAnnotate = allCoreMaps;
+    if (this.memo != null) {
+      toAnnotate = new ArrayList<>();
+      for (CoreMap cm : allCoreMaps)
+        if (!this.memo.splice(memoAnnotators, cm))
+          toAnnotate.add(cm);
+    }
+    Annotation sentAnno = anno;
+    if (toAnnotate.isEmpty()) {
+      sentAnno = null;
+    } else if (toAnnotate.size() < allCoreMaps.size()) {
+      sentAnno = new Annotation(toAnnotate);
+      sentAnno.set(TextAnnotation.class, noMarkup);
+    }
+
     fixNullDependencyGraphs(anno);
     // TODO: it's possible that fillDependencyGraphs needs to be called
     // before dcoref annotator is called. TB investigated further.
-    for (String annotator : this.postTokenAnnotators) {
-      LOGGER.debug("Running annotator: {}", annotator);
-      (StanfordCoreNLP.getExistingAnnotator(annotator)).annotate(anno);
-
+    // without a deadline, coref can wait until the sentences are converted
+    final List<String> toRun = plan.getAnnotatorsToRun();
+    final boolean concurrent = this.annotatorExecutor != null && !this.budget.hasDocumentLimit();
+    final boolean deferCoref = concurrent && this.isCorefEnabled && !toRun.isEmpty()
+        && toRun.get(toRun.size() - 1).equals("dcoref");
+    final Optional<String> timeout;
+    if (concurrent) {
+      this.runScheduled(deferCoref ? toRun.subList(0, toRun.size() - 1) : toRun, anno, sentAnno);
+      timeout = Optional.empty();
+    } else {
+      timeout = this.runAnnotators(toRun, anno, sentAnno);
     }
+    if (this.memo != null && !timeout.isPresent())
+      toAnnotate.forEach(cm -> this.memo.store(memoAnnotators, cm));
+    timeout.ifPresent(note -> {
+      LOGGER.warn("Communication {} ran out of time: {}", root.getId(), note);
+      root.putToKeyValueMap(TIMEOUT_KEY, note);
+    });
 
     anno.get(SentencesAnnotation.class).forEach(cm -> LOGGER.trace("Got CoreMaps post-coref: {}", cm.toShorterString(new String[0])));
     // TODO: not sure if this is necessary - found it in the old code.
-    anno.get(SentencesAnnotation.class).stream().filter(cm -> cm.containsKey(TreeAnnotation.class)).forEach(cm -> {
+    this.gramFactory.ifPresent(k -> this.forEachSentence(anno, cm -> {
+      if (!cm.containsKey(TreeAnnotation.class))
+        return;
       Tree tree = cm.get(TreeAnnotation.class);
       List<Tree> treeList = new ArrayList<>();
       treeList.add(tree);
-      this.gramFactory.ifPresent(k ->
-        ParserAnnotatorUtils.fillInParseAnnotations(false, true, k, cm,  treeList, GrammaticalStructure.Extras.NONE));
-    });
+      ParserAnnotatorUtils.fillInParseAnnotations(false, true, k, cm,  treeList, GrammaticalStructure.Extras.NONE);
+    }));
 
     anno.get(SentencesAnnotation.class).forEach(cm -> LOGGER.trace("Got CoreMap post-fill-in: {}", cm.toShorterString(new String[0])));
-    List<Sentence> postSentences = annotationToSentenceList(anno, hf, arg0.getSentences(), g);
+    Future<Annotation> corefRun = null;
+    if (deferCoref) {
+      // coref writes to tokens and trees, which the conversion below reads
+      final DocumentCopy forCoref = new DocumentCopy(anno, anno, true);
+      corefRun = this.annotatorExecutor.submit(() -> {
+        this.runAnnotator("dcoref", forCoref.anno, forCoref.sentAnno);
+        return forCoref.anno;
+      });
+    }
+    List<Sentence> postSentences = annotationToSentenceList(anno, hf, origSentences, g);
+    for (int i = 0; i < postSentences.size(); i++)
+      plan.dropReusedOutput(postSentences.get(i).getTokenization(), before.get(i));
     postSentences.forEach(st -> LOGGER.trace("Got pre-coref sentence: {}", st.toString()));
     Map<TextSpan, Sentence> tsToSentenceMap = new HashMap<>();
     postSentences.forEach(st -> tsToSentenceMap.put(st.getTextSpan(), st));
@@ -195,9 +484,11 @@ public class ConcreteStanfordPreCorefAnalytic implements TokenizationedCommunica
       });
     });
 
-    if (this.isCorefEnabled) {
+    if (this.isCorefEnabled && plan.runs("dcoref") && !timeout.isPresent()) {
       try {
-        CorefManager coref = new CorefManager(new CachedTokenizationCommunication(root), anno);
+        List<Tokenization> tkzList = new ArrayList<>(postSentences.size());
+        postSentences.forEach(st -> tkzList.add(st.getTokenization()));
+        CorefManager coref = new CorefManager(root, tkzList, corefRun == null ? anno : await(corefRun));
         TokenizedCommunication tcWithCoref = coref.addCoreference();
         return tcWithCoref;
       } catch (MiscommunicationException e) {
@@ -212,6 +503,337 @@ public class ConcreteStanfordPreCorefAnalytic implements TokenizationedCommunica
     }
   }
 
+  /**
+   * Run each annotator in turn, within the document budget if there is one.
+   *
+   * @param annotators the annotators to run, in order
+   * @param anno the whole document
+   * @param sentAnno the sentences that sentence-level annotators still need
+   * to run on, or null if there are none
+   * @return a note describing what was cut short, if the budget ran out
+   */
+  private Optional<String> runAnnotators(List<String> annotators, Annotation anno, Annotation sentAnno) {
+    if (!this.budget.hasDocumentLimit()) {
+      for (String annotator : annotators)
+        this.runAnnotator(annotator, anno, sentAnno);
+      return Optional.empty();
+    }
+
+    final Deadline deadline = new Deadline(Thread.currentThread());
+    final ScheduledFuture<?> timer = WATCHDOG.schedule(deadline::expire,
+        this.budget.getDocumentMillis(), TimeUnit.MILLISECONDS);
+    String interrupted = null;
+    List<String> skipped = new ArrayList<>();
+    try {
+      for (String annotator : annotators) {
+        // a cheap annotator cut short may leave input that later ones need
+        if (deadline.isExpired() && (!CHEAP_ANNOTATORS.contains(annotator)
+            || (interrupted != null && CHEAP_ANNOTATORS.contains(interrupted)))) {
+          skipped.add(annotator);
+          continue;
+        }
+
+        try {
+          this.runAnnotator(annotator, anno, sentAnno);
+        } catch (RuntimeInterruptedException e) {
+          if (!deadline.isExpired())
+            throw e;
+          interrupted = annotator;
+        }
+        // an annotator that ignores interrupts leaves the flag set
+        if (deadline.isExpired())
+          Thread.interrupted();
+      }
+    } finally {
+      timer.cancel(false);
+      if (deadline.finish())
+        Thread.interrupted();
+    }
+
+    if (!deadline.isExpired())
+      return Optional.empty();
+    StringBuilder sb = new StringBuilder();
+    sb.append("exceeded document budget of ").append(this.budget.getDocumentMillis()).append(" ms");
+    if (interrupted != null)
+      sb.append("; interrupted: ").append(interrupted);
+    if (!skipped.isEmpty())
+      sb.append("; skipped: ").append(String.join(", ", skipped));
+    if (this.isCorefEnabled)
+      sb.append("; coreference not added");
+    return Optional.of(sb.toString());
+  }
+
+  /**
+   * Run the annotators as scheduled by {@link AnnotatorSchedule}, running the
+   * branches of each step at the same time. The first branch runs on the
+   * calling thread, the rest on the annotator executor.
+   */
+  private void runScheduled(List<String> annotators, Annotation anno, Annotation sentAnno) {
+    final AnnotatorSchedule schedule = AnnotatorSchedule.of(annotators);
+    LOGGER.debug("Running annotators as: {}", schedule);
+    for (List<ImmutableList<String>> step : schedule.getSteps()) {
+      if (step.size() == 1) {
+        step.get(0).forEach(a -> this.runAnnotator(a, anno, sentAnno));
+        continue;
+      }
+
+      // every copy is taken before any branch writes to its own
+      List<DocumentCopy> copies = new ArrayList<>(step.size());
+      step.forEach(b -> copies.add(new DocumentCopy(anno, sentAnno, false)));
+      List<Future<?>> others = new ArrayList<>(step.size() - 1);
+      for (int i = 1; i < step.size(); i++) {
+        final List<String> branch = step.get(i);
+        final DocumentCopy copy = copies.get(i);
+        others.add(this.annotatorExecutor.submit(() -> branch.forEach(a -> this.runAnnotator(a, copy.anno, copy.sentAnno))));
+      }
+      try {
+        step.get(0).forEach(a -> this.runAnnotator(a, copies.get(0).anno, copies.get(0).sentAnno));
+        others.forEach(ConcreteStanfordPreCorefAnalytic::await);
+      } finally {
+        // the branches only write to their copies, so any left running can be abandoned
+        others.forEach(f -> f.cancel(true));
+      }
+      copies.forEach(DocumentCopy::copyBack);
+      DocumentCopy.shareTokenKeys(anno);
+    }
+  }
+
+  /**
+   * Wait for <code>f</code>, rethrowing what it threw.
+   *
+   * @throws RuntimeInterruptedException if the calling thread was interrupted
+   */
+  private static <T> T await(Future<T> f) {
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      f.cancel(true);
+      throw new RuntimeInterruptedException(e);
+    } catch (ExecutionException e) {
+      throw unwrap(e);
+    }
+  }
+
+  private static RuntimeException unwrap(ExecutionException e) {
+    Throwable cause = e.getCause();
+    if (cause instanceof RuntimeException)
+      return (RuntimeException) cause;
+    if (cause instanceof Error)
+      throw (Error) cause;
+    return new IllegalStateException(cause);
+  }
+
+  /**
+   * A copy of a document's sentences and tokens, for annotators to write to
+   * while other threads read the original.
+   * <br>
+   * <br>
+   * Other values, such as trees, are shared with the original unless asked
+   * for. Output that refers to tokens, such as entity mentions, refers to the
+   * copied tokens.
+   */
+  private static final class DocumentCopy {
+    private static final Set<Class<?>> SHARED_KEYS = ImmutableSet.of(
+        SentencesAnnotation.class, TokensAnnotation.class, TextAnnotation.class);
+
+    private final Annotation original;
+    private final List<CoreMap> originalSentences;
+    private final List<CoreMap> sentences = new ArrayList<>();
+    private final Annotation anno;
+    private final Annotation sentAnno;
+
+    /**
+     * @param anno the whole document
+     * @param sentAnno the sentences of <code>anno</code> that sentence-level
+     * annotators run on, or null
+     * @param copyTrees if true, also copy each sentence's tree
+     */
+    DocumentCopy(Annotation anno, Annotation sentAnno, boolean copyTrees) {
+      this.original = anno;
+      this.originalSentences = anno.get(SentencesAnnotation.class);
+      final String text = anno.get(TextAnnotation.class);
+      Map<CoreMap, CoreMap> copyOf = new IdentityHashMap<>();
+      for (CoreMap cm : this.originalSentences) {
+        CoreMap copy = new ArrayCoreMap();
+        copyChangedKeys(cm, copy, ImmutableSet.of());
+        List<CoreLabel> tokens = new ArrayList<>();
+        for (CoreLabel cl : cm.get(TokensAnnotation.class))
+          tokens.add(new CoreLabel(cl));
+        copy.set(TokensAnnotation.class, tokens);
+        if (copyTrees && cm.containsKey(TreeAnnotation.class))
+          copy.set(TreeAnnotation.class, cm.get(TreeAnnotation.class).deepCopy());
+        copyOf.put(cm, copy);
+        this.sentences.add(copy);
+      }
+
+      this.anno = new Annotation(this.sentences);
+      this.anno.set(TextAnnotation.class, text);
+      if (sentAnno == anno) {
+        this.sentAnno = this.anno;
+      } else if (sentAnno == null) {
+        this.sentAnno = null;
+      } else {
+        List<CoreMap> sub = new ArrayList<>();
+        sentAnno.get(SentencesAnnotation.class).forEach(cm -> sub.add(copyOf.get(cm)));
+        this.sentAnno = new Annotation(sub);
+        this.sentAnno.set(TextAnnotation.class, text);
+      }
+    }
+
+    /**
+     * Copy the annotations added or replaced in this copy back to the
+     * original. Only call once nothing else writes to the original.
+     */
+    void copyBack() {
+      copyChangedKeys(this.anno, this.original, SHARED_KEYS);
+      for (int i = 0; i < this.sentences.size(); i++) {
+        CoreMap copy = this.sentences.get(i);
+        CoreMap orig = this.originalSentences.get(i);
+        copyChangedKeys(copy, orig, SHARED_KEYS);
+        List<CoreLabel> copyTokens = copy.get(TokensAnnotation.class);
+        List<CoreLabel> origTokens = orig.get(TokensAnnotation.class);
+        for (int j = 0; j < copyTokens.size(); j++)
+          copyChangedKeys(copyTokens.get(j), origTokens.get(j), ImmutableSet.of());
+      }
+    }
+
+    /**
+     * Add each token's keys to the tree leaves and dependency graph nodes
+     * that stand for it but lack them. A branch's trees and graphs are built
+     * from its own copies of the tokens, so they miss what the other branches
+     * added, e.g. the parse misses lemmas and NER tags, which coref reads
+     * from them.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    static void shareTokenKeys(Annotation anno) {
+      for (CoreMap cm : anno.get(SentencesAnnotation.class)) {
+        final List<CoreLabel> tokens = cm.get(TokensAnnotation.class);
+        for (Class k : cm.keySet()) {
+          final Object v = cm.get(k);
+          if (v instanceof Tree) {
+            List<Tree> leaves = ((Tree) v).getLeaves();
+            if (leaves.size() == tokens.size())
+              for (int i = 0; i < leaves.size(); i++)
+                if (leaves.get(i).label() instanceof CoreLabel)
+                  copyMissingKeys(tokens.get(i), (CoreLabel) leaves.get(i).label());
+          } else if (v instanceof SemanticGraph) {
+            for (IndexedWord w : ((SemanticGraph) v).vertexSet())
+              if (w.index() >= 1 && w.index() <= tokens.size())
+                copyMissingKeys(tokens.get(w.index() - 1), w.backingLabel());
+          }
+        }
+      }
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static void copyMissingKeys(CoreMap from, CoreMap to) {
+      if (from == to)
+        return;
+      for (Class k : from.keySet())
+        if (!to.containsKey(k))
+          to.set(k, from.get(k));
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static void copyChangedKeys(CoreMap from, CoreMap to, Set<Class<?>> skip) {
+      for (Class k : from.keySet())
+        if (!skip.contains(k) && from.get(k) != to.get(k))
+          to.set(k, from.get(k));
+    }
+  }
+
+  private void runAnnotator(String annotator, Annotation anno, Annotation sentAnno) {
+    final boolean sentenceLocal = SentenceMemo.isSentenceLocal(annotator);
+    final Annotation target = this.memo != null && sentenceLocal ? sentAnno : anno;
+    if (target == null)
+      return;
+    LOGGER.debug("Running annotator: {}", annotator);
+    final long start = System.nanoTime();
+    if (sentenceLocal && this.sentencePool != null) {
+      final String text = target.get(TextAnnotation.class);
+      this.forEachSentence(target, cm -> {
+        Annotation one = new Annotation(Collections.singletonList(cm));
+        one.set(TextAnnotation.class, text);
+        this.annotators.annotate(annotator, one);
+      });
+    } else {
+      this.annotators.annotate(annotator, target);
+    }
+    if (this.timings != null)
+      this.timings.record(annotator, System.nanoTime() - start);
+  }
+
+  /**
+   * Apply <code>op</code> to each sentence of <code>anno</code>, on the
+   * sentence pool if there is one, and wait for all of them to finish.
+   * <br>
+   * <br>
+   * If the calling thread is interrupted, e.g. by the document deadline,
+   * sentences that have not started are skipped and the pool threads running
+   * the others are interrupted in turn. The call still waits for them, so
+   * that nothing is left writing to the document.
+   *
+   * @throws RuntimeInterruptedException if the calling thread was interrupted
+   */
+  private void forEachSentence(Annotation anno, Consumer<CoreMap> op) {
+    final List<CoreMap> cmList = anno.get(SentencesAnnotation.class);
+    if (this.sentencePool == null || cmList.size() < 2) {
+      cmList.forEach(op);
+      return;
+    }
+
+    final SentenceTasks running = new SentenceTasks();
+    List<ForkJoinTask<?>> tasks = new ArrayList<>(cmList.size());
+    for (CoreMap cm : cmList)
+      tasks.add(this.sentencePool.submit(() -> running.run(() -> op.accept(cm))));
+    try {
+      for (ForkJoinTask<?> t : tasks)
+        t.get();
+    } catch (InterruptedException e) {
+      running.stop();
+      tasks.forEach(ForkJoinTask::quietlyJoin);
+      throw new RuntimeInterruptedException(e);
+    } catch (ExecutionException e) {
+      running.stop();
+      tasks.forEach(ForkJoinTask::quietlyJoin);
+      throw unwrap(e);
+    }
+  }
+
+  /**
+   * The pool threads running one document's sentences, so they can be
+   * interrupted together. A thread is only interrupted while it is
+   * registered, and clears any such interrupt before moving on, so that it
+   * cannot reach whatever the pool runs next.
+   */
+  private static class SentenceTasks {
+    private final Set<Thread> threads = new HashSet<>();
+    private boolean stopped = false;
+
+    void run(Runnable r) {
+      final Thread t = Thread.currentThread();
+      synchronized (this) {
+        if (this.stopped)
+          return;
+        this.threads.add(t);
+      }
+      try {
+        r.run();
+      } finally {
+        synchronized (this) {
+          this.threads.remove(t);
+          if (this.stopped)
+            Thread.interrupted();
+        }
+      }
+    }
+
+    synchronized void stop() {
+      this.stopped = true;
+      this.threads.forEach(Thread::interrupt);
+    }
+  }
+
   /**
    * sentences with no dependency structure have null values for the various dependency annotations. make sure these are empty dependencies instead to prevent
    * coref-resolution from dying
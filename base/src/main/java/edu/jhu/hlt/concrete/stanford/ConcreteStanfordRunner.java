@@ -10,32 +10,43 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Iterator;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.apache.commons.compress.utils.IOUtils;
-import org.apache.commons.lang3.time.StopWatch;
-import org.joda.time.Duration;
-import org.joda.time.Minutes;
-import org.joda.time.Seconds;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import edu.jhu.hlt.acute.archivers.tar.TarArchiver;
 import edu.jhu.hlt.acute.iterators.tar.TarArchiveEntryByteIterator;
 import edu.jhu.hlt.acute.iterators.tar.TarGzArchiveEntryByteIterator;
 import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Tokenization;
 import edu.jhu.hlt.concrete.analytics.base.Analytic;
 import edu.jhu.hlt.concrete.analytics.base.AnalyticException;
 import edu.jhu.hlt.concrete.communications.WritableCommunication;
-import edu.jhu.hlt.concrete.miscommunication.WrappedCommunication;
 import edu.jhu.hlt.concrete.miscommunication.tokenized.TokenizedCommunication;
 import edu.jhu.hlt.concrete.serialization.CommunicationSerializer;
 import edu.jhu.hlt.concrete.serialization.CompactCommunicationSerializer;
 import edu.jhu.hlt.concrete.serialization.archiver.ArchivableCommunication;
+import edu.jhu.hlt.concrete.stanford.concurrent.ByteBoundedBlockingQueue;
+import edu.jhu.hlt.concrete.stanford.io.MappedTarArchive;
+import edu.jhu.hlt.concrete.stanford.io.ParallelGzipOutputStream;
+import edu.jhu.hlt.concrete.stanford.io.ShardedArchiver;
+import edu.jhu.hlt.concrete.stanford.io.ShardedArchiver.Shard;
+import edu.jhu.hlt.concrete.stanford.metrics.RunReport;
+import edu.jhu.hlt.concrete.stanford.runners.CommunicationSink;
 import edu.jhu.hlt.concrete.util.ConcreteException;
 import edu.jhu.hlt.utilt.AutoCloseableIterator;
 import edu.jhu.hlt.utilt.sys.SystemErrDisabler;
@@ -50,6 +61,37 @@ public class ConcreteStanfordRunner {
   private final CommunicationSerializer ser = new CompactCommunicationSerializer();
   private final SystemErrDisabler sed = new SystemErrDisabler();
 
+  private boolean staged = false;
+  private long queueBytes = 256L * 1024 * 1024;
+  private int compressionThreads = 1;
+  private boolean blockIndex = false;
+  private boolean memoryMapped = false;
+  private long shardMaxDocs = 0;
+  private long shardMaxBytes = 0;
+  private int shardWriters = 2;
+  private boolean writeReport = true;
+  private int reportSlowest = 20;
+
+  /**
+   * A rough upper bound on the serialized bytes that annotation adds per
+   * token: the token itself, its tags, constituents, and dependencies.
+   */
+  private static final long ANNOTATED_BYTES_PER_TOKEN = 256;
+
+  /**
+   * A document and its estimated serialized size, used to weigh it in the
+   * staged queues.
+   */
+  private static class SizedCommunication {
+    private final Communication comm;
+    private final long size;
+
+    SizedCommunication(Communication comm, long size) {
+      this.comm = comm;
+      this.size = size;
+    }
+  }
+
   /**
    *
    */
@@ -57,6 +99,188 @@ public class ConcreteStanfordRunner {
 
   }
 
+  /**
+   * When enabled, archives are processed in three stages: a reader thread
+   * decompresses and deserializes entries, the calling thread annotates, and
+   * a writer thread serializes and compresses the output.
+   *
+   * @param staged true to run archive input in staged mode
+   * @return this object
+   */
+  public ConcreteStanfordRunner setStaged(boolean staged) {
+    this.staged = staged;
+    return this;
+  }
+
+  /**
+   * Set the budget for each of the two staged-mode queues. Decoded documents
+   * are weighed by the size of their serialized input, and annotated ones by
+   * an estimate of their serialized output, which is often ten or more times
+   * larger, so the budget bounds memory even when a few documents are very
+   * large.
+   *
+   * @param queueBytes the budget, in bytes, of each queue
+   * @return this object
+   */
+  public ConcreteStanfordRunner setQueueBytes(long queueBytes) {
+    if (queueBytes <= 0)
+      throw new IllegalArgumentException("queue budget must be positive");
+    this.queueBytes = queueBytes;
+    return this;
+  }
+
+  /**
+   * Compress <code>.tar.gz</code> output on more than one thread. With more
+   * than one thread the output is written by a
+   * {@link ParallelGzipOutputStream}; it is still a standard gzip file.
+   *
+   * @param compressionThreads the number of compression threads
+   * @return this object
+   */
+  public ConcreteStanfordRunner setCompressionThreads(int compressionThreads) {
+    if (compressionThreads < 1)
+      throw new IllegalArgumentException("need at least one compression thread");
+    this.compressionThreads = compressionThreads;
+    return this;
+  }
+
+  /**
+   * When enabled, parallel-compressed output is accompanied by a block
+   * index (see {@link ParallelGzipOutputStream#indexPathFor(Path)}) that
+   * lets downstream jobs split the archive. Has no effect unless more than
+   * one compression thread is configured.
+   *
+   * @param blockIndex true to write a block index
+   * @return this object
+   */
+  public ConcreteStanfordRunner setBlockIndex(boolean blockIndex) {
+    this.blockIndex = blockIndex;
+    return this;
+  }
+
+  /**
+   * When enabled, <code>.concrete</code>/<code>.comm</code> files and
+   * uncompressed <code>.tar</code> archives are memory-mapped, and each
+   * document is deserialized directly from the mapping rather than copied
+   * through a stream. Compressed archives are unaffected.
+   *
+   * @param memoryMapped true to memory-map uncompressed input
+   * @return this object
+   */
+  public ConcreteStanfordRunner setMemoryMapped(boolean memoryMapped) {
+    this.memoryMapped = memoryMapped;
+    return this;
+  }
+
+  private Communication decode(ByteBuffer buf) throws ConcreteException {
+    // buffers wrapping a whole array come from the stream iterators
+    if (buf.hasArray() && buf.arrayOffset() == 0 && buf.position() == 0 && buf.remaining() == buf.array().length)
+      return this.ser.fromBytes(buf.array());
+    return MappedTarArchive.readCommunication(buf);
+  }
+
+  private OutputStream gzipStream(OutputStream os, Path outPath) throws IOException {
+    if (this.compressionThreads > 1) {
+      Optional<Path> idx = this.blockIndex ? Optional.of(ParallelGzipOutputStream.indexPathFor(outPath)) : Optional.empty();
+      return new ParallelGzipOutputStream(os, this.compressionThreads, idx);
+    }
+    return new GzipCompressorOutputStream(os);
+  }
+
+  /**
+   * Split archive output into numbered shards (see
+   * {@link edu.jhu.hlt.concrete.stanford.io.PartFiles#partPath(Path, int)})
+   * of at most this many documents. A manifest of the shards is written
+   * next to them.
+   *
+   * @param shardMaxDocs the document limit, or 0 for no limit
+   * @return this object
+   */
+  public ConcreteStanfordRunner setShardMaxDocs(long shardMaxDocs) {
+    if (shardMaxDocs < 0)
+      throw new IllegalArgumentException("shard limit must not be negative");
+    this.shardMaxDocs = shardMaxDocs;
+    return this;
+  }
+
+  /**
+   * Split archive output into numbered shards holding at most this many
+   * serialized, uncompressed bytes.
+   *
+   * @param shardMaxBytes the byte limit, or 0 for no limit
+   * @return this object
+   */
+  public ConcreteStanfordRunner setShardMaxBytes(long shardMaxBytes) {
+    if (shardMaxBytes < 0)
+      throw new IllegalArgumentException("shard limit must not be negative");
+    this.shardMaxBytes = shardMaxBytes;
+    return this;
+  }
+
+  /**
+   * @param shardWriters the number of shards that can be written concurrently
+   * @return this object
+   */
+  public ConcreteStanfordRunner setShardWriters(int shardWriters) {
+    if (shardWriters < 1)
+      throw new IllegalArgumentException("need at least one shard writer");
+    this.shardWriters = shardWriters;
+    return this;
+  }
+
+  /**
+   * When enabled (the default), a JSON run report (see {@link RunReport})
+   * is written next to the output, named by
+   * {@link RunReport#reportPathFor(Path)}.
+   *
+   * @param writeReport true to write a run report
+   * @return this object
+   */
+  public ConcreteStanfordRunner setWriteReport(boolean writeReport) {
+    this.writeReport = writeReport;
+    return this;
+  }
+
+  /**
+   * @param reportSlowest the number of slowest documents listed in the run report
+   * @return this object
+   */
+  public ConcreteStanfordRunner setReportSlowest(int reportSlowest) {
+    if (reportSlowest < 0)
+      throw new IllegalArgumentException("slowest count must not be negative");
+    this.reportSlowest = reportSlowest;
+    return this;
+  }
+
+  private void finishReport(RunReport report, Path inPath, Path outPath) {
+    report.stop();
+    LOGGER.info("Complete.");
+    LOGGER.info("Runtime: {} seconds.", String.format("%.1f", report.getElapsedSeconds()));
+    LOGGER.info("Processed {} documents, {} sentences, {} tokens; {} failed.",
+        report.getDocuments(), report.getSentences(), report.getTokens(), report.getFailures());
+    final double secs = report.getElapsedSeconds();
+    if (report.getDocuments() > 0 && secs > 0) {
+      LOGGER.info("Processed approximately {} documents/second.", String.format("%.2f", report.getDocuments() / secs));
+      LOGGER.info("Processed approximately {} tokens/second.", String.format("%.2f", report.getTokens() / secs));
+    }
+    if (!this.writeReport)
+      return;
+
+    final Path reportPath = RunReport.reportPathFor(outPath);
+    try {
+      report.setInputFileBytes(Files.size(inPath));
+      report.write(reportPath);
+      LOGGER.info("Wrote run report: {}", reportPath.toString());
+    } catch (IOException e) {
+      LOGGER.warn("Failed to write run report: " + reportPath.toString(), e);
+    }
+  }
+
+  private TarArchiver openArchiver(Path p, boolean isTar) throws IOException {
+    OutputStream os = new BufferedOutputStream(Files.newOutputStream(p), 1024 * 8 * 24);
+    return isTar ? new TarArchiver(os) : new TarArchiver(this.gzipStream(os, p));
+  }
+
   public void run(Path inPath, Path outPath, Analytic<? extends TokenizedCommunication> analytic) {
     LOGGER.debug("Checking input and output directories.");
     try {
@@ -66,6 +290,7 @@ public class ConcreteStanfordRunner {
     }
 
     String lowerOutPathStr = inPath.toString().toLowerCase();
+    final RunReport report = new RunReport(this.reportSlowest);
     try {
       sed.disable();
 
@@ -89,18 +314,28 @@ public class ConcreteStanfordRunner {
       } else if (isConcreteExt) {
         // IF .concrete, run single communication.
         LOGGER.info("Annotating single .concrete file at: {}", inPath.toString());
-        try (InputStream in = Files.newInputStream(inPath);
-            BufferedInputStream bin = new BufferedInputStream(in, 1024 * 8 * 24);) {
-          byte[] inputBytes = IOUtils.toByteArray(bin);
-          Communication c = ser.fromBytes(inputBytes);
-          WrappedCommunication annotated = analytic.annotate(c);
+        try {
+          Communication c;
+          if (this.memoryMapped) {
+            c = MappedTarArchive.readCommunication(MappedTarArchive.mapFile(inPath));
+          } else {
+            try (InputStream in = Files.newInputStream(inPath);
+                BufferedInputStream bin = new BufferedInputStream(in, 1024 * 8 * 24);) {
+              c = ser.fromBytes(IOUtils.toByteArray(bin));
+            }
+          }
+          report.recordInput(Files.size(inPath));
+          final long start = System.nanoTime();
+          TokenizedCommunication annotated = analytic.annotate(c);
+          report.recordDocument(annotated, System.nanoTime() - start);
           Communication ar = annotated.getRoot();
           WritableCommunication wc = new WritableCommunication(ar);
-          if (Files.isDirectory(outPath))
-            wc.writeToFile(outPath.resolve(inputFileName), true);
-          else
-            wc.writeToFile(outPath, true);
+          final Path localOutPath = Files.isDirectory(outPath) ? outPath.resolve(inputFileName) : outPath;
+          wc.writeToFile(localOutPath, true);
+          report.setOutputFileBytes(Files.size(localOutPath));
+          this.finishReport(report, inPath, localOutPath);
         } catch (AnalyticException e) {
+          report.recordFailure(e);
           LOGGER.error("Caught exception when running the analytic.", e);
         }
       } else {
@@ -113,62 +348,75 @@ public class ConcreteStanfordRunner {
           localOutPath = outPath;
 
         // Iterate over the archive.
-        AutoCloseableIterator<byte[]> iter;
-        try (InputStream is = Files.newInputStream(inPath);
-            BufferedInputStream bis = new BufferedInputStream(is, 1024 * 8 * 24);) {
+        final boolean mapped = this.memoryMapped && isTarExt;
+        AutoCloseableIterator<?> iter;
+        Iterator<ByteBuffer> entries;
+        // mapped input needs no stream; null resources are skipped on close
+        try (InputStream is = mapped ? null : Files.newInputStream(inPath);
+            BufferedInputStream bis = mapped ? null : new BufferedInputStream(is, 1024 * 8 * 24);) {
 
           // open iterator based on file extension
-          iter = isTarExt ? new TarArchiveEntryByteIterator(bis) : new TarGzArchiveEntryByteIterator(bis);
-          try (OutputStream os = Files.newOutputStream(localOutPath);
-              BufferedOutputStream bos = new BufferedOutputStream(os, 1024 * 8 * 24);) {
-            TarArchiver archiver = isTarExt ? new TarArchiver(bos) : new TarArchiver(new GzipCompressorOutputStream(bos));
-
-            final StopWatch sw = new StopWatch();
-            sw.start();
+          if (mapped) {
+            MappedTarArchive mta = new MappedTarArchive(inPath);
+            iter = mta;
+            entries = mta;
+          } else {
+            AutoCloseableIterator<byte[]> bytesIter = isTarExt ? new TarArchiveEntryByteIterator(bis) : new TarGzArchiveEntryByteIterator(bis);
+            iter = bytesIter;
+            entries = Iterators.transform(bytesIter, ByteBuffer::wrap);
+          }
+          // sharded output opens its own files
+          final boolean sharded = this.shardMaxDocs > 0 || this.shardMaxBytes > 0;
+          try (OutputStream os = sharded ? null : Files.newOutputStream(localOutPath);
+              BufferedOutputStream bos = sharded ? null : new BufferedOutputStream(os, 1024 * 8 * 24);) {
+            final TarArchiver archiver = sharded ? null
+                : isTarExt ? new TarArchiver(bos) : new TarArchiver(this.gzipStream(bos, localOutPath));
+            final ShardedArchiver shards = sharded ? new ShardedArchiver(localOutPath, this.shardMaxDocs,
+                this.shardMaxBytes, this.shardWriters, p -> this.openArchiver(p, isTarExt)) : null;
+            final CommunicationSink sink = sharded ? c -> shards.addEntry(c)
+                : c -> archiver.addEntry(new ArchivableCommunication(c));
 
-            int docCtr = 0;
-            final AtomicInteger tokenCtr = new AtomicInteger(0);
+            report.start();
             LOGGER.info("Iterating over archive: {}", inPath.toString());
-            while (iter.hasNext()) {
-              Communication n = ser.fromBytes(iter.next());
-              LOGGER.info("Annotating communication: {}", n.getId());
-              try {
-                TokenizedCommunication a = analytic.annotate(n);
-                a.getTokenizations().parallelStream()
-                    .map(tkzToInt -> tkzToInt.getTokenList().getTokenListSize())
-                    .forEach(ct -> tokenCtr.addAndGet(ct));
-                archiver.addEntry(new ArchivableCommunication(a.getRoot()));
-                docCtr++;
-              } catch (AnalyticException | IOException | StringIndexOutOfBoundsException e) {
-                LOGGER.error("Caught exception processing document: " + n.getId(), e);
+            if (this.staged) {
+              this.runStaged(entries, sink, analytic, report);
+            } else {
+              while (entries.hasNext()) {
+                ByteBuffer buf = entries.next();
+                report.recordInput(buf.remaining());
+                Communication n = this.decode(buf);
+                LOGGER.info("Annotating communication: {}", n.getId());
+                try {
+                  final long start = System.nanoTime();
+                  TokenizedCommunication a = analytic.annotate(n);
+                  report.recordDocument(a, System.nanoTime() - start);
+                  sink.accept(a.getRoot());
+                } catch (AnalyticException | IOException | StringIndexOutOfBoundsException e) {
+                  report.recordFailure(e);
+                  LOGGER.error("Caught exception processing document: " + n.getId(), e);
+                }
               }
             }
 
             try {
-              archiver.close();
+              if (sharded)
+                shards.close();
+              else
+                archiver.close();
               iter.close();
             } catch (Exception e) {
               // unlikely.
               LOGGER.info("Caught exception closing iterator.", e);
             }
 
-            sw.stop();
-            Duration rt = new Duration(sw.getTime());
-            Seconds st = rt.toStandardSeconds();
-            Minutes m = rt.toStandardMinutes();
-            int minutesInt = m.getMinutes();
-
-            LOGGER.info("Complete.");
-            LOGGER.info("Runtime: approximately {} minutes.", minutesInt);
-            LOGGER.info("Processed {} documents.", docCtr);
-            final int tokens = tokenCtr.get();
-            LOGGER.info("Processed {} tokens.", tokens);
-            if (docCtr > 0 && minutesInt > 0) {
-              final float minutesFloat = minutesInt;
-              float perMin = docCtr / minutesFloat;
-              LOGGER.info("Processed approximately {} documents/minute.", perMin);
-              LOGGER.info("Processed approximately {} tokens/second.", st.getSeconds() / minutesFloat);
-            }
+            long outBytes = 0;
+            if (sharded)
+              for (Shard s : shards.getFinishedShards())
+                outBytes += s.getFileBytes();
+            else
+              outBytes = Files.size(localOutPath);
+            report.setOutputFileBytes(outBytes);
+            this.finishReport(report, inPath, localOutPath);
           }
         }
       }
@@ -177,6 +425,108 @@ public class ConcreteStanfordRunner {
     }
   }
 
+  /**
+   * Annotate an archive with decoding and encoding moved off the calling
+   * thread. Documents reach the sink in input order.
+   *
+   * @param report records each document annotated or failed
+   */
+  private void runStaged(final Iterator<ByteBuffer> iter, final CommunicationSink sink,
+      final Analytic<? extends TokenizedCommunication> analytic, final RunReport report)
+      throws IOException, ConcreteException {
+    final ByteBoundedBlockingQueue<SizedCommunication> decoded = new ByteBoundedBlockingQueue<>(this.queueBytes);
+    final ByteBoundedBlockingQueue<SizedCommunication> annotated = new ByteBoundedBlockingQueue<>(this.queueBytes);
+    ExecutorService io = Executors.newFixedThreadPool(2,
+        new ThreadFactoryBuilder().setNameFormat("stanford-io-%d").setDaemon(true).build());
+    try {
+      Future<Void> reader = io.submit(() -> {
+        try {
+          while (iter.hasNext()) {
+            ByteBuffer buf = iter.next();
+            final int size = buf.remaining();
+            report.recordInput(size);
+            if (!decoded.put(new SizedCommunication(this.decode(buf), size), size))
+              break;
+          }
+        } finally {
+          decoded.finish();
+        }
+        return null;
+      });
+
+      Future<Void> writer = io.submit(() -> {
+        try {
+          SizedCommunication sc;
+          while ((sc = annotated.take()) != null) {
+            try {
+              sink.accept(sc.comm);
+            } catch (IOException e) {
+              // as in the serial path, a document that cannot be written is skipped
+              report.recordFailure(e);
+              LOGGER.error("Caught exception processing document: " + sc.comm.getId(), e);
+            }
+          }
+        } catch (Exception e) {
+          // unblock the annotating thread.
+          annotated.cancel();
+          throw e;
+        }
+        return null;
+      });
+
+      try {
+        SizedCommunication sc;
+        while ((sc = decoded.take()) != null) {
+          Communication n = sc.comm;
+          LOGGER.info("Annotating communication: {}", n.getId());
+          try {
+            final long start = System.nanoTime();
+            TokenizedCommunication a = analytic.annotate(n);
+            report.recordDocument(a, System.nanoTime() - start);
+            final long outSize = estimateAnnotatedBytes(a, sc.size);
+            if (!annotated.put(new SizedCommunication(a.getRoot(), outSize), outSize))
+              break;
+          } catch (AnalyticException | StringIndexOutOfBoundsException e) {
+            report.recordFailure(e);
+            LOGGER.error("Caught exception processing document: " + n.getId(), e);
+          }
+        }
+      } finally {
+        decoded.cancel();
+        annotated.finish();
+      }
+
+      reader.get();
+      writer.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while running staged pipeline.", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      else if (cause instanceof ConcreteException)
+        throw (ConcreteException) cause;
+      else if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new IOException(cause);
+    } finally {
+      io.shutdownNow();
+    }
+  }
+
+  /**
+   * @param inputBytes the size of the document's serialized input
+   * @return an estimate of the size of the annotated document, serialized
+   */
+  static long estimateAnnotatedBytes(TokenizedCommunication tc, long inputBytes) {
+    long tokens = 0;
+    for (Tokenization t : tc.getTokenizations())
+      if (t.isSetTokenList())
+        tokens += t.getTokenList().getTokenListSize();
+    return inputBytes + tokens * ANNOTATED_BYTES_PER_TOKEN;
+  }
+
   public static void prepareInputOutput(Path in, Path out) throws IOException {
     if (!Files.exists(in))
       throw new IOException(in.toString() + " does not exist. Ensure it exists and re-run this program.");
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Section;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.analytics.base.AnalyticException;
+import edu.jhu.hlt.concrete.analytics.base.SectionedCommunicationAnalytic;
+import edu.jhu.hlt.concrete.miscommunication.MiscommunicationException;
+import edu.jhu.hlt.concrete.miscommunication.sectioned.CachedSectionedCommunication;
+import edu.jhu.hlt.concrete.miscommunication.sectioned.SectionedCommunication;
+import edu.jhu.hlt.concrete.miscommunication.tokenized.TokenizedCommunication;
+import edu.jhu.hlt.concrete.util.ProjectConstants;
+import edu.jhu.hlt.concrete.util.Timing;
+import edu.jhu.hlt.concrete.uuid.AnalyticUUIDGeneratorFactory;
+import edu.jhu.hlt.concrete.uuid.AnalyticUUIDGeneratorFactory.AnalyticUUIDGenerator;
+import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.util.CoreMap;
+
+/**
+ * Tokenizes, sentence splits, and annotates a sectioned Communication in
+ * one pass.
+ * <br>
+ * <br>
+ * The output is the same as running a {@link ConcreteStanfordTokensSentenceAnalytic}
+ * followed by a {@link ConcreteStanfordPreCorefAnalytic}, but the tokenizer's
+ * sentences go straight to the later annotators: the Communication is
+ * copied once rather than once per stage, and the tokenized Communication
+ * is never wrapped or mapped back from Concrete to CoreNLP.
+ */
+public class ConcreteStanfordSinglePassAnalytic implements SectionedCommunicationAnalytic<TokenizedCommunication> {
+
+  private final ConcreteStanfordTokensSentenceAnalytic tokenizer;
+  private final ConcreteStanfordPreCorefAnalytic annotator;
+  private boolean inPlace = false;
+
+  /**
+   * @param tokenizer runs tokenization and sentence splitting
+   * @param annotator runs the later annotators
+   */
+  public ConcreteStanfordSinglePassAnalytic(ConcreteStanfordTokensSentenceAnalytic tokenizer,
+      ConcreteStanfordPreCorefAnalytic annotator) {
+    this.tokenizer = tokenizer;
+    this.annotator = annotator;
+  }
+
+  /**
+   * @param inPlace if true, annotate the input Communication itself rather
+   * than a copy of it. The caller hands the Communication over and must not
+   * use it afterwards, except through the returned object.
+   * @return this object
+   */
+  public ConcreteStanfordSinglePassAnalytic setInPlace(boolean inPlace) {
+    this.inPlace = inPlace;
+    return this;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see edu.jhu.hlt.concrete.safe.metadata.SafeAnnotationMetadata#getTimestamp()
+   */
+  @Override
+  public long getTimestamp() {
+    return Timing.currentLocalTime();
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see edu.jhu.hlt.concrete.metadata.tools.MetadataTool#getToolName()
+   */
+  @Override
+  public String getToolName() {
+    return ConcreteStanfordSinglePassAnalytic.class.getSimpleName();
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see edu.jhu.hlt.concrete.metadata.tools.MetadataTool#getToolVersion()
+   */
+  @Override
+  public String getToolVersion() {
+    return ProjectConstants.VERSION;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see edu.jhu.hlt.concrete.metadata.tools.MetadataTool#getToolNotes()
+   */
+  @Override
+  public List<String> getToolNotes() {
+    return new ArrayList<>();
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see edu.jhu.hlt.concrete.analytics.base.Analytic#annotate(edu.jhu.hlt.concrete.Communication)
+   */
+  @Override
+  public TokenizedCommunication annotate(Communication arg0) throws AnalyticException {
+    try {
+      return this.annotate(new CachedSectionedCommunication(arg0));
+    } catch (MiscommunicationException e) {
+      throw new AnalyticException("Input communication did not have required Section annotations present.", e);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see edu.jhu.hlt.concrete.analytics.base.SectionedCommunicationAnalytic#annotate(edu.jhu.hlt.concrete.miscommunication.sectioned.SectionedCommunication)
+   */
+  @Override
+  public TokenizedCommunication annotate(SectionedCommunication arg0) throws AnalyticException {
+    final Communication cp = this.inPlace ? arg0.getRoot() : new Communication(arg0.getRoot());
+    if (!cp.isSetText())
+      throw new AnalyticException("communication.text must be set to run this analytic.");
+    AnalyticUUIDGenerator g = new AnalyticUUIDGeneratorFactory(cp).create();
+    final String commText = cp.getText();
+    List<Section> sList = ConcreteStanfordTokensSentenceAnalytic.nonEmptySections(arg0, cp);
+
+    List<Sentence> sentences = new ArrayList<>();
+    List<CoreMap> allCoreMaps = new ArrayList<>();
+    for (Section s : sList) {
+      final int sectStart = s.getTextSpan().getStart();
+      final Annotation sectAnnotation = this.tokenizer.tokenize(cp, s);
+      List<Sentence> stList = ConcreteStanfordTokensSentenceAnalytic.annotationToSentenceList(sectAnnotation, sectStart, g);
+      s.setSentenceList(stList);
+      sentences.addAll(stList);
+      allCoreMaps.addAll(ConcreteToStanfordMapper.tokenizedSectionToCoreMapList(
+          sectAnnotation.get(SentencesAnnotation.class), sectStart, commText));
+    }
+    cp.setSectionList(sList);
+
+    return this.annotator.annotate(cp, allCoreMaps, sentences, this.annotator.plan(cp, sentences), g);
+  }
+}
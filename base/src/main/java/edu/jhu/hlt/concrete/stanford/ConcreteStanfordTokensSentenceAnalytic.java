@@ -42,6 +42,7 @@ public class ConcreteStanfordTokensSentenceAnalytic implements SectionedCommunic
   private static final Logger LOGGER = LoggerFactory.getLogger(ConcreteStanfordTokensSentenceAnalytic.class);
 
   private final StanfordCoreNLP pipeline;
+  private boolean inPlace = false;
   /**
    *
    */
@@ -49,6 +50,17 @@ public class ConcreteStanfordTokensSentenceAnalytic implements SectionedCommunic
     this.pipeline = new StanfordCoreNLP(props);
   }
 
+  /**
+   * @param inPlace if true, annotate the input Communication itself rather
+   * than a copy of it. The caller hands the Communication over and must not
+   * use it afterwards, except through the returned object.
+   * @return this object
+   */
+  public ConcreteStanfordTokensSentenceAnalytic setInPlace(boolean inPlace) {
+    this.inPlace = inPlace;
+    return this;
+  }
+
   /* (non-Javadoc)
    * @see edu.jhu.hlt.concrete.safe.metadata.SafeAnnotationMetadata#getTimestamp()
    */
@@ -83,7 +95,7 @@ public class ConcreteStanfordTokensSentenceAnalytic implements SectionedCommunic
     return notes;
   }
 
-  private static List<Sentence> annotationToSentenceList(Annotation anno, int cOffset, final AnalyticUUIDGenerator gen) {
+  static List<Sentence> annotationToSentenceList(Annotation anno, int cOffset, final AnalyticUUIDGenerator gen) {
     List<Sentence> slist = new ArrayList<>();
     List<CoreMap> cml = anno.get(SentencesAnnotation.class);
     for (CoreMap cm : cml) {
@@ -115,11 +127,32 @@ public class ConcreteStanfordTokensSentenceAnalytic implements SectionedCommunic
    */
   @Override
   public TokenizedCommunication annotate(SectionedCommunication arg0) throws AnalyticException {
-    final Communication cp = new Communication(arg0.getRoot());
+    final Communication cp = this.inPlace ? arg0.getRoot() : new Communication(arg0.getRoot());
     if(!cp.isSetText())
       throw new AnalyticException("communication.text must be set to run this analytic.");
     AnalyticUUIDGeneratorFactory f = new AnalyticUUIDGeneratorFactory(cp);
     AnalyticUUIDGenerator g = f.create();
+    List<Section> sList = nonEmptySections(arg0, cp);
+    // for each section, run stanford tokenization and sentence splitting
+    for (Section s : sList) {
+      final TextSpan sts = s.getTextSpan();
+      final Annotation sectAnnotation = this.tokenize(cp, s);
+      List<Sentence> stList = annotationToSentenceList(sectAnnotation, sts.getStart(), g);
+      s.setSentenceList(stList);
+    }
+
+    cp.setSectionList(sList);
+    try {
+      return new CachedTokenizationCommunication(cp);
+    } catch (MiscommunicationException e) {
+      throw new AnalyticException(e);
+    }
+  }
+
+  /**
+   * @return the sections of <code>arg0</code> that have non-whitespace text
+   */
+  static List<Section> nonEmptySections(SectionedCommunication arg0, Communication cp) {
     List<Section> sList = arg0.getSections()
         .stream()
         // temporary hack - filter out
@@ -152,32 +185,30 @@ public class ConcreteStanfordTokensSentenceAnalytic implements SectionedCommunic
     final int oSize = arg0.getSections().size();
     if (newSize < oSize)
       LOGGER.info("Dropped {} section(s) because they were zero-length or contained only whitespace.", oSize - newSize);
-    // for each section, run stanford tokenization and sentence splitting
-    for (Section s : sList) {
-      LOGGER.debug("Annotating section: {}", s.getUuid().getUuidString());
-      final TextSpan sts = s.getTextSpan();
-      final String sectTxt = cp.getText().substring(sts.getStart(), sts.getEnding());
-      // final String sectTxt = new SuperTextSpan(sts, cp).getText();
-      LOGGER.debug("Section text: {}", sectTxt);
-      final Annotation sectAnnotation = new Annotation(sectTxt);
-      LOGGER.debug("Got annotation keys:");
-      sectAnnotation.keySet().forEach(k -> LOGGER.debug("{}", k));
-      this.pipeline.annotate(sectAnnotation);
-      LOGGER.trace("Post annotation annotation keys:");
-      sectAnnotation.keySet().forEach(k -> LOGGER.trace("{}", k));
-
-      List<CoreLabel> tokensOnly = sectAnnotation.get(TokensAnnotation.class);
-      tokensOnly.forEach(cl -> LOGGER.trace("Got non-sent Stanford token: {}", cl.toShorterString(new String[0])));
-      // LOGGER.debug("Got first sentence text annotation: {}", sectAnnotation.get(SentencesAnnotation.class).get(0).get(TextAnnotation.class));
-      List<Sentence> stList = annotationToSentenceList(sectAnnotation, sts.getStart(), g);
-      s.setSentenceList(stList);
-    }
+    return sList;
+  }
 
-    cp.setSectionList(sList);
-    try {
-      return new CachedTokenizationCommunication(cp);
-    } catch (MiscommunicationException e) {
-      throw new AnalyticException(e);
-    }
+  /**
+   * Run tokenization and sentence splitting over a section.
+   *
+   * @return the section's annotation, with offsets relative to the section
+   */
+  Annotation tokenize(Communication cp, Section s) {
+    LOGGER.debug("Annotating section: {}", s.getUuid().getUuidString());
+    final TextSpan sts = s.getTextSpan();
+    final String sectTxt = cp.getText().substring(sts.getStart(), sts.getEnding());
+    // final String sectTxt = new SuperTextSpan(sts, cp).getText();
+    LOGGER.debug("Section text: {}", sectTxt);
+    final Annotation sectAnnotation = new Annotation(sectTxt);
+    LOGGER.debug("Got annotation keys:");
+    sectAnnotation.keySet().forEach(k -> LOGGER.debug("{}", k));
+    this.pipeline.annotate(sectAnnotation);
+    LOGGER.trace("Post annotation annotation keys:");
+    sectAnnotation.keySet().forEach(k -> LOGGER.trace("{}", k));
+
+    List<CoreLabel> tokensOnly = sectAnnotation.get(TokensAnnotation.class);
+    tokensOnly.forEach(cl -> LOGGER.trace("Got non-sent Stanford token: {}", cl.toShorterString(new String[0])));
+    // LOGGER.debug("Got first sentence text annotation: {}", sectAnnotation.get(SentencesAnnotation.class).get(0).get(TextAnnotation.class));
+    return sectAnnotation;
   }
 }
@@ -5,17 +5,26 @@
 package edu.jhu.hlt.concrete.stanford;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.jhu.hlt.concrete.Constituent;
+import edu.jhu.hlt.concrete.Dependency;
+import edu.jhu.hlt.concrete.DependencyParse;
+import edu.jhu.hlt.concrete.Parse;
 import edu.jhu.hlt.concrete.Section;
 import edu.jhu.hlt.concrete.Sentence;
 import edu.jhu.hlt.concrete.TextSpan;
 import edu.jhu.hlt.concrete.Token;
 import edu.jhu.hlt.concrete.TokenList;
 import edu.jhu.hlt.concrete.Tokenization;
+import edu.jhu.hlt.concrete.analytics.base.AnalyticException;
+import edu.stanford.nlp.international.Language;
 import edu.stanford.nlp.ling.CoreAnnotations.CharacterOffsetBeginAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.CharacterOffsetEndAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.SentenceIndexAnnotation;
@@ -24,9 +33,19 @@ import edu.stanford.nlp.ling.CoreAnnotations.TokenBeginAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.TokenEndAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
 import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.IndexedWord;
 import edu.stanford.nlp.process.CoreLabelTokenFactory;
+import edu.stanford.nlp.semgraph.SemanticGraph;
+import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations.BasicDependenciesAnnotation;
+import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations.CollapsedCCProcessedDependenciesAnnotation;
+import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations.CollapsedDependenciesAnnotation;
+import edu.stanford.nlp.trees.GrammaticalRelation;
+import edu.stanford.nlp.trees.LabeledScoredTreeNode;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeCoreAnnotations.TreeAnnotation;
 import edu.stanford.nlp.util.ArrayCoreMap;
 import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.util.TypesafeMap;
 
 /**
  *
@@ -37,6 +56,18 @@ public class ConcreteToStanfordMapper {
 
   private static final CoreLabelTokenFactory factory = new CoreLabelTokenFactory();
 
+  /**
+   * Tool names of the constituency and dependency parses written by
+   * {@link PreNERCoreMapWrapper}.
+   */
+  public static final String PARSE_TOOL = "Stanford CoreNLP";
+  private static final Map<String, Class<? extends TypesafeMap.Key<SemanticGraph>>> DEP_PARSE_TOOLS = new HashMap<>();
+  static {
+    DEP_PARSE_TOOLS.put("Stanford CoreNLP basic", BasicDependenciesAnnotation.class);
+    DEP_PARSE_TOOLS.put("Stanford CoreNLP col", CollapsedDependenciesAnnotation.class);
+    DEP_PARSE_TOOLS.put("Stanford CoreNLP col-CC", CollapsedCCProcessedDependenciesAnnotation.class);
+  }
+
   /**
    *
    */
@@ -50,36 +81,225 @@ public class ConcreteToStanfordMapper {
     int tokOffset = 0;
     for (int i = 0; i < sentList.size(); i++) {
       Sentence st = sentList.get(i);
-      CoreMap cm = new ArrayCoreMap();
-      cm.set(SentenceIndexAnnotation.class, i);
       final TextSpan sts = st.getTextSpan();
       final int sentCharStart = sts.getStart();
       final int sentCharEnd = sts.getEnding();
-      LOGGER.debug("Setting stanford sentence BeginChar = {}", sentCharStart);
-      cm.set(CharacterOffsetBeginAnnotation.class, sentCharStart);
-      LOGGER.debug("Setting stanford sentence EndChar = {}", sentCharEnd);
-      cm.set(CharacterOffsetEndAnnotation.class, sentCharEnd);
-      String sectText = commText.substring(sentCharStart, sentCharEnd);
-      LOGGER.debug("Setting text: {}", sectText);
-      cm.set(TextAnnotation.class, sectText);
-
       Tokenization tkz = st.getTokenization();
       List<CoreLabel> clList = tokenizationToCoreLabelList(tkz, i, sentCharStart);
-      final int maxIdx = clList.size();
-      LOGGER.debug("Setting stanford sentence token begin: {}", tokOffset);
-      cm.set(TokenBeginAnnotation.class, tokOffset);
-      final int tokEnd = tokOffset + maxIdx;
-      LOGGER.debug("Setting stanford sentence token end: {}", tokEnd);
-      cm.set(TokenEndAnnotation.class, tokEnd);
-      cm.set(TokensAnnotation.class, clList);
-
-      tokOffset = tokEnd;
-      toRet.add(cm);
+      toRet.add(sentenceCoreMap(i, sentCharStart, sentCharEnd, commText, clList, tokOffset));
+      tokOffset += clList.size();
     }
 
     return toRet;
   }
 
+  /**
+   * Build the CoreMaps for the sentences CoreNLP's tokenizer found in a
+   * section, without going through Concrete. The result is the same as
+   * converting the sentences to Concrete and calling
+   * {@link #concreteSectionToCoreMapList(Section, String)} on them: each
+   * token has only its text, sentence-relative character offsets, and
+   * indices, so the later annotators see exactly the same input either way.
+   *
+   * @param sentences the tokenizer's sentences, with offsets relative to the section
+   * @param sectionStart the character offset of the section in the Communication text
+   * @param commText the Communication text
+   * @return the CoreMaps, one per sentence
+   */
+  public static List<CoreMap> tokenizedSectionToCoreMapList(final List<CoreMap> sentences, final int sectionStart,
+      final String commText) {
+    List<CoreMap> toRet = new ArrayList<>(sentences.size());
+    int tokOffset = 0;
+    for (int i = 0; i < sentences.size(); i++) {
+      CoreMap tokenized = sentences.get(i);
+      final int sentCharStart = sectionStart + tokenized.get(CharacterOffsetBeginAnnotation.class);
+      final int sentCharEnd = sectionStart + tokenized.get(CharacterOffsetEndAnnotation.class);
+      List<CoreLabel> clList = new ArrayList<>();
+      for (CoreLabel tok : tokenized.get(TokensAnnotation.class)) {
+        final int begin = tok.get(CharacterOffsetBeginAnnotation.class);
+        final int end = tok.get(CharacterOffsetEndAnnotation.class);
+        clList.add(makeToken(tok.get(TextAnnotation.class), sectionStart + begin - sentCharStart, end - begin,
+            tok.index(), i));
+      }
+      toRet.add(sentenceCoreMap(i, sentCharStart, sentCharEnd, commText, clList, tokOffset));
+      tokOffset += clList.size();
+    }
+
+    return toRet;
+  }
+
+  private static CoreMap sentenceCoreMap(final int i, final int sentCharStart, final int sentCharEnd,
+      final String commText, final List<CoreLabel> clList, final int tokOffset) {
+    CoreMap cm = new ArrayCoreMap();
+    cm.set(SentenceIndexAnnotation.class, i);
+    LOGGER.debug("Setting stanford sentence BeginChar = {}", sentCharStart);
+    cm.set(CharacterOffsetBeginAnnotation.class, sentCharStart);
+    LOGGER.debug("Setting stanford sentence EndChar = {}", sentCharEnd);
+    cm.set(CharacterOffsetEndAnnotation.class, sentCharEnd);
+    String sectText = commText.substring(sentCharStart, sentCharEnd);
+    LOGGER.debug("Setting text: {}", sectText);
+    cm.set(TextAnnotation.class, sectText);
+
+    final int maxIdx = clList.size();
+    LOGGER.debug("Setting stanford sentence token begin: {}", tokOffset);
+    cm.set(TokenBeginAnnotation.class, tokOffset);
+    final int tokEnd = tokOffset + maxIdx;
+    LOGGER.debug("Setting stanford sentence token end: {}", tokEnd);
+    cm.set(TokenEndAnnotation.class, tokEnd);
+    cm.set(TokensAnnotation.class, clList);
+    return cm;
+  }
+
+  /**
+   * @return the constituency parse of the tokenization written by
+   * {@link PreNERCoreMapWrapper}, if there is one
+   */
+  public static Optional<Parse> stanfordParse(final Tokenization tkz) {
+    if (!tkz.isSetParseList())
+      return Optional.empty();
+    return tkz.getParseList().stream()
+        .filter(p -> p.isSetMetadata() && PARSE_TOOL.equals(p.getMetadata().getTool()))
+        .filter(p -> p.getConstituentListSize() > 0)
+        .findFirst();
+  }
+
+  /**
+   * Rebuild a CoreNLP tree from a Concrete constituency parse. The leaves
+   * are labeled with copies of the sentence's tokens, as the parser's own
+   * output is.
+   *
+   * @param p a parse whose constituents are in pre-order, as written by {@link PreNERCoreMapWrapper}
+   * @param tokens the sentence's tokens
+   * @return the tree
+   * @throws AnalyticException if the parse does not cover exactly the tokens
+   */
+  public static Tree concreteParseToTree(final Parse p, final List<CoreLabel> tokens) throws AnalyticException {
+    Map<Integer, Constituent> byId = new HashMap<>();
+    for (Constituent c : p.getConstituentList())
+      byId.put(c.getId(), c);
+    Constituent root = p.getConstituentList().get(0);
+    if (root.getStart() != 0 || root.getEnding() != tokens.size())
+      throw new AnalyticException("parse spans tokens [" + root.getStart() + ", " + root.getEnding()
+          + ") but the sentence has " + tokens.size() + " tokens");
+    return constituentToTree(root, byId, tokens);
+  }
+
+  private static Tree constituentToTree(final Constituent c, final Map<Integer, Constituent> byId,
+      final List<CoreLabel> tokens) throws AnalyticException {
+    if (!c.isSetChildList() || c.getChildListSize() == 0) {
+      if (c.getEnding() - c.getStart() != 1)
+        throw new AnalyticException("leaf constituent " + c.getId() + " does not cover exactly one token");
+      return new LabeledScoredTreeNode(new CoreLabel(tokens.get(c.getStart())));
+    }
+
+    List<Tree> children = new ArrayList<>(c.getChildListSize());
+    for (int id : c.getChildList()) {
+      Constituent child = byId.get(id);
+      if (child == null)
+        throw new AnalyticException("constituent " + c.getId() + " has unknown child " + id);
+      children.add(constituentToTree(child, byId, tokens));
+    }
+    CoreLabel label = new CoreLabel();
+    label.setValue(c.getTag());
+    label.setCategory(c.getTag());
+    return new LabeledScoredTreeNode(label, children);
+  }
+
+  /**
+   * Rebuild a CoreNLP dependency graph from a Concrete dependency parse
+   * written by the English pipeline, whose relations are Universal
+   * Dependencies.
+   *
+   * @see #concreteDependencyParseToSemanticGraph(DependencyParse, List, Language)
+   */
+  public static SemanticGraph concreteDependencyParseToSemanticGraph(final DependencyParse dp,
+      final List<CoreLabel> tokens) {
+    return concreteDependencyParseToSemanticGraph(dp, tokens, Language.UniversalEnglish);
+  }
+
+  /**
+   * Rebuild a CoreNLP dependency graph from a Concrete dependency parse.
+   *
+   * @param dp the dependency parse; a dependency without a governor marks a root
+   * @param tokens the sentence's tokens
+   * @param relations the language of the relations of the parser that wrote
+   * <code>dp</code>, so that they compare equal to the parser's own
+   * @return the graph
+   */
+  public static SemanticGraph concreteDependencyParseToSemanticGraph(final DependencyParse dp,
+      final List<CoreLabel> tokens, final Language relations) {
+    SemanticGraph sg = new SemanticGraph();
+    Map<Integer, IndexedWord> words = new HashMap<>();
+    List<IndexedWord> roots = new ArrayList<>();
+    for (Dependency d : dp.getDependencyList()) {
+      IndexedWord dep = indexedWord(sg, words, tokens, d.getDep());
+      if (!d.isSetGov() || d.getGov() < 0) {
+        roots.add(dep);
+        continue;
+      }
+      IndexedWord gov = indexedWord(sg, words, tokens, d.getGov());
+      GrammaticalRelation rel = GrammaticalRelation.valueOf(relations, d.getEdgeType());
+      sg.addEdge(gov, dep, rel, Double.NEGATIVE_INFINITY, false);
+    }
+    sg.setRoots(roots);
+    return sg;
+  }
+
+  private static IndexedWord indexedWord(SemanticGraph sg, Map<Integer, IndexedWord> words,
+      List<CoreLabel> tokens, int idx) {
+    return words.computeIfAbsent(idx, k -> {
+      IndexedWord w = new IndexedWord(tokens.get(k));
+      sg.addVertex(w);
+      return w;
+    });
+  }
+
+  /**
+   * Set the tree and dependency graphs of a sentence from the Stanford
+   * parses on its tokenization, so that later annotators (e.g. coref) can
+   * use them without re-parsing.
+   *
+   * @param cm a sentence built by {@link #concreteSectionToCoreMapList(Section, String)}
+   * @param tkz the tokenization it was built from
+   * @param relations the language of the dependency relations; see
+   * {@link #concreteDependencyParseToSemanticGraph(DependencyParse, List, Language)}
+   * @return true if a constituency parse was found
+   * @throws AnalyticException if a parse does not match the tokens
+   */
+  public static boolean addParses(final CoreMap cm, final Tokenization tkz, final Language relations)
+      throws AnalyticException {
+    final List<CoreLabel> tokens = cm.get(TokensAnnotation.class);
+    Optional<Parse> p = stanfordParse(tkz);
+    if (p.isPresent())
+      cm.set(TreeAnnotation.class, concreteParseToTree(p.get(), tokens));
+    if (tkz.isSetDependencyParseList())
+      for (DependencyParse dp : tkz.getDependencyParseList()) {
+        if (!dp.isSetMetadata())
+          continue;
+        Class<? extends TypesafeMap.Key<SemanticGraph>> key = DEP_PARSE_TOOLS.get(dp.getMetadata().getTool());
+        if (key != null && !cm.containsKey(key))
+          cm.set(key, concreteDependencyParseToSemanticGraph(dp, tokens, relations));
+      }
+    return p.isPresent();
+  }
+
+  /**
+   * @return true if the tokenization has a dependency parse written by
+   * {@link PreNERCoreMapWrapper} from basic dependencies
+   */
+  public static boolean hasBasicDependencies(final Tokenization tkz) {
+    return tkz.isSetDependencyParseList()
+        && tkz.getDependencyParseList().stream().anyMatch(ConcreteToStanfordMapper::isBasicDependencies);
+  }
+
+  /**
+   * @return true if the dependency parse was written by
+   * {@link PreNERCoreMapWrapper} from basic dependencies
+   */
+  public static boolean isBasicDependencies(final DependencyParse dp) {
+    return dp.isSetMetadata() && DEP_PARSE_TOOLS.get(dp.getMetadata().getTool()) == BasicDependenciesAnnotation.class;
+  }
+
   private static List<CoreLabel> tokenizationToCoreLabelList(final Tokenization tkz, int sentIdx, int offset) {
     List<CoreLabel> clList = new ArrayList<CoreLabel>();
 
@@ -92,14 +312,19 @@ public class ConcreteToStanfordMapper {
 
       final int begin = ts.getStart() - offset;
       final int length = ts.getEnding() - ts.getStart();
-      CoreLabel cl = factory.makeToken(tok.getText(), begin, length);
-      cl.setIndex(idxPlusOne);
-      cl.setSentIndex(sentIdx);
-      // cl.setOriginalText(tok.getText());
-      // cl.set(OriginalTextAnnotation.class, tok.getText());
-      clList.add(cl);
+      clList.add(makeToken(tok.getText(), begin, length, idxPlusOne, sentIdx));
     }
 
     return clList;
   }
+
+  private static CoreLabel makeToken(final String text, final int begin, final int length, final int idx,
+      final int sentIdx) {
+    CoreLabel cl = factory.makeToken(text, begin, length);
+    cl.setIndex(idx);
+    cl.setSentIndex(sentIdx);
+    // cl.setOriginalText(tok.getText());
+    // cl.set(OriginalTextAnnotation.class, tok.getText());
+    return cl;
+  }
 }
@@ -48,22 +48,26 @@ class CorefManager {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CorefManager.class);
 
-  private final TokenizedCommunication tc;
+  private final Communication root;
+  private final List<Tokenization> tkzList;
   private final Annotation annotation;
   private final AnalyticUUIDGenerator gen;
 
   /**
-   *
+   * @param root the Communication to add coreference to; modified in place
+   * @param tkzList its tokenizations, in the same order as the sentences of <code>annotation</code>
+   * @param annotation the annotated document
    */
-  public CorefManager(final TokenizedCommunication tc, final Annotation annotation) {
-    this.tc = tc;
+  public CorefManager(final Communication root, final List<Tokenization> tkzList, final Annotation annotation) {
+    this.root = root;
+    this.tkzList = tkzList;
     this.annotation = annotation;
-    this.gen = new AnalyticUUIDGeneratorFactory(tc.getRoot()).create();
+    this.gen = new AnalyticUUIDGeneratorFactory(root).create();
   }
 
   public TokenizedCommunication addCoreference() throws AnalyticException {
-    List<Tokenization> tkzList = this.tc.getTokenizations();
-    Communication root = this.tc.getRoot();
+    List<Tokenization> tkzList = this.tkzList;
+    Communication root = this.root;
 
     final String commId = root.getId();
 
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.cache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.serialization.CompactCommunicationSerializer;
+import edu.jhu.hlt.concrete.util.ConcreteException;
+
+/**
+ * A size-bounded, on-disk store of annotated Communications, keyed by a
+ * content hash (see {@link CachingAnalytic}).
+ * <br>
+ * <br>
+ * Each entry is one file, named by its key, under a subdirectory named by
+ * the key's first two characters. When the total size of the entries
+ * exceeds the limit, the least recently used entries are deleted. Recency
+ * is kept in the files' modification times, so it survives restarts. The
+ * cache is safe to use from many threads; failures to read or write an
+ * entry are logged and treated as misses.
+ */
+public class AnnotationCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AnnotationCache.class);
+
+  private static final String SUFFIX = ".comm";
+
+  private final Path dir;
+  private final long maxBytes;
+  private final CompactCommunicationSerializer ser = new CompactCommunicationSerializer();
+
+  // access-ordered: the first entry is the least recently used
+  private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes = 0;
+
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+
+  private static class Found {
+    private final String key;
+    private final FileTime modified;
+    private final long size;
+
+    Found(String key, FileTime modified, long size) {
+      this.key = key;
+      this.modified = modified;
+      this.size = size;
+    }
+  }
+
+  /**
+   * Open the cache in <code>dir</code>, creating it if needed, and index
+   * the entries already there.
+   *
+   * @param dir the cache directory
+   * @param maxBytes the maximum total size of the entries
+   * @throws IOException on error reading the directory
+   */
+  public AnnotationCache(Path dir, long maxBytes) throws IOException {
+    if (maxBytes <= 0)
+      throw new IllegalArgumentException("cache size must be positive");
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    Files.createDirectories(dir);
+
+    List<Path> entries;
+    try (Stream<Path> s = Files.walk(dir, 2)) {
+      entries = s.filter(p -> p.getFileName().toString().endsWith(SUFFIX))
+          .filter(Files::isRegularFile)
+          .collect(Collectors.toList());
+    }
+    List<Found> found = new ArrayList<>(entries.size());
+    for (Path p : entries) {
+      final String name = p.getFileName().toString();
+      try {
+        found.add(new Found(name.substring(0, name.length() - SUFFIX.length()),
+            Files.getLastModifiedTime(p), Files.size(p)));
+      } catch (NoSuchFileException e) {
+        // removed by another process
+      }
+    }
+    found.sort(Comparator.comparing(f -> f.modified));
+    synchronized (this) {
+      for (Found f : found) {
+        this.index.put(f.key, f.size);
+        this.totalBytes += f.size;
+      }
+      this.evict();
+    }
+    LOGGER.info("Opened annotation cache at {} with {} entries ({} bytes).", dir.toString(), found.size(), this.totalBytes);
+  }
+
+  private Path pathFor(String key) {
+    return this.dir.resolve(key.substring(0, 2)).resolve(key + SUFFIX);
+  }
+
+  /**
+   * @return the cached Communication for <code>key</code>, if there is one
+   */
+  public Optional<Communication> get(String key) {
+    synchronized (this) {
+      if (this.index.get(key) == null) {
+        this.misses.incrementAndGet();
+        return Optional.empty();
+      }
+    }
+
+    final Path p = this.pathFor(key);
+    try {
+      Communication c = this.ser.fromBytes(Files.readAllBytes(p));
+      Files.setLastModifiedTime(p, FileTime.fromMillis(System.currentTimeMillis()));
+      this.hits.incrementAndGet();
+      return Optional.of(c);
+    } catch (IOException | ConcreteException e) {
+      LOGGER.warn("Dropping unreadable cache entry: " + p.toString(), e);
+      this.remove(key);
+      this.misses.incrementAndGet();
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Store <code>c</code> under <code>key</code>, evicting older entries if
+   * the cache is full. Entries larger than the whole cache are not stored.
+   */
+  public void put(String key, Communication c) {
+    final Path p = this.pathFor(key);
+    try {
+      final byte[] bytes = this.ser.toBytes(c);
+      if (bytes.length > this.maxBytes)
+        return;
+      Files.createDirectories(p.getParent());
+      // write then rename, so readers never see a partial entry
+      Path tmp = Files.createTempFile(p.getParent(), key, ".tmp");
+      try {
+        Files.write(tmp, bytes);
+        Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(tmp);
+      }
+      synchronized (this) {
+        Long prev = this.index.put(key, (long) bytes.length);
+        this.totalBytes += bytes.length - (prev == null ? 0 : prev);
+        this.evict();
+      }
+    } catch (IOException | ConcreteException e) {
+      LOGGER.warn("Failed to write cache entry: " + p.toString(), e);
+    }
+  }
+
+  private synchronized void remove(String key) {
+    Long prev = this.index.remove(key);
+    if (prev != null)
+      this.totalBytes -= prev;
+    try {
+      Files.deleteIfExists(this.pathFor(key));
+    } catch (IOException e) {
+      LOGGER.warn("Failed to delete cache entry: " + key, e);
+    }
+  }
+
+  private synchronized void evict() {
+    Iterator<Map.Entry<String, Long>> it = this.index.entrySet().iterator();
+    while (this.totalBytes > this.maxBytes && it.hasNext()) {
+      Map.Entry<String, Long> e = it.next();
+      it.remove();
+      this.totalBytes -= e.getValue();
+      try {
+        Files.deleteIfExists(this.pathFor(e.getKey()));
+      } catch (IOException ex) {
+        LOGGER.warn("Failed to delete cache entry: " + e.getKey(), ex);
+      }
+    }
+  }
+
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  public long getMisses() {
+    return this.misses.get();
+  }
+
+  public synchronized int size() {
+    return this.index.size();
+  }
+
+  public synchronized long bytes() {
+    return this.totalBytes;
+  }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import edu.jhu.hlt.concrete.AnnotationMetadata;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Constituent;
+import edu.jhu.hlt.concrete.Dependency;
+import edu.jhu.hlt.concrete.DependencyParse;
+import edu.jhu.hlt.concrete.EntityMention;
+import edu.jhu.hlt.concrete.EntityMentionSet;
+import edu.jhu.hlt.concrete.EntitySet;
+import edu.jhu.hlt.concrete.Parse;
+import edu.jhu.hlt.concrete.Section;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.TaggedToken;
+import edu.jhu.hlt.concrete.TextSpan;
+import edu.jhu.hlt.concrete.Token;
+import edu.jhu.hlt.concrete.TokenTagging;
+import edu.jhu.hlt.concrete.Tokenization;
+import edu.jhu.hlt.concrete.analytics.base.Analytic;
+import edu.jhu.hlt.concrete.analytics.base.AnalyticException;
+import edu.jhu.hlt.concrete.miscommunication.MiscommunicationException;
+import edu.jhu.hlt.concrete.miscommunication.tokenized.CachedTokenizationCommunication;
+import edu.jhu.hlt.concrete.miscommunication.tokenized.TokenizedCommunication;
+import edu.jhu.hlt.concrete.stanford.ConcreteStanfordPreCorefAnalytic;
+import edu.jhu.hlt.concrete.uuid.AnalyticUUIDGeneratorFactory;
+
+/**
+ * Wraps a Stanford analytic with an {@link AnnotationCache}, so that a
+ * document whose text has been annotated before, under any ID or UUID, is
+ * not annotated again.
+ * <br>
+ * <br>
+ * The key is a SHA-256 hash of a profile string naming the language,
+ * analytic, and annotators, and of the document's text, section spans,
+ * and any existing sentence spans and tokens, along with the taggings,
+ * parses, dependency parses, and entity mention and entity sets already on
+ * it, which tokenized and incremental runs read or keep. On a hit, the cached
+ * sentences, tokenizations, and any entity sets the analytic added are
+ * attached to a copy of the input. The input's own Communication, Section,
+ * Sentence, and Tokenization UUIDs are kept; every other UUID is replaced
+ * by a fresh one from an {@link AnalyticUUIDGeneratorFactory} generator.
+ * Documents that ran out of time (see
+ * {@link ConcreteStanfordPreCorefAnalytic#TIMEOUT_KEY}) are not cached.
+ */
+public class CachingAnalytic implements Analytic<TokenizedCommunication> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CachingAnalytic.class);
+
+  private final Analytic<? extends TokenizedCommunication> delegate;
+  private final AnnotationCache cache;
+  private final String profile;
+
+  /**
+   * @param delegate the analytic to run on a miss
+   * @param cache the cache, which may be shared between analytics
+   * @param profile names everything besides the document that affects the
+   * output, e.g. the language and annotator list
+   */
+  public CachingAnalytic(Analytic<? extends TokenizedCommunication> delegate, AnnotationCache cache, String profile) {
+    this.delegate = delegate;
+    this.cache = cache;
+    this.profile = profile + "|" + delegate.getToolName() + "|" + delegate.getToolVersion();
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see edu.jhu.hlt.concrete.safe.metadata.SafeAnnotationMetadata#getTimestamp()
+   */
+  @Override
+  public long getTimestamp() {
+    return this.delegate.getTimestamp();
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see edu.jhu.hlt.concrete.metadata.tools.MetadataTool#getToolName()
+   */
+  @Override
+  public String getToolName() {
+    return this.delegate.getToolName();
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see edu.jhu.hlt.concrete.metadata.tools.MetadataTool#getToolVersion()
+   */
+  @Override
+  public String getToolVersion() {
+    return this.delegate.getToolVersion();
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see edu.jhu.hlt.concrete.metadata.tools.MetadataTool#getToolNotes()
+   */
+  @Override
+  public List<String> getToolNotes() {
+    return this.delegate.getToolNotes();
+  }
+
+  private static void putSpan(Hasher h, TextSpan ts) {
+    if (ts == null) {
+      h.putInt(-1);
+    } else {
+      h.putInt(ts.getStart());
+      h.putInt(ts.getEnding());
+    }
+  }
+
+  private static void putString(Hasher h, String s) {
+    if (s == null) {
+      h.putInt(-1);
+    } else {
+      h.putInt(s.length());
+      h.putString(s, StandardCharsets.UTF_8);
+    }
+  }
+
+  private static void putTool(Hasher h, AnnotationMetadata md) {
+    putString(h, md == null ? null : md.getTool());
+  }
+
+  /**
+   * Hash the annotations on a tokenization, by content rather than UUID.
+   */
+  private static void putAnnotations(Hasher h, Tokenization t) {
+    if (t.isSetTokenTaggingList())
+      for (TokenTagging tt : t.getTokenTaggingList()) {
+        h.putChar('t');
+        putString(h, tt.getTaggingType());
+        putTool(h, tt.getMetadata());
+        if (tt.isSetTaggedTokenList())
+          for (TaggedToken tok : tt.getTaggedTokenList()) {
+            h.putInt(tok.getTokenIndex());
+            putString(h, tok.getTag());
+          }
+      }
+    if (t.isSetParseList())
+      for (Parse p : t.getParseList()) {
+        h.putChar('p');
+        putTool(h, p.getMetadata());
+        if (p.isSetConstituentList())
+          for (Constituent cs : p.getConstituentList()) {
+            h.putInt(cs.getId());
+            putString(h, cs.getTag());
+            h.putInt(cs.isSetHeadChildIndex() ? cs.getHeadChildIndex() : -1);
+            h.putInt(cs.isSetStart() ? cs.getStart() : -1);
+            h.putInt(cs.isSetEnding() ? cs.getEnding() : -1);
+            if (cs.isSetChildList())
+              for (int child : cs.getChildList())
+                h.putInt(child);
+            h.putChar(';');
+          }
+      }
+    if (t.isSetDependencyParseList())
+      for (DependencyParse dp : t.getDependencyParseList()) {
+        h.putChar('d');
+        putTool(h, dp.getMetadata());
+        if (dp.isSetDependencyList())
+          for (Dependency d : dp.getDependencyList()) {
+            h.putInt(d.isSetGov() ? d.getGov() : -1);
+            h.putInt(d.getDep());
+            putString(h, d.getEdgeType());
+          }
+      }
+  }
+
+  /**
+   * Hash the document's entity mention and entity sets, by content rather
+   * than UUID.
+   */
+  private static void putEntities(Hasher h, Communication c) {
+    if (c.isSetEntityMentionSetList())
+      for (EntityMentionSet ems : c.getEntityMentionSetList()) {
+        h.putChar('m');
+        putTool(h, ems.getMetadata());
+        if (ems.isSetMentionList())
+          for (EntityMention em : ems.getMentionList()) {
+            putString(h, em.getText());
+            putString(h, em.getEntityType());
+            if (em.isSetTokens() && em.getTokens().isSetTokenIndexList())
+              for (int i : em.getTokens().getTokenIndexList())
+                h.putInt(i);
+            h.putChar(';');
+          }
+      }
+    if (c.isSetEntitySetList())
+      for (EntitySet es : c.getEntitySetList()) {
+        h.putChar('e');
+        putTool(h, es.getMetadata());
+        h.putInt(es.getEntityListSize());
+      }
+  }
+
+  /**
+   * @return the cache key of <code>c</code> under <code>profile</code>
+   */
+  static String key(String profile, Communication c) {
+    Hasher h = Hashing.sha256().newHasher();
+    putString(h, profile);
+    putString(h, c.getText());
+    if (c.isSetSectionList())
+      for (Section s : c.getSectionList()) {
+        h.putChar('S');
+        putSpan(h, s.getTextSpan());
+        if (s.isSetSentenceList())
+          for (Sentence st : s.getSentenceList()) {
+            h.putChar('s');
+            putSpan(h, st.getTextSpan());
+            Tokenization t = st.getTokenization();
+            if (t != null && t.isSetTokenList()) {
+              for (Token tok : t.getTokenList().getTokenList()) {
+                putString(h, tok.getText());
+                putSpan(h, tok.getTextSpan());
+              }
+              putAnnotations(h, t);
+            }
+          }
+      }
+    putEntities(h, c);
+    return h.hash().toString();
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see edu.jhu.hlt.concrete.analytics.base.Analytic#annotate(edu.jhu.hlt.concrete.Communication)
+   */
+  @Override
+  public TokenizedCommunication annotate(Communication c) throws AnalyticException {
+    if (!c.isSetText())
+      return this.delegate.annotate(c);
+    final String key = key(this.profile, c);
+    Optional<Communication> restored = this.cache.get(key).flatMap(e -> restore(c, e));
+    if (restored.isPresent()) {
+      LOGGER.debug("Cache hit for communication: {}", c.getId());
+      try {
+        return new CachedTokenizationCommunication(restored.get());
+      } catch (MiscommunicationException e) {
+        throw new AnalyticException(e);
+      }
+    }
+
+    // counted first, as the delegate may annotate the input in place
+    final int nEms = c.getEntityMentionSetListSize();
+    final int nEs = c.getEntitySetListSize();
+    TokenizedCommunication out = this.delegate.annotate(c);
+    Communication root = out.getRoot();
+    if (root.isSetKeyValueMap() && root.getKeyValueMap().containsKey(ConcreteStanfordPreCorefAnalytic.TIMEOUT_KEY))
+      return out;
+    this.cache.put(key, toEntry(nEms, nEs, root));
+    return out;
+  }
+
+  /**
+   * @param nEms the number of entity mention sets on the input
+   * @param nEs the number of entity sets on the input
+   * @return the parts of <code>output</code> that the analytic produced
+   */
+  private static Communication toEntry(int nEms, int nEs, Communication output) {
+    Communication e = new Communication();
+    e.setId(output.getId());
+    e.setUuid(output.getUuid());
+    e.setType(output.getType());
+    e.setMetadata(output.getMetadata());
+    e.setSectionList(output.getSectionList());
+    // coref appends its sets to any already present
+    if (output.getEntityMentionSetListSize() > nEms)
+      e.setEntityMentionSetList(new ArrayList<>(output.getEntityMentionSetList().subList(nEms, output.getEntityMentionSetListSize())));
+    if (output.getEntitySetListSize() > nEs)
+      e.setEntitySetList(new ArrayList<>(output.getEntitySetList().subList(nEs, output.getEntitySetListSize())));
+    return e;
+  }
+
+  /**
+   * Attach a cached entry's annotations to a copy of <code>input</code>.
+   *
+   * @return the annotated copy, or empty if the entry does not line up with
+   * the input's sections
+   */
+  static Optional<Communication> restore(Communication input, Communication entry) {
+    Communication result = new Communication(input);
+    UUIDRemapper r = new UUIDRemapper(new AnalyticUUIDGeneratorFactory(result).create());
+    r.bind(entry.getUuid(), result.getUuid());
+
+    // the analytic may drop sections, so the entry's sections are matched
+    // in order against the input's
+    final List<Section> inSections = result.isSetSectionList() ? result.getSectionList() : new ArrayList<>();
+    List<Section> matched = new ArrayList<>();
+    int from = 0;
+    for (Section cs : entry.getSectionList()) {
+      Section match = null;
+      while (match == null && from < inSections.size()) {
+        Section s = inSections.get(from++);
+        if (Objects.equals(s.getTextSpan(), cs.getTextSpan()))
+          match = s;
+      }
+      if (match == null)
+        return Optional.empty();
+      r.bind(cs.getUuid(), match.getUuid());
+      bindSentences(r, cs, match);
+      matched.add(match);
+    }
+
+    for (int i = 0; i < matched.size(); i++) {
+      Section cs = entry.getSectionList().get(i);
+      List<Sentence> sentences = new ArrayList<>();
+      if (cs.isSetSentenceList())
+        for (Sentence st : cs.getSentenceList())
+          sentences.add(r.remap(st));
+      matched.get(i).setSentenceList(sentences);
+    }
+    result.setSectionList(matched);
+
+    if (entry.isSetEntityMentionSetList())
+      for (EntityMentionSet ems : entry.getEntityMentionSetList())
+        result.addToEntityMentionSetList(r.remap(ems));
+    if (entry.isSetEntitySetList())
+      for (EntitySet es : entry.getEntitySetList())
+        result.addToEntitySetList(r.remap(es));
+    return Optional.of(result);
+  }
+
+  /**
+   * Keep the input's sentence and tokenization UUIDs where the entry's
+   * sentences line up with them.
+   */
+  private static void bindSentences(UUIDRemapper r, Section cached, Section input) {
+    if (!cached.isSetSentenceList() || !input.isSetSentenceList()
+        || cached.getSentenceListSize() != input.getSentenceListSize())
+      return;
+    for (int i = 0; i < cached.getSentenceListSize(); i++) {
+      Sentence cs = cached.getSentenceList().get(i);
+      Sentence is = input.getSentenceList().get(i);
+      if (!Objects.equals(cs.getTextSpan(), is.getTextSpan()))
+        continue;
+      r.bind(cs.getUuid(), is.getUuid());
+      if (cs.isSetTokenization() && is.isSetTokenization())
+        r.bind(cs.getTokenization().getUuid(), is.getTokenization().getUuid());
+    }
+  }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import edu.stanford.nlp.ling.CoreAnnotations.LemmaAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.NamedEntityTagAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.PartOfSpeechAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.IndexedWord;
+import edu.stanford.nlp.semgraph.SemanticGraph;
+import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations.BasicDependenciesAnnotation;
+import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations.CollapsedCCProcessedDependenciesAnnotation;
+import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations.CollapsedDependenciesAnnotation;
+import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations.EnhancedDependenciesAnnotation;
+import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations.EnhancedPlusPlusDependenciesAnnotation;
+import edu.stanford.nlp.semgraph.SemanticGraphEdge;
+import edu.stanford.nlp.trees.GrammaticalRelation;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeCoreAnnotations.TreeAnnotation;
+import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.util.TypesafeMap;
+
+/**
+ * A bounded, in-memory memo of the sentence-level annotator output for
+ * sentences seen before, keyed on the annotator list and the sentence's
+ * words.
+ * <br>
+ * <br>
+ * Boilerplate such as datelines, bylines, and legal footers repeats many
+ * times across a corpus. {@link #splice(String, CoreMap)} copies the
+ * remembered POS, lemma, and NER tags, parse tree, and dependency graphs onto
+ * a new sentence, so the sentence-level annotators (see
+ * {@link #isSentenceLocal(String)}) can skip it. Document-level annotators
+ * such as coref still see every sentence. Entries are evicted least
+ * recently used first; hit and miss counts are kept for tuning. The memo is
+ * safe to share between threads.
+ */
+public class SentenceMemo {
+
+  /**
+   * Annotators whose output for a sentence depends only on that sentence.
+   */
+  private static final ImmutableSet<String> SENTENCE_ANNOTATORS =
+      ImmutableSet.of("pos", "lemma", "ner", "parse", "depparse");
+
+  private static final ImmutableList<Class<? extends TypesafeMap.Key<SemanticGraph>>> GRAPH_KEYS =
+      ImmutableList.of(BasicDependenciesAnnotation.class, CollapsedDependenciesAnnotation.class,
+          CollapsedCCProcessedDependenciesAnnotation.class, EnhancedDependenciesAnnotation.class,
+          EnhancedPlusPlusDependenciesAnnotation.class);
+
+  private final String profile;
+  private final Cache<String, Entry> cache;
+
+  /**
+   * A dependency graph, by token index, independent of any sentence's tokens.
+   */
+  private static class Graph {
+    private final int[] roots;
+    private final int[] govs;
+    private final int[] deps;
+    private final GrammaticalRelation[] relations;
+    private final double[] weights;
+    private final boolean[] extras;
+
+    Graph(SemanticGraph sg) {
+      List<IndexedWord> r = new ArrayList<>(sg.getRoots());
+      this.roots = new int[r.size()];
+      for (int i = 0; i < this.roots.length; i++)
+        this.roots[i] = r.get(i).index();
+      List<SemanticGraphEdge> edges = sg.edgeListSorted();
+      final int n = edges.size();
+      this.govs = new int[n];
+      this.deps = new int[n];
+      this.relations = new GrammaticalRelation[n];
+      this.weights = new double[n];
+      this.extras = new boolean[n];
+      for (int i = 0; i < n; i++) {
+        SemanticGraphEdge e = edges.get(i);
+        this.govs[i] = e.getSource().index();
+        this.deps[i] = e.getTarget().index();
+        this.relations[i] = e.getRelation();
+        this.weights[i] = e.getWeight();
+        this.extras[i] = e.isExtra();
+      }
+    }
+
+    SemanticGraph toSemanticGraph(List<CoreLabel> tokens) {
+      Map<Integer, IndexedWord> words = new HashMap<>();
+      SemanticGraph sg = new SemanticGraph();
+      for (int i = 0; i < this.govs.length; i++)
+        sg.addEdge(word(sg, words, tokens, this.govs[i]), word(sg, words, tokens, this.deps[i]),
+            this.relations[i], this.weights[i], this.extras[i]);
+      List<IndexedWord> r = new ArrayList<>(this.roots.length);
+      for (int idx : this.roots)
+        r.add(word(sg, words, tokens, idx));
+      sg.setRoots(r);
+      return sg;
+    }
+
+    private static IndexedWord word(SemanticGraph sg, Map<Integer, IndexedWord> words, List<CoreLabel> tokens, int idx) {
+      return words.computeIfAbsent(idx, k -> {
+        IndexedWord w = new IndexedWord(tokens.get(k - 1));
+        sg.addVertex(w);
+        return w;
+      });
+    }
+
+    static boolean isStorable(SemanticGraph sg) {
+      // copy nodes have no token of their own
+      for (IndexedWord w : sg.vertexSet())
+        if (w.copyCount() != 0)
+          return false;
+      return true;
+    }
+  }
+
+  /**
+   * The remembered output for one sentence.
+   */
+  private static class Entry {
+    private final String[] pos;
+    private final String[] lemma;
+    private final String[] ner;
+    private final Tree tree;
+    private final Map<Class<? extends TypesafeMap.Key<SemanticGraph>>, Graph> graphs = new HashMap<>();
+
+    Entry(List<CoreLabel> tokens, Tree tree) {
+      final int n = tokens.size();
+      this.pos = new String[n];
+      this.lemma = new String[n];
+      this.ner = new String[n];
+      for (int i = 0; i < n; i++) {
+        CoreLabel cl = tokens.get(i);
+        this.pos[i] = cl.get(PartOfSpeechAnnotation.class);
+        this.lemma[i] = cl.get(LemmaAnnotation.class);
+        this.ner[i] = cl.get(NamedEntityTagAnnotation.class);
+      }
+      this.tree = tree == null ? null : tree.deepCopy();
+    }
+  }
+
+  /**
+   * @param profile names everything besides the annotators and words that
+   * affects annotator output, e.g. the language
+   * @param maxSentences the maximum number of sentences to remember
+   */
+  public SentenceMemo(String profile, long maxSentences) {
+    if (maxSentences < 1)
+      throw new IllegalArgumentException("memo must hold at least one sentence");
+    this.profile = profile;
+    this.cache = CacheBuilder.newBuilder().maximumSize(maxSentences).recordStats().build();
+  }
+
+  /**
+   * @return true if <code>annotator</code> only looks at one sentence at a time
+   */
+  public static boolean isSentenceLocal(String annotator) {
+    return SENTENCE_ANNOTATORS.contains(annotator);
+  }
+
+  private String key(String annotators, List<CoreLabel> tokens) {
+    StringBuilder sb = new StringBuilder(this.profile).append('\u0001').append(annotators);
+    for (CoreLabel cl : tokens)
+      sb.append('\u0000').append(cl.word());
+    return sb.toString();
+  }
+
+  /**
+   * If the sentence has been seen before, copy the remembered annotations
+   * onto it.
+   *
+   * @param annotators the sentence-level annotators that will be skipped
+   * @param sentence the sentence to annotate
+   * @return true on a hit
+   */
+  public boolean splice(String annotators, CoreMap sentence) {
+    final List<CoreLabel> tokens = sentence.get(TokensAnnotation.class);
+    if (tokens == null || tokens.isEmpty())
+      return false;
+    final Entry e = this.cache.getIfPresent(this.key(annotators, tokens));
+    if (e == null)
+      return false;
+
+    for (int i = 0; i < tokens.size(); i++) {
+      CoreLabel cl = tokens.get(i);
+      if (e.pos[i] != null)
+        cl.set(PartOfSpeechAnnotation.class, e.pos[i]);
+      if (e.lemma[i] != null)
+        cl.set(LemmaAnnotation.class, e.lemma[i]);
+      if (e.ner[i] != null)
+        cl.set(NamedEntityTagAnnotation.class, e.ner[i]);
+    }
+    if (e.tree != null) {
+      Tree t = e.tree.deepCopy();
+      List<Tree> leaves = t.getLeaves();
+      for (int i = 0; i < leaves.size(); i++)
+        leaves.get(i).setLabel(new CoreLabel(tokens.get(i)));
+      sentence.set(TreeAnnotation.class, t);
+    }
+    e.graphs.forEach((k, g) -> sentence.set(k, g.toSemanticGraph(tokens)));
+    return true;
+  }
+
+  /**
+   * Remember a sentence's annotations. Sentences that an annotator gave up
+   * on (a flat <code>X</code> tree, or <code>XX</code> tags) are not kept.
+   *
+   * @param annotators the sentence-level annotators that were run
+   * @param sentence the annotated sentence
+   */
+  public void store(String annotators, CoreMap sentence) {
+    final List<CoreLabel> tokens = sentence.get(TokensAnnotation.class);
+    if (tokens == null || tokens.isEmpty())
+      return;
+    final Tree tree = sentence.get(TreeAnnotation.class);
+    if (tree != null && ("X".equals(tree.value()) || tree.getLeaves().size() != tokens.size()))
+      return;
+    for (CoreLabel cl : tokens)
+      if ("XX".equals(cl.get(PartOfSpeechAnnotation.class)))
+        return;
+
+    Entry e = new Entry(tokens, tree);
+    for (Class<? extends TypesafeMap.Key<SemanticGraph>> k : GRAPH_KEYS) {
+      SemanticGraph sg = sentence.get(k);
+      if (sg == null)
+        continue;
+      if (!Graph.isStorable(sg))
+        return;
+      e.graphs.put(k, new Graph(sg));
+    }
+    this.cache.put(this.key(annotators, tokens), e);
+  }
+
+  public long getHits() {
+    return this.cache.stats().hitCount();
+  }
+
+  public long getMisses() {
+    return this.cache.stats().missCount();
+  }
+
+  public long size() {
+    return this.cache.size();
+  }
+
+  public CacheStats stats() {
+    return this.cache.stats();
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.cache;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TFieldIdEnum;
+import org.apache.thrift.meta_data.FieldMetaData;
+
+import edu.jhu.hlt.concrete.UUID;
+import edu.jhu.hlt.concrete.uuid.AnalyticUUIDGeneratorFactory.AnalyticUUIDGenerator;
+
+/**
+ * Replaces every {@link UUID} in a Thrift structure, consistently, so that
+ * references between annotations (e.g. a mention's tokenization ID) still
+ * line up afterwards.
+ * <br>
+ * <br>
+ * UUIDs that were bound with {@link #bind(UUID, UUID)} are replaced by their
+ * binding; every other UUID is replaced by a fresh one from the generator.
+ */
+public class UUIDRemapper {
+
+  private final AnalyticUUIDGenerator gen;
+  private final Map<String, UUID> mapping = new HashMap<>();
+
+  /**
+   * @param gen generates the new UUIDs
+   */
+  public UUIDRemapper(AnalyticUUIDGenerator gen) {
+    this.gen = gen;
+  }
+
+  /**
+   * Replace <code>from</code> with <code>to</code> rather than a fresh UUID.
+   */
+  public void bind(UUID from, UUID to) {
+    this.mapping.put(from.getUuidString(), to);
+  }
+
+  /**
+   * @return the replacement for <code>u</code>
+   */
+  public UUID map(UUID u) {
+    return new UUID(this.mapping.computeIfAbsent(u.getUuidString(), k -> this.gen.next()));
+  }
+
+  /**
+   * Replace, in place, every UUID reachable from <code>obj</code>.
+   *
+   * @return <code>obj</code>
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public <T extends TBase> T remap(T obj) {
+    Map<? extends TFieldIdEnum, FieldMetaData> md = FieldMetaData.getStructMetaDataMap(obj.getClass());
+    for (TFieldIdEnum f : md.keySet()) {
+      if (!obj.isSet(f))
+        continue;
+      final Object v = obj.getFieldValue(f);
+      final Object nv = this.remapValue(v);
+      if (nv != v)
+        obj.setFieldValue(f, nv);
+    }
+    return obj;
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private Object remapValue(Object v) {
+    if (v instanceof UUID)
+      return this.map((UUID) v);
+    if (v instanceof TBase)
+      return this.remap((TBase) v);
+    if (v instanceof List) {
+      ListIterator it = ((List) v).listIterator();
+      while (it.hasNext())
+        it.set(this.remapValue(it.next()));
+      return v;
+    }
+    if (v instanceof Set) {
+      Set s = new LinkedHashSet();
+      for (Object o : (Set) v)
+        s.add(this.remapValue(o));
+      return s;
+    }
+    if (v instanceof Map) {
+      Map m = new LinkedHashMap();
+      for (Object o : ((Map) v).entrySet()) {
+        Map.Entry e = (Map.Entry) o;
+        m.put(this.remapValue(e.getKey()), this.remapValue(e.getValue()));
+      }
+      return m;
+    }
+    return v;
+  }
+}
@@ -0,0 +1,9 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+
+/**
+ * Caches of annotation results, so repeated text is not annotated twice.
+ */
+package edu.jhu.hlt.concrete.stanford.cache;
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A FIFO hand-off queue between one producer and one consumer whose
+ * capacity is measured in bytes rather than elements.
+ * <br>
+ * <br>
+ * An element larger than the whole budget is still accepted when the queue
+ * is empty, so a single huge document cannot deadlock the pipeline.
+ * <br>
+ * <br>
+ * The producer calls {@link #finish()} after its last element, after which
+ * {@link #take()} returns <code>null</code> once drained. A consumer that
+ * gives up calls {@link #cancel()}, which makes any further
+ * {@link #put(Object, long)} return <code>false</code>.
+ *
+ * @param <T> the element type
+ */
+public class ByteBoundedBlockingQueue<T> {
+
+  private final long capacityBytes;
+
+  private final Deque<T> items = new ArrayDeque<>();
+  private final Deque<Long> sizes = new ArrayDeque<>();
+  private long bytes = 0;
+  private boolean finished = false;
+  private boolean cancelled = false;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notFull = this.lock.newCondition();
+  private final Condition notEmpty = this.lock.newCondition();
+
+  /**
+   * @param capacityBytes the byte budget; must be positive
+   */
+  public ByteBoundedBlockingQueue(long capacityBytes) {
+    if (capacityBytes <= 0)
+      throw new IllegalArgumentException("capacity must be positive: " + capacityBytes);
+    this.capacityBytes = capacityBytes;
+  }
+
+  /**
+   * Add an element, blocking while it would push the queue over its budget.
+   *
+   * @param item the element
+   * @param size the element's weight in bytes
+   * @return <code>false</code> if the consumer cancelled the queue and the element was dropped
+   * @throws InterruptedException if interrupted while waiting for space
+   */
+  public boolean put(T item, long size) throws InterruptedException {
+    this.lock.lockInterruptibly();
+    try {
+      if (this.finished)
+        throw new IllegalStateException("put() called after finish()");
+      while (!this.cancelled && !this.items.isEmpty() && this.bytes + size > this.capacityBytes)
+        this.notFull.await();
+      if (this.cancelled)
+        return false;
+      this.items.addLast(item);
+      this.sizes.addLast(size);
+      this.bytes += size;
+      this.notEmpty.signal();
+      return true;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * @return the next element, or <code>null</code> once the producer has
+   * finished (or the queue was cancelled) and nothing is left
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public T take() throws InterruptedException {
+    this.lock.lockInterruptibly();
+    try {
+      while (this.items.isEmpty() && !this.finished && !this.cancelled)
+        this.notEmpty.await();
+      if (this.items.isEmpty())
+        return null;
+      this.bytes -= this.sizes.removeFirst();
+      this.notFull.signal();
+      return this.items.removeFirst();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Signal that no more elements will be added.
+   */
+  public void finish() {
+    this.lock.lock();
+    try {
+      this.finished = true;
+      this.notEmpty.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Drop all queued elements and release a blocked producer.
+   */
+  public void cancel() {
+    this.lock.lock();
+    try {
+      this.cancelled = true;
+      this.items.clear();
+      this.sizes.clear();
+      this.bytes = 0;
+      this.notFull.signalAll();
+      this.notEmpty.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of bytes currently queued
+   */
+  public long bytes() {
+    this.lock.lock();
+    try {
+      return this.bytes;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of elements currently queued
+   */
+  public int size() {
+    this.lock.lock();
+    try {
+      return this.items.size();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.io;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Expands input arguments that may name files, directories, or glob
+ * patterns into a list of input files.
+ */
+public class InputFiles {
+
+  public static final String[] ARCHIVE_EXTENSIONS = new String[] { ".tar.gz", ".tgz", ".tar" };
+  public static final String[] COMMUNICATION_EXTENSIONS = new String[] { ".comm", ".concrete" };
+  public static final String[] ALL_EXTENSIONS = new String[] { ".tar.gz", ".tgz", ".tar", ".comm", ".concrete" };
+
+  /**
+   * An input file and its path relative to the directory or glob it was
+   * found under, which is used to name its output.
+   */
+  public static class Input {
+    private final Path path;
+    private final Path relative;
+
+    Input(Path path, Path relative) {
+      this.path = path;
+      this.relative = relative;
+    }
+
+    public Path getPath() {
+      return this.path;
+    }
+
+    public Path getRelativePath() {
+      return this.relative;
+    }
+
+    public boolean isArchive() {
+      return hasExtension(this.path, ARCHIVE_EXTENSIONS);
+    }
+
+    public boolean isTar() {
+      return hasExtension(this.path, ".tar");
+    }
+  }
+
+  private InputFiles() {
+  }
+
+  /**
+   * @return true if the file name ends with one of the extensions, ignoring case
+   */
+  public static boolean hasExtension(Path p, String... extensions) {
+    final String name = p.getFileName().toString().toLowerCase();
+    for (String e : extensions)
+      if (name.endsWith(e))
+        return true;
+    return false;
+  }
+
+  private static boolean isGlob(String spec) {
+    return spec.indexOf('*') >= 0 || spec.indexOf('?') >= 0
+        || spec.indexOf('[') >= 0 || spec.indexOf('{') >= 0;
+  }
+
+  /**
+   * Expand each argument in turn. A file is taken as-is; a directory
+   * contributes every file beneath it with one of the given extensions; a
+   * glob (e.g. <code>/data/gigaword/*&#47;*.tar.gz</code>) contributes every
+   * matching file with one of the given extensions. Files found under a
+   * directory or glob are sorted by path. A file named more than once is
+   * kept only at its first position.
+   *
+   * @param specs the input arguments
+   * @param extensions the file extensions to accept from directories and globs
+   * @return the input files
+   * @throws IOException if an argument matches nothing, or on error walking a directory
+   */
+  public static List<Input> expand(List<String> specs, String... extensions) throws IOException {
+    Map<Path, Input> inputs = new LinkedHashMap<>();
+    for (String spec : specs) {
+      List<Input> found = new ArrayList<>();
+      if (isGlob(spec)) {
+        final Path base = globBase(spec);
+        final PathMatcher pm = FileSystems.getDefault().getPathMatcher("glob:" + spec);
+        for (Path p : walk(base, extensions))
+          if (pm.matches(p))
+            found.add(new Input(p, base.relativize(p)));
+      } else {
+        final Path p = Paths.get(spec);
+        if (Files.isDirectory(p))
+          for (Path f : walk(p, extensions))
+            found.add(new Input(f, p.relativize(f)));
+        else if (Files.exists(p))
+          found.add(new Input(p, p.getFileName()));
+      }
+
+      if (found.isEmpty())
+        throw new IOException("No input files at: " + spec);
+      for (Input i : found)
+        inputs.putIfAbsent(i.path.toAbsolutePath().normalize(), i);
+    }
+    return new ArrayList<>(inputs.values());
+  }
+
+  /**
+   * @return the leading directories of a glob that contain no glob characters
+   */
+  private static Path globBase(String spec) {
+    Path p = Paths.get(spec);
+    Path base = p.isAbsolute() ? p.getRoot() : Paths.get("");
+    for (Path part : p) {
+      if (isGlob(part.toString()))
+        break;
+      base = base.resolve(part);
+    }
+    // the last component without glob characters may be a file name
+    return Files.isDirectory(base) ? base : (base.getParent() == null ? Paths.get("") : base.getParent());
+  }
+
+  private static List<Path> walk(Path dir, String... extensions) throws IOException {
+    try (Stream<Path> s = Files.walk(dir)) {
+      return s.filter(Files::isRegularFile)
+          .filter(p -> hasExtension(p, extensions))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+}
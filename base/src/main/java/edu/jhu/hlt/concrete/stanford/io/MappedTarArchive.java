@@ -0,0 +1,333 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.util.ConcreteException;
+import edu.jhu.hlt.utilt.AutoCloseableIterator;
+
+/**
+ * Iterates over the regular file entries of an uncompressed tar archive
+ * by memory-mapping it and parsing the headers in place.
+ * <br>
+ * <br>
+ * Each entry is returned as a read-only {@link ByteBuffer} slice of the
+ * mapping; no entry bytes are copied onto the heap. Pass the slices to
+ * {@link #readCommunication(ByteBuffer)} to deserialize them. The archive
+ * is mapped in windows, so files larger than 2GB are supported, but a
+ * single entry must fit in one window.
+ * <br>
+ * <br>
+ * Slices stay valid after {@link #close()}; the mappings are released when
+ * the slices are garbage collected.
+ */
+public class MappedTarArchive implements AutoCloseableIterator<ByteBuffer> {
+
+  public static final long DEFAULT_WINDOW_SIZE = 512L * 1024 * 1024;
+
+  private static final int BLOCK = 512;
+
+  private final FileChannel channel;
+  private final long fileSize;
+  private final long windowSize;
+
+  private MappedByteBuffer window;
+  private long windowStart = 0;
+
+  // file offset of the next header
+  private long pos = 0;
+  private ByteBuffer next = null;
+  private boolean done = false;
+
+  /**
+   * @param path the path to a <code>.tar</code> archive
+   * @param windowSize the preferred size, in bytes, of each mapping
+   * @throws IOException on error opening the file
+   */
+  public MappedTarArchive(Path path, long windowSize) throws IOException {
+    if (windowSize < BLOCK || windowSize > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("window size must be between " + BLOCK + " and " + Integer.MAX_VALUE);
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    this.fileSize = this.channel.size();
+    this.windowSize = windowSize;
+  }
+
+  public MappedTarArchive(Path path) throws IOException {
+    this(path, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * Map an entire file, e.g. a single <code>.comm</code>.
+   *
+   * @param path the file to map
+   * @return a read-only mapping of the file
+   * @throws IOException on error, or if the file is 2GB or larger
+   */
+  public static ByteBuffer mapFile(Path path) throws IOException {
+    try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+      final long size = ch.size();
+      if (size > Integer.MAX_VALUE)
+        throw new IOException("File too large to map: " + path.toString());
+      return ch.map(MapMode.READ_ONLY, 0, size);
+    }
+  }
+
+  /**
+   * Deserialize a {@link Communication} directly from a buffer, without
+   * first copying it into a byte array. A heap buffer is read in place; a
+   * direct or mapped buffer is read through a small reusable chunk.
+   *
+   * @param buf a buffer holding exactly one compact-serialized Communication;
+   * its position is not modified
+   * @return the deserialized {@link Communication}
+   * @throws ConcreteException if the bytes cannot be deserialized
+   */
+  public static Communication readCommunication(ByteBuffer buf) throws ConcreteException {
+    Communication c = new Communication();
+    try {
+      c.read(new TCompactProtocol(new ByteBufferTransport(buf)));
+      return c;
+    } catch (TException e) {
+      throw new ConcreteException("Error deserializing communication.", e);
+    }
+  }
+
+  private void ensureMapped(long start, long len) throws IOException {
+    if (this.window != null && start >= this.windowStart
+        && start + len <= this.windowStart + this.window.capacity())
+      return;
+    final long mapLen = Math.max(len, Math.min(this.windowSize, this.fileSize - start));
+    if (mapLen > Integer.MAX_VALUE)
+      throw new IOException("Tar entry at offset " + start + " is too large to map.");
+    this.window = this.channel.map(MapMode.READ_ONLY, start, mapLen);
+    this.windowStart = start;
+  }
+
+  private int offset(long filePos) {
+    return (int) (filePos - this.windowStart);
+  }
+
+  private boolean isZeroBlock(int off) {
+    for (int i = 0; i < BLOCK; i++)
+      if (this.window.get(off + i) != 0)
+        return false;
+    return true;
+  }
+
+  private long parseOctal(int off, int len) throws IOException {
+    long v = 0;
+    int i = 0;
+    while (i < len && (this.window.get(off + i) == ' ' || this.window.get(off + i) == 0))
+      i++;
+    for (; i < len; i++) {
+      byte b = this.window.get(off + i);
+      if (b == ' ' || b == 0)
+        break;
+      if (b < '0' || b > '7')
+        throw new IOException("Invalid octal field in tar header at offset " + (this.windowStart + off));
+      v = (v << 3) + (b - '0');
+    }
+    return v;
+  }
+
+  private long parseSize(int off) throws IOException {
+    // GNU base-256 encoding for sizes that do not fit in 11 octal digits
+    if ((this.window.get(off) & 0x80) != 0) {
+      long v = this.window.get(off) & 0x7f;
+      for (int i = 1; i < 12; i++)
+        v = (v << 8) | (this.window.get(off + i) & 0xff);
+      return v;
+    }
+    return this.parseOctal(off, 12);
+  }
+
+  private void verifyChecksum(int off) throws IOException {
+    long sum = 0;
+    for (int i = 0; i < BLOCK; i++)
+      // the checksum field itself is summed as spaces
+      sum += (i >= 148 && i < 156) ? ' ' : (this.window.get(off + i) & 0xff);
+    if (sum != this.parseOctal(off + 148, 8))
+      throw new IOException("Invalid tar header checksum at offset " + (this.windowStart + off));
+  }
+
+  private void advance() throws IOException {
+    while (this.next == null && !this.done) {
+      if (this.pos + BLOCK > this.fileSize) {
+        this.done = true;
+        return;
+      }
+
+      this.ensureMapped(this.pos, BLOCK);
+      final int h = this.offset(this.pos);
+      if (this.isZeroBlock(h)) {
+        this.done = true;
+        return;
+      }
+      this.verifyChecksum(h);
+
+      final long size = this.parseSize(h + 124);
+      final byte type = this.window.get(h + 156);
+      final long dataStart = this.pos + BLOCK;
+      if (dataStart + size > this.fileSize)
+        throw new IOException("Truncated tar entry at offset " + this.pos);
+
+      // regular files only; skip directories, links, and GNU/pax metadata entries
+      if (type == '0' || type == 0 || type == '7') {
+        this.ensureMapped(this.pos, BLOCK + size);
+        ByteBuffer dup = this.window.duplicate();
+        dup.position(this.offset(dataStart));
+        dup.limit(this.offset(dataStart) + (int) size);
+        this.next = dup.slice().asReadOnlyBuffer();
+      }
+
+      this.pos = dataStart + ((size + BLOCK - 1) / BLOCK) * BLOCK;
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.util.Iterator#hasNext()
+   */
+  @Override
+  public boolean hasNext() {
+    try {
+      this.advance();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return this.next != null;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.util.Iterator#next()
+   */
+  @Override
+  public ByteBuffer next() {
+    if (!this.hasNext())
+      throw new NoSuchElementException();
+    ByteBuffer ret = this.next;
+    this.next = null;
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() throws IOException {
+    this.channel.close();
+  }
+
+  /**
+   * A read-only transport over a {@link ByteBuffer} that exposes its bytes
+   * through {@link TTransport#getBuffer()}, so that the compact protocol
+   * reads varints and field headers straight from an array rather than
+   * one byte at a time. Heap buffers expose their backing array; direct
+   * buffers are copied into a chunk that is refilled as it is consumed.
+   */
+  static class ByteBufferTransport extends TTransport {
+    private static final int CHUNK = 64 * 1024;
+
+    // the unread rest of a direct buffer, or null for a heap buffer
+    private final ByteBuffer rest;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+
+    ByteBufferTransport(ByteBuffer src) {
+      if (src.hasArray()) {
+        this.rest = null;
+        this.buf = src.array();
+        this.pos = src.arrayOffset() + src.position();
+        this.limit = src.arrayOffset() + src.limit();
+      } else {
+        this.rest = src.duplicate();
+        this.buf = new byte[Math.min(CHUNK, src.remaining())];
+        this.pos = 0;
+        this.limit = 0;
+      }
+    }
+
+    private void refillIfEmpty() {
+      if (this.pos < this.limit || this.rest == null || !this.rest.hasRemaining())
+        return;
+      final int n = Math.min(this.buf.length, this.rest.remaining());
+      this.rest.get(this.buf, 0, n);
+      this.pos = 0;
+      this.limit = n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws TTransportException {
+      if (len == 0)
+        return 0;
+      this.refillIfEmpty();
+      if (this.pos == this.limit)
+        throw new TTransportException(TTransportException.END_OF_FILE, "No more data in buffer.");
+      final int n = Math.min(len, this.limit - this.pos);
+      System.arraycopy(this.buf, this.pos, b, off, n);
+      this.pos += n;
+      return n;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws TTransportException {
+      throw new TTransportException("Buffer transport is read-only.");
+    }
+
+    @Override
+    public byte[] getBuffer() {
+      this.refillIfEmpty();
+      return this.buf;
+    }
+
+    @Override
+    public int getBufferPosition() {
+      this.refillIfEmpty();
+      return this.pos;
+    }
+
+    @Override
+    public int getBytesRemainingInBuffer() {
+      this.refillIfEmpty();
+      return this.limit - this.pos;
+    }
+
+    @Override
+    public void consumeBuffer(int len) {
+      this.pos += len;
+    }
+  }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A gzip {@link OutputStream} that compresses fixed-size blocks on a thread
+ * pool, in the style of <code>pigz -i</code>.
+ * <br>
+ * <br>
+ * Each block is deflated independently and ended with a sync flush, and the
+ * blocks are written in order as a single gzip member. The result is an
+ * ordinary gzip file that any gzip reader, including
+ * {@link edu.jhu.hlt.acute.iterators.tar.TarGzArchiveEntryByteIterator},
+ * can read. Because no block refers back to an earlier one, a reader can
+ * also start inflating (raw deflate, no header) at any block boundary. The
+ * optional block index records those boundaries so downstream jobs can
+ * split the file.
+ * <br>
+ * <br>
+ * {@link #flush()} writes out completed blocks but does not end the current
+ * block early, so frequent flushing does not hurt the compression ratio.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+  public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+  private static final int GZIP_HEADER_SIZE = 10;
+
+  private final OutputStream out;
+  private final ExecutorService pool;
+  private final int level;
+  // deflaters hold native memory, so the stream owns them and ends them on close
+  private final Queue<Deflater> idleDeflaters = new ConcurrentLinkedQueue<>();
+  private final List<Deflater> deflaters = new ArrayList<>();
+  private final int blockSize;
+  private final int maxInFlight;
+  private final Optional<Path> indexPath;
+
+  private final Deque<Block> inFlight = new ArrayDeque<>();
+  private final CRC32 crc = new CRC32();
+  // pairs of (compressed offset, uncompressed offset), one per block
+  private final List<long[]> blockOffsets = new ArrayList<>();
+
+  private static class Block {
+    private final long uncompressedOffset;
+    private final Future<byte[]> compressed;
+
+    Block(long uncompressedOffset, Future<byte[]> compressed) {
+      this.uncompressedOffset = uncompressedOffset;
+      this.compressed = compressed;
+    }
+  }
+
+  private byte[] buf;
+  private int bufLen = 0;
+  private long uncompressedSize = 0;
+  private long compressedOffset = 0;
+  private boolean closed = false;
+
+  /**
+   * @param out the underlying stream; closed when this stream is closed
+   * @param threads the number of compression threads
+   * @param blockSize the uncompressed size of each block
+   * @param level the {@link Deflater} compression level
+   * @param indexPath if present, where to write the block index on close
+   * @throws IOException on error writing the gzip header
+   */
+  public ParallelGzipOutputStream(OutputStream out, int threads, int blockSize, int level,
+      Optional<Path> indexPath) throws IOException {
+    if (threads < 1)
+      throw new IllegalArgumentException("need at least one compression thread");
+    if (blockSize < 1)
+      throw new IllegalArgumentException("block size must be positive");
+    this.out = out;
+    this.blockSize = blockSize;
+    this.maxInFlight = threads * 2;
+    this.indexPath = indexPath;
+    this.buf = new byte[blockSize];
+    this.level = level;
+    this.pool = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("gzip-block-%d").setDaemon(true).build());
+    this.writeHeader();
+  }
+
+  /**
+   * Create a stream with the default block size and compression level.
+   */
+  public ParallelGzipOutputStream(OutputStream out, int threads, Optional<Path> indexPath) throws IOException {
+    this(out, threads, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION, indexPath);
+  }
+
+  /**
+   * @param archive the path of a gzip archive
+   * @return the path of its block index
+   */
+  public static Path indexPathFor(Path archive) {
+    return archive.resolveSibling(archive.getFileName().toString() + ".idx");
+  }
+
+  private void writeHeader() throws IOException {
+    // magic, CM=deflate, no flags, no mtime, no extra flags, OS=unknown
+    byte[] header = new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    this.out.write(header);
+    this.compressedOffset = GZIP_HEADER_SIZE;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (this.closed)
+      throw new IOException("Stream closed");
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.io.OutputStream#write(int)
+   */
+  @Override
+  public void write(int b) throws IOException {
+    this.ensureOpen();
+    this.buf[this.bufLen++] = (byte) b;
+    if (this.bufLen == this.blockSize)
+      this.submitBlock(false);
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.io.OutputStream#write(byte[], int, int)
+   */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    this.ensureOpen();
+    while (len > 0) {
+      final int n = Math.min(len, this.blockSize - this.bufLen);
+      System.arraycopy(b, off, this.buf, this.bufLen, n);
+      this.bufLen += n;
+      off += n;
+      len -= n;
+      if (this.bufLen == this.blockSize)
+        this.submitBlock(false);
+    }
+  }
+
+  private void submitBlock(final boolean last) throws IOException {
+    while (this.inFlight.size() >= this.maxInFlight)
+      this.writeHead();
+
+    final byte[] block = this.buf;
+    final int len = this.bufLen;
+    this.crc.update(block, 0, len);
+    Future<byte[]> f = this.pool.submit(() -> this.deflate(block, len, last));
+    this.inFlight.addLast(new Block(this.uncompressedSize, f));
+    this.uncompressedSize += len;
+    this.buf = last ? null : new byte[this.blockSize];
+    this.bufLen = 0;
+  }
+
+  private Deflater borrowDeflater() {
+    Deflater d = this.idleDeflaters.poll();
+    if (d != null)
+      return d;
+    d = new Deflater(this.level, true);
+    synchronized (this.deflaters) {
+      this.deflaters.add(d);
+    }
+    return d;
+  }
+
+  private byte[] deflate(byte[] block, int len, boolean last) {
+    Deflater d = this.borrowDeflater();
+    try {
+      return deflate(d, block, len, last);
+    } finally {
+      this.idleDeflaters.add(d);
+    }
+  }
+
+  private static byte[] deflate(Deflater d, byte[] block, int len, boolean last) {
+    d.reset();
+    d.setInput(block, 0, len);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(len / 2 + 64);
+    byte[] chunk = new byte[64 * 1024];
+    if (last) {
+      d.finish();
+      while (!d.finished()) {
+        int n = d.deflate(chunk);
+        bos.write(chunk, 0, n);
+      }
+    } else {
+      // sync flush leaves the output byte-aligned so the next
+      // independently compressed block can follow directly.
+      int n;
+      do {
+        n = d.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+        bos.write(chunk, 0, n);
+      } while (n == chunk.length);
+    }
+    return bos.toByteArray();
+  }
+
+  private void writeHead() throws IOException {
+    Block b = this.inFlight.removeFirst();
+    try {
+      byte[] compressed = b.compressed.get();
+      if (this.indexPath.isPresent())
+        this.blockOffsets.add(new long[] { this.compressedOffset, b.uncompressedOffset });
+      this.out.write(compressed);
+      this.compressedOffset += compressed.length;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while compressing", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Error compressing block", e.getCause());
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.io.OutputStream#flush()
+   */
+  @Override
+  public void flush() throws IOException {
+    this.ensureOpen();
+    while (!this.inFlight.isEmpty() && this.inFlight.peekFirst().compressed.isDone())
+      this.writeHead();
+    this.out.flush();
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.io.OutputStream#close()
+   */
+  @Override
+  public void close() throws IOException {
+    if (this.closed)
+      return;
+    try {
+      this.submitBlock(true);
+      while (!this.inFlight.isEmpty())
+        this.writeHead();
+      this.writeTrailer();
+      this.out.flush();
+    } finally {
+      this.closed = true;
+      this.pool.shutdownNow();
+      this.endDeflaters();
+      this.out.close();
+    }
+
+    if (this.indexPath.isPresent())
+      this.writeIndex(this.indexPath.get());
+  }
+
+  private void endDeflaters() {
+    try {
+      if (!this.pool.awaitTermination(10, TimeUnit.SECONDS))
+        return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    synchronized (this.deflaters) {
+      this.deflaters.forEach(Deflater::end);
+      this.deflaters.clear();
+    }
+    this.idleDeflaters.clear();
+  }
+
+  /**
+   * @return the number of deflaters created and not yet ended
+   */
+  int getLiveDeflaters() {
+    synchronized (this.deflaters) {
+      return this.deflaters.size();
+    }
+  }
+
+  private void writeTrailer() throws IOException {
+    writeIntLE(this.out, this.crc.getValue());
+    // ISIZE is the uncompressed size modulo 2^32
+    writeIntLE(this.out, this.uncompressedSize);
+  }
+
+  private static void writeIntLE(OutputStream os, long v) throws IOException {
+    os.write((int) (v & 0xff));
+    os.write((int) ((v >>> 8) & 0xff));
+    os.write((int) ((v >>> 16) & 0xff));
+    os.write((int) ((v >>> 24) & 0xff));
+  }
+
+  private void writeIndex(Path p) throws IOException {
+    try (Writer w = Files.newBufferedWriter(p, StandardCharsets.UTF_8)) {
+      w.write("#compressed_offset\tuncompressed_offset\n");
+      for (long[] offsets : this.blockOffsets)
+        w.write(offsets[0] + "\t" + offsets[1] + "\n");
+    }
+  }
+}
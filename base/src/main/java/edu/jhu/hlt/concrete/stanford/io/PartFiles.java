@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.io;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Naming and durability helpers for output archives that are written as a
+ * series of numbered parts.
+ */
+public class PartFiles {
+
+  private static final String[] EXTENSIONS = new String[] { ".tar.gz", ".tgz", ".tar" };
+
+  private PartFiles() {
+  }
+
+  /**
+   * Derive the path of a numbered part from the configured output path,
+   * keeping the archive extension: <code>out.tar.gz</code> becomes
+   * <code>out.part-00003.tar.gz</code>.
+   *
+   * @param output the configured output path
+   * @param index the part number
+   * @return the path of the part
+   */
+  public static Path partPath(Path output, int index) {
+    final String name = output.getFileName().toString();
+    final String base = baseName(output);
+    final String ext = name.substring(base.length());
+    return output.resolveSibling(String.format("%s.part-%05d%s", base, index, ext));
+  }
+
+  /**
+   * @param output an archive path
+   * @return the archive's file name without its archive extension
+   */
+  public static String baseName(Path output) {
+    final String name = output.getFileName().toString();
+    for (String e : EXTENSIONS)
+      if (name.toLowerCase().endsWith(e))
+        return name.substring(0, name.length() - e.length());
+    return name;
+  }
+
+  /**
+   * Flush a closed file's contents to stable storage.
+   *
+   * @param p the file to sync
+   * @throws IOException on error
+   */
+  public static void fsync(Path p) throws IOException {
+    try (FileChannel ch = FileChannel.open(p, StandardOpenOption.WRITE)) {
+      ch.force(true);
+    }
+  }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.io;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import edu.jhu.hlt.acute.archivers.Archivable;
+import edu.jhu.hlt.acute.archivers.tar.TarArchiver;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.serialization.CommunicationSerializer;
+import edu.jhu.hlt.concrete.serialization.CompactCommunicationSerializer;
+import edu.jhu.hlt.concrete.stanford.concurrent.ByteBoundedBlockingQueue;
+import edu.jhu.hlt.concrete.util.ConcreteException;
+
+/**
+ * Writes documents to a series of output archives ("shards"), starting a
+ * new shard when the current one reaches a document or byte limit, or on
+ * request.
+ * <br>
+ * <br>
+ * Each shard is written by its own task on a pool of writer threads, so a
+ * finished shard can still be compressing and closing while the next one
+ * fills. Documents are serialized on the calling thread, which is also
+ * how their size is measured: the byte limit applies to serialized,
+ * uncompressed documents.
+ * <br>
+ * <br>
+ * As each shard is closed and synced to disk, a line is appended to the
+ * manifest (see {@link #manifestPathFor(Path)}) giving its document count,
+ * uncompressed bytes, and file size. Shards may finish out of order. A
+ * run starting from the first shard replaces any manifest left by an
+ * earlier run; one resuming from a later shard appends to it.
+ */
+public class ShardedArchiver implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ShardedArchiver.class);
+
+  private static final long QUEUE_BYTES = 64L * 1024 * 1024;
+
+  /**
+   * Opens an archiver writing to the given path.
+   */
+  @FunctionalInterface
+  public interface ArchiverFactory {
+    TarArchiver open(Path p) throws IOException;
+  }
+
+  /**
+   * Notified as shards are started and finished.
+   */
+  public interface ShardListener {
+    /**
+     * Called on the writing thread before the first document of a shard is queued.
+     */
+    default void shardOpened(Shard s) throws IOException {
+    }
+
+    /**
+     * Called on a writer thread after a shard has been closed and synced.
+     */
+    default void shardFinished(Shard s) throws IOException {
+    }
+  }
+
+  /**
+   * An output shard and its size.
+   */
+  public static class Shard {
+    private final int index;
+    private final Path path;
+    private int documents = 0;
+    private long bytes = 0;
+    private long fileBytes = 0;
+
+    Shard(int index, Path path) {
+      this.index = index;
+      this.path = path;
+    }
+
+    public int getIndex() {
+      return this.index;
+    }
+
+    public Path getPath() {
+      return this.path;
+    }
+
+    public int getDocuments() {
+      return this.documents;
+    }
+
+    /**
+     * @return the total serialized size of the shard's documents
+     */
+    public long getBytes() {
+      return this.bytes;
+    }
+
+    /**
+     * @return the size of the shard on disk; 0 until the shard is finished
+     */
+    public long getFileBytes() {
+      return this.fileBytes;
+    }
+  }
+
+  private static class SerializedCommunication implements Archivable {
+    private final String fileName;
+    private final byte[] bytes;
+
+    SerializedCommunication(String fileName, byte[] bytes) {
+      this.fileName = fileName;
+      this.bytes = bytes;
+    }
+
+    @Override
+    public String getFileName() {
+      return this.fileName;
+    }
+
+    @Override
+    public byte[] getBytes() {
+      return this.bytes;
+    }
+  }
+
+  private static class OpenShard {
+    private final Shard shard;
+    private final ByteBoundedBlockingQueue<Archivable> queue = new ByteBoundedBlockingQueue<>(QUEUE_BYTES);
+    private Future<Void> writer;
+
+    OpenShard(Shard shard) {
+      this.shard = shard;
+    }
+  }
+
+  private final CommunicationSerializer ser = new CompactCommunicationSerializer();
+  private final Path output;
+  private final long maxDocs;
+  private final long maxBytes;
+  private final ArchiverFactory factory;
+  private final ShardListener listener;
+  private final Path manifest;
+  private final ExecutorService writers;
+
+  private final List<OpenShard> unfinished = new ArrayList<>();
+  private final List<Shard> finished = new ArrayList<>();
+  private int nextIndex;
+  private OpenShard current = null;
+
+  /**
+   * @param output the configured output path; shards are named after it by {@link PartFiles#partPath(Path, int)}
+   * @param firstIndex the number of the first shard
+   * @param maxDocs the maximum documents per shard, or 0 for no limit
+   * @param maxBytes the maximum serialized bytes per shard, or 0 for no limit
+   * @param writerThreads the number of shards that can be written concurrently
+   * @param factory opens an archiver for each shard
+   * @param listener notified as shards start and finish
+   * @throws IOException if an earlier run's manifest could not be removed
+   */
+  public ShardedArchiver(Path output, int firstIndex, long maxDocs, long maxBytes, int writerThreads,
+      ArchiverFactory factory, ShardListener listener) throws IOException {
+    if (maxDocs < 0 || maxBytes < 0)
+      throw new IllegalArgumentException("shard limits must not be negative");
+    if (writerThreads < 1)
+      throw new IllegalArgumentException("need at least one writer thread");
+    this.output = output;
+    this.nextIndex = firstIndex;
+    this.maxDocs = maxDocs;
+    this.maxBytes = maxBytes;
+    this.factory = factory;
+    this.listener = listener;
+    this.manifest = manifestPathFor(output);
+    // only a resumed run continues the manifest
+    if (firstIndex == 0 && Files.deleteIfExists(this.manifest))
+      LOGGER.info("Replacing shard manifest: {}", this.manifest.toString());
+    this.writers = Executors.newFixedThreadPool(writerThreads,
+        new ThreadFactoryBuilder().setNameFormat("shard-writer-%d").setDaemon(true).build());
+  }
+
+  public ShardedArchiver(Path output, long maxDocs, long maxBytes, int writerThreads, ArchiverFactory factory)
+      throws IOException {
+    this(output, 0, maxDocs, maxBytes, writerThreads, factory, new ShardListener() { });
+  }
+
+  /**
+   * @param output the configured output path
+   * @return the path of the shard manifest
+   */
+  public static Path manifestPathFor(Path output) {
+    return output.resolveSibling(PartFiles.baseName(output) + ".manifest.tsv");
+  }
+
+  /**
+   * Queue a document for the current shard, starting a new shard first if
+   * the document would put the current one over a limit.
+   *
+   * @return the shard the document was queued for
+   * @throws IOException on error, including an earlier failure of a writer thread
+   */
+  public Shard addEntry(Communication c) throws IOException {
+    final byte[] bytes;
+    try {
+      bytes = this.ser.toBytes(c);
+    } catch (ConcreteException e) {
+      throw new IOException("Error serializing communication: " + c.getId(), e);
+    }
+
+    if (this.current != null && this.isFull(this.current.shard, bytes.length))
+      this.rotate();
+    if (this.current == null)
+      this.openShard();
+
+    try {
+      if (!this.current.queue.put(new SerializedCommunication(c.getId() + ".comm", bytes), bytes.length)) {
+        // the writer gave up; surface its exception.
+        this.checkWriter(this.current);
+        throw new IOException("Writer stopped early for shard: " + this.current.shard.path.toString());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while queueing document: " + c.getId(), e);
+    }
+
+    Shard s = this.current.shard;
+    s.documents++;
+    s.bytes += bytes.length;
+    return s;
+  }
+
+  private boolean isFull(Shard s, long nextSize) {
+    if (s.documents == 0)
+      return false;
+    return (this.maxDocs > 0 && s.documents >= this.maxDocs)
+        || (this.maxBytes > 0 && s.bytes + nextSize > this.maxBytes);
+  }
+
+  private void openShard() throws IOException {
+    final Shard s = new Shard(this.nextIndex, PartFiles.partPath(this.output, this.nextIndex));
+    this.nextIndex++;
+    this.listener.shardOpened(s);
+    final OpenShard os = new OpenShard(s);
+    os.writer = this.writers.submit(() -> {
+      try {
+        this.write(os);
+      } catch (Exception e) {
+        // release a producer blocked on this shard.
+        os.queue.cancel();
+        throw e;
+      }
+      return null;
+    });
+    this.unfinished.add(os);
+    this.current = os;
+    LOGGER.info("Writing output shard: {}", s.path.toString());
+  }
+
+  private void write(OpenShard os) throws Exception {
+    final Shard s = os.shard;
+    try (TarArchiver arch = this.factory.open(s.path)) {
+      Archivable a;
+      while ((a = os.queue.take()) != null)
+        arch.addEntry(a);
+    }
+    PartFiles.fsync(s.path);
+    s.fileBytes = Files.size(s.path);
+    this.appendManifest(s);
+    this.listener.shardFinished(s);
+  }
+
+  private synchronized void appendManifest(Shard s) throws IOException {
+    final boolean exists = Files.exists(this.manifest);
+    try (Writer w = Files.newBufferedWriter(this.manifest, StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+      if (!exists)
+        w.write("#shard\tpath\tdocuments\tbytes\tfile_bytes\n");
+      w.write(s.index + "\t" + s.path.getFileName().toString() + "\t" + s.documents + "\t"
+          + s.bytes + "\t" + s.fileBytes + "\n");
+    }
+  }
+
+  private void checkWriter(OpenShard os) throws IOException {
+    try {
+      os.writer.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting on shard: " + os.shard.path.toString(), e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new IOException("Error writing shard: " + os.shard.path.toString(), cause);
+    }
+  }
+
+  /**
+   * Finish the current shard, if any; the next document starts a new one.
+   * The shard is closed in the background.
+   *
+   * @throws IOException if a writer thread has already failed
+   */
+  public void rotate() throws IOException {
+    if (this.current != null) {
+      this.current.queue.finish();
+      this.current = null;
+    }
+    this.reapFinished(false);
+  }
+
+  private void reapFinished(boolean block) throws IOException {
+    List<OpenShard> done = new ArrayList<>();
+    for (OpenShard os : this.unfinished) {
+      if (os == this.current)
+        continue;
+      if (block || os.writer.isDone()) {
+        this.checkWriter(os);
+        done.add(os);
+      }
+    }
+    this.unfinished.removeAll(done);
+    done.forEach(os -> this.finished.add(os.shard));
+  }
+
+  /**
+   * @return the shards that have been closed so far
+   */
+  public List<Shard> getFinishedShards() {
+    return new ArrayList<>(this.finished);
+  }
+
+  /**
+   * Finish the current shard and wait for every shard to be written.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      this.rotate();
+      this.reapFinished(true);
+    } finally {
+      for (OpenShard os : this.unfinished)
+        os.queue.cancel();
+      this.writers.shutdownNow();
+    }
+  }
+}
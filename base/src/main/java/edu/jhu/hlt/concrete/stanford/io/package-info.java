@@ -0,0 +1,9 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+
+/**
+ * Archive input and output used by the batch runners.
+ */
+package edu.jhu.hlt.concrete.stanford.io;
@@ -14,8 +14,12 @@ import org.slf4j.LoggerFactory;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 
+import edu.jhu.hlt.concrete.stanford.AnnotationBudget;
+import edu.jhu.hlt.concrete.stanford.AnnotatorPool;
 import edu.jhu.hlt.concrete.stanford.ConcreteStanfordPreCorefAnalytic;
+import edu.jhu.hlt.concrete.stanford.ConcreteStanfordSinglePassAnalytic;
 import edu.jhu.hlt.concrete.stanford.ConcreteStanfordTokensSentenceAnalytic;
+import edu.stanford.nlp.international.Language;
 import edu.stanford.nlp.trees.EnglishGrammaticalStructureFactory;
 import edu.stanford.nlp.trees.GrammaticalStructureFactory;
 import edu.stanford.nlp.trees.HeadFinder;
@@ -45,6 +49,38 @@ public enum PipelineLanguage {
       return new SemanticHeadFinder();
     }
 
+    @Override
+    String shiftReduceModel() {
+      return "edu/stanford/nlp/models/srparser/englishSR.ser.gz";
+    }
+
+    @Override
+    Language parserRelations(boolean originalDependencies) {
+      return originalDependencies ? Language.English : Language.UniversalEnglish;
+    }
+
+    @Override
+    String neuralDependencyModel() {
+      return "edu/stanford/nlp/models/parser/nndep/english_UD.gz";
+    }
+
+    @Override
+    void setNerOptions(Properties props, PipelineProfile profile) {
+      switch (profile) {
+      case FAST:
+        props.setProperty("ner.model", "edu/stanford/nlp/models/ner/english.all.3class.distsim.crf.ser.gz");
+        props.setProperty("ner.applyNumericClassifiers", "false");
+        props.setProperty("ner.useSUTime", "false");
+        props.setProperty("ner.applyFineGrained", "false");
+        break;
+      case BALANCED:
+        props.setProperty("ner.applyFineGrained", "false");
+        break;
+      default:
+        break;
+      }
+    }
+
     @Override
     String tokenizationAnnotators() {
       return "tokenize, ssplit";
@@ -100,6 +136,21 @@ public enum PipelineLanguage {
       return new SpanishHeadFinder();
     }
 
+    @Override
+    String shiftReduceModel() {
+      return "edu/stanford/nlp/models/srparser/spanishSR.ser.gz";
+    }
+
+    @Override
+    String neuralDependencyModel() {
+      return "edu/stanford/nlp/models/parser/nndep/UD_Spanish.gz";
+    }
+
+    @Override
+    Language neuralDependencyLanguage() {
+      return Language.Spanish;
+    }
+
     @Override
     String tokenizationAnnotators() {
       return "tokenize, ssplit";
@@ -159,6 +210,26 @@ public enum PipelineLanguage {
       return new ChineseSemanticHeadFinder();
     }
 
+    @Override
+    String shiftReduceModel() {
+      return "edu/stanford/nlp/models/srparser/chineseSR.ser.gz";
+    }
+
+    @Override
+    Language parserRelations(boolean originalDependencies) {
+      return originalDependencies ? Language.Chinese : Language.UniversalChinese;
+    }
+
+    @Override
+    String neuralDependencyModel() {
+      return "edu/stanford/nlp/models/parser/nndep/UD_Chinese.gz";
+    }
+
+    @Override
+    Language neuralDependencyLanguage() {
+      return Language.Chinese;
+    }
+
     @Override
 //    String tokenizationAnnotators() {
 //      return "segment, ssplit, tokenize";
@@ -211,25 +282,53 @@ public enum PipelineLanguage {
    * max thinks it matters.
    */
   public ImmutableList<String> getNonTokenizationAnnotators() {
-      ImmutableList<String> spl = ImmutableList.copyOf(this.preCorefAnnotators().split(", "));
-//    ImmutableList<String> spl = ImmutableList.copyOf(this.allAvailableAnnotators().split(", "));
+    return this.getNonTokenizationAnnotators(PipelineProfile.ACCURATE);
+  }
+
+  public ImmutableList<String> getNonTokenizationAnnotators(PipelineProfile profile) {
+    return nonTokenization(withProfile(this.preCorefAnnotators(), profile));
+  }
+
+  public ImmutableList<String> getNonTokenizationAnnotators_1() {
+    return this.getNonTokenizationAnnotators_1(PipelineProfile.ACCURATE);
+  }
+
+  public ImmutableList<String> getNonTokenizationAnnotators_1(PipelineProfile profile) {
+    return nonTokenization(withProfile(this.allAvailableAnnotators(), profile));
+  }
+
+  /**
+   * @return true if coreference can run for this language under <code>profile</code>
+   */
+  public boolean hasCoref(PipelineProfile profile) {
+    return this.getNonTokenizationAnnotators_1(profile).contains("dcoref");
+  }
+
+  private static ImmutableList<String> nonTokenization(ImmutableList<String> annotators) {
     ImmutableList.Builder<String> b = ImmutableList.builder();
-    for (String s : spl) {
+    for (String s : annotators) {
       if (!SENTENCE_TOKENS_ANNOTATORS.contains(s))
         b.add(s);
     }
     return b.build();
   }
 
-  public ImmutableList<String> getNonTokenizationAnnotators_1() {
-    ImmutableList<String> spl = ImmutableList.copyOf(this.allAvailableAnnotators().split(", "));
-        ImmutableList.Builder<String> b = ImmutableList.builder();
-        for (String s : spl) {
-            if (!SENTENCE_TOKENS_ANNOTATORS.contains(s))
-                b.add(s);
-        }
-        return b.build();
+  /**
+   * The fast profile has no constituency parser, and so no coref, which
+   * needs its trees; it runs the neural dependency parser instead.
+   */
+  private static ImmutableList<String> withProfile(String annotators, PipelineProfile profile) {
+    ImmutableList.Builder<String> b = ImmutableList.builder();
+    for (String s : annotators.split(", ")) {
+      if (profile != PipelineProfile.FAST)
+        b.add(s);
+      else if (s.equals("parse"))
+        b.add("depparse");
+      else if (!s.equals("dcoref"))
+        b.add(s);
     }
+    return b.build();
+  }
 
   /*
    * (non-Javadoc)
@@ -262,6 +361,80 @@ public enum PipelineLanguage {
 
   abstract Properties getProperties(String annotators);
 
+  /**
+   * @param annotators the annotators to run, before any changes for the profile
+   * @return the properties for the annotators under <code>profile</code>
+   */
+  Properties getProperties(String annotators, PipelineProfile profile) {
+    Properties props = this.getProperties(String.join(", ", withProfile(annotators, profile)));
+    switch (profile) {
+    case BALANCED:
+      props.setProperty("parse.model", this.shiftReduceModel());
+      break;
+    case FAST:
+      props.setProperty("depparse.model", this.neuralDependencyModel());
+      props.setProperty("depparse.language", this.neuralDependencyLanguage().name());
+      break;
+    default:
+      break;
+    }
+    this.setNerOptions(props, profile);
+    return props;
+  }
+
+  abstract String shiftReduceModel();
+  abstract String neuralDependencyModel();
+
+  /**
+   * The language the neural dependency model was trained for, which sets
+   * its punctuation handling and the relations in its graphs, as in
+   * CoreNLP's own properties files for the language.
+   */
+  Language neuralDependencyLanguage() {
+    return Language.UniversalEnglish;
+  }
+
+  /**
+   * The language of the relations the constituency parser's dependencies
+   * use. By default that of the neural dependency parser, for languages
+   * whose constituency parser writes no dependencies.
+   *
+   * @param originalDependencies true if the parser writes Stanford rather
+   * than Universal Dependencies
+   */
+  Language parserRelations(boolean originalDependencies) {
+    return Language.UniversalEnglish;
+  }
+
+  /**
+   * The language of the relations in the dependency graphs built by
+   * <code>annotators</code>, so that graphs rebuilt from Concrete compare
+   * equal to them. The constituency parser writes Universal Dependencies
+   * unless <code>parse.originalDependencies</code> is set; the neural
+   * dependency parser uses <code>depparse.language</code>, which defaults to
+   * Universal English.
+   */
+  public Language getRelationLanguage(AnnotatorPool annotators) {
+    Properties props = annotators.getProperties();
+    if (annotators.getAnnotators().contains("parse"))
+      return this.parserRelations(Boolean.parseBoolean(props.getProperty("parse.originalDependencies", "false")));
+    final String depLang = props.getProperty("depparse.language");
+    if (depLang != null)
+      for (Language l : Language.values())
+        if (l.name().equalsIgnoreCase(depLang))
+          return l;
+    return Language.UniversalEnglish;
+  }
+
+  /**
+   * Set the NER options for the faster profiles. By default this only turns
+   * off the fine-grained NER rules, which are written for English.
+   */
+  void setNerOptions(Properties props, PipelineProfile profile) {
+    if (profile != PipelineProfile.ACCURATE)
+      props.setProperty("ner.applyFineGrained", "false");
+  }
+
   abstract String tokenizationAnnotators();
   abstract String preCorefAnnotators();
   abstract String allAvailableAnnotators();
@@ -273,17 +446,83 @@ public enum PipelineLanguage {
     return new ConcreteStanfordTokensSentenceAnalytic(this.getProperties(this.tokenizationAnnotators()));
   }
 
+  /**
+   * @param annotator runs the annotators after tokenization, e.g. from
+   * {@link #getPreCorefAnalytic(AnnotationBudget)}
+   * @return an analytic that tokenizes and annotates in one pass
+   */
+  public ConcreteStanfordSinglePassAnalytic getSinglePassAnalytic(ConcreteStanfordPreCorefAnalytic annotator) {
+    return new ConcreteStanfordSinglePassAnalytic(this.getSentenceTokenizationAnalytic(), annotator);
+  }
+
   public ConcreteStanfordPreCorefAnalytic getPreCorefAnalytic() {
-    Properties props = this.getProperties(this.preCorefAnnotators());
-    return new ConcreteStanfordPreCorefAnalytic(props,
-        this.getHeadFinder(), this.getGrammaticalFactory(),
-        this.getNonTokenizationAnnotators(), false);
+    return this.getPreCorefAnalytic(AnnotationBudget.none());
+  }
+
+  public ConcreteStanfordPreCorefAnalytic getPreCorefAnalytic(AnnotationBudget budget) {
+    return this.getPreCorefAnalytic(budget, this.getPreCorefAnnotators(budget, 1));
+  }
+
+  /**
+   * @param workers the number of threads that will annotate at once
+   * @return the annotators run after tokenization, without coref
+   */
+  public AnnotatorPool getPreCorefAnnotators(AnnotationBudget budget, int workers) {
+    return this.getPreCorefAnnotators(budget, PipelineProfile.ACCURATE, workers);
+  }
+
+  /**
+   * @param profile chooses the models
+   * @param workers the number of threads that will annotate at once
+   * @return the annotators run after tokenization, without coref
+   */
+  public AnnotatorPool getPreCorefAnnotators(AnnotationBudget budget, PipelineProfile profile, int workers) {
+    Properties props = budget.apply(this.getProperties(this.preCorefAnnotators(), profile));
+    return new AnnotatorPool(props, this.getNonTokenizationAnnotators(profile), workers);
+  }
+
+  /**
+   * @param annotators from {@link #getPreCorefAnnotators(AnnotationBudget, int)} with the same budget
+   */
+  public ConcreteStanfordPreCorefAnalytic getPreCorefAnalytic(AnnotationBudget budget, AnnotatorPool annotators) {
+    return new ConcreteStanfordPreCorefAnalytic(annotators,
+        this.getHeadFinder(), this.getGrammaticalFactory(), false, budget)
+        .setRelationLanguage(this.getRelationLanguage(annotators));
   }
 
   public ConcreteStanfordPreCorefAnalytic getAllAnalytic() {
-    Properties props = this.getProperties(this.allAvailableAnnotators());
-    return new ConcreteStanfordPreCorefAnalytic(props,
-        this.getHeadFinder(), this.getGrammaticalFactory(),
-        this.getNonTokenizationAnnotators_1(), true);
+    return this.getAllAnalytic(AnnotationBudget.none());
+  }
+
+  public ConcreteStanfordPreCorefAnalytic getAllAnalytic(AnnotationBudget budget) {
+    return this.getAllAnalytic(budget, this.getAllAnnotators(budget, 1));
+  }
+
+  /**
+   * @param workers the number of threads that will annotate at once
+   * @return every annotator run after tokenization, including coref where available
+   */
+  public AnnotatorPool getAllAnnotators(AnnotationBudget budget, int workers) {
+    return this.getAllAnnotators(budget, PipelineProfile.ACCURATE, workers);
+  }
+
+  /**
+   * @param profile chooses the models
+   * @param workers the number of threads that will annotate at once
+   * @return every annotator run after tokenization, including coref where
+   * available under <code>profile</code>
+   */
+  public AnnotatorPool getAllAnnotators(AnnotationBudget budget, PipelineProfile profile, int workers) {
+    Properties props = budget.apply(this.getProperties(this.allAvailableAnnotators(), profile));
+    return new AnnotatorPool(props, this.getNonTokenizationAnnotators_1(profile), workers);
+  }
+
+  /**
+   * @param annotators from {@link #getAllAnnotators(AnnotationBudget, int)} with the same budget
+   */
+  public ConcreteStanfordPreCorefAnalytic getAllAnalytic(AnnotationBudget budget, AnnotatorPool annotators) {
+    return new ConcreteStanfordPreCorefAnalytic(annotators,
+        this.getHeadFinder(), this.getGrammaticalFactory(), true, budget)
+        .setRelationLanguage(this.getRelationLanguage(annotators));
   }
 }
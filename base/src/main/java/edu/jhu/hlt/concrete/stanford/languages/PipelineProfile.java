@@ -0,0 +1,49 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.languages;
+
+import java.util.Locale;
+
+/**
+ * How much accuracy to trade for speed when choosing each language's models.
+ * <br>
+ * <br>
+ * <ul>
+ * <li>{@link #ACCURATE}: the PCFG constituency parser and full NER.</li>
+ * <li>{@link #BALANCED}: the shift-reduce constituency parser, and NER
+ * without the fine-grained rules.</li>
+ * <li>{@link #FAST}: the neural dependency parser and no constituency tree,
+ * so no coreference; for English, only the 3-class NER model, without
+ * SUTime or the numeric classifiers.</li>
+ * </ul>
+ */
+public enum PipelineProfile {
+  ACCURATE ("accurate"),
+  BALANCED ("balanced"),
+  FAST ("fast"),
+  ;
+
+  private final String v;
+  private PipelineProfile(String v) {
+    this.v = v;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Enum#toString()
+   */
+  @Override
+  public String toString() {
+    return this.v;
+  }
+
+  public static final PipelineProfile getEnumeration(String v) {
+    final String lower = v.toLowerCase(Locale.ENGLISH);
+    for (PipelineProfile p : PipelineProfile.values())
+      if (p.toString().equals(lower))
+        return p;
+    throw new IllegalArgumentException("No matching profile for value: " + v);
+  }
+}
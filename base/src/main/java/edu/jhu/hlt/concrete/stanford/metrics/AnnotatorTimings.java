@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.metrics;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long each Stanford annotator took per document, one
+ * {@link LatencyHistogram} per annotator. Thread-safe, and may be shared by
+ * every analytic of a process.
+ */
+public class AnnotatorTimings {
+
+  private final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+  /**
+   * @param annotator the annotator's name, e.g. <code>parse</code>
+   * @param nanos how long it took on one document
+   */
+  public void record(String annotator, long nanos) {
+    this.latencies.computeIfAbsent(annotator, k -> new LatencyHistogram())
+        .record(TimeUnit.NANOSECONDS.toMicros(nanos));
+  }
+
+  /**
+   * Forget everything recorded so far, e.g. after warming up.
+   */
+  public void clear() {
+    this.latencies.clear();
+  }
+
+  /**
+   * @return the latencies of each annotator that has run, by name
+   */
+  public SortedMap<String, LatencyHistogram> getLatencies() {
+    return Collections.unmodifiableSortedMap(new TreeMap<>(this.latencies));
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, thread-safe histogram of latencies, in microseconds.
+ * <br>
+ * <br>
+ * Buckets are laid out as in HdrHistogram: values below 128 are counted
+ * exactly, and each power-of-two range above that is split into 64 equal
+ * sub-buckets, so any recorded value is reported to within about 1.6%
+ * without an upper bound on the range. Recording is lock-free.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BITS = 7;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int HALF_COUNT = SUB_COUNT / 2;
+  // enough buckets for any non-negative long
+  private static final int N_BUCKETS = SUB_COUNT + (64 - SUB_BITS) * HALF_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(N_BUCKETS);
+  private final AtomicLong count = new AtomicLong(0);
+  private final AtomicLong sum = new AtomicLong(0);
+  private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+  private final AtomicLong max = new AtomicLong(0);
+
+  static int indexOf(long value) {
+    if (value < SUB_COUNT)
+      return (int) value;
+    final int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BITS - 1);
+    final int sub = (int) (value >>> shift);
+    return SUB_COUNT + (shift - 1) * HALF_COUNT + (sub - HALF_COUNT);
+  }
+
+  /**
+   * @return the largest value counted in the bucket at <code>index</code>
+   */
+  static long highestValueAt(int index) {
+    if (index < SUB_COUNT)
+      return index;
+    final int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+    final long sub = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  /**
+   * @param micros a latency, in microseconds; negative values count as 0
+   */
+  public void record(long micros) {
+    final long v = Math.max(0, micros);
+    this.counts.incrementAndGet(indexOf(v));
+    this.count.incrementAndGet();
+    this.sum.addAndGet(v);
+    this.min.accumulateAndGet(v, Math::min);
+    this.max.accumulateAndGet(v, Math::max);
+  }
+
+  public long getCount() {
+    return this.count.get();
+  }
+
+  /**
+   * @return the smallest recorded value, or 0 if nothing was recorded
+   */
+  public long getMin() {
+    return this.count.get() == 0 ? 0 : this.min.get();
+  }
+
+  public long getMax() {
+    return this.max.get();
+  }
+
+  /**
+   * @return the sum of recorded values
+   */
+  public long getSum() {
+    return this.sum.get();
+  }
+
+  public double getMean() {
+    final long n = this.count.get();
+    return n == 0 ? 0.0 : (double) this.sum.get() / n;
+  }
+
+  /**
+   * @param micros an upper bound, in microseconds
+   * @return the number of recorded values at or below <code>micros</code>;
+   * values in the bucket that straddles the bound are not counted, so this
+   * errs low by at most the histogram's resolution
+   */
+  public long getCountAtOrBelow(long micros) {
+    long n = 0;
+    for (int i = 0; i < N_BUCKETS && highestValueAt(i) <= micros; i++)
+      n += this.counts.get(i);
+    return n;
+  }
+
+  /**
+   * @param percentile a percentile between 0 and 100
+   * @return the value at or below which <code>percentile</code> percent of
+   * recorded values fall, or 0 if nothing was recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100)
+      throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+    long total = 0;
+    for (int i = 0; i < N_BUCKETS; i++)
+      total += this.counts.get(i);
+    if (total == 0)
+      return 0;
+
+    final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+    long seen = 0;
+    for (int i = 0; i < N_BUCKETS; i++) {
+      seen += this.counts.get(i);
+      if (seen >= rank)
+        return Math.min(highestValueAt(i), this.max.get());
+    }
+    return this.max.get();
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds metrics in the Prometheus text exposition format, version 0.0.4.
+ * <br>
+ * <br>
+ * Latencies from a {@link LatencyHistogram} are exposed as Prometheus
+ * histograms in seconds, with the fixed buckets {@link #BUCKETS_SECONDS}.
+ */
+public class PrometheusText {
+
+  /**
+   * The content type of the text format.
+   */
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  /**
+   * Upper bounds of the latency histogram buckets, in seconds.
+   */
+  public static final double[] BUCKETS_SECONDS = { 0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+      1, 2.5, 5, 10, 30, 60, 300 };
+
+  private final StringBuilder sb = new StringBuilder();
+
+  static String number(double v) {
+    if (Double.isNaN(v))
+      return "NaN";
+    if (Double.isInfinite(v))
+      return v > 0 ? "+Inf" : "-Inf";
+    if (v == Math.rint(v) && Math.abs(v) < 1e15)
+      return Long.toString((long) v);
+    return Double.toString(v);
+  }
+
+  static String escape(String labelValue) {
+    return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private void header(String name, String help, String type) {
+    this.sb.append("# HELP ").append(name).append(' ')
+        .append(help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+    this.sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private void sample(String name, String labels, double value) {
+    this.sb.append(name);
+    if (!labels.isEmpty())
+      this.sb.append('{').append(labels).append('}');
+    this.sb.append(' ').append(number(value)).append('\n');
+  }
+
+  private static String label(String name, String value) {
+    return name + "=\"" + escape(value) + "\"";
+  }
+
+  private static String join(String a, String b) {
+    return a.isEmpty() ? b : a + "," + b;
+  }
+
+  /**
+   * @param name the metric's name, by convention ending in <code>_total</code>
+   * @return this object
+   */
+  public PrometheusText counter(String name, String help, double value) {
+    this.header(name, help, "counter");
+    this.sample(name, "", value);
+    return this;
+  }
+
+  /**
+   * One counter per value of a label, under a single metric name.
+   *
+   * @param label the label's name, e.g. <code>reason</code>
+   * @param byLabel the counts, by label value
+   * @return this object
+   */
+  public PrometheusText counters(String name, String help, String label, Map<String, ? extends Number> byLabel) {
+    this.header(name, help, "counter");
+    for (Map.Entry<String, ? extends Number> e : byLabel.entrySet())
+      this.sample(name, label(label, e.getKey()), e.getValue().doubleValue());
+    return this;
+  }
+
+  /**
+   * @return this object
+   */
+  public PrometheusText gauge(String name, String help, double value) {
+    this.header(name, help, "gauge");
+    this.sample(name, "", value);
+    return this;
+  }
+
+  /**
+   * @return this object
+   */
+  public PrometheusText histogram(String name, String help, LatencyHistogram h) {
+    return this.histograms(name, help, "", Collections.singletonMap("", h));
+  }
+
+  /**
+   * One histogram per value of a label, under a single metric name.
+   *
+   * @param label the label's name, e.g. <code>annotator</code>
+   * @param byLabel the histograms, by label value
+   * @return this object
+   */
+  public PrometheusText histograms(String name, String help, String label, Map<String, LatencyHistogram> byLabel) {
+    this.header(name, help, "histogram");
+    for (Map.Entry<String, LatencyHistogram> e : byLabel.entrySet()) {
+      final String labels = label.isEmpty() ? "" : label(label, e.getKey());
+      final LatencyHistogram h = e.getValue();
+      final long count = h.getCount();
+      for (double le : BUCKETS_SECONDS)
+        this.sample(name + "_bucket", join(labels, label("le", number(le))),
+            Math.min(count, h.getCountAtOrBelow((long) (le * 1e6))));
+      this.sample(name + "_bucket", join(labels, label("le", "+Inf")), count);
+      this.sample(name + "_sum", labels, h.getSum() / 1e6);
+      this.sample(name + "_count", labels, count);
+    }
+    return this;
+  }
+
+  /**
+   * Add the JVM's heap use, garbage collections, and thread count.
+   *
+   * @return this object
+   */
+  public PrometheusText jvm() {
+    final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    this.gauge("jvm_memory_heap_used_bytes", "Used heap memory.", heap.getUsed());
+    this.gauge("jvm_memory_heap_committed_bytes", "Committed heap memory.", heap.getCommitted());
+    this.gauge("jvm_memory_heap_max_bytes", "Maximum heap memory, or -1 if undefined.", heap.getMax());
+
+    final List<GarbageCollectorMXBean> gcs = ManagementFactory.getGarbageCollectorMXBeans();
+    this.header("jvm_gc_collections_total", "Garbage collections, by collector.", "counter");
+    for (GarbageCollectorMXBean gc : gcs)
+      this.sample("jvm_gc_collections_total", label("gc", gc.getName()), Math.max(0, gc.getCollectionCount()));
+    this.header("jvm_gc_collection_seconds_total", "Time spent in garbage collection, by collector.", "counter");
+    for (GarbageCollectorMXBean gc : gcs)
+      this.sample("jvm_gc_collection_seconds_total", label("gc", gc.getName()), Math.max(0, gc.getCollectionTime()) / 1000.0);
+
+    this.gauge("jvm_threads_current", "Live threads.", ManagementFactory.getThreadMXBean().getThreadCount());
+    return this;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return this.sb.toString();
+  }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.jhu.hlt.concrete.Tokenization;
+import edu.jhu.hlt.concrete.miscommunication.tokenized.TokenizedCommunication;
+import edu.jhu.hlt.concrete.stanford.io.PartFiles;
+
+/**
+ * Statistics for one annotation run: per-document latency, throughput in
+ * documents, sentences, and tokens, bytes read and written, failures by
+ * exception type, and the slowest documents.
+ * <br>
+ * <br>
+ * All recording methods are thread-safe. The report is written as JSON with
+ * {@link #write(Path)}.
+ */
+public class RunReport {
+
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final LongAdder documents = new LongAdder();
+  private final LongAdder sentences = new LongAdder();
+  private final LongAdder tokens = new LongAdder();
+  private final LongAdder documentBytesIn = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final Map<String, LongAdder> failuresByType = new ConcurrentHashMap<>();
+
+  private final int slowestN;
+  // min-heap on latency; the root is the fastest of the slowest
+  private final PriorityQueue<SlowDocument> slowest;
+
+  private long startNanos;
+  private long stopNanos;
+  private long inputFileBytes = 0;
+  private long outputFileBytes = 0;
+
+  /**
+   * A document and how long it took to annotate.
+   */
+  public static class SlowDocument {
+    private final String id;
+    private final long micros;
+
+    SlowDocument(String id, long micros) {
+      this.id = id;
+      this.micros = micros;
+    }
+
+    public String getId() {
+      return this.id;
+    }
+
+    public long getMicros() {
+      return this.micros;
+    }
+  }
+
+  /**
+   * @param slowestN the number of slowest documents to keep
+   */
+  public RunReport(int slowestN) {
+    if (slowestN < 0)
+      throw new IllegalArgumentException("slowestN must not be negative");
+    this.slowestN = slowestN;
+    this.slowest = new PriorityQueue<>(Math.max(slowestN, 1), Comparator.comparingLong(SlowDocument::getMicros));
+    this.startNanos = System.nanoTime();
+    this.stopNanos = this.startNanos;
+  }
+
+  public RunReport() {
+    this(20);
+  }
+
+  /**
+   * @param output the run's output file
+   * @return the path of the report written next to it:
+   * <code>out.tar.gz</code> becomes <code>out.report.json</code>
+   */
+  public static Path reportPathFor(Path output) {
+    return output.resolveSibling(PartFiles.baseName(output) + ".report.json");
+  }
+
+  /**
+   * Mark the start of the run. A report starts when it is created.
+   */
+  public synchronized RunReport start() {
+    this.startNanos = System.nanoTime();
+    return this;
+  }
+
+  /**
+   * Mark the end of the run; throughput is computed up to this point.
+   */
+  public synchronized RunReport stop() {
+    this.stopNanos = System.nanoTime();
+    return this;
+  }
+
+  public synchronized RunReport setInputFileBytes(long bytes) {
+    this.inputFileBytes = bytes;
+    return this;
+  }
+
+  public synchronized RunReport setOutputFileBytes(long bytes) {
+    this.outputFileBytes = bytes;
+    return this;
+  }
+
+  /**
+   * @param bytes the serialized size of a document that was read
+   */
+  public void recordInput(long bytes) {
+    this.documentBytesIn.add(bytes);
+  }
+
+  /**
+   * Record a successfully annotated document.
+   *
+   * @param id the document's ID
+   * @param nanos how long it took to annotate
+   * @param nSentences the number of sentences in the document
+   * @param nTokens the number of tokens in the document
+   */
+  public void recordDocument(String id, long nanos, int nSentences, int nTokens) {
+    final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+    this.latency.record(micros);
+    this.documents.increment();
+    this.sentences.add(nSentences);
+    this.tokens.add(nTokens);
+    if (this.slowestN > 0) {
+      synchronized (this.slowest) {
+        if (this.slowest.size() < this.slowestN) {
+          this.slowest.add(new SlowDocument(id, micros));
+        } else if (this.slowest.peek().micros < micros) {
+          this.slowest.poll();
+          this.slowest.add(new SlowDocument(id, micros));
+        }
+      }
+    }
+  }
+
+  /**
+   * Record a successfully annotated document, counting its sentences and
+   * tokens.
+   */
+  public void recordDocument(TokenizedCommunication tc, long nanos) {
+    int nTokens = 0;
+    final List<Tokenization> tkzs = tc.getTokenizations();
+    for (Tokenization t : tkzs)
+      if (t.isSetTokenList())
+        nTokens += t.getTokenList().getTokenListSize();
+    this.recordDocument(tc.getRoot().getId(), nanos, tkzs.size(), nTokens);
+  }
+
+  /**
+   * Record a document that could not be annotated.
+   *
+   * @param t the cause, counted by its class name
+   */
+  public void recordFailure(Throwable t) {
+    this.failures.increment();
+    this.failuresByType.computeIfAbsent(t.getClass().getName(), k -> new LongAdder()).increment();
+  }
+
+  public long getDocuments() {
+    return this.documents.sum();
+  }
+
+  public long getSentences() {
+    return this.sentences.sum();
+  }
+
+  public long getTokens() {
+    return this.tokens.sum();
+  }
+
+  public long getFailures() {
+    return this.failures.sum();
+  }
+
+  public LatencyHistogram getLatency() {
+    return this.latency;
+  }
+
+  /**
+   * @return the elapsed time of the run, in seconds
+   */
+  public synchronized double getElapsedSeconds() {
+    return (this.stopNanos - this.startNanos) / 1e9;
+  }
+
+  /**
+   * @return the slowest documents, slowest first
+   */
+  public List<SlowDocument> getSlowest() {
+    List<SlowDocument> l;
+    synchronized (this.slowest) {
+      l = new ArrayList<>(this.slowest);
+    }
+    l.sort(Comparator.comparingLong(SlowDocument::getMicros).reversed());
+    return l;
+  }
+
+  private static double perSecond(long n, double seconds) {
+    return seconds > 0 ? n / seconds : 0.0;
+  }
+
+  private static String millis(long micros) {
+    return String.format(Locale.ROOT, "%.3f", micros / 1000.0);
+  }
+
+  private static String quote(String s) {
+    StringBuilder sb = new StringBuilder(s.length() + 2);
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      switch (c) {
+      case '"':
+        sb.append("\\\"");
+        break;
+      case '\\':
+        sb.append("\\\\");
+        break;
+      case '\n':
+        sb.append("\\n");
+        break;
+      case '\r':
+        sb.append("\\r");
+        break;
+      case '\t':
+        sb.append("\\t");
+        break;
+      default:
+        if (c < 0x20)
+          sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+        else
+          sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  /**
+   * @return the report as a JSON object
+   */
+  public String toJson() {
+    final double secs = this.getElapsedSeconds();
+    final long docs = this.getDocuments();
+    final long sents = this.getSentences();
+    final long toks = this.getTokens();
+    final long inFile;
+    final long outFile;
+    synchronized (this) {
+      inFile = this.inputFileBytes;
+      outFile = this.outputFileBytes;
+    }
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\n");
+    sb.append("  \"elapsed_seconds\": ").append(String.format(Locale.ROOT, "%.3f", secs)).append(",\n");
+    sb.append("  \"documents\": ").append(docs).append(",\n");
+    sb.append("  \"sentences\": ").append(sents).append(",\n");
+    sb.append("  \"tokens\": ").append(toks).append(",\n");
+    sb.append("  \"documents_per_second\": ").append(String.format(Locale.ROOT, "%.3f", perSecond(docs, secs))).append(",\n");
+    sb.append("  \"sentences_per_second\": ").append(String.format(Locale.ROOT, "%.3f", perSecond(sents, secs))).append(",\n");
+    sb.append("  \"tokens_per_second\": ").append(String.format(Locale.ROOT, "%.3f", perSecond(toks, secs))).append(",\n");
+    sb.append("  \"bytes_in\": { \"file\": ").append(inFile)
+        .append(", \"documents\": ").append(this.documentBytesIn.sum()).append(" },\n");
+    sb.append("  \"bytes_out\": { \"file\": ").append(outFile).append(" },\n");
+
+    sb.append("  \"latency_ms\": {");
+    sb.append(" \"count\": ").append(this.latency.getCount());
+    sb.append(", \"min\": ").append(millis(this.latency.getMin()));
+    sb.append(", \"mean\": ").append(String.format(Locale.ROOT, "%.3f", this.latency.getMean() / 1000.0));
+    sb.append(", \"p50\": ").append(millis(this.latency.getValueAtPercentile(50)));
+    sb.append(", \"p90\": ").append(millis(this.latency.getValueAtPercentile(90)));
+    sb.append(", \"p99\": ").append(millis(this.latency.getValueAtPercentile(99)));
+    sb.append(", \"p999\": ").append(millis(this.latency.getValueAtPercentile(99.9)));
+    sb.append(", \"max\": ").append(millis(this.latency.getMax()));
+    sb.append(" },\n");
+
+    sb.append("  \"failures\": ").append(this.getFailures()).append(",\n");
+    sb.append("  \"failures_by_type\": {");
+    // sorted for stable output
+    Map<String, LongAdder> byType = new TreeMap<>(this.failuresByType);
+    boolean first = true;
+    for (Map.Entry<String, LongAdder> e : byType.entrySet()) {
+      sb.append(first ? " " : ", ").append(quote(e.getKey())).append(": ").append(e.getValue().sum());
+      first = false;
+    }
+    sb.append(first ? "},\n" : " },\n");
+
+    sb.append("  \"slowest\": [");
+    first = true;
+    for (SlowDocument d : this.getSlowest()) {
+      sb.append(first ? "\n" : ",\n");
+      sb.append("    { \"id\": ").append(quote(d.id)).append(", \"latency_ms\": ").append(millis(d.micros)).append(" }");
+      first = false;
+    }
+    sb.append(first ? "]\n" : "\n  ]\n");
+    sb.append("}\n");
+    return sb.toString();
+  }
+
+  /**
+   * Write the report as JSON.
+   *
+   * @param p the file to write
+   * @throws IOException on error
+   */
+  public void write(Path p) throws IOException {
+    Files.write(p, this.toJson().getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,41 @@
+package edu.jhu.hlt.concrete.stanford.runners;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.analytics.base.Analytic;
+import edu.jhu.hlt.concrete.analytics.base.AnalyticException;
+import edu.jhu.hlt.concrete.miscommunication.WrappedCommunication;
+
+/**
+ * Runs a {@link Communication} through an ordered list of analytics,
+ * passing the root of each output to the next analytic.
+ */
+public class AnalyticChain {
+
+  private final Analytic<? extends WrappedCommunication> first;
+  private final ImmutableList<Analytic<? extends WrappedCommunication>> rest;
+
+  /**
+   * @param analytics the analytics to chain, in order. Must be non-empty.
+   */
+  public AnalyticChain(List<Analytic<? extends WrappedCommunication>> analytics) {
+    final int aSize = analytics.size();
+    if (aSize == 0)
+      throw new IllegalArgumentException("need >0 analytics");
+    this.first = analytics.get(0);
+    if (aSize > 1)
+      this.rest = ImmutableList.copyOf(analytics.subList(1, aSize));
+    else
+      this.rest = ImmutableList.of();
+  }
+
+  public WrappedCommunication annotate(Communication c) throws AnalyticException {
+    WrappedCommunication wc = this.first.annotate(c);
+    for (Analytic<? extends WrappedCommunication> a : this.rest)
+      wc = a.annotate(wc.getRoot());
+    return wc;
+  }
+}
@@ -0,0 +1,218 @@
+package edu.jhu.hlt.concrete.stanford.runners;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only record of the progress of a batch run, used to resume after
+ * a crash.
+ * <br>
+ * <br>
+ * The log holds one tab-separated record per line:
+ * <ul>
+ * <li><code>PART_OPEN &lt;part&gt;</code>: an output part was created</li>
+ * <li><code>DOC &lt;archive&gt; &lt;id&gt;</code>: a document was written to the open part</li>
+ * <li><code>ARCHIVE &lt;archive&gt;</code>: every document of an input archive was handled</li>
+ * <li><code>PART_DONE &lt;part&gt;</code>: the part was closed and synced to disk</li>
+ * </ul>
+ * <code>DOC</code> records belong to the most recently opened part; parts
+ * may be finished out of order. Documents only count as complete once
+ * their part is done, and archives once every part opened before them is
+ * done; anything written to a part that was never finished is redone on
+ * resume. Records may be appended from several threads. The log is
+ * synced at every <code>PART_DONE</code>
+ * and <code>ARCHIVE</code> record, and otherwise at most every
+ * {@code syncIntervalMillis}.
+ */
+public class CheckpointLog implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CheckpointLog.class);
+
+  private static final String PART_OPEN = "PART_OPEN";
+  private static final String DOC = "DOC";
+  private static final String ARCHIVE = "ARCHIVE";
+  private static final String PART_DONE = "PART_DONE";
+
+  private final FileOutputStream fos;
+  private final BufferedWriter writer;
+  private final long syncIntervalMillis;
+  private long lastSync = System.currentTimeMillis();
+
+  private final Set<String> completedArchives = new HashSet<>();
+  private final Map<String, Set<String>> completedDocs = new HashMap<>();
+  private final List<Path> incompleteParts = new ArrayList<>();
+  private int partsSeen = 0;
+
+  /**
+   * @param path the log file
+   * @param resume if true, read the existing log and append to it;
+   * otherwise the log must not exist yet
+   * @param syncIntervalMillis the maximum time between syncs of the log
+   * @throws IOException on error, or if the log exists and resume is false
+   */
+  public CheckpointLog(Path path, boolean resume, long syncIntervalMillis) throws IOException {
+    if (Files.exists(path)) {
+      if (!resume)
+        throw new IOException("Checkpoint log exists at: " + path.toString() + "; use --resume to continue that run.");
+      this.replay(path);
+    } else if (resume) {
+      LOGGER.warn("No checkpoint log at: {}; starting from the beginning.", path.toString());
+    }
+
+    this.syncIntervalMillis = syncIntervalMillis;
+    this.fos = new FileOutputStream(path.toFile(), true);
+    this.writer = new BufferedWriter(new OutputStreamWriter(this.fos, StandardCharsets.UTF_8));
+    // terminate a record cut short by a crash so it is not joined to the next one
+    if (this.endsMidLine(path))
+      this.writer.write('\n');
+  }
+
+  private boolean endsMidLine(Path path) throws IOException {
+    try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+      final long size = ch.size();
+      if (size == 0)
+        return false;
+      ByteBuffer last = ByteBuffer.allocate(1);
+      ch.read(last, size - 1);
+      return last.get(0) != '\n';
+    }
+  }
+
+  private void replay(Path path) throws IOException {
+    final List<Path> opened = new ArrayList<>();
+    final Set<Path> done = new HashSet<>();
+    final Map<Path, Map<String, Set<String>>> docsByPart = new HashMap<>();
+    // each finished archive, with the number of parts opened before it
+    final Map<String, Integer> archives = new HashMap<>();
+    Path latest = null;
+    for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+      String[] fields = line.split("\t", 3);
+      if (PART_OPEN.equals(fields[0]) && fields.length >= 2) {
+        latest = Paths.get(fields[1]);
+        opened.add(latest);
+      } else if (DOC.equals(fields[0]) && fields.length >= 3 && latest != null) {
+        docsByPart.computeIfAbsent(latest, k -> new HashMap<>())
+            .computeIfAbsent(fields[1], k -> new HashSet<>()).add(fields[2]);
+      } else if (ARCHIVE.equals(fields[0]) && fields.length >= 2) {
+        archives.put(fields[1], opened.size());
+      } else if (PART_DONE.equals(fields[0]) && fields.length >= 2) {
+        done.add(Paths.get(fields[1]));
+      } else {
+        // most likely a line cut short by a crash.
+        LOGGER.debug("Ignoring checkpoint record: {}", line);
+      }
+    }
+
+    int donePrefix = 0;
+    while (donePrefix < opened.size() && done.contains(opened.get(donePrefix)))
+      donePrefix++;
+    for (Path p : opened) {
+      if (done.contains(p))
+        docsByPart.getOrDefault(p, new HashMap<>())
+            .forEach((k, v) -> this.completedDocs.computeIfAbsent(k, x -> new HashSet<>()).addAll(v));
+      else
+        this.incompleteParts.add(p);
+    }
+    // an archive is complete once every part that could hold its documents is done
+    final int prefix = donePrefix;
+    archives.forEach((k, v) -> {
+      if (v <= prefix)
+        this.completedArchives.add(k);
+    });
+    this.partsSeen = opened.size();
+
+    LOGGER.info("Checkpoint: {} archives and {} documents in other archives already complete.",
+        this.completedArchives.size(), this.completedDocs.values().stream().mapToInt(Set::size).sum());
+  }
+
+  /**
+   * @return true if every document of the archive has been written to a finished part
+   */
+  public boolean isArchiveComplete(String archive) {
+    return this.completedArchives.contains(archive);
+  }
+
+  /**
+   * @return true if the document has been written to a finished part
+   */
+  public boolean isDocumentComplete(String archive, String id) {
+    Set<String> ids = this.completedDocs.get(archive);
+    return ids != null && ids.contains(id);
+  }
+
+  /**
+   * @return parts that were opened by an earlier run but never finished;
+   * their contents are redone and the files should be discarded
+   */
+  public List<Path> getIncompleteParts() {
+    return new ArrayList<>(this.incompleteParts);
+  }
+
+  /**
+   * @return the number of parts recorded by earlier runs, i.e. the number
+   * of the next part
+   */
+  public int getNextPartNumber() {
+    return this.partsSeen;
+  }
+
+  private synchronized void append(boolean sync, String... fields) throws IOException {
+    this.writer.write(String.join("\t", fields));
+    this.writer.write('\n');
+    final long now = System.currentTimeMillis();
+    if (sync || now - this.lastSync >= this.syncIntervalMillis) {
+      this.writer.flush();
+      this.fos.getChannel().force(false);
+      this.lastSync = now;
+    }
+  }
+
+  public synchronized void partOpened(Path part) throws IOException {
+    this.append(false, PART_OPEN, part.toAbsolutePath().toString());
+  }
+
+  public synchronized void documentDone(String archive, String id) throws IOException {
+    this.append(false, DOC, archive, id);
+  }
+
+  public synchronized void archiveDone(String archive) throws IOException {
+    this.append(true, ARCHIVE, archive);
+  }
+
+  /**
+   * Record that a part has been closed. Call only after the part's
+   * contents have been synced to disk.
+   */
+  public synchronized void partDone(Path part) throws IOException {
+    this.append(true, PART_DONE, part.toAbsolutePath().toString());
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    this.writer.flush();
+    this.fos.getChannel().force(false);
+    this.writer.close();
+  }
+}
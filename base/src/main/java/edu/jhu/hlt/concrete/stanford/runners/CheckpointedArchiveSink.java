@@ -0,0 +1,91 @@
+package edu.jhu.hlt.concrete.stanford.runners;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.stanford.io.ShardedArchiver;
+import edu.jhu.hlt.concrete.stanford.io.ShardedArchiver.ArchiverFactory;
+import edu.jhu.hlt.concrete.stanford.io.ShardedArchiver.Shard;
+import edu.jhu.hlt.concrete.stanford.io.ShardedArchiver.ShardListener;
+
+/**
+ * Writes annotated documents to a series of numbered output parts and
+ * records progress in a {@link CheckpointLog}.
+ * <br>
+ * <br>
+ * A part is finished, synced, and marked done when it reaches its
+ * document or byte limit and at the end of each input archive, so at most
+ * one part's worth of work is lost on a crash. Parts are opened lazily; no
+ * empty parts are written.
+ */
+public class CheckpointedArchiveSink implements CommunicationSink, AutoCloseable {
+
+  private final CheckpointLog log;
+  private final ShardedArchiver parts;
+  private String currentArchive = null;
+
+  /**
+   * @param log the checkpoint log to record progress in
+   * @param output the configured output path; parts are named after it
+   * @param maxDocs the maximum number of documents per part
+   * @param maxBytes the maximum serialized bytes per part, or 0 for no limit
+   * @param writerThreads the number of parts that can be written concurrently
+   * @param factory opens an archiver for each part
+   * @throws IOException if an earlier run's manifest could not be removed
+   */
+  public CheckpointedArchiveSink(CheckpointLog log, Path output, long maxDocs, long maxBytes,
+      int writerThreads, ArchiverFactory factory) throws IOException {
+    if (maxDocs < 1)
+      throw new IllegalArgumentException("need at least one document per part");
+    this.log = log;
+    this.parts = new ShardedArchiver(output, log.getNextPartNumber(), maxDocs, maxBytes, writerThreads,
+        factory, new ShardListener() {
+          @Override
+          public void shardOpened(Shard s) throws IOException {
+            log.partOpened(s.getPath());
+          }
+
+          @Override
+          public void shardFinished(Shard s) throws IOException {
+            log.partDone(s.getPath());
+          }
+        });
+  }
+
+  /**
+   * Set the input archive that subsequent documents come from. There must
+   * be no documents still in flight from the previous archive.
+   */
+  public void setCurrentArchive(String archive) {
+    this.currentArchive = archive;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see edu.jhu.hlt.concrete.stanford.runners.CommunicationSink#accept(edu.jhu.hlt.concrete.Communication)
+   */
+  @Override
+  public void accept(Communication c) throws IOException {
+    this.parts.addEntry(c);
+    this.log.documentDone(this.currentArchive, c.getId());
+  }
+
+  /**
+   * Record that every document of the current archive has been accepted,
+   * and finish the open part so the archive's progress becomes durable.
+   */
+  public void archiveDone() throws IOException {
+    this.log.archiveDone(this.currentArchive);
+    this.parts.rotate();
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() throws IOException {
+    this.parts.close();
+  }
+}
@@ -0,0 +1,13 @@
+package edu.jhu.hlt.concrete.stanford.runners;
+
+import java.io.IOException;
+
+import edu.jhu.hlt.concrete.Communication;
+
+/**
+ * Destination for annotated {@link Communication}s, e.g. an archive.
+ */
+@FunctionalInterface
+public interface CommunicationSink {
+  void accept(Communication c) throws IOException;
+}
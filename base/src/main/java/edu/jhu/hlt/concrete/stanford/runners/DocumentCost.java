@@ -0,0 +1,71 @@
+package edu.jhu.hlt.concrete.stanford.runners;
+
+import java.util.function.ToDoubleFunction;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Section;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.TextSpan;
+import edu.jhu.hlt.concrete.Tokenization;
+
+/**
+ * Rough estimates of how long a document will take to annotate, used to
+ * dispatch the most expensive documents first.
+ * <br>
+ * <br>
+ * Only the relative order of the estimates matters. Parsing dominates the
+ * cost and grows with the cube of sentence length, so when sentences are
+ * already tokenized each one is weighed by its token count cubed. Without
+ * tokenizations sentence lengths are unknown, and the estimate falls back
+ * to the length of the section text.
+ */
+public class DocumentCost {
+
+  private DocumentCost() {
+  }
+
+  /**
+   * @param tokenized true if input documents already carry tokenizations
+   * @return an estimator suited to the input
+   */
+  public static ToDoubleFunction<Communication> estimator(boolean tokenized) {
+    return tokenized ? DocumentCost::fromTokenizations : DocumentCost::fromText;
+  }
+
+  /**
+   * @return the number of characters covered by sections, or the length of
+   * the text if there are no sections
+   */
+  public static double fromText(Communication c) {
+    if (!c.isSetSectionList() || c.getSectionList().isEmpty())
+      return c.isSetText() ? c.getText().length() : 0;
+    double cost = 0;
+    for (Section s : c.getSectionList()) {
+      TextSpan ts = s.getTextSpan();
+      if (ts != null)
+        cost += Math.max(0, ts.getEnding() - ts.getStart());
+    }
+    return cost;
+  }
+
+  /**
+   * @return the sum over sentences of the cubed token count, or the text
+   * estimate if the document has no tokenizations
+   */
+  public static double fromTokenizations(Communication c) {
+    double cost = 0;
+    boolean found = false;
+    if (c.isSetSectionList())
+      for (Section s : c.getSectionList())
+        if (s.isSetSentenceList())
+          for (Sentence st : s.getSentenceList()) {
+            Tokenization t = st.getTokenization();
+            if (t != null && t.isSetTokenList()) {
+              final double n = t.getTokenList().getTokenListSize();
+              cost += n * n * n;
+              found = true;
+            }
+          }
+    return found ? cost : fromText(c);
+  }
+}
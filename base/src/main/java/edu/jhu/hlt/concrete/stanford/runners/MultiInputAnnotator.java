@@ -0,0 +1,210 @@
+package edu.jhu.hlt.concrete.stanford.runners;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToDoubleFunction;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import edu.jhu.hlt.acute.archivers.tar.TarArchiver;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.serialization.CompactCommunicationSerializer;
+import edu.jhu.hlt.concrete.serialization.archiver.ArchivableCommunication;
+import edu.jhu.hlt.concrete.serialization.iterators.TarArchiveEntryCommunicationIterator;
+import edu.jhu.hlt.concrete.serialization.iterators.TarGzArchiveEntryCommunicationIterator;
+import edu.jhu.hlt.concrete.stanford.io.InputFiles.Input;
+import edu.jhu.hlt.concrete.util.ConcreteException;
+
+/**
+ * Annotates many input files at once, with one output file per input.
+ * <br>
+ * <br>
+ * Several inputs are open at a time, each read on its own thread, and all
+ * of them feed documents to one shared work-stealing pool of workers. A
+ * worker takes whichever document is next, regardless of which input it
+ * came from, so a few very large archives at the end of the run still
+ * keep every worker busy. Each input's documents are written to its
+ * output in their original order.
+ */
+public class MultiInputAnnotator implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MultiInputAnnotator.class);
+
+  private final ExecutorService workers;
+  private final BlockingQueue<AnalyticChain> chains;
+  private final int openInputs;
+  private final int maxPendingPerInput;
+  private final boolean failFast;
+  private ToDoubleFunction<Communication> cost = null;
+  private int batchSize = 0;
+
+  /**
+   * @param chains one chain per worker thread
+   * @param openInputs the number of inputs read concurrently
+   * @param maxPendingPerInput the size of each input's reorder buffer; should be
+   * at least the number of chains so a single input can keep every worker busy
+   * @param failFast if true, the first analytic failure aborts the run
+   */
+  public MultiInputAnnotator(List<AnalyticChain> chains, int openInputs, int maxPendingPerInput, boolean failFast) {
+    if (chains.isEmpty())
+      throw new IllegalArgumentException("need >0 analytic chains");
+    if (openInputs < 1)
+      throw new IllegalArgumentException("need at least one open input");
+    this.chains = new ArrayBlockingQueue<>(chains.size(), false, chains);
+    this.workers = Executors.newWorkStealingPool(chains.size());
+    this.openInputs = openInputs;
+    this.maxPendingPerInput = maxPendingPerInput;
+    this.failFast = failFast;
+  }
+
+  /**
+   * Dispatch each archive's documents most expensive first; see
+   * {@link ParallelDocumentAnnotator#setLongestFirst(ToDoubleFunction, int)}.
+   *
+   * @return this object
+   */
+  public MultiInputAnnotator setLongestFirst(ToDoubleFunction<Communication> cost, int batchSize) {
+    if (batchSize < 1 || batchSize > this.maxPendingPerInput)
+      throw new IllegalArgumentException("batch size must be between 1 and the reorder buffer size");
+    this.cost = cost;
+    this.batchSize = batchSize;
+    return this;
+  }
+
+  /**
+   * Annotate every input, writing each to <code>outputDir</code> under its
+   * relative path. Archives are written in the same format as the input;
+   * single Communication files are written as single files.
+   *
+   * @throws IOException if two inputs share a relative path, so would be
+   * written to the same output; or on the first input that fails
+   */
+  public void run(List<Input> inputs, Path outputDir) throws IOException {
+    checkDistinctOutputs(inputs);
+    final ConcurrentLinkedQueue<Input> todo = new ConcurrentLinkedQueue<>(inputs);
+    final AtomicBoolean failed = new AtomicBoolean(false);
+    final int nReaders = Math.min(this.openInputs, inputs.size());
+    ExecutorService readers = Executors.newFixedThreadPool(Math.max(nReaders, 1),
+        new ThreadFactoryBuilder().setNameFormat("stanford-reader-%d").setDaemon(true).build());
+    try {
+      List<Future<Void>> futures = new ArrayList<>(nReaders);
+      for (int i = 0; i < nReaders; i++)
+        futures.add(readers.submit(() -> {
+          Input in;
+          while (!failed.get() && (in = todo.poll()) != null) {
+            try {
+              this.annotate(in, outputDir.resolve(in.getRelativePath()));
+            } catch (IOException | ConcreteException | RuntimeException e) {
+              failed.set(true);
+              throw e;
+            }
+          }
+          return null;
+        }));
+
+      for (Future<Void> f : futures)
+        f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while annotating inputs.", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new IOException(cause);
+    } finally {
+      readers.shutdownNow();
+    }
+  }
+
+  /**
+   * Fail before anything is written if two inputs, e.g. <code>/a/x.tar.gz</code>
+   * and <code>/b/x.tar.gz</code>, would be written to the same output.
+   */
+  static void checkDistinctOutputs(List<Input> inputs) throws IOException {
+    Map<Path, Input> outputs = new HashMap<>();
+    for (Input in : inputs) {
+      Input prev = outputs.putIfAbsent(in.getRelativePath().normalize(), in);
+      if (prev != null)
+        throw new IOException("Inputs " + prev.getPath() + " and " + in.getPath()
+            + " would both be written to " + in.getRelativePath() + "; pass them in separate runs.");
+    }
+  }
+
+  private void annotate(Input in, Path out) throws IOException, ConcreteException {
+    LOGGER.info("Annotating input: {} -> {}", in.getPath().toString(), out.toString());
+    if (out.getParent() != null)
+      Files.createDirectories(out.getParent());
+
+    if (!in.isArchive()) {
+      final CompactCommunicationSerializer ser = new CompactCommunicationSerializer();
+      Communication c = ser.fromBytes(Files.readAllBytes(in.getPath()));
+      try (ParallelDocumentAnnotator pda = new ParallelDocumentAnnotator(this.workers, this.chains,
+          1, this.failFast, a -> {
+            try {
+              Files.write(out, ser.toBytes(a));
+            } catch (ConcreteException e) {
+              throw new IOException("Error serializing communication: " + a.getId(), e);
+            }
+          });) {
+        pda.submit(c);
+        pda.flush();
+      }
+      return;
+    }
+
+    try (InputStream is = Files.newInputStream(in.getPath());
+        BufferedInputStream bis = new BufferedInputStream(is, 1024 * 8 * 24);
+        BufferedOutputStream bos = new BufferedOutputStream(Files.newOutputStream(out), 1024 * 8 * 24);
+        TarArchiver arch = in.isTar() ? new TarArchiver(bos) : new TarArchiver(new GzipCompressorOutputStream(bos));
+        ParallelDocumentAnnotator pda = new ParallelDocumentAnnotator(this.workers, this.chains,
+            this.maxPendingPerInput, this.failFast, a -> arch.addEntry(new ArchivableCommunication(a)));) {
+      if (this.cost != null)
+        pda.setLongestFirst(this.cost, this.batchSize);
+      Iterator<Communication> iter = in.isTar() ? new TarArchiveEntryCommunicationIterator(bis)
+          : new TarGzArchiveEntryCommunicationIterator(bis);
+      while (iter.hasNext())
+        pda.submit(iter.next());
+      pda.flush();
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() {
+    this.workers.shutdownNow();
+    try {
+      if (!this.workers.awaitTermination(30, TimeUnit.SECONDS))
+        LOGGER.warn("Worker threads did not terminate after 30 seconds.");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
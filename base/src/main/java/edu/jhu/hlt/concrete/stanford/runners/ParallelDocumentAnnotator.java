@@ -0,0 +1,245 @@
+package edu.jhu.hlt.concrete.stanford.runners;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.analytics.base.AnalyticException;
+
+/**
+ * Annotates documents on a pool of worker threads, each of which borrows
+ * its own {@link AnalyticChain}, and hands the results to a
+ * {@link CommunicationSink} in submission order.
+ * <br>
+ * <br>
+ * At most {@code maxPending} documents are in flight or waiting for an
+ * earlier document to finish; {@link #submit(Communication)} blocks on the
+ * oldest document once that limit is reached. This bounds memory while
+ * keeping the output identical to a serial run.
+ * <br>
+ * <br>
+ * With {@link #setLongestFirst(ToDoubleFunction, int)}, documents are
+ * collected into batches and each batch is dispatched most expensive
+ * first, so that a few long documents do not run alone at the end. Output
+ * is still in submission order; the price is a larger reorder buffer.
+ */
+public class ParallelDocumentAnnotator implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ParallelDocumentAnnotator.class);
+
+  private final ExecutorService workers;
+  private final BlockingQueue<AnalyticChain> chains;
+  private final Deque<Pending> pending = new ArrayDeque<>();
+  private final int maxPending;
+  private final boolean failFast;
+  private final CommunicationSink sink;
+  private final boolean ownsWorkers;
+
+  private ToDoubleFunction<Communication> cost = null;
+  private int batchSize = 0;
+  private final List<Communication> batch = new ArrayList<>();
+
+  private static class Pending {
+    private final String id;
+    private final Future<Communication> result;
+
+    Pending(String id, Future<Communication> result) {
+      this.id = id;
+      this.result = result;
+    }
+  }
+
+  /**
+   * @param chains one chain per worker thread
+   * @param maxPending the size of the reorder buffer; must be at least the number of chains
+   * @param failFast if true, the first {@link AnalyticException} aborts the run
+   * @param sink receives annotated documents in submission order
+   */
+  public ParallelDocumentAnnotator(List<AnalyticChain> chains, int maxPending,
+      boolean failFast, CommunicationSink sink) {
+    final int nWorkers = chains.size();
+    if (nWorkers == 0)
+      throw new IllegalArgumentException("need >0 analytic chains");
+    if (maxPending < nWorkers)
+      throw new IllegalArgumentException("reorder buffer (" + maxPending + ") must be at least the number of workers (" + nWorkers + ")");
+    this.chains = new ArrayBlockingQueue<>(nWorkers, false, chains);
+    this.maxPending = maxPending;
+    this.failFast = failFast;
+    this.sink = sink;
+    this.workers = Executors.newFixedThreadPool(nWorkers,
+        new ThreadFactoryBuilder().setNameFormat("stanford-worker-%d").setDaemon(true).build());
+    this.ownsWorkers = true;
+  }
+
+  /**
+   * Share a pool of workers and chains with other annotators, e.g. one per
+   * input file. The pool is not shut down by {@link #close()}.
+   *
+   * @param workers the shared workers; should have no more threads than there are chains
+   * @param chains the shared chains
+   * @param maxPending the size of this annotator's reorder buffer
+   * @param failFast if true, the first {@link AnalyticException} aborts the run
+   * @param sink receives annotated documents in submission order
+   */
+  public ParallelDocumentAnnotator(ExecutorService workers, BlockingQueue<AnalyticChain> chains,
+      int maxPending, boolean failFast, CommunicationSink sink) {
+    if (maxPending < 1)
+      throw new IllegalArgumentException("reorder buffer must be positive");
+    this.workers = workers;
+    this.chains = chains;
+    this.maxPending = maxPending;
+    this.failFast = failFast;
+    this.sink = sink;
+    this.ownsWorkers = false;
+  }
+
+  /**
+   * Dispatch documents in batches, most expensive first, rather than in
+   * submission order. A new batch can only start once the reorder buffer has
+   * room for all of it, so the buffer should be about twice the batch size to
+   * keep workers busy across batches.
+   *
+   * @param cost estimates the relative cost of a document; see {@link DocumentCost}
+   * @param batchSize the number of documents reordered together; at most the
+   * size of the reorder buffer
+   * @return this object
+   */
+  public ParallelDocumentAnnotator setLongestFirst(ToDoubleFunction<Communication> cost, int batchSize) {
+    if (batchSize < 1 || batchSize > this.maxPending)
+      throw new IllegalArgumentException("batch size (" + batchSize + ") must be between 1 and the reorder buffer size (" + this.maxPending + ")");
+    this.cost = cost;
+    this.batchSize = batchSize;
+    return this;
+  }
+
+  private Communication annotate(Communication c) throws AnalyticException, InterruptedException {
+    AnalyticChain chain = this.chains.take();
+    try {
+      LOGGER.debug("Annotating communication: {}", c.getId());
+      return chain.annotate(c).getRoot();
+    } finally {
+      // never blocks: the queue has room for every chain
+      this.chains.offer(chain);
+    }
+  }
+
+  /**
+   * Queue a document for annotation. Any documents at the head of the
+   * buffer that have finished are written out before returning.
+   *
+   * @throws IOException if writing fails, or on an analytic failure with fail-fast enabled
+   */
+  public void submit(final Communication c) throws IOException {
+    if (this.cost != null) {
+      this.batch.add(c);
+      if (this.batch.size() >= this.batchSize)
+        this.dispatchBatch();
+    } else {
+      while (this.pending.size() >= this.maxPending)
+        this.emitHead();
+      Future<Communication> f = this.workers.submit(() -> this.annotate(c));
+      this.pending.addLast(new Pending(c.getId(), f));
+    }
+    while (!this.pending.isEmpty() && this.pending.peekFirst().result.isDone())
+      this.emitHead();
+  }
+
+  /**
+   * Queue the current batch in submission order, but hand it to the workers
+   * most expensive first.
+   */
+  private void dispatchBatch() throws IOException {
+    while (!this.pending.isEmpty() && this.pending.size() + this.batch.size() > this.maxPending)
+      this.emitHead();
+    final int n = this.batch.size();
+    final List<FutureTask<Communication>> tasks = new ArrayList<>(n);
+    final double[] costs = new double[n];
+    final List<Integer> order = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      final Communication c = this.batch.get(i);
+      FutureTask<Communication> t = new FutureTask<>(() -> this.annotate(c));
+      tasks.add(t);
+      costs[i] = this.cost.applyAsDouble(c);
+      order.add(i);
+      this.pending.addLast(new Pending(c.getId(), t));
+    }
+    this.batch.clear();
+    // stable, so equal costs keep submission order
+    order.sort(Comparator.comparingDouble((Integer i) -> costs[i]).reversed());
+    for (int i : order)
+      this.workers.execute(tasks.get(i));
+  }
+
+  /**
+   * Block until every submitted document has been written to the sink.
+   */
+  public void flush() throws IOException {
+    if (!this.batch.isEmpty())
+      this.dispatchBatch();
+    while (!this.pending.isEmpty())
+      this.emitHead();
+  }
+
+  private void emitHead() throws IOException {
+    Pending p = this.pending.removeFirst();
+    try {
+      this.sink.accept(p.result.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting on document: " + p.id, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof AnalyticException) {
+        LOGGER.warn("Caught exception on document: " + p.id, cause);
+        if (this.failFast)
+          throw new IOException("Processing failure and fail-fast enabled");
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new IOException("Caught exception on document: " + p.id, cause);
+      }
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() {
+    this.batch.clear();
+    if (!this.ownsWorkers) {
+      // leave the shared pool running, but do not annotate abandoned documents.
+      this.pending.forEach(p -> p.result.cancel(true));
+      this.pending.clear();
+      return;
+    }
+    this.workers.shutdownNow();
+    try {
+      if (!this.workers.awaitTermination(30, TimeUnit.SECONDS))
+        LOGGER.warn("Worker threads did not terminate after 30 seconds.");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -1,14 +1,19 @@
 package edu.jhu.hlt.concrete.stanford.runners;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.apache.commons.lang3.time.StopWatch;
 import org.joda.time.Duration;
 import org.slf4j.Logger;
@@ -20,12 +25,13 @@ import com.google.common.collect.ImmutableList;
 
 import edu.jhu.hlt.acute.archivers.tar.TarArchiver;
 import edu.jhu.hlt.concrete.Communication;
-import edu.jhu.hlt.concrete.analytics.base.Analytic;
-import edu.jhu.hlt.concrete.analytics.base.AnalyticException;
 import edu.jhu.hlt.concrete.ingesters.base.IngesterParameterDelegate;
-import edu.jhu.hlt.concrete.miscommunication.WrappedCommunication;
 import edu.jhu.hlt.concrete.serialization.archiver.ArchivableCommunication;
 import edu.jhu.hlt.concrete.serialization.iterators.TarGzArchiveEntryCommunicationIterator;
+import edu.jhu.hlt.concrete.stanford.io.InputFiles;
+import edu.jhu.hlt.concrete.stanford.io.InputFiles.Input;
+import edu.jhu.hlt.concrete.stanford.io.ParallelGzipOutputStream;
+import edu.jhu.hlt.concrete.stanford.io.ShardedArchiver;
 import edu.jhu.hlt.concrete.stanford.languages.PipelineLanguage;
 
 public class StanfordOpts {
@@ -38,10 +44,69 @@ public class StanfordOpts {
   @ParametersDelegate
   private IngesterParameterDelegate ingesterParams = new IngesterParameterDelegate();
 
-  @Parameter(description = "/path/to/1.tar.gz /path/to/2.tar.gz ...",
+  @Parameter(description = "/path/to/1.tar.gz /path/to/dir '/path/to/*/*.tar.gz' ...",
       required = true)
   private List<String> paths;
 
+  @Parameter(names = "--output-dir",
+      description = "Write one output per input file into this directory, keeping each input's relative path. "
+          + "All inputs, including .tar and .comm files, share one work-stealing pool of --threads workers.")
+  private String outputDir = null;
+
+  @Parameter(names = "--open-inputs",
+      description = "With --output-dir, the number of input files read concurrently. Defaults to --threads.")
+  private int openInputs = 0;
+
+  @Parameter(names = "--threads",
+      description = "Number of documents to annotate concurrently. Each worker thread gets its own analytic chain.")
+  private int threads = 1;
+
+  @Parameter(names = "--reorder-buffer",
+      description = "Maximum number of documents in flight or waiting to be written in input order. Defaults to 4x --threads, "
+          + "or 8x with --schedule longest-first.")
+  private int reorderBuffer = 0;
+
+  @Parameter(names = "--schedule",
+      description = "Order in which documents are handed to workers: 'input', or 'longest-first' to dispatch the most "
+          + "expensive documents of each batch first. Output order is unchanged.")
+  private String schedule = "input";
+
+  @Parameter(names = "--schedule-batch",
+      description = "With --schedule longest-first, the number of documents reordered together. Defaults to half the reorder buffer.")
+  private int scheduleBatch = 0;
+
+  @Parameter(names = "--compression-threads",
+      description = "Number of threads used to gzip the output archive. Values above 1 write independently compressed blocks.")
+  private int compressionThreads = 1;
+
+  @Parameter(names = "--block-index",
+      description = "With --compression-threads > 1, also write a block offset index next to the output archive.")
+  private boolean blockIndex = false;
+
+  @Parameter(names = "--shard-max-docs",
+      description = "Split the output into numbered shards of at most this many documents. 0 means no limit.")
+  private long shardMaxDocs = 0;
+
+  @Parameter(names = "--shard-max-bytes",
+      description = "Split the output into numbered shards of at most this many serialized (uncompressed) bytes. 0 means no limit.")
+  private long shardMaxBytes = 0;
+
+  @Parameter(names = "--shard-writers",
+      description = "Number of output shards that can be compressed and written concurrently.")
+  private int shardWriters = 2;
+
+  @Parameter(names = "--checkpoint-log",
+      description = "Record progress in this append-only log and write output as numbered parts, so an interrupted run can be resumed.")
+  private String checkpointLog = null;
+
+  @Parameter(names = "--checkpoint-docs",
+      description = "With --checkpoint-log, finish the current output part after this many documents, unless --shard-max-docs is set. Parts are also finished at the end of each input archive.")
+  private int checkpointDocs = 1000;
+
+  @Parameter(names = "--resume",
+      description = "Continue the run recorded in --checkpoint-log, skipping completed archives and documents and writing new output parts.")
+  private boolean resume = false;
+
   public void handleStdError() throws UnsupportedEncodingException {
     this.stanfordParams.handleStdErr();
   }
@@ -54,17 +119,52 @@ public class StanfordOpts {
     return this.ingesterParams.help;
   }
 
+  /**
+   * Expand the input arguments, which may be files, directories, or globs,
+   * into the <code>.tar.gz</code> archives to process.
+   */
   public List<Path> validatePaths() throws IOException {
     ImmutableList.Builder<Path> pb = ImmutableList.builder();
-    for (String pathStr : this.paths) {
-      Path p = Paths.get(pathStr);
-      if (!Files.exists(p))
-        throw new IOException("No file at: " + p.toString());
-      pb.add(p);
-    }
+    for (Input i : InputFiles.expand(this.paths, ".tar.gz", ".tgz"))
+      pb.add(i.getPath());
     return pb.build();
   }
 
+  private TarArchiver openArchiver() throws IOException {
+    if (this.compressionThreads <= 1)
+      return this.ingesterParams.getArchiver();
+    return this.openArchiver(this.ingesterParams.outputPath);
+  }
+
+  private TarArchiver openArchiver(Path out) throws IOException {
+    OutputStream os = new BufferedOutputStream(Files.newOutputStream(out));
+    if (this.compressionThreads <= 1)
+      return new TarArchiver(new GzipCompressorOutputStream(os));
+    Optional<Path> idx = this.blockIndex ? Optional.of(ParallelGzipOutputStream.indexPathFor(out)) : Optional.empty();
+    return new TarArchiver(new ParallelGzipOutputStream(os, this.compressionThreads, idx));
+  }
+
+  private boolean isLongestFirst() throws IOException {
+    if ("longest-first".equals(this.schedule))
+      return true;
+    if ("input".equals(this.schedule))
+      return false;
+    throw new IOException("Unknown --schedule: " + this.schedule + "; expected 'input' or 'longest-first'");
+  }
+
+  private int scheduleBatch(int window) {
+    return this.scheduleBatch > 0 ? this.scheduleBatch : Math.max(1, window / 2);
+  }
+
+  private ParallelDocumentAnnotator newAnnotator(List<AnalyticChain> chains, int window, CommunicationSink sink)
+      throws IOException {
+    ParallelDocumentAnnotator pda = new ParallelDocumentAnnotator(chains, window,
+        this.stanfordParams.exitOnException, sink);
+    if (this.isLongestFirst())
+      pda.setLongestFirst(DocumentCost.estimator(this.stanfordParams.expectsTokenizedInput()), this.scheduleBatch(window));
+    return pda;
+  }
+
   /**
    *
    * @param lang
@@ -74,48 +174,124 @@ public class StanfordOpts {
   public void pipeline(PipelineLanguage lang) throws IOException {
     if (this.noPaths())
       throw new IOException("No paths specified");
-    List<Analytic<? extends WrappedCommunication>> analytics =
-        this.stanfordParams.getAnalytics(lang);
-    // pull out the first analytic to get into the interface
-    // e.g. Comm -> WrappedComm
-    Analytic<? extends WrappedCommunication> first = analytics.get(0);
-    List<Analytic<? extends WrappedCommunication>> rest;
-    if (analytics.size() > 1)
-      rest = analytics.subList(1, analytics.size());
-    else
-      rest = ImmutableList.of();
-    this.ingesterParams.prepare();
+    if (this.threads < 1)
+      throw new IOException("--threads must be at least 1");
+    if (this.resume && this.checkpointLog == null)
+      throw new IOException("--resume requires --checkpoint-log");
+    // each worker gets its own chain
+    this.stanfordParams.setWorkers(this.threads);
+    List<AnalyticChain> chains = new ArrayList<>(this.threads);
+    for (int i = 0; i < this.threads; i++)
+      chains.add(new AnalyticChain(this.stanfordParams.getAnalytics(lang)));
+    final boolean longestFirst = this.isLongestFirst();
+    final int window = this.reorderBuffer > 0 ? this.reorderBuffer : (longestFirst ? 8 : 4) * this.threads;
+    if (longestFirst && this.scheduleBatch(window) > window)
+      throw new IOException("--schedule-batch must not exceed the reorder buffer");
+    if (this.outputDir != null && (this.checkpointLog != null || this.shardMaxDocs > 0 || this.shardMaxBytes > 0))
+      throw new IOException("--output-dir cannot be combined with --checkpoint-log or sharding");
+    if (this.outputDir == null)
+      this.ingesterParams.prepare();
     LOGGER.info("Ingest beginning");
     StopWatch sw = new StopWatch();
     sw.start();
-    try (TarArchiver arch = this.ingesterParams.getArchiver();) {
+    if (this.outputDir != null)
+      this.perInputPipeline(chains, window);
+    else if (this.checkpointLog != null)
+      this.checkpointedPipeline(chains, window);
+    else if (this.shardMaxDocs > 0 || this.shardMaxBytes > 0)
+      this.shardedPipeline(chains, window);
+    else
+      this.monolithicPipeline(chains, window);
+
+    sw.stop();
+    LOGGER.info("Ingest completed");
+    this.stanfordParams.getSentenceMemo().ifPresent(m ->
+        LOGGER.info("Sentence memo: {} hits, {} misses, {} sentences held.", m.getHits(), m.getMisses(), m.size()));
+    Duration d = new Duration(sw.getTime());
+    LOGGER.info("Ingest duration: {}", d.toString());
+  }
+
+  private void monolithicPipeline(List<AnalyticChain> chains, int window) throws IOException {
+    try (TarArchiver arch = this.openArchiver();
+        ParallelDocumentAnnotator pda = this.newAnnotator(chains, window,
+            c -> arch.addEntry(new ArchivableCommunication(c)));) {
       for (Path p : this.validatePaths()) {
+        try (InputStream in = Files.newInputStream(p);
+            BufferedInputStream bin = new BufferedInputStream(in);
+            TarGzArchiveEntryCommunicationIterator iter = new TarGzArchiveEntryCommunicationIterator(bin);) {
+          while (iter.hasNext())
+            pda.submit(iter.next());
+        }
+      }
+      // write out anything still in the reorder buffer
+      pda.flush();
+    }
+  }
+
+  private void perInputPipeline(List<AnalyticChain> chains, int window) throws IOException {
+    List<Input> inputs = InputFiles.expand(this.paths, InputFiles.ALL_EXTENSIONS);
+    final int nOpen = this.openInputs > 0 ? this.openInputs : this.threads;
+    try (MultiInputAnnotator mia = new MultiInputAnnotator(chains, nOpen, window, this.stanfordParams.exitOnException)) {
+      if (this.isLongestFirst())
+        mia.setLongestFirst(DocumentCost.estimator(this.stanfordParams.expectsTokenizedInput()), this.scheduleBatch(window));
+      mia.run(inputs, Paths.get(this.outputDir));
+    }
+  }
+
+  private void shardedPipeline(List<AnalyticChain> chains, int window) throws IOException {
+    try (ShardedArchiver shards = new ShardedArchiver(this.ingesterParams.outputPath,
+        this.shardMaxDocs, this.shardMaxBytes, this.shardWriters, this::openArchiver);
+        ParallelDocumentAnnotator pda = this.newAnnotator(chains, window, c -> shards.addEntry(c));) {
+      for (Path p : this.validatePaths()) {
+        try (InputStream in = Files.newInputStream(p);
+            BufferedInputStream bin = new BufferedInputStream(in);
+            TarGzArchiveEntryCommunicationIterator iter = new TarGzArchiveEntryCommunicationIterator(bin);) {
+          while (iter.hasNext())
+            pda.submit(iter.next());
+        }
+      }
+      pda.flush();
+    }
+  }
+
+  private void checkpointedPipeline(List<AnalyticChain> chains, int window) throws IOException {
+    final Path logPath = Paths.get(this.checkpointLog);
+    try (CheckpointLog log = new CheckpointLog(logPath, this.resume, 10 * 1000L);
+        CheckpointedArchiveSink sink = new CheckpointedArchiveSink(log, this.ingesterParams.outputPath,
+            this.shardMaxDocs > 0 ? this.shardMaxDocs : this.checkpointDocs, this.shardMaxBytes,
+            this.shardWriters, this::openArchiver);
+        ParallelDocumentAnnotator pda = this.newAnnotator(chains, window, sink);) {
+      for (Path part : log.getIncompleteParts()) {
+        LOGGER.info("Removing unfinished output part: {}", part.toString());
+        Files.deleteIfExists(part);
+      }
+
+      for (Path p : this.validatePaths()) {
+        final String archive = p.toAbsolutePath().normalize().toString();
+        if (log.isArchiveComplete(archive)) {
+          LOGGER.info("Skipping completed archive: {}", archive);
+          continue;
+        }
+
+        sink.setCurrentArchive(archive);
+        int skipped = 0;
         try (InputStream in = Files.newInputStream(p);
             BufferedInputStream bin = new BufferedInputStream(in);
             TarGzArchiveEntryCommunicationIterator iter = new TarGzArchiveEntryCommunicationIterator(bin);) {
           while (iter.hasNext()) {
             Communication c = iter.next();
-            try {
-              WrappedCommunication wc = first.annotate(c);
-              // chain add'l analytics
-              for (Analytic<? extends WrappedCommunication> a : rest) {
-                wc = a.annotate(wc.getRoot());
-              }
-              // write output
-              arch.addEntry(new ArchivableCommunication(wc.getRoot()));
-            } catch (AnalyticException ae) {
-              LOGGER.warn("Caught exception on document", ae);
-              if (this.stanfordParams.exitOnException)
-                throw new IOException("Processing failure and fail-fast enabled");
-            }
+            if (log.isDocumentComplete(archive, c.getId()))
+              skipped++;
+            else
+              pda.submit(c);
           }
         }
+        if (skipped > 0)
+          LOGGER.info("Skipped {} completed documents in archive: {}", skipped, archive);
+
+        pda.flush();
+        sink.archiveDone();
       }
     }
-
-    sw.stop();
-    LOGGER.info("Ingest completed");
-    Duration d = new Duration(sw.getTime());
-    LOGGER.info("Ingest duration: {}", d.toString());
   }
 }
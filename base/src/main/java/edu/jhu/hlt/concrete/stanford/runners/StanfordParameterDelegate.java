@@ -2,18 +2,36 @@ package edu.jhu.hlt.concrete.stanford.runners;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.beust.jcommander.Parameter;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import edu.jhu.hlt.concrete.analytics.base.Analytic;
 import edu.jhu.hlt.concrete.miscommunication.WrappedCommunication;
+import edu.jhu.hlt.concrete.miscommunication.tokenized.TokenizedCommunication;
+import edu.jhu.hlt.concrete.stanford.AnnotationBudget;
+import edu.jhu.hlt.concrete.stanford.AnnotatorPool;
+import edu.jhu.hlt.concrete.stanford.ConcreteStanfordPreCorefAnalytic;
+import edu.jhu.hlt.concrete.stanford.cache.AnnotationCache;
+import edu.jhu.hlt.concrete.stanford.cache.CachingAnalytic;
+import edu.jhu.hlt.concrete.stanford.cache.SentenceMemo;
 import edu.jhu.hlt.concrete.stanford.languages.PipelineLanguage;
+import edu.jhu.hlt.concrete.stanford.languages.PipelineProfile;
+import edu.jhu.hlt.concrete.stanford.metrics.AnnotatorTimings;
 import edu.jhu.hlt.utilt.sys.SystemErrDisabler;
 
 /**
@@ -28,6 +46,11 @@ public class StanfordParameterDelegate {
   @Parameter(names = "--fail-fast", description="Stop with a non-zero status code on the first exception. Useful if each document is expected to be successfully processed.")
   boolean exitOnException = false;
 
+  @Parameter(names = "--profile", converter = ProfileConverter.class,
+      description = "Trade accuracy for speed: accurate (PCFG parser, full NER), balanced (shift-reduce parser), "
+          + "or fast (neural dependency parser only, lighter NER, no coref).")
+  PipelineProfile pipelineProfile = PipelineProfile.ACCURATE;
+
   @Parameter(names = "--tokenized-input", description="If true, assume input has already been tokenized.")
   boolean isInputTokenized = false;
 
@@ -42,29 +65,197 @@ public class StanfordParameterDelegate {
       description = "Enable standard error. By default, Stanford prints a lot of output to std err.")
   boolean isStdErrEnabled = false;
 
+  @Parameter(names = "--sentence-timeout-ms",
+      description = "Give up on a sentence in an annotator (pos, ner, parse) after this many milliseconds; the parser then emits a flat tree. 0 means no limit.")
+  long sentenceTimeoutMillis = 0;
+
+  @Parameter(names = "--document-timeout-ms",
+      description = "Stop the expensive annotators (parse, coref) on a document after this many milliseconds and emit it with the annotations finished so far. 0 means no limit.")
+  long documentTimeoutMillis = 0;
+
+  @Parameter(names = "--parse-max-length",
+      description = "Do not parse sentences with more than this many tokens; they get a flat tree. 0 means no limit.")
+  int parseMaxLength = 0;
+
+  @Parameter(names = "--cache-dir",
+      description = "Keep annotations in this directory, keyed by a hash of the document text and sections, "
+          + "and reuse them for documents seen before, even under a new ID.")
+  String cacheDir = null;
+
+  @Parameter(names = "--cache-max-bytes",
+      description = "With --cache-dir, the maximum size of the cache; least recently used entries are removed first.")
+  long cacheMaxBytes = 4L * 1024 * 1024 * 1024;
+
+  @Parameter(names = "--sentence-memo",
+      description = "Remember the annotations of up to this many distinct sentences and reuse them when a sentence "
+          + "repeats, e.g. datelines and boilerplate. 0 disables.")
+  long sentenceMemoSize = 0;
+
+  @Parameter(names = "--incremental",
+      description = "Only run the annotators whose Stanford output is missing from each document, e.g. to add "
+          + "coreference to an archive that is already parsed. Implies --tokenized-input.")
+  boolean isIncremental = false;
+
+  @Parameter(names = "--single-pass",
+      description = "Tokenize and annotate each document in one step, without converting the tokenized document "
+          + "to Concrete and back in between. The output is the same.")
+  boolean isSinglePass = false;
+
+  @Parameter(names = "--in-place",
+      description = "Annotate each document without first copying it. Saves memory and time on large documents; "
+          + "the runners never reuse a document once it is annotated.")
+  boolean isInPlace = false;
+
+  @Parameter(names = "--sentence-threads",
+      description = "Annotate the sentences of each document on this many threads, shared by all documents. "
+          + "Lowers the latency of long documents; coref still runs on one thread. 0 disables.")
+  int sentenceThreads = 0;
+
+  @Parameter(names = "--concurrent-annotators",
+      description = "Run annotators that do not depend on each other, such as parse and ner, at the same time, "
+          + "and run coref while the rest of each document is converted. Not used with --document-timeout-ms.")
+  boolean isConcurrentAnnotators = false;
+
+  // shared by every chain built from this delegate
+  private AnnotationCache cache = null;
+  private SentenceMemo memo = null;
+  private final Map<String, AnnotatorPool> pools = new HashMap<>();
+  private int workers = 1;
+  private ForkJoinPool sentencePool = null;
+  private ExecutorService annotatorExecutor = null;
+  private AnnotatorTimings timings = null;
+
+  /**
+   * @param workers the number of chains that will annotate at once; sizes
+   * the annotator pools shared by the chains
+   * @return this object
+   */
+  public synchronized StanfordParameterDelegate setWorkers(int workers) {
+    if (workers < 1)
+      throw new IllegalArgumentException("need at least one worker");
+    this.workers = workers;
+    return this;
+  }
+
+  /**
+   * @param timings where the analytics built from now on record how long
+   * each annotator takes; null, the default, to not record
+   * @return this object
+   */
+  public synchronized StanfordParameterDelegate setAnnotatorTimings(AnnotatorTimings timings) {
+    this.timings = timings;
+    return this;
+  }
+
+  private synchronized AnnotatorTimings getAnnotatorTimings() {
+    return this.timings;
+  }
+
+  private synchronized AnnotatorPool getPool(String key, IntFunction<AnnotatorPool> builder) {
+    return this.pools.computeIfAbsent(key, k -> builder.apply(this.workers));
+  }
+
+  private synchronized ForkJoinPool getSentencePool() {
+    if (this.sentenceThreads <= 0)
+      return null;
+    if (this.sentencePool == null)
+      this.sentencePool = new ForkJoinPool(this.sentenceThreads);
+    return this.sentencePool;
+  }
+
+  private synchronized ExecutorService getAnnotatorExecutor() {
+    if (!this.isConcurrentAnnotators)
+      return null;
+    if (this.annotatorExecutor == null)
+      this.annotatorExecutor = Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setNameFormat("stanford-annotator-%d").setDaemon(true).build());
+    return this.annotatorExecutor;
+  }
+
+  private synchronized AnnotationCache getCache() throws IOException {
+    if (this.cache == null)
+      this.cache = new AnnotationCache(Paths.get(this.cacheDir), this.cacheMaxBytes);
+    return this.cache;
+  }
+
+  private Analytic<? extends TokenizedCommunication> withCache(Analytic<? extends TokenizedCommunication> a,
+      String profile) throws IOException {
+    if (this.cacheDir == null)
+      return a;
+    return new CachingAnalytic(a, this.getCache(), profile);
+  }
+
+  private synchronized ConcreteStanfordPreCorefAnalytic withMemo(ConcreteStanfordPreCorefAnalytic a, String profile) {
+    if (this.sentenceMemoSize <= 0)
+      return a;
+    if (this.memo == null)
+      this.memo = new SentenceMemo(profile, this.sentenceMemoSize);
+    return a.setSentenceMemo(this.memo);
+  }
+
+  /**
+   * @return the sentence memo shared by the analytics, if enabled
+   */
+  public synchronized Optional<SentenceMemo> getSentenceMemo() {
+    return Optional.ofNullable(this.memo);
+  }
+
+  /**
+   * @return true if the analytics expect documents that are already
+   * tokenized, as with --tokenized-input or --incremental
+   */
+  public boolean expectsTokenizedInput() {
+    return this.isInputTokenized || this.isIncremental;
+  }
+
+  public AnnotationBudget getBudget() {
+    return new AnnotationBudget()
+        .setSentenceMillis(this.sentenceTimeoutMillis)
+        .setDocumentMillis(this.documentTimeoutMillis)
+        .setParseMaxLength(this.parseMaxLength);
+  }
+
   public ImmutableList<Analytic<? extends WrappedCommunication>> getAnalytics(PipelineLanguage lang) throws IOException {
     List<Analytic<? extends WrappedCommunication>> al = new ArrayList<>();
     // if the input is not tokenized, the segment/tokenization
     // analytics have to be run first.
-    if (!this.isInputTokenized)
-      al.add(lang.getSentenceTokenizationAnalytic());
-    else
+    final boolean tokenize = !this.isInputTokenized && !this.isIncremental;
+    if (!tokenize)
       LOGGER.info("Omiting tokenization step");
     // if NOT stopping at tokenization, add other analytics
     if (!this.isOnlyUpToTokenization) {
+      final AnnotationBudget budget = this.getBudget();
       // if coref is enabled, only add it for english -
       // the others don't have it implemented.
-      if (this.isCoreferenceEnabled) {
-        if (lang == PipelineLanguage.ENGLISH) {
-          al.add(lang.getAllAnalytic());
-        } else {
-          LOGGER.warn("Coreference not enabled for language: {}", lang.toString());
-          al.add(lang.getPreCorefAnalytic());
-        }
+      final String profile = lang.toString() + "|" + budget.toString() + (this.isIncremental ? "|incremental" : "")
+          + (this.pipelineProfile != PipelineProfile.ACCURATE ? "|" + this.pipelineProfile : "");
+      final ConcreteStanfordPreCorefAnalytic annotator;
+      final String annotators;
+      if (this.isCoreferenceEnabled && lang.hasCoref(this.pipelineProfile)) {
+        annotators = lang.getNonTokenizationAnnotators_1(this.pipelineProfile).toString();
+        annotator = lang.getAllAnalytic(budget,
+            this.getPool(profile + "|" + annotators, w -> lang.getAllAnnotators(budget, this.pipelineProfile, w)));
+      } else {
         // otherwise, just add the non-coref version
+        if (this.isCoreferenceEnabled)
+          LOGGER.warn("Coreference not enabled for language: {} with profile: {}", lang.toString(), this.pipelineProfile);
+        annotators = lang.getNonTokenizationAnnotators(this.pipelineProfile).toString();
+        annotator = lang.getPreCorefAnalytic(budget,
+            this.getPool(profile + "|" + annotators, w -> lang.getPreCorefAnnotators(budget, this.pipelineProfile, w)));
+      }
+      this.withMemo(annotator.setIncremental(this.isIncremental).setInPlace(this.isInPlace)
+          .setSentencePool(this.getSentencePool()).setAnnotatorExecutor(this.getAnnotatorExecutor())
+          .setAnnotatorTimings(this.getAnnotatorTimings()), profile);
+
+      if (tokenize && this.isSinglePass) {
+        al.add(this.withCache(lang.getSinglePassAnalytic(annotator).setInPlace(this.isInPlace), profile + "|tokenize, " + annotators));
       } else {
-        al.add(lang.getPreCorefAnalytic());
+        if (tokenize)
+          al.add(this.withCache(lang.getSentenceTokenizationAnalytic().setInPlace(this.isInPlace), lang.toString()));
+        al.add(this.withCache(annotator, profile + "|" + annotators));
       }
+    } else if (tokenize) {
+      al.add(this.withCache(lang.getSentenceTokenizationAnalytic().setInPlace(this.isInPlace), lang.toString()));
     }
 
     ImmutableList<Analytic<? extends WrappedCommunication>> analytics =
@@ -0,0 +1,34 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class AnnotationBudgetTest {
+
+  @Test
+  public void noneLeavesPropertiesAlone() {
+    Properties props = AnnotationBudget.none().apply(new Properties());
+    assertTrue(props.isEmpty());
+    assertFalse(AnnotationBudget.none().hasDocumentLimit());
+  }
+
+  @Test
+  public void sentenceLimitSetsMaxTime() {
+    AnnotationBudget b = new AnnotationBudget()
+        .setSentenceMillis(5000)
+        .setDocumentMillis(60000)
+        .setParseMaxLength(120);
+    Properties props = b.apply(new Properties());
+    assertEquals("5000", props.getProperty("parse.maxtime"));
+    assertEquals("5000", props.getProperty("pos.maxtime"));
+    assertEquals("120", props.getProperty("parse.maxlen"));
+    assertNull(props.getProperty("lemma.maxtime"));
+    assertTrue(b.hasDocumentLimit());
+  }
+}
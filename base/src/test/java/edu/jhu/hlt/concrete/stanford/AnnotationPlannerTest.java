@@ -0,0 +1,143 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Constituent;
+import edu.jhu.hlt.concrete.EntityMentionSet;
+import edu.jhu.hlt.concrete.Parse;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.TaggedToken;
+import edu.jhu.hlt.concrete.Token;
+import edu.jhu.hlt.concrete.TokenList;
+import edu.jhu.hlt.concrete.TokenTagging;
+import edu.jhu.hlt.concrete.Tokenization;
+import edu.jhu.hlt.concrete.metadata.AnnotationMetadataFactory;
+import edu.jhu.hlt.concrete.uuid.AnalyticUUIDGeneratorFactory;
+import edu.jhu.hlt.concrete.uuid.AnalyticUUIDGeneratorFactory.AnalyticUUIDGenerator;
+import edu.stanford.nlp.ling.CoreAnnotations.LemmaAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.PartOfSpeechAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.util.ArrayCoreMap;
+import edu.stanford.nlp.util.CoreMap;
+
+public class AnnotationPlannerTest {
+
+  private static final ImmutableList<String> ANNOTATORS = ImmutableList.of("pos", "lemma", "parse", "ner", "dcoref");
+
+  private final AnalyticUUIDGenerator g = new AnalyticUUIDGeneratorFactory().create();
+
+  private Sentence sentence(String... words) {
+    TokenList tl = new TokenList();
+    for (int i = 0; i < words.length; i++)
+      tl.addToTokenList(new Token().setTokenIndex(i).setText(words[i]));
+    Tokenization tkz = new Tokenization().setUuid(this.g.next()).setTokenList(tl);
+    return new Sentence().setUuid(this.g.next()).setTokenization(tkz);
+  }
+
+  private void tag(Sentence st, String type, String tool, String... tags) {
+    TokenTagging tt = new TokenTagging().setUuid(this.g.next()).setTaggingType(type)
+        .setMetadata(AnnotationMetadataFactory.fromCurrentLocalTime().setTool(tool));
+    for (int i = 0; i < tags.length; i++)
+      tt.addToTaggedTokenList(new TaggedToken().setTokenIndex(i).setTag(tags[i]));
+    st.getTokenization().addToTokenTaggingList(tt);
+  }
+
+  @Test
+  public void untaggedInputRunsEverything() {
+    List<Sentence> sents = ImmutableList.of(this.sentence("The", "cats"));
+    AnnotationPlanner.Plan p = AnnotationPlanner.plan(new Communication(), sents, ANNOTATORS);
+    assertEquals(ANNOTATORS, p.getAnnotatorsToRun());
+  }
+
+  @Test
+  public void taggedInputOnlyParsesAndCorefs() throws Exception {
+    Sentence st = this.sentence("The", "cats");
+    this.tag(st, "POS", "Stanford CoreNLP", "DT", "NNS");
+    this.tag(st, "lemma", "Stanford CoreNLP", "the", "cat");
+    this.tag(st, "NER", "Stanford CoreNLP", "O", "O");
+    List<Sentence> sents = ImmutableList.of(st);
+    AnnotationPlanner.Plan p = AnnotationPlanner.plan(new Communication(), sents, ANNOTATORS);
+    assertEquals(ImmutableList.of("parse", "dcoref"), p.getAnnotatorsToRun());
+    assertTrue(p.isReused("lemma"));
+
+    List<CoreLabel> tokens = new ArrayList<>();
+    tokens.add(new CoreLabel());
+    tokens.add(new CoreLabel());
+    CoreMap cm = new ArrayCoreMap();
+    cm.set(TokensAnnotation.class, tokens);
+    p.restore(ImmutableList.of(cm), sents);
+    assertEquals("NNS", tokens.get(1).get(PartOfSpeechAnnotation.class));
+    assertEquals("cat", tokens.get(1).get(LemmaAnnotation.class));
+
+    // a duplicate POS tagging added on conversion is dropped
+    AnnotationPlanner.Snapshot before = new AnnotationPlanner.Snapshot(st.getTokenization());
+    this.tag(st, "POS", "Stanford CoreNLP", "DT", "NNS");
+    p.dropReusedOutput(st.getTokenization(), before);
+    assertEquals(3, st.getTokenization().getTokenTaggingListSize());
+  }
+
+  @Test
+  public void parsedInputOnlyCorefs() {
+    Sentence st = this.sentence("The", "cats");
+    this.tag(st, "POS", "Stanford CoreNLP", "DT", "NNS");
+    this.tag(st, "LEMMA", "Stanford CoreNLP", "the", "cat");
+    this.tag(st, "NER", "Stanford CoreNLP", "O", "O");
+    Parse p = new Parse().setUuid(this.g.next())
+        .setMetadata(AnnotationMetadataFactory.fromCurrentLocalTime().setTool("Stanford CoreNLP"));
+    p.addToConstituentList(new Constituent().setId(0).setTag("ROOT").setStart(0).setEnding(2));
+    st.getTokenization().addToParseList(p);
+    AnnotationPlanner.Plan plan = AnnotationPlanner.plan(new Communication(), ImmutableList.of(st), ANNOTATORS);
+    assertEquals(ImmutableList.of("dcoref"), plan.getAnnotatorsToRun());
+  }
+
+  @Test
+  public void missingTaggerRerunsDependents() {
+    Sentence st = this.sentence("The", "cats");
+    this.tag(st, "POS", "Stanford CoreNLP", "DT", "NNS");
+    this.tag(st, "NER", "Stanford CoreNLP", "O", "O");
+    Communication c = new Communication();
+    c.addToEntityMentionSetList(new EntityMentionSet().setUuid(this.g.next())
+        .setMetadata(AnnotationMetadataFactory.fromCurrentLocalTime().setTool("Stanford Coref")));
+    AnnotationPlanner.Plan p = AnnotationPlanner.plan(c, ImmutableList.of(st), ANNOTATORS);
+    // ner reads lemmas, and coref reads the parse
+    assertEquals(ImmutableList.of("lemma", "parse", "ner", "dcoref"), p.getAnnotatorsToRun());
+    assertTrue(p.isReused("pos"));
+  }
+
+  @Test
+  public void missingPosRerunsParse() {
+    Sentence st = this.sentence("The", "cats");
+    this.tag(st, "LEMMA", "Stanford CoreNLP", "the", "cat");
+    this.tag(st, "NER", "Stanford CoreNLP", "O", "O");
+    Parse p = new Parse().setUuid(this.g.next())
+        .setMetadata(AnnotationMetadataFactory.fromCurrentLocalTime().setTool("Stanford CoreNLP"));
+    p.addToConstituentList(new Constituent().setId(0).setTag("ROOT").setStart(0).setEnding(2));
+    st.getTokenization().addToParseList(p);
+    AnnotationPlanner.Plan plan = AnnotationPlanner.plan(new Communication(), ImmutableList.of(st), ANNOTATORS);
+    // the parse's preterminals come from the old tags
+    assertTrue(plan.runs("parse"));
+    assertFalse(plan.isReused("parse"));
+    assertEquals(ANNOTATORS, plan.getAnnotatorsToRun());
+  }
+
+  @Test
+  public void otherToolsAndPartialTaggingsAreNotReused() {
+    Sentence st = this.sentence("The", "cats");
+    this.tag(st, "POS", "some other tagger", "DT", "NNS");
+    this.tag(st, "LEMMA", "Stanford CoreNLP", "the");
+    AnnotationPlanner.Plan p = AnnotationPlanner.plan(new Communication(), ImmutableList.of(st), ANNOTATORS);
+    assertFalse(p.isReused("pos"));
+    assertFalse(p.isReused("lemma"));
+  }
+}
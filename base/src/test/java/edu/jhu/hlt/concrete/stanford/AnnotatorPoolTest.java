@@ -0,0 +1,29 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class AnnotatorPoolTest {
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsUnknownAnnotator() {
+    new AnnotatorPool(new Properties(), ImmutableList.of("sentiment"), 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void needsAWorker() {
+    new AnnotatorPool(new Properties(), ImmutableList.of(), 0);
+  }
+
+  @Test
+  public void corefIsNotShared() {
+    assertTrue(AnnotatorPool.THREAD_SAFE.contains("parse"));
+    assertFalse(AnnotatorPool.THREAD_SAFE.contains("dcoref"));
+  }
+}
@@ -0,0 +1,36 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class AnnotatorScheduleTest {
+
+  @Test
+  public void english() {
+    AnnotatorSchedule s = AnnotatorSchedule.of(ImmutableList.of("pos", "lemma", "parse", "ner", "dcoref"));
+    assertEquals(ImmutableList.of(
+        ImmutableList.of(ImmutableList.of("pos")),
+        ImmutableList.of(ImmutableList.of("lemma", "ner"), ImmutableList.of("parse")),
+        ImmutableList.of(ImmutableList.of("dcoref"))), s.getSteps());
+  }
+
+  @Test
+  public void noLemma() {
+    AnnotatorSchedule s = AnnotatorSchedule.of(ImmutableList.of("pos", "ner", "parse"));
+    assertEquals(ImmutableList.of(
+        ImmutableList.of(ImmutableList.of("pos")),
+        ImmutableList.of(ImmutableList.of("ner"), ImmutableList.of("parse"))), s.getSteps());
+  }
+
+  @Test
+  public void unknownRunsAlone() {
+    AnnotatorSchedule s = AnnotatorSchedule.of(ImmutableList.of("pos", "custom", "lemma"));
+    assertEquals(ImmutableList.of(
+        ImmutableList.of(ImmutableList.of("pos")),
+        ImmutableList.of(ImmutableList.of("custom")),
+        ImmutableList.of(ImmutableList.of("lemma"))), s.getSteps());
+  }
+}
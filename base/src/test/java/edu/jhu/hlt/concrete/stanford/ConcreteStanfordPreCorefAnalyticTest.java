@@ -0,0 +1,150 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Entity;
+import edu.jhu.hlt.concrete.EntityMention;
+import edu.jhu.hlt.concrete.EntityMentionSet;
+import edu.jhu.hlt.concrete.UUID;
+import edu.jhu.hlt.concrete.miscommunication.tokenized.TokenizedCommunication;
+import edu.jhu.hlt.concrete.stanford.languages.PipelineLanguage;
+
+public class ConcreteStanfordPreCorefAnalyticTest {
+
+  @Test
+  public void sentenceParallelSameOutput() throws Exception {
+    Communication c = BasicDepParseTest.unsectionedCommunicationFromText(
+        "The Stanford Parser is a very precise piece of equipment. John bought it in Baltimore because he liked it. "
+            + "Mary sold it to him on Tuesday. She was glad to see it go.");
+    PipelineLanguage lang = PipelineLanguage.ENGLISH;
+    TokenizedCommunication tokenized = lang.getSentenceTokenizationAnalytic().annotate(c);
+
+    TokenizedCommunication serial = lang.getAllAnalytic().annotate(tokenized);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      TokenizedCommunication parallel = lang.getAllAnalytic().setSentencePool(pool).annotate(tokenized);
+      assertEquals(ConcreteStanfordSinglePassAnalyticTest.describe(serial),
+          ConcreteStanfordSinglePassAnalyticTest.describe(parallel));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void concurrentAnnotatorsSameOutput() throws Exception {
+    Communication c = BasicDepParseTest.unsectionedCommunicationFromText(
+        "The Stanford Parser is a very precise piece of equipment. John bought it in Baltimore because he liked it. "
+            + "Mary sold it to him on Tuesday. She was glad to see it go.");
+    PipelineLanguage lang = PipelineLanguage.ENGLISH;
+    TokenizedCommunication tokenized = lang.getSentenceTokenizationAnalytic().annotate(c);
+
+    TokenizedCommunication serial = lang.getAllAnalytic().annotate(tokenized);
+    ExecutorService exec = Executors.newCachedThreadPool();
+    try {
+      TokenizedCommunication concurrent = lang.getAllAnalytic().setAnnotatorExecutor(exec).annotate(tokenized);
+      assertEquals(ConcreteStanfordSinglePassAnalyticTest.describe(serial),
+          ConcreteStanfordSinglePassAnalyticTest.describe(concurrent));
+      // coref reads lemmas and NER tags through the parse's leaves and graph nodes
+      assertEquals(entities(serial.getRoot()), entities(concurrent.getRoot()));
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  /**
+   * @return each entity as the set of its mentions' texts and token spans
+   */
+  private static Set<Set<String>> entities(Communication c) {
+    Map<UUID, String> mentions = new HashMap<>();
+    for (EntityMentionSet ems : c.getEntityMentionSetList())
+      for (EntityMention em : ems.getMentionList())
+        mentions.put(em.getUuid(), em.getText() + " " + em.getTokens().getTokenIndexList());
+    Set<Set<String>> out = new HashSet<>();
+    for (Entity e : c.getEntitySetList().get(0).getEntityList()) {
+      Set<String> m = new HashSet<>();
+      for (UUID id : e.getMentionIdList())
+        m.add(mentions.get(id));
+      out.add(m);
+    }
+    return out;
+  }
+
+  @Test
+  public void incrementalCorefOverReusedParsesSameEntities() throws Exception {
+    Communication c = BasicDepParseTest.unsectionedCommunicationFromText(
+        "The Stanford Parser is a very precise piece of equipment. John bought it in Baltimore because he liked it. "
+            + "Mary sold it to him on Tuesday. She was glad to see it go.");
+    PipelineLanguage lang = PipelineLanguage.ENGLISH;
+    TokenizedCommunication tokenized = lang.getSentenceTokenizationAnalytic().annotate(c);
+    TokenizedCommunication full = lang.getAllAnalytic().annotate(tokenized);
+
+    // only coref runs; it reads the trees and dependency graphs rebuilt from Concrete
+    Communication preCoref = lang.getPreCorefAnalytic().annotate(tokenized).getRoot();
+    TokenizedCommunication incremental = lang.getAllAnalytic().setIncremental(true).annotate(preCoref);
+    assertEquals(entities(full.getRoot()), entities(incremental.getRoot()));
+  }
+
+  @Test
+  public void inPlaceSameOutputAsCopying() throws Exception {
+    Communication c = BasicDepParseTest.unsectionedCommunicationFromText(
+        "The Stanford Parser is a very precise piece of equipment. John bought it in Baltimore because he liked it.");
+    Communication original = new Communication(c);
+    PipelineLanguage lang = PipelineLanguage.ENGLISH;
+
+    TokenizedCommunication copied = lang.getAllAnalytic()
+        .annotate(lang.getSentenceTokenizationAnalytic().annotate(c));
+    // copying leaves the input as it was
+    assertEquals(original, c);
+
+    TokenizedCommunication inPlace = lang.getAllAnalytic().setInPlace(true)
+        .annotate(lang.getSentenceTokenizationAnalytic().setInPlace(true).annotate(c));
+    assertEquals(ConcreteStanfordSinglePassAnalyticTest.describe(copied),
+        ConcreteStanfordSinglePassAnalyticTest.describe(inPlace));
+    assertEquals(entities(copied.getRoot()), entities(inPlace.getRoot()));
+
+    TokenizedCommunication onePass = lang.getSinglePassAnalytic(lang.getAllAnalytic().setInPlace(true))
+        .setInPlace(true).annotate(new Communication(original));
+    assertEquals(ConcreteStanfordSinglePassAnalyticTest.describe(copied),
+        ConcreteStanfordSinglePassAnalyticTest.describe(onePass));
+  }
+
+  @Test
+  public void documentBudgetHoldsWithSentencePool() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 60; i++)
+      sb.append("The committee that the senator who had been elected in the autumn appointed last year said on Tuesday ")
+          .append("that the report which the agency had published about the long and expensive project was incomplete ")
+          .append("because several of the people who worked on it had left before the final review was finished. ");
+    Communication c = BasicDepParseTest.unsectionedCommunicationFromText(sb.toString());
+    PipelineLanguage lang = PipelineLanguage.ENGLISH;
+    TokenizedCommunication tokenized = lang.getSentenceTokenizationAnalytic().annotate(c);
+
+    final long budget = 1000;
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      ConcreteStanfordPreCorefAnalytic a = lang.getPreCorefAnalytic(AnnotationBudget.none().setDocumentMillis(budget))
+          .setSentencePool(pool);
+      final long start = System.nanoTime();
+      TokenizedCommunication out = a.annotate(tokenized);
+      final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue(out.getRoot().getKeyValueMap().containsKey(ConcreteStanfordPreCorefAnalytic.TIMEOUT_KEY));
+      // parsing every sentence would take far longer
+      assertTrue("took " + millis + " ms", millis < budget + 5000);
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
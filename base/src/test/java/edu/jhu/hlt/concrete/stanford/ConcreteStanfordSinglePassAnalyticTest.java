@@ -0,0 +1,60 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Constituent;
+import edu.jhu.hlt.concrete.DependencyParse;
+import edu.jhu.hlt.concrete.Entity;
+import edu.jhu.hlt.concrete.Parse;
+import edu.jhu.hlt.concrete.TaggedToken;
+import edu.jhu.hlt.concrete.Token;
+import edu.jhu.hlt.concrete.TokenTagging;
+import edu.jhu.hlt.concrete.Tokenization;
+import edu.jhu.hlt.concrete.miscommunication.tokenized.TokenizedCommunication;
+import edu.jhu.hlt.concrete.stanford.languages.PipelineLanguage;
+
+public class ConcreteStanfordSinglePassAnalyticTest {
+
+  /**
+   * Everything about the annotations except UUIDs and timestamps.
+   */
+  static List<String> describe(TokenizedCommunication tc) {
+    List<String> out = new ArrayList<>();
+    for (Tokenization tkz : tc.getTokenizations()) {
+      for (Token t : tkz.getTokenList().getTokenList())
+        out.add("token " + t.getTokenIndex() + " " + t.getText() + " " + t.getTextSpan());
+      for (TokenTagging tt : tkz.getTokenTaggingList())
+        for (TaggedToken t : tt.getTaggedTokenList())
+          out.add(tt.getTaggingType() + " " + t.getTokenIndex() + " " + t.getTag());
+      for (Parse p : tkz.getParseList())
+        for (Constituent c : p.getConstituentList())
+          out.add("constituent " + c.toString());
+      for (DependencyParse dp : tkz.getDependencyParseList())
+        out.add(dp.getMetadata().getTool() + " " + dp.getDependencyList());
+    }
+    Communication root = tc.getRoot();
+    if (root.isSetEntitySetList())
+      for (Entity e : root.getEntitySetList().get(0).getEntityList())
+        out.add("entity " + e.getCanonicalName() + " " + e.getMentionIdListSize());
+    return out;
+  }
+
+  @Test
+  public void sameOutputAsTwoStages() throws Exception {
+    Communication c = BasicDepParseTest.unsectionedCommunicationFromText(
+        "The Stanford Parser is a very precise piece of equipment. John bought it in Baltimore because he liked it.");
+    PipelineLanguage lang = PipelineLanguage.ENGLISH;
+
+    TokenizedCommunication twoStages = lang.getAllAnalytic()
+        .annotate(lang.getSentenceTokenizationAnalytic().annotate(c));
+    TokenizedCommunication onePass = lang.getSinglePassAnalytic(lang.getAllAnalytic()).annotate(c);
+
+    assertEquals(describe(twoStages), describe(onePass));
+  }
+}
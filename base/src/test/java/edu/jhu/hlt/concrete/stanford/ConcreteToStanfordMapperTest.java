@@ -0,0 +1,80 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.concrete.Constituent;
+import edu.jhu.hlt.concrete.DependencyParse;
+import edu.jhu.hlt.concrete.Parse;
+import edu.jhu.hlt.concrete.analytics.base.AnalyticException;
+import edu.jhu.hlt.concrete.tokenization.DependencyFactory;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.semgraph.SemanticGraph;
+import edu.stanford.nlp.trees.Tree;
+
+public class ConcreteToStanfordMapperTest {
+
+  private static List<CoreLabel> tokens(String... words) {
+    List<CoreLabel> tokens = new ArrayList<>();
+    for (int i = 0; i < words.length; i++) {
+      CoreLabel cl = new CoreLabel();
+      cl.setWord(words[i]);
+      cl.setValue(words[i]);
+      cl.setIndex(i + 1);
+      tokens.add(cl);
+    }
+    return tokens;
+  }
+
+  private static Constituent constituent(int id, String tag, int start, int end, Integer... children) {
+    Constituent c = new Constituent().setId(id).setTag(tag).setStart(start).setEnding(end)
+        .setChildList(new ArrayList<>());
+    for (Integer ch : children)
+      c.addToChildList(ch);
+    return c;
+  }
+
+  // (ROOT (NP (DT The) (NNS cats))), in the pre-order PreNERCoreMapWrapper writes
+  private static Parse parse() {
+    Parse p = new Parse();
+    p.addToConstituentList(constituent(0, "ROOT", 0, 2, 1));
+    p.addToConstituentList(constituent(1, "NP", 0, 2, 2, 4));
+    p.addToConstituentList(constituent(2, "DT", 0, 1, 3));
+    p.addToConstituentList(constituent(3, "The", 0, 1));
+    p.addToConstituentList(constituent(4, "NNS", 1, 2, 5));
+    p.addToConstituentList(constituent(5, "cats", 1, 2));
+    return p;
+  }
+
+  @Test
+  public void rebuildsTree() throws Exception {
+    List<CoreLabel> tokens = tokens("The", "cats");
+    Tree t = ConcreteToStanfordMapper.concreteParseToTree(parse(), tokens);
+    assertEquals("ROOT", t.value());
+    assertEquals("NP", t.firstChild().value());
+    assertEquals("NNS", t.firstChild().lastChild().value());
+    assertEquals("cats", t.getLeaves().get(1).value());
+    assertEquals(2, ((CoreLabel) t.getLeaves().get(1).label()).index());
+  }
+
+  @Test(expected = AnalyticException.class)
+  public void rejectsParseOfOtherTokens() throws Exception {
+    ConcreteToStanfordMapper.concreteParseToTree(parse(), tokens("The", "cats", "sat"));
+  }
+
+  @Test
+  public void rebuildsDependencies() {
+    DependencyParse dp = new DependencyParse();
+    dp.addToDependencyList(DependencyFactory.create(1, "root"));
+    dp.addToDependencyList(DependencyFactory.create(0, "det", 1));
+    SemanticGraph sg = ConcreteToStanfordMapper.concreteDependencyParseToSemanticGraph(dp, tokens("The", "cats"));
+    assertEquals(2, sg.getFirstRoot().index());
+    assertEquals(1, sg.edgeCount());
+    assertTrue(sg.edgeListSorted().get(0).getRelation().toString().equals("det"));
+  }
+}
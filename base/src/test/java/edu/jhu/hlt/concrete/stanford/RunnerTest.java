@@ -15,6 +15,7 @@ import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.junit.After;
@@ -33,9 +34,13 @@ import edu.jhu.hlt.concrete.communications.WritableCommunication;
 import edu.jhu.hlt.concrete.metadata.AnnotationMetadataFactory;
 import edu.jhu.hlt.concrete.miscommunication.tokenized.TokenizedCommunication;
 import edu.jhu.hlt.concrete.section.SingleSectionSegmenter;
+import edu.jhu.hlt.concrete.serialization.CompactCommunicationSerializer;
 import edu.jhu.hlt.concrete.serialization.archiver.ArchivableCommunication;
 import edu.jhu.hlt.concrete.serialization.iterators.TarArchiveEntryCommunicationIterator;
 import edu.jhu.hlt.concrete.serialization.iterators.TarGzArchiveEntryCommunicationIterator;
+import edu.jhu.hlt.concrete.stanford.io.ParallelGzipOutputStream;
+import edu.jhu.hlt.concrete.stanford.io.PartFiles;
+import edu.jhu.hlt.concrete.stanford.io.ShardedArchiver;
 import edu.jhu.hlt.concrete.uuid.AnalyticUUIDGeneratorFactory;
 import edu.jhu.hlt.concrete.uuid.AnalyticUUIDGeneratorFactory.AnalyticUUIDGenerator;
 
@@ -177,6 +182,90 @@ public class RunnerTest {
     this.testArchiveGzEntry(output);
   }
 
+  @Test
+  public void tarToTarStaged() throws Exception {
+    new ConcreteStanfordRunner().setStaged(true).run(inpTar, this.outpTar, tift);
+    assertTrue(Files.exists(outpTar));
+    this.testArchiveEntry(this.outpTar);
+  }
+
+  @Test
+  public void tgzToTgzStaged() throws Exception {
+    // a tiny budget forces the queues to hand off one document at a time
+    new ConcreteStanfordRunner().setStaged(true).setQueueBytes(1).run(inpTgz, outpTarGz, tift);
+    assertTrue(Files.exists(outpTarGz));
+    this.testArchiveGzEntry(this.outpTarGz);
+  }
+
+  @Test
+  public void annotatedDocumentsWeighMoreThanTheirInput() throws Exception {
+    TokenizedCommunication tc = this.tift.annotate(new Communication(this.sc));
+    final long in = 100;
+    final long out = ConcreteStanfordRunner.estimateAnnotatedBytes(tc, in);
+    // five tokens of annotation
+    assertTrue(out >= in + 5 * 100);
+  }
+
+  @Test
+  public void commToCommMapped() throws Exception {
+    new ConcreteStanfordRunner().setMemoryMapped(true).run(inp, outpComm, tift);
+    assertTrue(Files.exists(outpComm));
+    Communication mapped = new CompactCommunicationSerializer().fromPath(outpComm);
+    assertEquals(this.uuidStr, mapped.getUuid().getUuidString());
+    assertEquals(this.sc.getText(), mapped.getText());
+    Sentence st = mapped.getSectionList().get(0).getSentenceList().get(0);
+    assertTrue(st.isSetTokenization());
+    // same tokens as reading the file through a stream
+    Path plain = this.outp.resolve("plain.comm");
+    this.runner.run(inp, plain, tift);
+    Sentence expected = new CompactCommunicationSerializer().fromPath(plain)
+        .getSectionList().get(0).getSentenceList().get(0);
+    assertEquals(expected.getTokenization().getTokenList(), st.getTokenization().getTokenList());
+  }
+
+  @Test
+  public void tarToTarMapped() throws Exception {
+    new ConcreteStanfordRunner().setMemoryMapped(true).run(inpTar, this.outpTar, tift);
+    assertTrue(Files.exists(outpTar));
+    this.testArchiveEntry(this.outpTar);
+  }
+
+  @Test
+  public void tarToTarMappedStaged() throws Exception {
+    new ConcreteStanfordRunner().setMemoryMapped(true).setStaged(true).run(inpTar, this.outpTar, tift);
+    assertTrue(Files.exists(outpTar));
+    this.testArchiveEntry(this.outpTar);
+  }
+
+  @Test
+  public void tarToShards() throws Exception {
+    new ConcreteStanfordRunner().setShardMaxDocs(1).run(inpTar, this.outpTar, tift);
+    Path shard = PartFiles.partPath(this.outpTar, 0);
+    assertTrue(Files.exists(shard));
+    this.testArchiveEntry(shard);
+    List<String> manifest = Files.readAllLines(ShardedArchiver.manifestPathFor(this.outpTar));
+    assertEquals(2, manifest.size());
+    assertTrue(manifest.get(1).startsWith("0\tout.part-00000.tar\t1\t"));
+  }
+
+  @Test
+  public void tarToShardsTwiceReplacesManifest() throws Exception {
+    new ConcreteStanfordRunner().setShardMaxDocs(1).run(inpTar, this.outpTar, tift);
+    new ConcreteStanfordRunner().setShardMaxDocs(1).run(inpTar, this.outpTar, tift);
+    List<String> manifest = Files.readAllLines(ShardedArchiver.manifestPathFor(this.outpTar));
+    assertEquals(2, manifest.size());
+    assertTrue(manifest.get(0).startsWith("#"));
+    assertTrue(manifest.get(1).startsWith("0\tout.part-00000.tar\t1\t"));
+  }
+
+  @Test
+  public void tgzToTgzParallelGzip() throws Exception {
+    new ConcreteStanfordRunner().setCompressionThreads(2).setBlockIndex(true).run(inpTgz, outpTarGz, tift);
+    assertTrue(Files.exists(outpTarGz));
+    assertTrue(Files.exists(ParallelGzipOutputStream.indexPathFor(outpTarGz)));
+    this.testArchiveGzEntry(this.outpTarGz);
+  }
+
   /**
    * Test method for {@link edu.jhu.hlt.concrete.stanford.ConcreteStanfordRunner#prepareInputOutput(java.nio.file.Path, java.nio.file.Path)}.
    */
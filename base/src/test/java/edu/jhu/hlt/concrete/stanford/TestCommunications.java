@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford;
+
+import edu.jhu.hlt.concrete.AnnotationMetadata;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Section;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.metadata.AnnotationMetadataFactory;
+import edu.jhu.hlt.concrete.section.SingleSectionSegmenter;
+import edu.jhu.hlt.concrete.uuid.AnalyticUUIDGeneratorFactory;
+import edu.jhu.hlt.concrete.uuid.AnalyticUUIDGeneratorFactory.AnalyticUUIDGenerator;
+
+/**
+ * Builds small Communications for tests.
+ */
+public class TestCommunications {
+
+  private TestCommunications() {
+  }
+
+  /**
+   * @return a Communication with one section holding one sentence that
+   * spans all of <code>text</code>, ready for {@link TiftTokenizerAnalytic}
+   */
+  public static Communication create(String id, String text) {
+    AnalyticUUIDGenerator g = new AnalyticUUIDGeneratorFactory().create();
+    Communication c = new Communication();
+    c.setId(id);
+    c.setUuid(g.next());
+    c.setText(text);
+    c.setType("doc");
+    AnnotationMetadata am = AnnotationMetadataFactory.fromCurrentLocalTime().setTool("argh");
+    c.setMetadata(am);
+    Section s = SingleSectionSegmenter.createSingleSection(c, "passage");
+    Sentence st = new Sentence();
+    st.setUuid(g.next());
+    st.setTextSpan(s.getTextSpan());
+    s.addToSentenceList(st);
+    c.addToSectionList(s);
+    return c;
+  }
+
+  /**
+   * @return a Communication with some sample text
+   */
+  public static Communication create(String id) {
+    return create(id, "This is some sample text.");
+  }
+}
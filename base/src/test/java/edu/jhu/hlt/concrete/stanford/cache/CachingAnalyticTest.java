@@ -0,0 +1,203 @@
+package edu.jhu.hlt.concrete.stanford.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.EntityMentionSet;
+import edu.jhu.hlt.concrete.EntitySet;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.TaggedToken;
+import edu.jhu.hlt.concrete.TokenTagging;
+import edu.jhu.hlt.concrete.Tokenization;
+import edu.jhu.hlt.concrete.analytics.base.AnalyticException;
+import edu.jhu.hlt.concrete.metadata.AnnotationMetadataFactory;
+import edu.jhu.hlt.concrete.miscommunication.MiscommunicationException;
+import edu.jhu.hlt.concrete.miscommunication.tokenized.CachedTokenizationCommunication;
+import edu.jhu.hlt.concrete.miscommunication.tokenized.TokenizedCommunication;
+import edu.jhu.hlt.concrete.stanford.BasicDepParseTest;
+import edu.jhu.hlt.concrete.stanford.TestCommunications;
+import edu.jhu.hlt.concrete.stanford.TiftTokenizerAnalytic;
+import edu.jhu.hlt.concrete.stanford.languages.PipelineLanguage;
+import edu.jhu.hlt.concrete.uuid.AnalyticUUIDGeneratorFactory;
+
+public class CachingAnalyticTest {
+
+  @Rule
+  public TemporaryFolder tf = new TemporaryFolder();
+
+  @Test
+  public void redeliveredTextIsNotAnnotatedAgain() throws Exception {
+    final AtomicInteger calls = new AtomicInteger(0);
+    TiftTokenizerAnalytic counting = new TiftTokenizerAnalytic() {
+      @Override
+      public TokenizedCommunication annotate(Communication c) throws AnalyticException {
+        calls.incrementAndGet();
+        return super.annotate(c);
+      }
+    };
+    AnnotationCache cache = new AnnotationCache(this.tf.getRoot().toPath(), 1024 * 1024);
+    CachingAnalytic a = new CachingAnalytic(counting, cache, "test");
+
+    Communication first = TestCommunications.create("first", "The same story , sent twice .");
+    Tokenization t1 = a.annotate(first).getTokenizations().get(0);
+    Communication second = TestCommunications.create("second", "The same story , sent twice .");
+    TokenizedCommunication out = a.annotate(second);
+    Tokenization t2 = out.getTokenizations().get(0);
+
+    assertEquals(1, calls.get());
+    assertEquals(1, cache.getHits());
+    assertEquals("second", out.getRoot().getId());
+    assertEquals(t1.getTokenList(), t2.getTokenList());
+    assertNotEquals(t1.getUuid(), t2.getUuid());
+    // the input's own sentence UUID is kept
+    Sentence st = out.getRoot().getSectionList().get(0).getSentenceList().get(0);
+    assertEquals(second.getSectionList().get(0).getSentenceList().get(0).getUuid(), st.getUuid());
+
+    a.annotate(TestCommunications.create("third", "A different story ."));
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void keyDependsOnSections() {
+    Communication c = TestCommunications.create("c", "Some text here .");
+    String k = CachingAnalytic.key("p", c);
+    assertEquals(k, CachingAnalytic.key("p", TestCommunications.create("d", "Some text here .")));
+    assertNotEquals(k, CachingAnalytic.key("q", c));
+    c.getSectionList().get(0).getTextSpan().setEnding(4);
+    assertFalse(k.equals(CachingAnalytic.key("p", c)));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() throws Exception {
+    Communication c = TestCommunications.create("c", "Some text here .");
+    AnnotationCache sizing = new AnnotationCache(this.tf.newFolder().toPath(), 1024 * 1024);
+    sizing.put("aa00", c);
+    final long one = sizing.bytes();
+
+    AnnotationCache cache = new AnnotationCache(this.tf.newFolder().toPath(), 2 * one);
+    cache.put("aa01", c);
+    cache.put("aa02", c);
+    assertTrue(cache.get("aa01").isPresent());
+    cache.put("aa03", c);
+    assertEquals(2, cache.size());
+    assertTrue(cache.get("aa01").isPresent());
+    assertFalse(cache.get("aa02").isPresent());
+  }
+
+  private static Communication withOtherEntities(Communication c) {
+    EntityMentionSet ems = new EntityMentionSet();
+    ems.setUuid(new AnalyticUUIDGeneratorFactory(c).create().next());
+    ems.setMetadata(AnnotationMetadataFactory.fromCurrentLocalTime().setTool("other"));
+    ems.setMentionList(new ArrayList<>());
+    c.addToEntityMentionSetList(ems);
+    EntitySet es = new EntitySet();
+    es.setUuid(new AnalyticUUIDGeneratorFactory(c).create().next());
+    es.setMetadata(AnnotationMetadataFactory.fromCurrentLocalTime().setTool("other"));
+    es.setEntityList(new ArrayList<>());
+    c.addToEntitySetList(es);
+    return c;
+  }
+
+  private static List<String> describe(TokenizedCommunication tc) {
+    List<String> out = new ArrayList<>();
+    for (Tokenization t : tc.getTokenizations()) {
+      out.add(t.getTokenList().toString());
+      for (TokenTagging tt : t.getTokenTaggingList())
+        out.add(tt.getTaggingType() + " " + tt.getTaggedTokenListSize());
+    }
+    for (EntitySet es : tc.getRoot().getEntitySetList())
+      out.add(es.getMetadata().getTool() + " " + es.getEntityListSize());
+    for (EntityMentionSet ems : tc.getRoot().getEntityMentionSetList())
+      out.add(ems.getMetadata().getTool() + " " + ems.getMentionListSize());
+    return out;
+  }
+
+  @Test
+  public void inPlaceDelegateSameOutputAsCopying() throws Exception {
+    PipelineLanguage lang = PipelineLanguage.ENGLISH;
+    Communication tokenized = lang.getSentenceTokenizationAnalytic()
+        .annotate(withOtherEntities(BasicDepParseTest.unsectionedCommunicationFromText(
+            "John bought a car in Baltimore because he liked it. Mary sold it to him.")))
+        .getRoot();
+    List<String> copied = describe(lang.getAllAnalytic().annotate(new Communication(tokenized)));
+
+    AnnotationCache cache = new AnnotationCache(this.tf.newFolder().toPath(), 16 * 1024 * 1024);
+    CachingAnalytic a = new CachingAnalytic(lang.getAllAnalytic().setInPlace(true), cache, "en");
+    // the miss annotates its input in place; the hit restores from the cache
+    assertEquals(copied, describe(a.annotate(new Communication(tokenized))));
+    assertEquals(copied, describe(a.annotate(new Communication(tokenized))));
+    assertEquals(1, cache.getHits());
+  }
+
+  /**
+   * @return <code>c</code>, with a POS tagging tagging every token <code>tag</code>
+   */
+  private static Communication withTagging(Communication c, String tag) {
+    Tokenization t = c.getSectionList().get(0).getSentenceList().get(0).getTokenization();
+    TokenTagging tt = new TokenTagging();
+    tt.setUuid(new AnalyticUUIDGeneratorFactory(c).create().next());
+    tt.setMetadata(AnnotationMetadataFactory.fromCurrentLocalTime().setTool("other"));
+    tt.setTaggingType("POS");
+    for (int i = 0; i < t.getTokenList().getTokenListSize(); i++)
+      tt.addToTaggedTokenList(new TaggedToken().setTokenIndex(i).setTag(tag));
+    t.addToTokenTaggingList(tt);
+    return c;
+  }
+
+  private static TokenTagging otherTagging(TokenizedCommunication tc) {
+    for (TokenTagging tt : tc.getTokenizations().get(0).getTokenTaggingList())
+      if ("other".equals(tt.getMetadata().getTool()))
+        return tt;
+    throw new AssertionError("no tagging from the input");
+  }
+
+  @Test
+  public void sameTokensDifferentTaggingsKeepTheirOwn() throws Exception {
+    final AtomicInteger calls = new AtomicInteger(0);
+    // passes tokenized input through, as a tokenized or incremental run keeps its annotations
+    TiftTokenizerAnalytic passThrough = new TiftTokenizerAnalytic() {
+      @Override
+      public TokenizedCommunication annotate(Communication c) throws AnalyticException {
+        calls.incrementAndGet();
+        try {
+          return new CachedTokenizationCommunication(new Communication(c));
+        } catch (MiscommunicationException e) {
+          throw new AnalyticException(e);
+        }
+      }
+    };
+    AnnotationCache cache = new AnnotationCache(this.tf.getRoot().toPath(), 1024 * 1024);
+    CachingAnalytic a = new CachingAnalytic(passThrough, cache, "test");
+
+    final String text = "The same tokens , twice .";
+    TiftTokenizerAnalytic tokenizer = new TiftTokenizerAnalytic();
+    Communication first = withTagging(tokenizer.annotate(TestCommunications.create("first", text)).getRoot(), "A");
+    Communication second = withTagging(tokenizer.annotate(TestCommunications.create("second", text)).getRoot(), "B");
+    assertNotEquals(CachingAnalytic.key("test", first), CachingAnalytic.key("test", second));
+
+    TokenTagging t1 = otherTagging(a.annotate(first));
+    TokenTagging t2 = otherTagging(a.annotate(second));
+    assertEquals(2, calls.get());
+    assertEquals(0, cache.getHits());
+    assertEquals("A", t1.getTaggedTokenList().get(0).getTag());
+    assertEquals("B", t2.getTaggedTokenList().get(0).getTag());
+
+    // the same tagging again is a hit, and keeps it
+    Communication third = withTagging(tokenizer.annotate(TestCommunications.create("third", text)).getRoot(), "B");
+    TokenTagging t3 = otherTagging(a.annotate(third));
+    assertEquals(2, calls.get());
+    assertEquals(1, cache.getHits());
+    assertEquals("B", t3.getTaggedTokenList().get(0).getTag());
+  }
+}
@@ -0,0 +1,69 @@
+package edu.jhu.hlt.concrete.stanford.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.stanford.nlp.ling.CoreAnnotations.PartOfSpeechAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeCoreAnnotations.TreeAnnotation;
+import edu.stanford.nlp.util.ArrayCoreMap;
+import edu.stanford.nlp.util.CoreMap;
+
+public class SentenceMemoTest {
+
+  private static CoreMap sentence(String... words) {
+    List<CoreLabel> tokens = new ArrayList<>();
+    for (int i = 0; i < words.length; i++) {
+      CoreLabel cl = new CoreLabel();
+      cl.setWord(words[i]);
+      cl.setValue(words[i]);
+      cl.setIndex(i + 1);
+      tokens.add(cl);
+    }
+    CoreMap cm = new ArrayCoreMap();
+    cm.set(TokensAnnotation.class, tokens);
+    return cm;
+  }
+
+  @Test
+  public void splicesRepeatedSentence() {
+    SentenceMemo memo = new SentenceMemo("en", 10);
+    CoreMap first = sentence("The", "cat");
+    first.get(TokensAnnotation.class).get(0).set(PartOfSpeechAnnotation.class, "DT");
+    first.get(TokensAnnotation.class).get(1).set(PartOfSpeechAnnotation.class, "NN");
+    first.set(TreeAnnotation.class, Tree.valueOf("(ROOT (NP (DT The) (NN cat)))"));
+    assertFalse(memo.splice("[pos, parse]", first));
+    memo.store("[pos, parse]", first);
+
+    CoreMap second = sentence("The", "cat");
+    assertTrue(memo.splice("[pos, parse]", second));
+    assertEquals("NN", second.get(TokensAnnotation.class).get(1).get(PartOfSpeechAnnotation.class));
+    Tree t = second.get(TreeAnnotation.class);
+    assertEquals(2, t.getLeaves().size());
+    assertNotSame(first.get(TreeAnnotation.class), t);
+    assertEquals(1, memo.getHits());
+    assertEquals(1, memo.getMisses());
+
+    // different annotators or words do not match
+    assertFalse(memo.splice("[pos]", sentence("The", "cat")));
+    assertFalse(memo.splice("[pos, parse]", sentence("The", "dog")));
+  }
+
+  @Test
+  public void failedParsesAreNotKept() {
+    SentenceMemo memo = new SentenceMemo("en", 10);
+    CoreMap s = sentence("The", "cat");
+    s.set(TreeAnnotation.class, Tree.valueOf("(X (X The) (X cat))"));
+    memo.store("[parse]", s);
+    assertEquals(0, memo.size());
+  }
+}
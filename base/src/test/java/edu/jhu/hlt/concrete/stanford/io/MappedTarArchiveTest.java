@@ -0,0 +1,224 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.serialization.CompactCommunicationSerializer;
+import edu.jhu.hlt.concrete.stanford.TestCommunications;
+
+public class MappedTarArchiveTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MappedTarArchiveTest.class);
+
+  @Rule
+  public TemporaryFolder tf = new TemporaryFolder();
+
+  private static void putString(byte[] h, int off, String s) {
+    byte[] b = s.getBytes(StandardCharsets.US_ASCII);
+    System.arraycopy(b, 0, h, off, b.length);
+  }
+
+  /**
+   * A ustar header; the size is written in GNU base-256 if asked.
+   */
+  private static byte[] header(String name, long size, char type, boolean base256) {
+    byte[] h = new byte[512];
+    putString(h, 0, name);
+    putString(h, 100, "0000644\0");
+    putString(h, 108, "0000000\0");
+    putString(h, 116, "0000000\0");
+    if (base256) {
+      h[124] = (byte) 0x80;
+      for (int i = 0; i < 11; i++)
+        h[135 - i] = (byte) (size >>> (8 * i));
+    } else {
+      putString(h, 124, String.format("%011o\0", size));
+    }
+    putString(h, 136, String.format("%011o\0", 0));
+    h[156] = (byte) type;
+    putString(h, 257, "ustar\0");
+    putString(h, 263, "00");
+    long sum = 0;
+    for (int i = 0; i < 512; i++)
+      sum += (i >= 148 && i < 156) ? ' ' : (h[i] & 0xff);
+    putString(h, 148, String.format("%06o\0 ", sum));
+    return h;
+  }
+
+  private static void entry(ByteArrayOutputStream tar, String name, byte[] data, char type, boolean base256) {
+    tar.write(header(name, data.length, type, base256), 0, 512);
+    tar.write(data, 0, data.length);
+    final int pad = (512 - data.length % 512) % 512;
+    tar.write(new byte[pad], 0, pad);
+  }
+
+  private static byte[] data(int len, int seed) {
+    byte[] b = new byte[len];
+    for (int i = 0; i < len; i++)
+      b[i] = (byte) (i * 31 + seed);
+    return b;
+  }
+
+  private Path write(ByteArrayOutputStream tar) throws Exception {
+    tar.write(new byte[1024], 0, 1024);
+    Path p = this.tf.newFile().toPath();
+    Files.write(p, tar.toByteArray());
+    return p;
+  }
+
+  private static List<byte[]> readAll(MappedTarArchive mta) {
+    List<byte[]> l = new ArrayList<>();
+    while (mta.hasNext()) {
+      ByteBuffer b = mta.next();
+      byte[] a = new byte[b.remaining()];
+      b.get(a);
+      l.add(a);
+    }
+    return l;
+  }
+
+  @Test
+  public void entriesAcrossWindowBoundaries() throws Exception {
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    List<byte[]> expected = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      byte[] d = data(700 + i * 97, i);
+      expected.add(d);
+      entry(tar, "e" + i, d, '0', false);
+    }
+    // windows much smaller than the entries they hold
+    try (MappedTarArchive mta = new MappedTarArchive(this.write(tar), 1024)) {
+      List<byte[]> got = readAll(mta);
+      assertEquals(expected.size(), got.size());
+      for (int i = 0; i < got.size(); i++)
+        assertArrayEquals(expected.get(i), got.get(i));
+    }
+  }
+
+  @Test
+  public void base256Size() throws Exception {
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    byte[] d = data(1500, 7);
+    entry(tar, "big", d, '0', true);
+    try (MappedTarArchive mta = new MappedTarArchive(this.write(tar))) {
+      List<byte[]> got = readAll(mta);
+      assertEquals(1, got.size());
+      assertArrayEquals(d, got.get(0));
+    }
+  }
+
+  @Test
+  public void skipsMetadataEntries() throws Exception {
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    entry(tar, "././@PaxHeader", "30 path=a-very-long-name.comm\n".getBytes(StandardCharsets.US_ASCII), 'x', false);
+    entry(tar, "././@LongLink", "a-very-long-name.comm\0".getBytes(StandardCharsets.US_ASCII), 'L', false);
+    entry(tar, "dir/", new byte[0], '5', false);
+    byte[] d = data(600, 3);
+    entry(tar, "a", d, '0', false);
+    try (MappedTarArchive mta = new MappedTarArchive(this.write(tar))) {
+      List<byte[]> got = readAll(mta);
+      assertEquals(1, got.size());
+      assertArrayEquals(d, got.get(0));
+    }
+  }
+
+  @Test(expected = UncheckedIOException.class)
+  public void badChecksum() throws Exception {
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    entry(tar, "a", data(10, 1), '0', false);
+    byte[] bytes = tar.toByteArray();
+    // corrupt the name without fixing the checksum
+    bytes[0] = 'z';
+    ByteArrayOutputStream corrupt = new ByteArrayOutputStream();
+    corrupt.write(bytes, 0, bytes.length);
+    try (MappedTarArchive mta = new MappedTarArchive(this.write(corrupt))) {
+      mta.hasNext();
+    }
+  }
+
+  @Test
+  public void emptyArchive() throws Exception {
+    try (MappedTarArchive mta = new MappedTarArchive(this.write(new ByteArrayOutputStream()))) {
+      assertFalse(mta.hasNext());
+    }
+  }
+
+  private static Communication bigComm() {
+    char[] text = new char[200 * 1024];
+    Arrays.fill(text, 'a');
+    for (int i = 0; i < text.length; i += 10)
+      text[i] = ' ';
+    return TestCommunications.create("big", new String(text));
+  }
+
+  @Test
+  public void readCommunicationFromDirectBuffer() throws Exception {
+    Communication c = bigComm();
+    byte[] bytes = new CompactCommunicationSerializer().toBytes(c);
+    // larger than one chunk, so the transport refills
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes).flip();
+    assertEquals(c, MappedTarArchive.readCommunication(direct));
+    assertEquals(0, direct.position());
+  }
+
+  @Test
+  public void readCommunicationFromHeapSlice() throws Exception {
+    Communication c = TestCommunications.create("small");
+    byte[] bytes = new CompactCommunicationSerializer().toBytes(c);
+    byte[] padded = new byte[bytes.length + 10];
+    System.arraycopy(bytes, 0, padded, 5, bytes.length);
+    ByteBuffer slice = ByteBuffer.wrap(padded, 5, bytes.length).slice();
+    assertEquals(c, MappedTarArchive.readCommunication(slice));
+  }
+
+  /**
+   * Compares {@link MappedTarArchive#readCommunication(ByteBuffer)} over a
+   * direct buffer with deserializing a byte array. Run with
+   * <code>-Dbenchmark=true</code>.
+   */
+  @Test
+  public void benchmark() throws Exception {
+    assumeTrue(Boolean.getBoolean("benchmark"));
+    CompactCommunicationSerializer ser = new CompactCommunicationSerializer();
+    byte[] bytes = ser.toBytes(bigComm());
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes).flip();
+    final int n = 2000;
+    for (int round = 0; round < 3; round++) {
+      long t = System.nanoTime();
+      for (int i = 0; i < n; i++)
+        ser.fromBytes(bytes);
+      final long array = System.nanoTime() - t;
+      t = System.nanoTime();
+      for (int i = 0; i < n; i++)
+        MappedTarArchive.readCommunication(direct);
+      final long buffer = System.nanoTime() - t;
+      LOGGER.info("Round {}: fromBytes {} us/doc, readCommunication(direct) {} us/doc", round,
+          array / 1000 / n, buffer / 1000 / n);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012-2017 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.concrete.stanford.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ParallelGzipOutputStreamTest {
+
+  @Rule
+  public TemporaryFolder tf = new TemporaryFolder();
+
+  private static byte[] text(int len) {
+    Random r = new Random(42);
+    String alphabet = "the quick brown fox\n";
+    byte[] b = new byte[len];
+    for (int i = 0; i < len; i++)
+      b[i] = (byte) alphabet.charAt(r.nextInt(alphabet.length()));
+    return b;
+  }
+
+  private static byte[] gunzip(Path p) throws Exception {
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(p))) {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      int n;
+      while ((n = in.read(buf)) != -1)
+        bos.write(buf, 0, n);
+      return bos.toByteArray();
+    }
+  }
+
+  @Test
+  public void deflatersAreEndedOnClose() throws Exception {
+    Path out = this.tf.getRoot().toPath().resolve("out.gz");
+    ParallelGzipOutputStream os = new ParallelGzipOutputStream(Files.newOutputStream(out), 2, 1000, 6, Optional.empty());
+    os.write(text(20_000));
+    os.flush();
+    // at most one deflater per compression thread
+    assertTrue(os.getLiveDeflaters() <= 2);
+    os.close();
+    assertEquals(0, os.getLiveDeflaters());
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    byte[] data = text(250_001);
+    Path out = this.tf.getRoot().toPath().resolve("out.gz");
+    try (OutputStream os = new ParallelGzipOutputStream(Files.newOutputStream(out), 3, 10_000, 6, Optional.empty())) {
+      os.write(data[0]);
+      os.write(data, 1, data.length - 1);
+    }
+    assertArrayEquals(data, gunzip(out));
+  }
+
+  @Test
+  public void empty() throws Exception {
+    Path out = this.tf.getRoot().toPath().resolve("empty.gz");
+    new ParallelGzipOutputStream(Files.newOutputStream(out), 2, Optional.empty()).close();
+    assertEquals(0, gunzip(out).length);
+  }
+
+  @Test
+  public void inflateFromIndexedBlock() throws Exception {
+    byte[] data = text(100_000);
+    Path out = this.tf.getRoot().toPath().resolve("idx.gz");
+    Path idx = ParallelGzipOutputStream.indexPathFor(out);
+    try (OutputStream os = new ParallelGzipOutputStream(Files.newOutputStream(out), 2, 10_000, 6, Optional.of(idx))) {
+      os.write(data);
+    }
+
+    List<String> lines = Files.readAllLines(idx);
+    // header, ten full blocks, and the empty final block
+    assertEquals(12, lines.size());
+    String[] fields = lines.get(5).split("\t");
+    int compressedOffset = Integer.parseInt(fields[0]);
+    int uncompressedOffset = Integer.parseInt(fields[1]);
+    assertEquals(40_000, uncompressedOffset);
+
+    byte[] gz = Files.readAllBytes(out);
+    Inflater inf = new Inflater(true);
+    inf.setInput(gz, compressedOffset, gz.length - compressedOffset);
+    byte[] block = new byte[10_000];
+    assertEquals(block.length, inf.inflate(block));
+    inf.end();
+    assertArrayEquals(Arrays.copyOfRange(data, 40_000, 50_000), block);
+  }
+}
@@ -0,0 +1,63 @@
+package edu.jhu.hlt.concrete.stanford.languages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import edu.stanford.nlp.international.Language;
+
+public class PipelineLanguageTest {
+
+  @Test
+  public void accurateIsUnchanged() {
+    PipelineLanguage en = PipelineLanguage.ENGLISH;
+    assertEquals(en.getNonTokenizationAnnotators(), en.getNonTokenizationAnnotators(PipelineProfile.ACCURATE));
+    assertEquals(ImmutableList.of("pos", "lemma", "parse", "ner", "dcoref"), en.getNonTokenizationAnnotators_1(PipelineProfile.ACCURATE));
+    assertTrue(en.hasCoref(PipelineProfile.ACCURATE));
+    assertFalse(PipelineLanguage.SPANISH.hasCoref(PipelineProfile.ACCURATE));
+  }
+
+  @Test
+  public void balanced() {
+    Properties props = PipelineLanguage.SPANISH.getProperties("tokenize, ssplit, pos, ner, parse", PipelineProfile.BALANCED);
+    assertEquals("edu/stanford/nlp/models/srparser/spanishSR.ser.gz", props.getProperty("parse.model"));
+    assertEquals(ImmutableList.of("pos", "ner", "parse"), PipelineLanguage.SPANISH.getNonTokenizationAnnotators(PipelineProfile.BALANCED));
+  }
+
+  @Test
+  public void fast() {
+    PipelineLanguage en = PipelineLanguage.ENGLISH;
+    assertEquals(ImmutableList.of("pos", "lemma", "depparse", "ner"), en.getNonTokenizationAnnotators_1(PipelineProfile.FAST));
+    assertFalse(en.hasCoref(PipelineProfile.FAST));
+
+    Properties props = en.getProperties("tokenize, ssplit, pos, lemma, parse, ner, dcoref", PipelineProfile.FAST);
+    assertEquals("tokenize, ssplit, pos, lemma, depparse, ner", props.getProperty("annotators"));
+    assertEquals("false", props.getProperty("ner.useSUTime"));
+  }
+
+  @Test
+  public void fastSetsDependencyLanguage() {
+    Properties es = PipelineLanguage.SPANISH.getProperties("tokenize, ssplit, pos, ner, parse", PipelineProfile.FAST);
+    assertEquals("tokenize, ssplit, pos, ner, depparse", es.getProperty("annotators"));
+    assertEquals("edu/stanford/nlp/models/parser/nndep/UD_Spanish.gz", es.getProperty("depparse.model"));
+    assertEquals(Language.Spanish.name(), es.getProperty("depparse.language"));
+
+    Properties zh = PipelineLanguage.CHINESE.getProperties("segment, tokenize, ssplit, pos, ner, parse", PipelineProfile.FAST);
+    assertEquals("edu/stanford/nlp/models/parser/nndep/UD_Chinese.gz", zh.getProperty("depparse.model"));
+    assertEquals(Language.Chinese.name(), zh.getProperty("depparse.language"));
+
+    Properties en = PipelineLanguage.ENGLISH.getProperties("tokenize, ssplit, pos, lemma, parse, ner", PipelineProfile.FAST);
+    assertEquals(Language.UniversalEnglish.name(), en.getProperty("depparse.language"));
+  }
+
+  @Test
+  public void profileNames() {
+    assertEquals(PipelineProfile.BALANCED, PipelineProfile.getEnumeration("Balanced"));
+  }
+}
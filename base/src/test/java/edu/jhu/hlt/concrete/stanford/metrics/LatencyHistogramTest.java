@@ -0,0 +1,53 @@
+package edu.jhu.hlt.concrete.stanford.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void bucketsCoverTheirValues() {
+    for (long v : new long[] { 0, 1, 127, 128, 129, 255, 256, 1000, 123456789L, Long.MAX_VALUE / 3 }) {
+      final int i = LatencyHistogram.indexOf(v);
+      assertTrue(LatencyHistogram.highestValueAt(i) >= v);
+      if (i > 0)
+        assertTrue(LatencyHistogram.highestValueAt(i - 1) < v);
+    }
+  }
+
+  @Test
+  public void percentiles() {
+    LatencyHistogram h = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++)
+      h.record(i * 1000L);
+    assertEquals(1000, h.getCount());
+    assertEquals(1000, h.getMin());
+    assertEquals(1000000, h.getMax());
+    // within the histogram's resolution of about 1.6%
+    assertEquals(500000, h.getValueAtPercentile(50), 500000 * 0.016);
+    assertEquals(990000, h.getValueAtPercentile(99), 990000 * 0.016);
+    assertEquals(1000000, h.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void countAtOrBelow() {
+    LatencyHistogram h = new LatencyHistogram();
+    for (int i = 1; i <= 100; i++)
+      h.record(i);
+    h.record(1000000);
+    assertEquals(50, h.getCountAtOrBelow(50));
+    assertEquals(100, h.getCountAtOrBelow(999));
+    assertEquals(101, h.getCountAtOrBelow(Long.MAX_VALUE));
+    assertEquals(0, new LatencyHistogram().getCountAtOrBelow(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void empty() {
+    LatencyHistogram h = new LatencyHistogram();
+    assertEquals(0, h.getValueAtPercentile(99));
+    assertEquals(0, h.getMin());
+    assertEquals(0.0, h.getMean(), 0.0);
+  }
+}
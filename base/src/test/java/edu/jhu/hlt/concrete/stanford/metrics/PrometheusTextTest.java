@@ -0,0 +1,64 @@
+package edu.jhu.hlt.concrete.stanford.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class PrometheusTextTest {
+
+  @Test
+  public void counterAndGauge() {
+    String s = new PrometheusText()
+        .counter("requests_total", "Requests.", 3)
+        .gauge("queue_depth", "Waiting.", 0.5)
+        .toString();
+    assertEquals("# HELP requests_total Requests.\n"
+        + "# TYPE requests_total counter\n"
+        + "requests_total 3\n"
+        + "# HELP queue_depth Waiting.\n"
+        + "# TYPE queue_depth gauge\n"
+        + "queue_depth 0.5\n", s);
+  }
+
+  @Test
+  public void labelledCounters() {
+    Map<String, Long> byReason = new TreeMap<>();
+    byReason.put("busy", 2L);
+    byReason.put("overloaded", 1L);
+    String s = new PrometheusText().counters("refused_total", "Refused.", "reason", byReason).toString();
+    assertTrue(s.contains("# TYPE refused_total counter\n"));
+    assertTrue(s.contains("refused_total{reason=\"busy\"} 2\n"));
+    assertTrue(s.contains("refused_total{reason=\"overloaded\"} 1\n"));
+  }
+
+  @Test
+  public void histogramBucketsAreCumulative() {
+    LatencyHistogram h = new LatencyHistogram();
+    h.record(500);
+    h.record(20000);
+    h.record(20000000);
+    String s = new PrometheusText()
+        .histograms("latency_seconds", "Latency.", "annotator", Collections.singletonMap("p\"os", h))
+        .toString();
+    assertTrue(s.contains("# TYPE latency_seconds histogram\n"));
+    assertTrue(s.contains("latency_seconds_bucket{annotator=\"p\\\"os\",le=\"0.001\"} 1\n"));
+    assertTrue(s.contains("latency_seconds_bucket{annotator=\"p\\\"os\",le=\"0.025\"} 2\n"));
+    assertTrue(s.contains("latency_seconds_bucket{annotator=\"p\\\"os\",le=\"10\"} 2\n"));
+    assertTrue(s.contains("latency_seconds_bucket{annotator=\"p\\\"os\",le=\"30\"} 3\n"));
+    assertTrue(s.contains("latency_seconds_bucket{annotator=\"p\\\"os\",le=\"+Inf\"} 3\n"));
+    assertTrue(s.contains("latency_seconds_sum{annotator=\"p\\\"os\"} 20.0205\n"));
+    assertTrue(s.contains("latency_seconds_count{annotator=\"p\\\"os\"} 3\n"));
+  }
+
+  @Test
+  public void jvm() {
+    String s = new PrometheusText().jvm().toString();
+    assertTrue(s.contains("# TYPE jvm_memory_heap_used_bytes gauge\n"));
+    assertTrue(s.contains("jvm_threads_current "));
+  }
+}
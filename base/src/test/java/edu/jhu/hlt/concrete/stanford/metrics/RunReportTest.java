@@ -0,0 +1,50 @@
+package edu.jhu.hlt.concrete.stanford.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.concrete.analytics.base.AnalyticException;
+import edu.jhu.hlt.concrete.stanford.metrics.RunReport.SlowDocument;
+
+public class RunReportTest {
+
+  @Test
+  public void keepsSlowestDocuments() {
+    RunReport r = new RunReport(2);
+    r.recordDocument("fast", 1000000L, 1, 10);
+    r.recordDocument("slowest", 9000000L, 2, 20);
+    r.recordDocument("slow", 5000000L, 3, 30);
+    List<SlowDocument> slowest = r.getSlowest();
+    assertEquals(2, slowest.size());
+    assertEquals("slowest", slowest.get(0).getId());
+    assertEquals("slow", slowest.get(1).getId());
+    assertEquals(3, r.getDocuments());
+    assertEquals(6, r.getSentences());
+    assertEquals(60, r.getTokens());
+  }
+
+  @Test
+  public void json() {
+    RunReport r = new RunReport(5);
+    r.recordDocument("doc \"1\"", 2000000L, 1, 10);
+    r.recordFailure(new AnalyticException("bad"));
+    r.recordFailure(new AnalyticException("worse"));
+    r.stop();
+    String json = r.toJson();
+    assertTrue(json.contains("\"documents\": 1,"));
+    assertTrue(json.contains("\"failures\": 2,"));
+    assertTrue(json.contains("\"" + AnalyticException.class.getName() + "\": 2"));
+    assertTrue(json.contains("\"id\": \"doc \\\"1\\\"\""));
+  }
+
+  @Test
+  public void reportPath() {
+    assertEquals(Paths.get("/out/run.report.json"), RunReport.reportPathFor(Paths.get("/out/run.tar.gz")));
+    assertEquals(Paths.get("/out/doc.comm.report.json"), RunReport.reportPathFor(Paths.get("/out/doc.comm")));
+  }
+}
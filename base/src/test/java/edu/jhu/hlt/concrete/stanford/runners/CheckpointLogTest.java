@@ -0,0 +1,87 @@
+package edu.jhu.hlt.concrete.stanford.runners;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CheckpointLogTest {
+
+  @Rule
+  public TemporaryFolder tf = new TemporaryFolder();
+
+  @Test
+  public void onlyFinishedPartsCount() throws Exception {
+    Path logPath = this.tf.getRoot().toPath().resolve("run.log");
+    Path p0 = this.tf.getRoot().toPath().resolve("out.part-00000.tar.gz");
+    Path p1 = this.tf.getRoot().toPath().resolve("out.part-00001.tar.gz");
+    try (CheckpointLog log = new CheckpointLog(logPath, false, 0)) {
+      log.partOpened(p0);
+      log.documentDone("a.tar.gz", "doc-1");
+      log.documentDone("a.tar.gz", "doc-2");
+      log.archiveDone("a.tar.gz");
+      log.partDone(p0);
+      // simulate a crash while the second part is open
+      log.partOpened(p1);
+      log.documentDone("b.tar.gz", "doc-3");
+      log.archiveDone("b.tar.gz");
+    }
+
+    try (CheckpointLog log = new CheckpointLog(logPath, true, 0)) {
+      assertTrue(log.isArchiveComplete("a.tar.gz"));
+      assertTrue(log.isDocumentComplete("a.tar.gz", "doc-1"));
+      assertFalse(log.isArchiveComplete("b.tar.gz"));
+      assertFalse(log.isDocumentComplete("b.tar.gz", "doc-3"));
+      assertEquals(1, log.getIncompleteParts().size());
+      assertEquals(p1.toAbsolutePath(), log.getIncompleteParts().get(0));
+      assertEquals(2, log.getNextPartNumber());
+    }
+  }
+
+  @Test
+  public void archiveWithoutOpenPartIsComplete() throws Exception {
+    Path logPath = this.tf.getRoot().toPath().resolve("run.log");
+    try (CheckpointLog log = new CheckpointLog(logPath, false, 0)) {
+      log.archiveDone("empty.tar.gz");
+    }
+    try (CheckpointLog log = new CheckpointLog(logPath, true, 0)) {
+      assertTrue(log.isArchiveComplete("empty.tar.gz"));
+      assertEquals(0, log.getNextPartNumber());
+    }
+  }
+
+  @Test
+  public void partsFinishingOutOfOrder() throws Exception {
+    Path logPath = this.tf.getRoot().toPath().resolve("run.log");
+    Path p0 = this.tf.getRoot().toPath().resolve("out.part-00000.tar.gz");
+    Path p1 = this.tf.getRoot().toPath().resolve("out.part-00001.tar.gz");
+    try (CheckpointLog log = new CheckpointLog(logPath, false, 0)) {
+      log.partOpened(p0);
+      log.documentDone("a.tar.gz", "doc-1");
+      log.partOpened(p1);
+      log.documentDone("a.tar.gz", "doc-2");
+      log.archiveDone("a.tar.gz");
+      // the later part finishes first, then the run dies
+      log.partDone(p1);
+    }
+
+    try (CheckpointLog log = new CheckpointLog(logPath, true, 0)) {
+      assertFalse(log.isArchiveComplete("a.tar.gz"));
+      assertFalse(log.isDocumentComplete("a.tar.gz", "doc-1"));
+      assertTrue(log.isDocumentComplete("a.tar.gz", "doc-2"));
+      assertEquals(p0.toAbsolutePath(), log.getIncompleteParts().get(0));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void existingLogRequiresResume() throws Exception {
+    Path logPath = this.tf.newFile("run.log").toPath();
+    new CheckpointLog(logPath, false, 0).close();
+  }
+}
@@ -0,0 +1,99 @@
+package edu.jhu.hlt.concrete.stanford.runners;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableList;
+
+import edu.jhu.hlt.acute.archivers.tar.TarArchiver;
+import edu.jhu.hlt.concrete.communications.WritableCommunication;
+import edu.jhu.hlt.concrete.serialization.archiver.ArchivableCommunication;
+import edu.jhu.hlt.concrete.serialization.iterators.TarArchiveEntryCommunicationIterator;
+import edu.jhu.hlt.concrete.serialization.iterators.TarGzArchiveEntryCommunicationIterator;
+import edu.jhu.hlt.concrete.stanford.TestCommunications;
+import edu.jhu.hlt.concrete.stanford.TiftTokenizerAnalytic;
+import edu.jhu.hlt.concrete.stanford.io.InputFiles;
+
+public class MultiInputAnnotatorTest {
+
+  @Rule
+  public TemporaryFolder tf = new TemporaryFolder();
+
+  private static void writeArchive(Path p, boolean gz, String prefix, int n) throws Exception {
+    try (OutputStream os = Files.newOutputStream(p);
+        BufferedOutputStream bos = new BufferedOutputStream(os);
+        TarArchiver arch = gz ? new TarArchiver(new GzipCompressorOutputStream(bos)) : new TarArchiver(bos);) {
+      for (int i = 0; i < n; i++)
+        arch.addEntry(new ArchivableCommunication(TestCommunications.create(prefix + i)));
+    }
+  }
+
+  @Test
+  public void perInputOutputsInOrder() throws Exception {
+    Path in = this.tf.newFolder("in").toPath();
+    Files.createDirectories(in.resolve("sub"));
+    writeArchive(in.resolve("big.tar.gz"), true, "big-", 20);
+    writeArchive(in.resolve("sub/small.tar"), false, "small-", 3);
+    new WritableCommunication(TestCommunications.create("single")).writeToFile(in.resolve("one.comm"), true);
+    Path out = this.tf.newFolder("out").toPath();
+
+    List<AnalyticChain> chains = new ArrayList<>();
+    for (int i = 0; i < 3; i++)
+      chains.add(new AnalyticChain(ImmutableList.of(new TiftTokenizerAnalytic())));
+    try (MultiInputAnnotator mia = new MultiInputAnnotator(chains, 2, 6, true)) {
+      mia.run(InputFiles.expand(ImmutableList.of(in.toString()), InputFiles.ALL_EXTENSIONS), out);
+    }
+
+    assertTrue(Files.exists(out.resolve("one.comm")));
+    try (InputStream is = Files.newInputStream(out.resolve("big.tar.gz"));
+        TarGzArchiveEntryCommunicationIterator iter = new TarGzArchiveEntryCommunicationIterator(new BufferedInputStream(is));) {
+      int i = 0;
+      while (iter.hasNext())
+        assertEquals("big-" + i++, iter.next().getId());
+      assertEquals(20, i);
+    }
+    try (InputStream is = Files.newInputStream(out.resolve("sub/small.tar"));
+        TarArchiveEntryCommunicationIterator iter = new TarArchiveEntryCommunicationIterator(new BufferedInputStream(is));) {
+      int i = 0;
+      while (iter.hasNext())
+        assertEquals("small-" + i++, iter.next().getId());
+      assertEquals(3, i);
+    }
+  }
+
+  @Test
+  public void sameRelativePathFailsBeforeWriting() throws Exception {
+    Path a = this.tf.newFolder("a").toPath();
+    Path b = this.tf.newFolder("b").toPath();
+    writeArchive(a.resolve("x.tar.gz"), true, "a-", 2);
+    writeArchive(b.resolve("x.tar.gz"), true, "b-", 2);
+    Path out = this.tf.newFolder("out").toPath();
+
+    List<AnalyticChain> chains = ImmutableList.of(new AnalyticChain(ImmutableList.of(new TiftTokenizerAnalytic())));
+    try (MultiInputAnnotator mia = new MultiInputAnnotator(chains, 2, 2, true)) {
+      // two directories with the same file names
+      mia.run(InputFiles.expand(ImmutableList.of(a.toString(), b.toString()), InputFiles.ALL_EXTENSIONS), out);
+      fail("expected duplicate outputs to be refused");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("x.tar.gz"));
+    }
+    assertFalse(Files.exists(out.resolve("x.tar.gz")));
+  }
+}
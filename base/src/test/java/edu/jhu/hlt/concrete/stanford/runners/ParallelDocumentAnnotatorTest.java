@@ -0,0 +1,171 @@
+package edu.jhu.hlt.concrete.stanford.runners;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.analytics.base.AnalyticException;
+import edu.jhu.hlt.concrete.miscommunication.tokenized.TokenizedCommunication;
+import edu.jhu.hlt.concrete.stanford.TestCommunications;
+import edu.jhu.hlt.concrete.stanford.TiftTokenizerAnalytic;
+
+public class ParallelDocumentAnnotatorTest {
+
+  /**
+   * Holds documents whose ID starts with "wait" until the latch opens, and
+   * fails documents whose ID starts with "bad".
+   */
+  private static List<AnalyticChain> chains(int n, CountDownLatch latch) {
+    List<AnalyticChain> chains = new ArrayList<>(n);
+    for (int i = 0; i < n; i++)
+      chains.add(new AnalyticChain(ImmutableList.of(new TiftTokenizerAnalytic() {
+        @Override
+        public TokenizedCommunication annotate(Communication c) throws AnalyticException {
+          if (c.getId().startsWith("bad"))
+            throw new AnalyticException("bad document: " + c.getId());
+          if (c.getId().startsWith("wait")) {
+            try {
+              if (!latch.await(10, TimeUnit.SECONDS))
+                throw new AnalyticException("latch never opened");
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new AnalyticException(e);
+            }
+          }
+          return super.annotate(c);
+        }
+      })));
+    return chains;
+  }
+
+  @Test
+  public void outputInSubmissionOrderWhenLaterDocumentsFinishFirst() throws Exception {
+    // the first document only finishes once the others have
+    final CountDownLatch latch = new CountDownLatch(1);
+    final List<String> written = Collections.synchronizedList(new ArrayList<>());
+    try (ParallelDocumentAnnotator pda = new ParallelDocumentAnnotator(chains(2, latch), 8, true, c -> {
+      written.add(c.getId());
+    })) {
+      pda.submit(TestCommunications.create("wait-0"));
+      for (int i = 1; i <= 4; i++)
+        pda.submit(TestCommunications.create("fast-" + i));
+      // nothing can be written before the first document
+      assertTrue(written.isEmpty());
+      latch.countDown();
+      pda.flush();
+    }
+    assertEquals(ImmutableList.of("wait-0", "fast-1", "fast-2", "fast-3", "fast-4"), written);
+  }
+
+  @Test
+  public void failingDocumentIsSkipped() throws Exception {
+    List<String> written = new ArrayList<>();
+    try (ParallelDocumentAnnotator pda = new ParallelDocumentAnnotator(chains(2, new CountDownLatch(0)), 4, false,
+        c -> written.add(c.getId()))) {
+      pda.submit(TestCommunications.create("a"));
+      pda.submit(TestCommunications.create("bad-b"));
+      pda.submit(TestCommunications.create("c"));
+      pda.flush();
+    }
+    assertEquals(ImmutableList.of("a", "c"), written);
+  }
+
+  @Test
+  public void failingDocumentAbortsWithFailFast() throws Exception {
+    List<String> written = new ArrayList<>();
+    try (ParallelDocumentAnnotator pda = new ParallelDocumentAnnotator(chains(2, new CountDownLatch(0)), 4, true,
+        c -> written.add(c.getId()))) {
+      pda.submit(TestCommunications.create("a"));
+      pda.submit(TestCommunications.create("bad-b"));
+      pda.submit(TestCommunications.create("c"));
+      pda.flush();
+      fail("expected the failure to abort the run");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(ImmutableList.of("a"), written);
+  }
+
+  private static boolean isWaiting(Thread t) {
+    final Thread.State st = t.getState();
+    return st == Thread.State.WAITING || st == Thread.State.TIMED_WAITING;
+  }
+
+  @Test
+  public void submitBlocksWhenReorderBufferIsFull() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final List<String> written = Collections.synchronizedList(new ArrayList<>());
+    final AtomicInteger submitted = new AtomicInteger(0);
+    final AtomicReference<Exception> failure = new AtomicReference<>();
+    try (ParallelDocumentAnnotator pda = new ParallelDocumentAnnotator(chains(2, latch), 2, true, c -> {
+      written.add(c.getId());
+    })) {
+      Thread producer = new Thread(() -> {
+        try {
+          pda.submit(TestCommunications.create("wait-0"));
+          submitted.incrementAndGet();
+          pda.submit(TestCommunications.create("wait-1"));
+          submitted.incrementAndGet();
+          pda.submit(TestCommunications.create("c"));
+          submitted.incrementAndGet();
+          pda.flush();
+        } catch (Exception e) {
+          failure.set(e);
+        }
+      });
+      producer.start();
+      // the third document waits for room in the buffer: nothing else
+      // parks the producer once the second submit has returned
+      for (int i = 0; i < 1000 && !(submitted.get() == 2 && isWaiting(producer)); i++)
+        Thread.sleep(10);
+      assertTrue(isWaiting(producer));
+      assertEquals(2, submitted.get());
+      latch.countDown();
+      producer.join(10000);
+      assertEquals(3, submitted.get());
+    }
+    if (failure.get() != null)
+      throw failure.get();
+    assertEquals(ImmutableList.of("wait-0", "wait-1", "c"), written);
+  }
+
+  @Test
+  public void longestFirstKeepsOutputOrder() throws Exception {
+    final List<String> annotated = Collections.synchronizedList(new ArrayList<>());
+    TiftTokenizerAnalytic recording = new TiftTokenizerAnalytic() {
+      @Override
+      public TokenizedCommunication annotate(Communication c) throws AnalyticException {
+        annotated.add(c.getId());
+        return super.annotate(c);
+      }
+    };
+
+    List<String> written = new ArrayList<>();
+    List<AnalyticChain> chains = ImmutableList.of(new AnalyticChain(ImmutableList.of(recording)));
+    try (ParallelDocumentAnnotator pda = new ParallelDocumentAnnotator(chains, 4, true, c -> written.add(c.getId()))) {
+      pda.setLongestFirst(DocumentCost::fromText, 4);
+      pda.submit(TestCommunications.create("short", "Short text."));
+      pda.submit(TestCommunications.create("longest", "This is by far the longest text of the whole batch."));
+      pda.submit(TestCommunications.create("medium", "This is a medium text."));
+      pda.submit(TestCommunications.create("long", "This is a somewhat longer text here."));
+      pda.flush();
+    }
+
+    assertEquals(ImmutableList.of("longest", "long", "medium", "short"), annotated);
+    assertEquals(ImmutableList.of("short", "longest", "medium", "long"), written);
+  }
+}